@@ -0,0 +1,395 @@
+package com.affectiva.framedetectordemo;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A durable outbox for alerts which must reach a remote service, such as a text message to a carer.
+ *
+ * post() returns immediately. Alerts are appended to a journal file on the outbox's own thread before any attempt is
+ * made to send them, so they survive the app being killed, and are sent in batches through a Sender. A batch which
+ * fails to send is retried with exponential backoff, up to MAX_RETRY_DELAY apart, for as long as it takes; nothing is
+ * dropped because the network is unavailable. An alert of the same type as one posted less than COALESCE_WINDOW ago
+ * is counted but not sent again.
+ *
+ * Alerts which have been sent are recorded by their sequence number in a separate file. The journal is rewritten with
+ * only the unsent alerts when the outbox starts, and truncated whenever everything in it has been sent.
+ */
+class AlertOutbox {
+
+    /**
+     * Delivers alerts to the remote service. Called on the outbox's thread, so may block.
+     */
+    interface Sender {
+        /**
+         * @throws Exception if the batch could not be delivered, in which case it will be retried
+         */
+        void send(List<Alert> batch) throws Exception;
+    }
+
+    static class Alert {
+        long sequence;
+        final long timeMillis;
+        final String type;
+        final String text;
+
+        Alert(long sequence, long timeMillis, String type, String text) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.type = type;
+            this.text = text;
+        }
+    }
+
+    static final int MAX_BATCH_SIZE = 10;
+    static final long BATCH_DELAY = 1000; //ms to wait for further alerts before sending a batch
+    static final long COALESCE_WINDOW = 60000; //ms
+    static final long INITIAL_RETRY_DELAY = 1000; //ms
+    static final long MAX_RETRY_DELAY = 5 * 60 * 1000; //ms
+
+    private static final String LOG_TAG = "AlertOutbox";
+    private static final String JOURNAL_FILE_NAME = "alert_outbox.journal";
+    private static final String SENT_FILE_NAME = "alert_outbox.sent";
+
+    private final File directory;
+    private final Sender sender;
+    private OutboxHandler handler;
+
+    private volatile int pendingCount = 0;
+    private volatile long sentCount = 0;
+    private volatile long coalescedCount = 0;
+
+    /**
+     * @param directory where the outbox keeps its files, e.g. Context.getFilesDir()
+     */
+    AlertOutbox(File directory, Sender sender) {
+        if (directory == null || sender == null) {
+            throw new NullPointerException("directory and sender must not be null");
+        }
+        this.directory = directory;
+        this.sender = sender;
+    }
+
+    /**
+     * Starts the outbox's thread, which loads any alerts left unsent by a previous run and starts sending them.
+     */
+    synchronized void start() {
+        if (handler != null) {
+            throw new IllegalStateException("AlertOutbox is already started");
+        }
+        HandlerThread thread = new HandlerThread("AlertOutboxThread");
+        thread.start();
+        handler = new OutboxHandler(thread, this);
+        handler.sendEmptyMessage(OutboxHandler.LOAD);
+    }
+
+    /**
+     * Stops the outbox's thread once it has journaled every alert already posted. Alerts not yet sent are sent after
+     * the next start().
+     */
+    synchronized void stop() {
+        if (handler == null) {
+            return;
+        }
+        handler.sendEmptyMessage(OutboxHandler.STOP);
+        handler = null;
+    }
+
+    /**
+     * Queues an alert for sending. Does nothing, other than log a warning, if the outbox is not started, e.g. when a
+     * result delivered late posts one after stop().
+     * @param type alerts of the same type posted within COALESCE_WINDOW of each other are only sent once
+     */
+    synchronized void post(String type, String text) {
+        if (handler == null) {
+            Log.w(LOG_TAG, "Dropping an alert posted while the outbox is stopped: " + type);
+            return;
+        }
+        Alert alert = new Alert(0, System.currentTimeMillis(), type, text);
+        handler.sendMessage(handler.obtainMessage(OutboxHandler.POST, alert));
+    }
+
+    /**
+     * Returns the number of alerts journaled but not yet sent.
+     */
+    int getPendingCount() {
+        return pendingCount;
+    }
+
+    long getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * Returns the number of alerts which were not sent because one of the same type had been posted just before.
+     */
+    long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Returns the Looper of the outbox's thread, or null if it is not started. For tests, which need to step its
+     * batching and retry delays.
+     */
+    synchronized Looper getLooper() {
+        return handler == null ? null : handler.getLooper();
+    }
+
+    private static class OutboxHandler extends Handler {
+        //Incoming message codes
+        private static final int LOAD = 0;
+        private static final int POST = 1;
+        private static final int SEND = 2;
+        private static final int STOP = 3;
+
+        private final AlertOutbox outbox;
+        private final File journalFile;
+        private final File sentFile;
+        private FileOutputStream journal;
+
+        private final List<Alert> pending = new ArrayList<>();
+        private final Map<String, Long> lastPostTimes = new HashMap<>();
+        private long nextSequence = 1;
+        private long retryDelay = INITIAL_RETRY_DELAY;
+        private boolean isBackingOff = false;
+
+        private OutboxHandler(HandlerThread thread, AlertOutbox outbox) {
+            super(thread.getLooper());
+            this.outbox = outbox;
+            journalFile = new File(outbox.directory, JOURNAL_FILE_NAME);
+            sentFile = new File(outbox.directory, SENT_FILE_NAME);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case LOAD:
+                    load();
+                    break;
+                case POST:
+                    append((Alert) msg.obj);
+                    break;
+                case SEND:
+                    sendBatch();
+                    break;
+                case STOP:
+                    removeMessages(SEND);
+                    closeJournal();
+                    ((HandlerThread) getLooper().getThread()).quitSafely();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void load() {
+            long lastSent = readLastSentSequence();
+            nextSequence = lastSent + 1;
+            if (journalFile.exists()) {
+                BufferedReader reader = null;
+                try {
+                    reader = new BufferedReader(new FileReader(journalFile));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        Alert alert = parse(line);
+                        if (alert == null) {
+                            // most likely a line torn by the app being killed mid-write
+                            Log.w(LOG_TAG, "Skipping malformed journal entry");
+                            continue;
+                        }
+                        if (alert.sequence > lastSent) {
+                            pending.add(alert);
+                        }
+                        nextSequence = Math.max(nextSequence, alert.sequence + 1);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Unable to read alert journal", e);
+                } finally {
+                    closeQuietly(reader);
+                }
+            }
+            outbox.pendingCount = pending.size();
+            // drops the alerts already sent, and any torn line which new entries would otherwise be appended to
+            rewriteJournal();
+            if (!pending.isEmpty()) {
+                sendEmptyMessage(SEND);
+            }
+        }
+
+        private void append(Alert alert) {
+            Long lastPostTime = lastPostTimes.get(alert.type);
+            if (lastPostTime != null && alert.timeMillis - lastPostTime < COALESCE_WINDOW) {
+                outbox.coalescedCount += 1;
+                return;
+            }
+            lastPostTimes.put(alert.type, alert.timeMillis);
+
+            alert.sequence = nextSequence++;
+            if (journal != null) {
+                try {
+                    journal.write(format(alert).getBytes(StandardCharsets.UTF_8));
+                    journal.getFD().sync();
+                } catch (IOException e) {
+                    // still worth trying to send it; it just won't survive a restart
+                    Log.e(LOG_TAG, "Unable to journal alert", e);
+                }
+            }
+            pending.add(alert);
+            outbox.pendingCount = pending.size();
+
+            // when backing off, the retry already scheduled will pick this alert up
+            if (!isBackingOff && !hasMessages(SEND)) {
+                sendEmptyMessageDelayed(SEND, BATCH_DELAY);
+            }
+        }
+
+        private void sendBatch() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            List<Alert> batch = new ArrayList<>(pending.subList(0, Math.min(MAX_BATCH_SIZE, pending.size())));
+            try {
+                outbox.sender.send(batch);
+            } catch (Exception e) {
+                Log.w(LOG_TAG, String.format("Unable to send %d alerts, retrying in %d ms", batch.size(), retryDelay), e);
+                isBackingOff = true;
+                sendEmptyMessageDelayed(SEND, retryDelay);
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                return;
+            }
+
+            isBackingOff = false;
+            retryDelay = INITIAL_RETRY_DELAY;
+            pending.subList(0, batch.size()).clear();
+            outbox.pendingCount = pending.size();
+            outbox.sentCount += batch.size();
+            writeLastSentSequence(batch.get(batch.size() - 1).sequence);
+
+            if (!pending.isEmpty()) {
+                sendEmptyMessage(SEND);
+            } else {
+                rewriteJournal();
+            }
+        }
+
+        /*
+         * Replaces the journal with one holding just the pending alerts, and opens it for appending.
+         */
+        private void rewriteJournal() {
+            closeJournal();
+            File tempFile = new File(journalFile.getPath() + ".tmp");
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(tempFile);
+                for (Alert alert : pending) {
+                    out.write(format(alert).getBytes(StandardCharsets.UTF_8));
+                }
+                out.getFD().sync();
+                out.close();
+                out = null;
+                if (!tempFile.renameTo(journalFile)) {
+                    Log.e(LOG_TAG, "Unable to replace alert journal");
+                }
+                journal = new FileOutputStream(journalFile, true);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to rewrite alert journal", e);
+            } finally {
+                closeQuietly(out);
+            }
+        }
+
+        private void closeJournal() {
+            closeQuietly(journal);
+            journal = null;
+        }
+
+        private long readLastSentSequence() {
+            if (!sentFile.exists()) {
+                return 0;
+            }
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(sentFile));
+                String line = reader.readLine();
+                return line == null ? 0 : Long.parseLong(line.trim());
+            } catch (IOException | NumberFormatException e) {
+                Log.e(LOG_TAG, "Unable to read last sent alert", e);
+                return 0;
+            } finally {
+                closeQuietly(reader);
+            }
+        }
+
+        /*
+         * Written to a temporary file which is then renamed over the old one, so a crash leaves either the old value
+         * or the new one.
+         */
+        private void writeLastSentSequence(long sequence) {
+            File tempFile = new File(sentFile.getPath() + ".tmp");
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(tempFile);
+                out.write(Long.toString(sequence).getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+                out.close();
+                out = null;
+                if (!tempFile.renameTo(sentFile)) {
+                    Log.e(LOG_TAG, "Unable to record last sent alert");
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to record last sent alert", e);
+            } finally {
+                closeQuietly(out);
+            }
+        }
+
+        /*
+         * One line per alert: sequence, time, type and text, separated by tabs.
+         */
+        private static String format(Alert alert) {
+            return alert.sequence + "\t" + alert.timeMillis + "\t" + sanitize(alert.type) + "\t" + sanitize(alert.text)
+                    + "\n";
+        }
+
+        private static Alert parse(String line) {
+            String[] fields = line.split("\t", 4);
+            if (fields.length != 4) {
+                return null;
+            }
+            try {
+                return new Alert(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2], fields[3]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static String sanitize(String value) {
+            return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+        }
+
+        private static void closeQuietly(Closeable closeable) {
+            if (closeable != null) {
+                try {
+                    closeable.close();
+                } catch (IOException e) {
+                    // nothing more to be done
+                }
+            }
+        }
+    }
+}
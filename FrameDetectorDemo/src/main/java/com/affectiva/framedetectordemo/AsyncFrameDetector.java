@@ -1,11 +1,10 @@
 package com.affectiva.framedetectordemo;
 
 import android.content.Context;
+import android.graphics.PointF;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.os.Process;
 import android.util.Log;
 
 import com.affectiva.android.affdex.sdk.Frame;
@@ -14,10 +13,17 @@ import com.affectiva.android.affdex.sdk.detector.Face;
 import com.affectiva.android.affdex.sdk.detector.FrameDetector;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
- * A class which instantiates and runs a FrameDetector on a background thread.
- * The background thread is defined in an inner class and is re-created for any pair of start() stop() calls the user makes.
+ * A class which runs a FrameDetector on a background thread.
+ * The FrameDetector, and its thread, are acquired from the DetectorCache by start() and released back to it by stop(),
+ * so that a start() soon after a stop() doesn't have to wait for a new detector to be created and started.
+ *
+ * Optionally, a pool of several FrameDetectors can be run, each on its own thread (see setWorkerCount()). Frames are
+ * spread across the workers, and results are delivered to the listener in the order the frames were submitted.
+ * Note that each FrameDetector tracks faces independently, and only sees a share of the frames.
  */
 public class AsyncFrameDetector {
 
@@ -27,23 +33,89 @@ public class AsyncFrameDetector {
         void onDetectorStarted();
     }
 
+    public enum SubmissionMode {
+        /**
+         * Each frame is queued as a message to the detector thread, and frames are dropped while more than
+         * MAX_FRAMES_WAITING are waiting. process() must be called on the main thread.
+         */
+        QUEUED,
+        /**
+         * Frames are posted to a single-slot mailbox, where a new frame replaces a pending one, so the detector thread
+         * always takes the newest frame. process() may be called from any thread.
+         */
+        LATEST_WINS
+    }
+
     private static final int MAX_FRAMES_WAITING = 1;
-    private FrameDetectorThread detectorThread;
-    private Context context;
-    private boolean isRunning;
+    private static final long UNSEQUENCED = -1;
+    private static final int CARRIER_POOL_CAPACITY = 16;
+    // in debug builds, once this many results have been delivered since start(), carriers created are logged
+    private static final int STEADY_STATE_FRAMES = 300;
+    private static final String LOG_TAG = "AsyncFrameDetector";
+    private final DetectorCache detectorCache;
+    private DetectorCache.CachedDetector[] cachedDetectors;
+    private volatile boolean isRunning;
     private MainThreadHandler mainThreadHandler;
-    private FrameDetectorHandler detectorThreadHandler;
+    private volatile FrameDetectorHandler[] workers;
     private OnDetectorEventListener listener;
+    private volatile PreviewBufferPool previewBufferPool;
+    private volatile SubmissionMode submissionMode = SubmissionMode.QUEUED;
+    private volatile LatencyTracer latencyTracer;
+    private boolean isFaceCroppingEnabled = false;
+    private boolean isStaticFrameSkippingEnabled = false;
+
+    // used in LATEST_WINS mode, and shared with each FrameDetectorHandler
+    private final FrameMailbox<InputData> mailbox = new FrameMailbox<>();
+    // InputData and OutputData are recycled, so that a steady stream of frames does not allocate any per frame
+    private final RecyclingPool<InputData> inputDataPool = new RecyclingPool<InputData>(CARRIER_POOL_CAPACITY) {
+        @Override
+        protected InputData create() {
+            return new InputData();
+        }
+    };
+    private final RecyclingPool<OutputData> outputDataPool = new RecyclingPool<OutputData>(CARRIER_POOL_CAPACITY) {
+        @Override
+        protected OutputData create() {
+            return new OutputData();
+        }
+    };
 
     /*
      Since FrameDetector is run on a background thread based off Android's HandlerThread class, it will receive frames to process
      in a queue. It is possible that this queue could grow in size, causing FrameDetector to incur a 'debt' of frames to process.
-     To avoid this, we define a maximum number of frames that this waiting queue is allowed to have before we submit any more frames.
+     To avoid this, we define a maximum number of frames that each worker's waiting queue is allowed to have before we submit any
+     more frames to it.
      */
-    private int framesWaiting = 0;
+    private int[] framesWaiting;
+
+    private int workerCount = 1;
+    private volatile AtomicLongArray workerFrameCounts = new AtomicLongArray(1);
+    private volatile AtomicLongArray workerBusyNanos = new AtomicLongArray(1);
+
+    // QUEUED frames are numbered as they are submitted, so that results can be delivered in submission order
+    private long nextSequence;
+    private ReorderBuffer<OutputData> reorderBuffer;
+    private float lastDeliveredTimestamp;
+    // identifies the current start() stop() pair, so that late results from a previous run are ignored
+    private int runId = 0;
+    private int workersStarted;
+
+    // the wait from start() to the first results delivered, which is what a resuming user sees
+    private final LatencyHistogram firstResultWaits = new LatencyHistogram();
+    private long startTimeNanos;
+    private boolean isAwaitingFirstResult = false;
+    private boolean wasLastStartWarm = false;
+    private volatile long lastFirstResultWaitNanos = -1;
+
+    // the results being handed to the listener, for getFacePoints()
+    private OutputData deliveringData;
+
+    // for checkSteadyStateAllocations(), in debug builds
+    private long deliveredSinceStart;
+    private long steadyStateCreatedCount;
 
     public AsyncFrameDetector(Context context) {
-        this.context = context;
+        detectorCache = DetectorCache.getInstance(context);
         mainThreadHandler = new MainThreadHandler(this);
     }
 
@@ -51,6 +123,215 @@ public class AsyncFrameDetector {
         this.listener = listener;
     }
 
+    /**
+     * Returns the points of a face in the results being delivered, in the coordinates of the frame passed to
+     * OnDetectorEventListener.onImageResults(). When frames are cropped to the faces, these differ from
+     * Face.getFacePoints(), which the detector reports relative to the crop it was given, and which are left as they are.
+     * May only be called from onImageResults(), and the points are only valid until it returns.
+     */
+    public PointF[] getFacePoints(int faceIndex) {
+        OutputData data = deliveringData;
+        if (data == null) {
+            throw new IllegalStateException("getFacePoints() may only be called from onImageResults()");
+        }
+        if (!data.hasFacePoints) {
+            return data.faces.get(faceIndex).getFacePoints();
+        }
+        return data.facePoints[faceIndex];
+    }
+
+    /**
+     * Sets the pool which owns the byte[] buffers of submitted ByteArrayFrames. When set, each queued frame holds a lease
+     * on its buffer until FrameDetector has finished processing it, so the camera cannot overwrite a frame while it is
+     * being read, and frames need not be copied. Note that the pixel data of a frame passed to
+     * OnDetectorEventListener.onImageResults() may already have been overwritten by then.
+     */
+    public void setPreviewBufferPool(PreviewBufferPool pool) {
+        this.previewBufferPool = pool;
+    }
+
+    /**
+     * Sets a tracer which will record the latency of each stage of each frame's trip through the detector. Pass null
+     * to stop tracing.
+     */
+    public void setLatencyTracer(LatencyTracer tracer) {
+        this.latencyTracer = tracer;
+    }
+
+    /**
+     * Enables cropping each NV21 frame down to the faces found in earlier frames before it is processed, so that the
+     * detector's cost follows the size of the faces rather than that of the frame; see FaceRoiCropper. The whole frame
+     * is still processed every so often, to find new faces. The whole frame is passed to
+     * OnDetectorEventListener.onImageResults(), and getFacePoints() returns the points in its coordinates. Takes effect
+     * on the next call to start(). Defaults to false.
+     */
+    public void setFaceCroppingEnabled(boolean enabled) {
+        isFaceCroppingEnabled = enabled;
+    }
+
+    public boolean isFaceCroppingEnabled() {
+        return isFaceCroppingEnabled;
+    }
+
+    /**
+     * Returns the number of frames processed cropped to the faces since the last call to start().
+     */
+    public long getCroppedFrameCount() {
+        long count = 0;
+        FrameDetectorHandler[] handlers = workers;
+        if (handlers != null) {
+            for (FrameDetectorHandler handler : handlers) {
+                if (handler.cropper != null) {
+                    count += handler.cropper.getCroppedCount();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the fraction of the pixels of the frames processed since the last call to start() which the detector
+     * was actually given, which is less than 1 while frames are being cropped to the faces.
+     */
+    public float getProcessedPixelFraction() {
+        long processed = 0;
+        long total = 0;
+        FrameDetectorHandler[] handlers = workers;
+        if (handlers != null) {
+            for (FrameDetectorHandler handler : handlers) {
+                if (handler.cropper != null) {
+                    processed += handler.cropper.getProcessedPixels();
+                    total += handler.cropper.getFramePixels();
+                }
+            }
+        }
+        return total == 0 ? 1 : (float) processed / total;
+    }
+
+    /**
+     * Enables skipping NV21 frames which barely differ from the last frame processed, as judged by a StaticFrameGate.
+     * The results of the last processed frame are delivered again for a skipped frame, with its own timestamp. A frame
+     * is still processed at least once a second. Takes effect on the next call to start(). Defaults to false.
+     */
+    public void setStaticFrameSkippingEnabled(boolean enabled) {
+        isStaticFrameSkippingEnabled = enabled;
+    }
+
+    public boolean isStaticFrameSkippingEnabled() {
+        return isStaticFrameSkippingEnabled;
+    }
+
+    /**
+     * Returns the fraction of the frames since the last call to start() which were skipped as static.
+     */
+    public float getStaticFrameSkipRatio() {
+        long skipped = 0;
+        long total = 0;
+        FrameDetectorHandler[] handlers = workers;
+        if (handlers != null) {
+            for (FrameDetectorHandler handler : handlers) {
+                if (handler.staticFrameGate != null) {
+                    skipped += handler.staticFrameGate.getSkippedCount();
+                    total += handler.staticFrameGate.getSkippedCount() + handler.staticFrameGate.getProcessedCount();
+                }
+            }
+        }
+        return total == 0 ? 0 : (float) skipped / total;
+    }
+
+    /**
+     * Returns the mean time, in nanoseconds, taken to decide whether a frame was static, over the frames of every worker
+     * since the last call to start().
+     */
+    public long getStaticFrameGateCostNanos() {
+        long costNanos = 0;
+        long total = 0;
+        FrameDetectorHandler[] handlers = workers;
+        if (handlers != null) {
+            for (FrameDetectorHandler handler : handlers) {
+                if (handler.staticFrameGate != null) {
+                    costNanos += handler.staticFrameGate.getCostNanos();
+                    total += handler.staticFrameGate.getSkippedCount() + handler.staticFrameGate.getProcessedCount();
+                }
+            }
+        }
+        return total == 0 ? 0 : costNanos / total;
+    }
+
+    /**
+     * Selects how process() hands frames to the detector thread. See SubmissionMode. May be changed at any time.
+     */
+    public void setSubmissionMode(SubmissionMode mode) {
+        if (mode == null) {
+            throw new NullPointerException("mode must not be null");
+        }
+        this.submissionMode = mode;
+    }
+
+    public SubmissionMode getSubmissionMode() {
+        return submissionMode;
+    }
+
+    /**
+     * Returns the number of frames submitted in LATEST_WINS mode which were replaced by a newer frame before the
+     * detector thread took them.
+     */
+    public long getSupersededFrameCount() {
+        return mailbox.getSupersededCount();
+    }
+
+    /**
+     * Sets the number of FrameDetector instances (each with its own thread) to run. Takes effect on the next call to
+     * start(). Defaults to 1.
+     */
+    public void setWorkerCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be at least 1");
+        }
+        workerCount = count;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Returns the number of frames processed by the given worker since the last call to start().
+     */
+    public long getWorkerFrameCount(int worker) {
+        return workerFrameCounts.get(worker);
+    }
+
+    /**
+     * Returns the time the given worker has spent processing frames since the last call to start(), in nanoseconds.
+     */
+    public long getWorkerBusyTimeNanos(int worker) {
+        return workerBusyNanos.get(worker);
+    }
+
+    /**
+     * Returns the time from the last call to start() to the first results delivered, in nanoseconds, or -1 if none
+     * have been delivered yet.
+     */
+    public long getLastFirstResultWaitNanos() {
+        return lastFirstResultWaitNanos;
+    }
+
+    /**
+     * Returns whether every worker of the last call to start() was given a detector which had already been started,
+     * rather than having to wait for one to be created, or for a prewarmed one to finish starting.
+     */
+    public boolean wasLastStartWarm() {
+        return wasLastStartWarm;
+    }
+
+    /**
+     * Returns the distribution of the times from each call to start() to the first results delivered.
+     */
+    LatencyHistogram getFirstResultWaits() {
+        return firstResultWaits;
+    }
+
     /*
      * Starts running FrameDetector on a background thread.
      * Note that FrameDetector is not guaranteed to have started by the time this call returns, because it is
@@ -61,16 +342,39 @@ public class AsyncFrameDetector {
             throw new RuntimeException("Called start() without calling stop() first.");
 
         isRunning = true;
+        runId += 1;
+        workersStarted = 0;
+
+        framesWaiting = new int[workerCount];
+        workerFrameCounts = new AtomicLongArray(workerCount);
+        workerBusyNanos = new AtomicLongArray(workerCount);
+        nextSequence = 0;
+        reorderBuffer = new ReorderBuffer<>(workerCount * (MAX_FRAMES_WAITING + 1));
+        reorderBuffer.reset(nextSequence);
+        lastDeliveredTimestamp = Float.NEGATIVE_INFINITY;
 
-        // create and start the background detector thread
-        detectorThread = new FrameDetectorThread();
-        detectorThread.start();
+        startTimeNanos = System.nanoTime();
+        isAwaitingFirstResult = true;
+        deliveredSinceStart = 0;
 
-        // create a handler for the detector thread, and send it a start message
-        detectorThreadHandler = new FrameDetectorHandler(context, mainThreadHandler, detectorThread);
-        detectorThreadHandler.sendStartMessage();
+        cachedDetectors = new DetectorCache.CachedDetector[workerCount];
+        FrameDetectorHandler[] handlers = new FrameDetectorHandler[workerCount];
+        wasLastStartWarm = true;
+        for (int i = 0; i < workerCount; i++) {
+            // take a started detector, and its thread, from the cache, or have one created
+            cachedDetectors[i] = detectorCache.acquire();
+            // a prewarmed detector may still be starting, in which case the worker will wait for it all the same
+            wasLastStartWarm &= cachedDetectors[i].isStarted();
 
-        framesWaiting = 0;
+            // create a handler for the detector thread, and send it a start message
+            handlers[i] = new FrameDetectorHandler(mainThreadHandler, cachedDetectors[i], i, runId,
+                    mailbox, inputDataPool, outputDataPool, workerFrameCounts, workerBusyNanos,
+                    isFaceCroppingEnabled ? new FaceRoiCropper(FaceRoiCropper.DEFAULT_FULL_SCAN_INTERVAL_SECONDS) : null,
+                    isStaticFrameSkippingEnabled ? new StaticFrameGate(StaticFrameGate.DEFAULT_CELL_THRESHOLD,
+                            StaticFrameGate.DEFAULT_REFRESH_INTERVAL_SECONDS) : null);
+            handlers[i].sendStartMessage();
+        }
+        workers = handlers;
     }
 
     /*
@@ -80,15 +384,27 @@ public class AsyncFrameDetector {
         if (!isRunning)
             throw new RuntimeException("Called stop() without calling start() first");
 
-        detectorThreadHandler.sendStopMessage();
+        for (FrameDetectorHandler worker : workers) {
+            worker.sendStopMessage();
+        }
+        // the stop messages detach our handlers before the detectors can be handed out again
+        for (DetectorCache.CachedDetector cachedDetector : cachedDetectors) {
+            detectorCache.release(cachedDetector);
+        }
 
-        // facilitate GC of the detector thread and handler.  The last reference to the handler
-        // will be the one in the stop message -- once that message has been processed by the
-        // handler, it will be eligible for GC
-        detectorThread = null;
-        detectorThreadHandler = null;
+        // facilitate GC of the handlers.  The last reference to each handler will be the one in the
+        // stop message -- once that message has been processed by the handler, it will be eligible for GC
+        cachedDetectors = null;
+        workers = null;
+        isAwaitingFirstResult = false;
 
         isRunning = false;
+
+        // a frame posted by another thread while we were stopping will never be drained, so reclaim it here
+        InputData orphan = mailbox.take();
+        if (orphan != null) {
+            orphan.recycle(inputDataPool);
+        }
     }
 
     public boolean isRunning() {
@@ -96,42 +412,241 @@ public class AsyncFrameDetector {
     }
 
     public void process(Frame frame, float timestamp) {
+        process(frame, timestamp, 0);
+    }
+
+    /**
+     * Submits a frame for processing.
+     * @param captureTimeNanos the SystemClock.elapsedRealtimeNanos() at which the frame was received from the camera,
+     *                         used for latency tracing, or 0 if unknown
+     */
+    public void process(Frame frame, float timestamp, long captureTimeNanos) {
+        if (submissionMode == SubmissionMode.LATEST_WINS) {
+            postFrame(frame, timestamp, captureTimeNanos);
+            return;
+        }
         if (isRunning) {
-            if (framesWaiting <= MAX_FRAMES_WAITING) {
-                framesWaiting += 1;
-                detectorThreadHandler.sendProcessFrameMessage(new InputData(frame, timestamp));
+            // hand the frame to the least busy worker, unless every worker already has a backlog
+            int worker = 0;
+            for (int i = 1; i < framesWaiting.length; i++) {
+                if (framesWaiting[i] < framesWaiting[worker]) {
+                    worker = i;
+                }
+            }
+            // A fast worker may keep taking new frames while a slow one still holds an old one, so the frame must also
+            // fit in the reorder window, which only moves on once the oldest frame is done; otherwise it is dropped.
+            if (framesWaiting[worker] <= MAX_FRAMES_WAITING && reorderBuffer.isInWindow(nextSequence)) {
+                framesWaiting[worker] += 1;
+                InputData data = obtainInputData(frame, timestamp, captureTimeNanos);
+                data.sequence = nextSequence++;
+                workers[worker].sendProcessFrameMessage(data);
             }
         }
     }
 
+    /*
+     * LATEST_WINS submission. A worker is only sent a message when the mailbox was empty; if it was not, the message
+     * sent for the frame we replaced will pick up ours instead.
+     */
+    private void postFrame(Frame frame, float timestamp, long captureTimeNanos) {
+        FrameDetectorHandler[] handlers = workers;
+        if (handlers == null) {
+            return;
+        }
+
+        InputData data = obtainInputData(frame, timestamp, captureTimeNanos);
+        data.sequence = UNSEQUENCED;
+        data.generation = handlers[0].queueGeneration;
+        InputData superseded = mailbox.post(data);
+        if (superseded != null) {
+            superseded.recycle(inputDataPool);
+        } else {
+            FrameDetectorHandler idlest = handlers[0];
+            for (int i = 1; i < handlers.length; i++) {
+                if (handlers[i].pendingDrains.get() < idlest.pendingDrains.get()) {
+                    idlest = handlers[i];
+                }
+            }
+            idlest.sendDrainMailboxMessage();
+        }
+
+        if (handlers != workers) {
+            // stop() ran concurrently, so the detector thread may have quit before draining our frame
+            InputData orphan = mailbox.take();
+            if (orphan != null) {
+                orphan.recycle(inputDataPool);
+            }
+        }
+    }
+
+    private InputData obtainInputData(Frame frame, float timestamp, long captureTimeNanos) {
+        InputData data = inputDataPool.obtain();
+        data.frame = frame;
+        data.timestamp = timestamp;
+
+        PreviewBufferPool pool = previewBufferPool;
+        if (pool != null && frame instanceof Frame.ByteArrayFrame) {
+            byte[] buffer = ((Frame.ByteArrayFrame) frame).getByteArray();
+            if (pool.retain(buffer)) {
+                data.bufferPool = pool;
+                data.buffer = buffer;
+            }
+        }
+
+        LatencyTracer tracer = latencyTracer;
+        if (tracer != null) {
+            data.trace = tracer.obtain();
+            if (captureTimeNanos != 0) {
+                data.trace.setStamp(LatencyTracer.Stage.CAMERA_CALLBACK, captureTimeNanos);
+            }
+            data.trace.stamp(LatencyTracer.Stage.SUBMITTED);
+        }
+        return data;
+    }
+
     public void reset() {
         if (isRunning) {
-            detectorThreadHandler.sendResetMessage();
-            framesWaiting = 0;
+            // frames already queued are skipped, but still reported back, so framesWaiting stays accurate
+            for (FrameDetectorHandler worker : workers) {
+                worker.sendResetMessage();
+            }
         }
     }
 
     /*
         Notify our listener that FrameDetector start has completed.
      */
-    private void notifyDetectorStarted() {
-        if (isRunning && listener != null) {
+    private void notifyDetectorStarted(int startedRunId) {
+        if (!isRunning || startedRunId != runId) {
+            return;
+        }
+        // with several workers, wait until all of them have started
+        workersStarted += 1;
+        if (workersStarted == workers.length && listener != null) {
             listener.onDetectorStarted();
         }
     }
 
+    /*
+        Called when a worker has finished with a frame, whether or not it produced results. Results of QUEUED frames
+        are passed through the reorder buffer, so that they reach our listener in submission order.
+     */
+    private void onFrameDone(OutputData data) {
+        if (!isRunning || data.runId != runId) {
+            // left over from before the last stop()
+            if (data.trace != null) {
+                data.trace.discard();
+            }
+            data.recycle(outputDataPool);
+            return;
+        }
+        if (data.trace != null) {
+            data.trace.stamp(LatencyTracer.Stage.RESULT_RECEIVED);
+        }
+        if (data.sequence == UNSEQUENCED) {
+            if (data.hasResults) {
+                notifyImageResults(data);
+            }
+            data.recycle(outputDataPool);
+            return;
+        }
+
+        framesWaiting[data.worker] -= 1;
+        if (framesWaiting[data.worker] < 0) {
+            framesWaiting[data.worker] = 0;
+        }
+        if (data.hasResults) {
+            reorderBuffer.complete(data.sequence, data);
+        } else {
+            reorderBuffer.complete(data.sequence, null);
+            data.recycle(outputDataPool);
+        }
+        OutputData next;
+        while ((next = reorderBuffer.poll()) != null) {
+            notifyImageResults(next);
+            next.recycle(outputDataPool);
+        }
+    }
+
     /*
         Send processed frame data to our listener.
      */
-    private void notifyImageResults(List<Face> faces, Frame frame, float timestamp) {
-        framesWaiting -= 1;
-        if (framesWaiting < 0) {
-            framesWaiting = 0;
+    private void notifyImageResults(OutputData data) {
+        // In LATEST_WINS mode, a slow worker may finish after a newer frame has already been delivered. Its results
+        // are stale, so drop them rather than deliver timestamps out of order.
+        if (data.timestamp < lastDeliveredTimestamp) {
+            if (data.trace != null) {
+                data.trace.discard();
+            }
+            return;
+        }
+        lastDeliveredTimestamp = data.timestamp;
+
+        if (isAwaitingFirstResult) {
+            isAwaitingFirstResult = false;
+            long wait = System.nanoTime() - startTimeNanos;
+            firstResultWaits.recordNanos(wait);
+            lastFirstResultWaitNanos = wait;
+            Log.i(LOG_TAG, String.format("First results %.1f ms after start (%s)", wait / 1e6,
+                    wasLastStartWarm ? "warm" : "cold"));
+        }
+
+        // formatting these messages allocates, so only do it when asked to
+        // (adb shell setprop log.tag.AsyncFrameDetector DEBUG)
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+            logQueueStats();
         }
-        Log.d("AsyncFrameDetector", String.format("Frames in queue: %d", framesWaiting));
 
         if (isRunning && listener != null) {
-            listener.onImageResults(faces, frame, timestamp);
+            deliveringData = data;
+            try {
+                listener.onImageResults(data.faces, data.frame, data.timestamp);
+            } finally {
+                deliveringData = null;
+            }
+        }
+
+        if (data.trace != null) {
+            data.trace.stamp(LatencyTracer.Stage.DELIVERED);
+            data.trace.complete();
+        }
+
+        if (BuildConfig.DEBUG) {
+            checkSteadyStateAllocations();
+        }
+    }
+
+    /*
+     * Debug builds only: warns when, once the pipeline has settled after start(), a frame is carried by a newly created
+     * InputData or OutputData rather than a recycled one. A few are expected when the main thread stalls while workers
+     * keep delivering, and more than CARRIER_POOL_CAPACITY results pile up; a steady stream of them means carriers are
+     * leaking. RecyclingPoolTest checks that the recycling itself does not allocate.
+     */
+    private void checkSteadyStateAllocations() {
+        deliveredSinceStart += 1;
+        long created = inputDataPool.getCreatedCount() + outputDataPool.getCreatedCount();
+        if (deliveredSinceStart == STEADY_STATE_FRAMES) {
+            steadyStateCreatedCount = created;
+        } else if (deliveredSinceStart > STEADY_STATE_FRAMES && created != steadyStateCreatedCount) {
+            Log.w(LOG_TAG, String.format("%d frame carriers created after %d frames, in the steady state",
+                    created - steadyStateCreatedCount, deliveredSinceStart));
+            steadyStateCreatedCount = created;
+        }
+    }
+
+    private void logQueueStats() {
+        if (submissionMode == SubmissionMode.LATEST_WINS) {
+            Log.d(LOG_TAG, String.format("Frames superseded: %d", mailbox.getSupersededCount()));
+        } else {
+            int total = 0;
+            for (int waiting : framesWaiting) {
+                total += waiting;
+            }
+            Log.d(LOG_TAG, String.format("Frames in queue: %d", total));
+        }
+        if (previewBufferPool != null) {
+            Log.d(LOG_TAG, String.format("Buffers in flight: %d, camera starved: %d times",
+                    previewBufferPool.getBuffersInFlight(), previewBufferPool.getStarvationCount()));
         }
     }
 
@@ -146,8 +661,8 @@ public class AsyncFrameDetector {
             this.asyncFrameDetector = asyncFrameDetector;
         }
 
-        private void sendDetectorStartedMessage() {
-            sendMessage(obtainMessage(DETECTOR_STARTED));
+        private void sendDetectorStartedMessage(int runId) {
+            sendMessage(obtainMessage(DETECTOR_STARTED, runId, 0));
         }
 
         private void sendFrameReadyMessage(OutputData data) {
@@ -162,11 +677,10 @@ public class AsyncFrameDetector {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case DETECTOR_STARTED:
-                    asyncFrameDetector.notifyDetectorStarted();
+                    asyncFrameDetector.notifyDetectorStarted(msg.arg1);
                     break;
                 case FRAME_READY:
-                    OutputData frameData = (OutputData) msg.obj;
-                    asyncFrameDetector.notifyImageResults(frameData.faces, frameData.frame, frameData.timestamp);
+                    asyncFrameDetector.onFrameDone((OutputData) msg.obj);
                     break;
                 default:
                     // IGNORE
@@ -175,34 +689,58 @@ public class AsyncFrameDetector {
         }
     }
 
-    /**
-     * A background thread for performing frame detection.  See Android HandlerThread class
-     * documentation for more information on how this class works.
-     */
-    private static class FrameDetectorThread extends HandlerThread {
-
-        private FrameDetectorThread() {
-            super("FrameDetectorThread", Process.THREAD_PRIORITY_URGENT_DISPLAY);
-        }
-    }
-
-
-    private static class FrameDetectorHandler extends Handler {
+    private static class FrameDetectorHandler extends Handler implements Detector.ImageListener {
         //Incoming message codes
         private static final int START_DETECTOR = 0;
         private static final int PROCESS_FRAME = 1;
         private static final int STOP_DETECTOR = 2;
         private static final int RESET_DETECTOR = 3;
+        private static final int DRAIN_MAILBOX = 4;
         private static final String LOG_TAG = "Affectiva";
-        private Context context;
+        private final DetectorCache.CachedDetector cachedDetector;
         private FrameDetector detector;
         private MainThreadHandler mainThreadHandler;
+        private final int index;
+        private final int runId;
+        private final FrameMailbox<InputData> mailbox;
+        private final RecyclingPool<InputData> inputDataPool;
+        private final RecyclingPool<OutputData> outputDataPool;
+        private final AtomicLongArray frameCounts;
+        private final AtomicLongArray busyNanos;
+        private final FaceRoiCropper cropper; // null unless face cropping is enabled
+        private final StaticFrameGate staticFrameGate; // null unless static frame skipping is enabled
+        // the results of the last frame processed, delivered again for frames skipped as static
+        private List<Face> lastFaces;
+        private PointF[][] lastFacePoints; // their points, mapped to the whole frame, if frames are cropped
 
+        // Incremented to discard queued frames. Frames are not removed from the queue like other messages, because
+        // a frame may hold a lease on a camera buffer which must be released on this thread.
+        private volatile int queueGeneration = 0;
+        // number of DRAIN_MAILBOX messages sent to this worker which it has not handled yet
+        private final AtomicInteger pendingDrains = new AtomicInteger();
 
-        private FrameDetectorHandler(Context context, MainThreadHandler mainThreadHandler, HandlerThread detectorThread) {
-            super(detectorThread.getLooper());
-            this.context = context;
+        // the frame being processed, and whether FrameDetector has produced results for it
+        private InputData currentInput;
+        private boolean currentInputHasResults;
+
+
+        private FrameDetectorHandler(MainThreadHandler mainThreadHandler, DetectorCache.CachedDetector cachedDetector,
+                                     int index, int runId, FrameMailbox<InputData> mailbox,
+                                     RecyclingPool<InputData> inputDataPool, RecyclingPool<OutputData> outputDataPool,
+                                     AtomicLongArray frameCounts, AtomicLongArray busyNanos, FaceRoiCropper cropper,
+                                     StaticFrameGate staticFrameGate) {
+            super(cachedDetector.getLooper());
+            this.cachedDetector = cachedDetector;
             this.mainThreadHandler = mainThreadHandler;
+            this.index = index;
+            this.runId = runId;
+            this.mailbox = mailbox;
+            this.inputDataPool = inputDataPool;
+            this.outputDataPool = outputDataPool;
+            this.frameCounts = frameCounts;
+            this.busyNanos = busyNanos;
+            this.cropper = cropper;
+            this.staticFrameGate = staticFrameGate;
         }
 
         private void sendStartMessage() {
@@ -215,9 +753,15 @@ public class AsyncFrameDetector {
         }
 
         private void sendProcessFrameMessage(InputData data) {
+            data.generation = queueGeneration;
             sendMessage(obtainMessage(PROCESS_FRAME, data));
         }
 
+        private void sendDrainMailboxMessage() {
+            pendingDrains.incrementAndGet();
+            sendMessage(obtainMessage(DRAIN_MAILBOX));
+        }
+
         private void sendResetMessage() {
             emptyQueue();
             sendMessage(obtainMessage(RESET_DETECTOR));
@@ -235,14 +779,23 @@ public class AsyncFrameDetector {
                 case STOP_DETECTOR:
                     stopDetector();
                     mainThreadHandler = null;
-                    context = null;
                     detector = null;
-                    Log.d(LOG_TAG, "Quitting FrameDetectorThread");
-                    ((HandlerThread) getLooper().getThread()).quit();
                     break;
                 case RESET_DETECTOR:
                     resetDetector();
                     break;
+                case DRAIN_MAILBOX:
+                    InputData data = mailbox.take();
+                    if (data != null) {
+                        if (detector == null) {
+                            // sent before we were stopped, so just give the frame's buffer back
+                            data.recycle(inputDataPool);
+                        } else {
+                            processFrame(data);
+                        }
+                    }
+                    pendingDrains.decrementAndGet();
+                    break;
                 default:
                     break;
             }
@@ -251,76 +804,231 @@ public class AsyncFrameDetector {
         /*
          * When resetting or stopping the detector, we don't want our command to have to wait for messages in front of it to
          * finish processing, so we purge any non-critical messages, namely PROCESS_FRAME and RESET_DETECTOR.
+         * Queued frames are skipped rather than removed, so that their buffer leases are still released.
          */
         private void emptyQueue() {
-            removeMessages(PROCESS_FRAME);
+            queueGeneration += 1;
             removeMessages(RESET_DETECTOR);
+            InputData pending = mailbox.take();
+            if (pending != null) {
+                pending.recycle(inputDataPool);
+            }
         }
 
         private void startDetector() {
 
-            detector = new FrameDetector(context);
-            detector.setDetectAllEmotions(true);
-            detector.setDetectAllExpressions(true);
-            detector.setDetectAllAppearances(true);
-            detector.setDetectAllEmojis(false);
-            detector.setDetectGender(true);
-
-            detector.setImageListener(new Detector.ImageListener() {
-                @Override
-                public void onImageResults(List<Face> faceList, Frame frame, float timeStamp) {
-                    OutputData data = new OutputData(faceList, frame, timeStamp);
-                    mainThreadHandler.sendFrameReadyMessage(data);
-                }
-            });
+            // already started, unless the cache had to create it just now
+            detector = cachedDetector.attach();
 
-            detector.start();
+            detector.setImageListener(this);
 
-            mainThreadHandler.sendDetectorStartedMessage();
+            mainThreadHandler.sendDetectorStartedMessage(runId);
         }
 
+        /*
+         * Called by FrameDetector, on this thread, with the results for a frame.
+         */
+        @Override
+        public void onImageResults(List<Face> faceList, Frame frame, float timeStamp) {
+            // only the first set of results for a frame takes its place in the delivery order
+            long sequence = UNSEQUENCED;
+            LatencyTracer.Trace trace = null;
+            OutputData data = outputDataPool.obtain();
+            if (currentInput != null && !currentInputHasResults) {
+                if (cropper != null) {
+                    // report the points, and the frame, as the whole frame rather than the crop
+                    data.facePoints = cropper.update(faceList, timeStamp, data.facePoints);
+                    data.hasFacePoints = true;
+                    frame = currentInput.frame;
+                    if (staticFrameGate != null) {
+                        lastFacePoints = copyFacePoints(data.facePoints, faceList, lastFacePoints);
+                    }
+                }
+                lastFaces = faceList;
+                sequence = currentInput.sequence;
+                currentInputHasResults = true;
+                // the trace travels on with the results
+                trace = currentInput.trace;
+                currentInput.trace = null;
+                if (trace != null) {
+                    trace.stamp(LatencyTracer.Stage.DETECTION_FINISHED);
+                }
+            }
+            data.set(faceList, frame, timeStamp, true, sequence, index, runId);
+            data.trace = trace;
+            mainThreadHandler.sendFrameReadyMessage(data);
+        }
+
+        /*
+         * Leaves the detector running, for the cache to hand out again or shut down once idle.
+         */
         private void stopDetector() {
-            detector.setImageListener(null);
+            cachedDetector.detach();
+        }
+
+        private void processFrame(InputData data) {
+            currentInput = data;
+            currentInputHasResults = false;
             try {
-                detector.stop();
-            } catch (Exception e) {
-                Log.e(LOG_TAG, e.getMessage());
+                if (data.generation == queueGeneration && detector.isRunning()) {
+                    if (data.trace != null) {
+                        data.trace.stamp(LatencyTracer.Stage.DETECTION_STARTED);
+                    }
+                    if (isStatic(data)) {
+                        staticFrameGate.onSkipped();
+                        reuseLastResults(data);
+                    } else {
+                        if (staticFrameGate != null) {
+                            staticFrameGate.onProcessed();
+                        }
+                        long startTime = System.nanoTime();
+                        Frame frame = data.frame;
+                        if (cropper != null) {
+                            frame = cropper.crop(data.frame, data.timestamp);
+                            if (cropper.hasCropSizeChanged()) {
+                                // the tracked faces would jump within the detector's frames
+                                detector.reset();
+                            }
+                        }
+                        detector.process(frame, data.timestamp);
+                        busyNanos.addAndGet(index, System.nanoTime() - startTime);
+                        frameCounts.incrementAndGet(index);
+                    }
+                }
+            } finally {
+                if (!currentInputHasResults && data.sequence != UNSEQUENCED) {
+                    // let the main thread know this frame is done, so that later results are not held up behind it
+                    mainThreadHandler.sendFrameReadyMessage(outputDataPool.obtain().set(
+                            null, null, data.timestamp, false, data.sequence, index, runId));
+                }
+                currentInput = null;
+
+                // FrameDetector is done reading the frame, so its buffer can go back to the camera
+                data.recycle(inputDataPool);
             }
         }
 
-        private void processFrame(InputData data) {
-            if (detector.isRunning()) {
-                detector.process(data.frame, data.timestamp);
+        private boolean isStatic(InputData data) {
+            if (staticFrameGate == null || lastFaces == null || !(data.frame instanceof Frame.ByteArrayFrame)
+                    || data.frame.getColorFormat() != Frame.COLOR_FORMAT.YUV_NV21) {
+                return false;
             }
+            return staticFrameGate.isStatic(((Frame.ByteArrayFrame) data.frame).getByteArray(), data.frame.getWidth(),
+                    data.frame.getHeight(), data.timestamp);
+        }
+
+        /*
+         * Delivers the results of the last frame processed for a frame skipped as static, as if FrameDetector had
+         * produced them for it.
+         */
+        private void reuseLastResults(InputData data) {
+            currentInputHasResults = true;
+            LatencyTracer.Trace trace = data.trace;
+            data.trace = null;
+            if (trace != null) {
+                trace.stamp(LatencyTracer.Stage.DETECTION_FINISHED);
+            }
+            OutputData output = outputDataPool.obtain().set(lastFaces, data.frame, data.timestamp, true, data.sequence,
+                    index, runId);
+            if (lastFacePoints != null) {
+                output.facePoints = copyFacePoints(lastFacePoints, lastFaces, output.facePoints);
+                output.hasFacePoints = true;
+            }
+            output.trace = trace;
+            mainThreadHandler.sendFrameReadyMessage(output);
         }
 
         private void resetDetector() {
             if (detector.isRunning()) {
                 detector.reset();
             }
+            if (cropper != null) {
+                cropper.reset();
+            }
+            if (staticFrameGate != null) {
+                staticFrameGate.reset();
+            }
+            lastFaces = null;
+            lastFacePoints = null;
             Log.i(LOG_TAG, "Detector reset");
         }
+
+        /*
+         * Copies the points of each of faces from source into destination, reusing its arrays where they fit.
+         */
+        private static PointF[][] copyFacePoints(PointF[][] source, List<Face> faces, PointF[][] destination) {
+            int count = faces == null ? 0 : faces.size();
+            for (int i = 0; i < count; i++) {
+                destination = FaceRoiCropper.copyPoints(source[i], 0, 0, destination, i);
+            }
+            return destination;
+        }
     }
 
     private static class OutputData {
-        public final List<Face> faces;
-        public final Frame frame;
-        public final float timestamp;
+        public List<Face> faces;
+        public Frame frame;
+        public float timestamp;
+        public boolean hasResults; // false if the frame was skipped, or FrameDetector produced no results
+        public long sequence;
+        public int worker;
+        public int runId;
+        public LatencyTracer.Trace trace;
+        // the faces' points mapped to the whole frame, if hasFacePoints; the arrays are kept for reuse
+        public PointF[][] facePoints;
+        public boolean hasFacePoints;
 
-        public OutputData(List<Face> faces, Frame frame, float timestamp) {
+        public OutputData set(List<Face> faces, Frame frame, float timestamp, boolean hasResults, long sequence,
+                              int worker, int runId) {
             this.faces = faces;
             this.frame = frame;
             this.timestamp = timestamp;
+            this.hasResults = hasResults;
+            this.sequence = sequence;
+            this.worker = worker;
+            this.runId = runId;
+            return this;
+        }
+
+        /*
+         * Offers this object for reuse, once its results have been delivered (or dropped). Any trace must already have
+         * been completed or discarded.
+         */
+        void recycle(RecyclingPool<OutputData> pool) {
+            faces = null;
+            frame = null;
+            trace = null;
+            hasFacePoints = false;
+            pool.recycle(this);
         }
     }
 
     private static class InputData {
         public Frame frame;
         public float timestamp;
+        public long sequence;
+        public int generation;
+        public PreviewBufferPool bufferPool; // set if the frame holds a lease on its buffer
+        public byte[] buffer;
+        public LatencyTracer.Trace trace;
 
-        public InputData(Frame frame, float timestamp) {
-            this.frame = frame;
-            this.timestamp = timestamp;
+        /*
+         * Releases the buffer lease (if any) and offers this object for reuse. Must only be called by the thread which
+         * owns this InputData, i.e. the one which took it off the queue or out of the mailbox.
+         */
+        void recycle(RecyclingPool<InputData> pool) {
+            if (bufferPool != null) {
+                bufferPool.release(buffer);
+            }
+            if (trace != null) {
+                // the frame never produced results, so there is nothing to record
+                trace.discard();
+            }
+            frame = null;
+            trace = null;
+            bufferPool = null;
+            buffer = null;
+            pool.recycle(this);
         }
     }
 }
@@ -3,6 +3,7 @@ package com.affectiva.framedetectordemo;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.List;
 
 
@@ -14,6 +15,7 @@ import android.hardware.Camera.Size;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Display;
 import android.view.OrientationEventListener;
@@ -28,6 +30,10 @@ import com.affectiva.android.affdex.sdk.Frame;
  * important not to miss the SurfaceCreated event fired by SurfaceHolder; thus, CameraHelper should be instantiated
  * at the start of its host Activity (which should happen as long as the developer instantiates CameraDetector at
  * the start of its host Activity) (e.g. in onCreate()).
+ *
+ * A CameraHelper may outlive the SurfaceView it previews to, e.g. when it is retained across a configuration change:
+ * setPreviewSurface() moves the preview to another SurfaceView without stopping the camera. It should then be created
+ * with the application Context.
  */
 class CameraHelper extends OrientationEventListener implements SurfaceHolder.Callback, Camera.PreviewCallback {
 
@@ -36,7 +42,7 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
     }
 
     public interface OnCameraHelperEventListener {
-        void onFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation);
+        void onFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation, long callbackTimeNanos);
         void onFrameSizeSelected(int width, int height, Frame.ROTATE rotation);
         void onCameraStarted(boolean success, Throwable error);
     }
@@ -52,6 +58,12 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
     private final static float TARGET_FRAME_RATE = 30; // Specified at 30 fps on 3/18/2014
     private final static int PREVIEW_IMAGE_FORMAT = ImageFormat.NV21; // NV21 is the default, but this line here in case want to change.
     private final static String LOG_TAG = "CameraHelper";
+    // one buffer being filled by the camera, one in the preview callback, and up to two held by the detector
+    private final static int DEFAULT_PREVIEW_BUFFER_COUNT = 4;
+    // the range of preview heights offered to setPreviewHeight()
+    private final static int MIN_PREVIEW_HEIGHT = 240;
+    private final static int MAX_PREVIEW_HEIGHT = 1080;
+    private final static float ASPECT_RATIO_TOLERANCE = 0.02f;
 
     //Surface and Preview members
     private SurfaceHolder holder;
@@ -71,17 +83,28 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
 
     MainThreadHandler mHandler;
 
+    //Preview buffers, leased to listeners which hold on to frames past the end of onFrameAvailable()
+    final PreviewBufferPool previewBufferPool = new PreviewBufferPool(DEFAULT_PREVIEW_BUFFER_COUNT);
+
     CameraHelper(Context context, SurfaceView providedSurfaceView, Display defaultDisplay) {
+        this(context, defaultDisplay);
+
+        if (providedSurfaceView == null) {
+            throw new NullPointerException("providedSurfaceView must not be null");
+        }
+        setPreviewSurface(providedSurfaceView);
+    }
+
+    /**
+     * Creates a CameraHelper with no SurfaceView to preview to yet; see setPreviewSurface().
+     */
+    CameraHelper(Context context, Display defaultDisplay) {
         super(context);
 
         if (context == null) {
             throw new NullPointerException("context must not be null");
         }
 
-        if (providedSurfaceView == null) {
-            throw new NullPointerException("providedSurfaceView must not be null");
-        }
-
         if (defaultDisplay == null) {
             throw new NullPointerException("defaultDisplay must not be null");
         }
@@ -90,18 +113,137 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
         displayRotation = defaultDisplay.getRotation();
         this.frameRotation = Frame.ROTATE.NO_ROTATION;
 
-        this.holder = providedSurfaceView.getHolder();
-        holder.addCallback(this);
-
         cameraWrapper = new CameraWrapper();
         cameraFacade = new CameraFacade();
         mHandler = new MainThreadHandler(this);
     }
 
+    /**
+     * Moves the preview to the given SurfaceView, or stops previewing if it is null, leaving the camera open. If the
+     * camera has started, the preview starts again as soon as the new surface exists, and the listener is told of the
+     * frame size and rotation, which may have changed with the display's rotation in the meantime.
+     */
+    public void setPreviewSurface(SurfaceView surfaceView) {
+        if (holder != null) {
+            holder.removeCallback(this);
+            if (cameraState == CameraHelperState.STARTED) {
+                stopPreviewing();
+            }
+            holder = null;
+            isSurfaceCreated = false;
+        }
+        if (surfaceView == null) {
+            return;
+        }
+
+        holder = surfaceView.getHolder();
+        holder.addCallback(this);
+        // the surface may have been created before we started listening
+        isSurfaceCreated = holder.getSurface() != null && holder.getSurface().isValid();
+        if (cameraState == CameraHelperState.STARTED) {
+            displayRotation = defaultDisplay.getRotation();
+            setCameraDisplayOrientation();
+            if (isSurfaceCreated) {
+                startPreviewing(holder);
+            }
+        }
+    }
+
     public void setOnCameraHelperEventListener(OnCameraHelperEventListener listener) {
         this.listener = listener;
     }
 
+    /**
+     * Sets the number of preview callback buffers shared between the camera and listeners which lease them.
+     * Takes effect the next time the camera is started.
+     */
+    public void setPreviewBufferCount(int count) {
+        previewBufferPool.setCapacity(count);
+    }
+
+    /**
+     * Returns the pool of preview callback buffers. Listeners which keep a frame's byte[] beyond the end of
+     * onFrameAvailable() must retain() it from this pool, and release() it once they are done reading it.
+     */
+    public PreviewBufferPool getPreviewBufferPool() {
+        return previewBufferPool;
+    }
+
+    /**
+     * Returns the preview heights which setPreviewHeight() can switch between, in ascending order, or null if the
+     * camera has not started.
+     */
+    public int[] getSupportedPreviewHeights() {
+        if (cameraState != CameraHelperState.STARTED) {
+            return null;
+        }
+        int[] heights = new int[cameraWrapper.previewSizes.size()];
+        for (int i = 0; i < heights.length; i++) {
+            heights[i] = cameraWrapper.previewSizes.get(i).height;
+        }
+        return heights;
+    }
+
+    /**
+     * Returns the width of the camera's frames, before rotation.
+     */
+    public int getPreviewWidth() {
+        return cameraWrapper.previewWidth;
+    }
+
+    /**
+     * Returns the rotation needed to turn the camera's frames upright.
+     */
+    public Frame.ROTATE getFrameRotation() {
+        return frameRotation;
+    }
+
+    /**
+     * Returns the height of the camera's frames, before rotation.
+     */
+    public int getPreviewHeight() {
+        return cameraWrapper.previewHeight;
+    }
+
+    /**
+     * Switches the preview to the size of the given height (one of getSupportedPreviewHeights()) and the current
+     * aspect ratio. The preview is stopped, reconfigured and started again, and the listener is told of the new
+     * frame size before any frame of that size arrives. Frames which listeners still hold on to keep their buffers,
+     * which are not given back to the camera. Does nothing if the camera has not started.
+     */
+    public void setPreviewHeight(int height) {
+        if (cameraState != CameraHelperState.STARTED || height == cameraWrapper.previewHeight) {
+            return;
+        }
+        Size size = null;
+        for (Size candidate : cameraWrapper.previewSizes) {
+            if (candidate.height == height) {
+                size = candidate;
+                break;
+            }
+        }
+        if (size == null) {
+            throw new IllegalArgumentException("unsupported preview height " + height);
+        }
+        Log.i(LOG_TAG, "restarting preview at " + size.width + "x" + size.height);
+
+        if (isPreviewing) {
+            stopPreviewing();
+        }
+        // buffers of the old size must not go back to the camera
+        previewBufferPool.detach();
+        Camera.Parameters params = cameraWrapper.camera.getParameters();
+        params.setPreviewSize(size.width, size.height);
+        cameraWrapper.camera.setParameters(params);
+        cameraWrapper.previewWidth = size.width;
+        cameraWrapper.previewHeight = size.height;
+
+        setCameraDisplayOrientation(); // tells the listener of the new size
+        if (isSurfaceCreated) {
+            startPreviewing(holder);
+        }
+    }
+
     /**
      * Starts a background thread to open the Camera and set its parameters to those that will work
      * best with the Affdex SDK.
@@ -168,7 +310,8 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
             @Override
             public void onPreviewFrame(byte[] data, Camera camera) {
                 if (listener != null) {
-                    listener.onFrameAvailable(data, cameraWrapper.previewWidth, cameraWrapper.previewHeight, frameRotation);
+                    listener.onFrameAvailable(data, cameraWrapper.previewWidth, cameraWrapper.previewHeight, frameRotation,
+                            SystemClock.elapsedRealtimeNanos());
                 }
                 setupPreviewWithCallbackBuffers();
             }
@@ -230,13 +373,16 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
      * Note: on rotation, surfaceCreated will get called, followed by surfaceChanged. Oddly, surfaceDestroyed does not
      * get called in this case. So, in a rotation scenario, we just call startPreviewing again, but that's OK, because
      * it updates the preview display to use the new SurfaceView held by the holder.
+     *
+     * A change of the surface's size alone (e.g. when the device is rotated without the Activity being re-created) does
+     * not restart the preview: the camera scales its output to the surface, and the display orientation is kept up to
+     * date by onOrientationChanged().
      */
 
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
         Log.e(LOG_TAG, "surfaceChanged");
-        if (cameraState == CameraHelperState.STARTED) {
-            stopPreviewing();
+        if (cameraState == CameraHelperState.STARTED && !isPreviewing) {
             startPreviewing(holder);
         }
     }
@@ -262,11 +408,15 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
     // Implement Camera.PreviewCallback interface
     @Override
     public void onPreviewFrame(byte[] data, Camera camera) {
+        long callbackTimeNanos = SystemClock.elapsedRealtimeNanos();
+        // hold a lease for the duration of the callback; listeners which keep the buffer take their own lease
+        previewBufferPool.retain(data);
         if (listener!= null) {
-            listener.onFrameAvailable(data, cameraWrapper.previewWidth, cameraWrapper.previewHeight, frameRotation);
+            listener.onFrameAvailable(data, cameraWrapper.previewWidth, cameraWrapper.previewHeight, frameRotation,
+                    callbackTimeNanos);
         }
-        // put the buffer back in the queue, so that it can be used again
-        camera.addCallbackBuffer(data);
+        // put the buffer back in the queue once nobody is reading it, so that it can be used again
+        previewBufferPool.release(data);
     }
 
     private void setupPreviewWithCallbackBuffers() {
@@ -278,16 +428,16 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
 
         int bufSize = size.width * size.height * bitsPerPixel / 8;
 
-        // add two buffers to the queue, so the camera can be working with one, while the callback is working with the
-        // other. The callback will put each buffer it receives back into the buffer queue when it's done, so the
-        // camera can use it again.
-        cameraWrapper.camera.addCallbackBuffer(new byte[bufSize]);
-        cameraWrapper.camera.addCallbackBuffer(new byte[bufSize]);
+        // add the pool's buffers to the queue, so the camera can be working with one, while the callback and the
+        // detector are working with others. Each buffer goes back into the buffer queue once its last lease has been
+        // released, so the camera can use it again.
+        previewBufferPool.attach(cameraWrapper.camera, bufSize);
 
         cameraWrapper.camera.setPreviewCallbackWithBuffer(this);
     }
 
     void closeCameraSafe() {
+        previewBufferPool.detach();
         synchronized (cameraWrapper) {
             cameraWrapper.camera.release();
         }
@@ -441,6 +591,8 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
         int cameraId;
         int previewWidth;
         int previewHeight;
+        // the supported sizes of the preview's aspect ratio, in ascending order of height
+        List<Size> previewSizes;
     }
 
     /*
@@ -494,6 +646,36 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
 
             cameraWrapper.previewWidth = cameraParams.getPreviewSize().width;
             cameraWrapper.previewHeight = cameraParams.getPreviewSize().height;
+            cameraWrapper.previewSizes = getPreviewSizesLike(cameraParams, cameraWrapper.previewWidth,
+                    cameraWrapper.previewHeight);
+        }
+
+        // Finds the supported preview sizes with the same aspect ratio as the given one, of a height the detector
+        // can make use of, one per height.
+        private List<Size> getPreviewSizesLike(Camera.Parameters cameraParams, int width, int height) {
+            List<Size> sizes = new ArrayList<>();
+            List<Size> supportedPreviewSizes = cameraParams.getSupportedPreviewSizes();
+            float aspectRatio = (float) width / height;
+            if (supportedPreviewSizes != null) {
+                for (Size size : supportedPreviewSizes) {
+                    if (size.height < MIN_PREVIEW_HEIGHT || size.height > MAX_PREVIEW_HEIGHT
+                            || Math.abs((float) size.width / size.height - aspectRatio) > ASPECT_RATIO_TOLERANCE * aspectRatio) {
+                        continue;
+                    }
+                    int index = 0;
+                    while (index < sizes.size() && sizes.get(index).height < size.height) {
+                        index++;
+                    }
+                    if (index == sizes.size() || sizes.get(index).height != size.height) {
+                        sizes.add(index, size);
+                    }
+                }
+            }
+            if (sizes.isEmpty()) {
+                // the current size is always an option
+                sizes.add(cameraParams.getPreviewSize());
+            }
+            return sizes;
         }
 
         //Sets camera frame to be as close to TARGET_FRAME_RATE as possible
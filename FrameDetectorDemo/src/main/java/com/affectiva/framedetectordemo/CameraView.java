@@ -6,7 +6,6 @@ import android.util.Log;
 import android.view.Gravity;
 import android.view.SurfaceView;
 import android.view.ViewGroup;
-import android.view.WindowManager;
 import android.widget.FrameLayout;
 
 import com.affectiva.android.affdex.sdk.Frame;
@@ -14,14 +13,15 @@ import com.affectiva.android.affdex.sdk.Frame;
 /**
  * A view to display the camera preview.
  *
- * This view consists of a SurfaceView object contained inside a FrameLayout.
+ * This view consists of a SurfaceView object contained inside a FrameLayout. The camera itself is controlled by a
+ * CameraHelper, which is bound to the view with setCameraHelper(), and may outlive it.
  */
 public class CameraView extends FrameLayout implements CameraHelper.OnCameraHelperEventListener {
 
     interface OnCameraViewEventListener {
-        void onCameraFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation);
+        void onCameraFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation, long callbackTimeNanos);
         void onCameraStarted(boolean success, Throwable error);
-        void onSurfaceViewSizeChanged();
+        void onFrameGeometryChanged();
     }
 
     public static String LOG_TAG = "Affectiva";
@@ -33,6 +33,11 @@ public class CameraView extends FrameLayout implements CameraHelper.OnCameraHelp
     int previewHeight = 0;
     int previewWidth = 0;
 
+    // the size and rotation of the camera's frames, as last reported by cameraHelper; 0 until then
+    int frameWidth = 0;
+    int frameHeight = 0;
+    Frame.ROTATE frameRotation;
+
     public CameraView(Context context) {
         super(context);
         initView(context);
@@ -81,9 +86,6 @@ public class CameraView extends FrameLayout implements CameraHelper.OnCameraHelp
                         height = measureHeight;
                     }
                 }
-                if (listener!= null) {
-                    listener.onSurfaceViewSizeChanged();
-                }
                 setMeasuredDimension(width,height);
             }
         };
@@ -91,10 +93,27 @@ public class CameraView extends FrameLayout implements CameraHelper.OnCameraHelp
         params.gravity = Gravity.CENTER;
         surfaceView.setLayoutParams(params);
         this.addView(surfaceView);
+    }
 
-        //Init cameraHelper, the class which controls our camera.
-        cameraHelper = new CameraHelper(context,surfaceView,((WindowManager)context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay());
-        cameraHelper.setOnCameraHelperEventListener(this);
+    /**
+     * Binds this view to the CameraHelper which controls the camera, so that the camera previews to this view, and its
+     * frames and events are passed on to our listener. The camera may already have been started, e.g. if cameraHelper
+     * was retained across a configuration change. Pass null to unbind the current CameraHelper, leaving its camera open.
+     */
+    public void setCameraHelper(CameraHelper cameraHelper) {
+        if (this.cameraHelper != null) {
+            this.cameraHelper.setOnCameraHelperEventListener(null);
+            this.cameraHelper.setPreviewSurface(null);
+        }
+        this.cameraHelper = cameraHelper;
+        if (cameraHelper != null) {
+            // the frames the camera is already capturing are not a change of geometry
+            frameWidth = cameraHelper.getPreviewWidth();
+            frameHeight = cameraHelper.getPreviewHeight();
+            frameRotation = cameraHelper.getFrameRotation();
+            cameraHelper.setOnCameraHelperEventListener(this);
+            cameraHelper.setPreviewSurface(surfaceView);
+        }
     }
 
     public void setOnCameraViewEventListener(OnCameraViewEventListener listener) {
@@ -113,13 +132,33 @@ public class CameraView extends FrameLayout implements CameraHelper.OnCameraHelp
         cameraHelper.stopCamera();
     }
 
+    public void setPreviewBufferCount(int count) {
+        cameraHelper.setPreviewBufferCount(count);
+    }
+
+    public PreviewBufferPool getPreviewBufferPool() {
+        return cameraHelper.getPreviewBufferPool();
+    }
+
+    public int[] getSupportedPreviewHeights() {
+        return cameraHelper.getSupportedPreviewHeights();
+    }
+
+    public int getPreviewHeight() {
+        return cameraHelper.getPreviewHeight();
+    }
+
+    public void setPreviewHeight(int height) {
+        cameraHelper.setPreviewHeight(height);
+    }
+
     /**
      * Bubble up received camera frames.
      */
     @Override
-    public void onFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation) {
+    public void onFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation, long callbackTimeNanos) {
         if (listener!= null) {
-            listener.onCameraFrameAvailable(frame, width, height, rotation);
+            listener.onCameraFrameAvailable(frame, width, height, rotation, callbackTimeNanos);
         }
     }
 
@@ -127,9 +166,17 @@ public class CameraView extends FrameLayout implements CameraHelper.OnCameraHelp
      * Update the camera width and height variables, then request a resize of the SurfaceView.
      * Notice that CameraHelper notifies us of the physical, pre-rotation width and height of the camera
      * frames, so we need to account for possible rotation in this method.
+     * The listener is told only if the size or rotation of the frames has actually changed, as this may be reported
+     * again for the same frames, e.g. when the preview moves to this view.
      */
     @Override
     public void onFrameSizeSelected(int width, int height, Frame.ROTATE rotation) {
+        boolean isGeometryChanged = frameWidth != 0
+                && (width != frameWidth || height != frameHeight || rotation != frameRotation);
+        frameWidth = width;
+        frameHeight = height;
+        frameRotation = rotation;
+
         if (rotation == Frame.ROTATE.BY_90_CW || rotation == Frame.ROTATE.BY_90_CCW) {
             previewHeight = width;
             previewWidth = height;
@@ -138,6 +185,10 @@ public class CameraView extends FrameLayout implements CameraHelper.OnCameraHelp
             previewHeight = height;
         }
         surfaceView.requestLayout();
+
+        if (isGeometryChanged && listener != null) {
+            listener.onFrameGeometryChanged();
+        }
     }
 
     /**
@@ -0,0 +1,27 @@
+package com.affectiva.framedetectordemo;
+
+import android.app.Application;
+
+/**
+ * Starts a FrameDetector in the background as soon as the process starts, so that it is ready, or nearly so, by the
+ * time MainActivity first resumes. See DetectorCache.
+ */
+public class DemoApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        DetectorCache cache = DetectorCache.getInstance(this);
+        cache.setIdleTimeout(getResources().getInteger(R.integer.detector_idle_timeout_seconds) * 1000L);
+        cache.prewarm(1);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_MODERATE) {
+            // a cached detector is not worth keeping once the system is looking for memory to reclaim
+            DetectorCache.getInstance(this).trim();
+        }
+    }
+}
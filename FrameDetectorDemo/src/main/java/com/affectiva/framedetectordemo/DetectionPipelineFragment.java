@@ -0,0 +1,194 @@
+package com.affectiva.framedetectordemo;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.app.FragmentManager;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.WindowManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * A Fragment with no UI which owns the capture and detection pipeline: the camera, through a CameraHelper, and the
+ * AsyncFrameDetector, along with the state which goes with them: the frame admission and preview resolution
+ * controllers, and the recorder of the session. It is retained across configuration changes, so that when
+ * MainActivity is re-created, the camera and the detector carry on running, the same session carries on being
+ * recorded, and only the preview surface is re-bound to the new CameraView.
+ *
+ * The pipeline is created with the application Context, so that it doesn't hold on to the Activity it was created for.
+ * The Activity stops the camera and the detector when paused, except across a configuration change; they are stopped
+ * for good once the Activity finishes.
+ */
+public class DetectionPipelineFragment extends Fragment {
+
+    static final String TAG = "DetectionPipelineFragment";
+    static final long SESSION_RECORDER_STOP_TIMEOUT = 2000; //ms
+    static final int RETAINED_SESSIONS = 5; //the most session directories kept, including the one being recorded
+
+    CameraHelper cameraHelper;
+    AsyncFrameDetector asyncDetector;
+    final LatencyTracer latencyTracer = new LatencyTracer();
+
+    boolean isCameraStarted = false;
+    CameraHelper.CameraType cameraType; // of the camera last started
+    // frame timestamps are measured from this, so that they keep increasing when the Activity is re-created
+    long firstFrameTime = -1;
+
+    //limits the rate at which camera frames are processed; see res/values/config.xml
+    FrameAdmissionController frameAdmission;
+    //steps the preview resolution to suit the detector's speed and the size of the faces; null until the camera starts
+    //or if disabled in res/values/config.xml
+    PreviewResolutionGovernor resolutionGovernor;
+    private long lastDetectorBusyNanos = 0;
+    private long lastDetectorFrameCount = 0;
+    private long lastDetectionNanos = 0;
+
+    //records every face's metrics and landmarks to disk; null while not recording
+    SessionRecorder sessionRecorder;
+    private SessionRecorder stoppedSessionRecorder; //the last one stopped, whose flusher may still be finishing
+
+    /**
+     * Returns the Activity's pipeline, creating it the first time.
+     */
+    static DetectionPipelineFragment obtain(Activity activity) {
+        FragmentManager fragmentManager = activity.getFragmentManager();
+        DetectionPipelineFragment pipeline = (DetectionPipelineFragment) fragmentManager.findFragmentByTag(TAG);
+        if (pipeline == null) {
+            pipeline = new DetectionPipelineFragment();
+            fragmentManager.beginTransaction().add(pipeline, TAG).commit();
+        }
+        if (pipeline.cameraHelper == null) {
+            // new, or re-instantiated by the FragmentManager after the process was killed
+            pipeline.createPipeline(activity.getApplicationContext());
+        }
+        return pipeline;
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+    }
+
+    /*
+     * As this Fragment is retained, this is only called once its Activity has finished.
+     */
+    @Override
+    public void onDestroy() {
+        stopSessionRecorder();
+        if (asyncDetector != null && asyncDetector.isRunning()) {
+            asyncDetector.stop();
+        }
+        if (cameraHelper != null) {
+            if (isCameraStarted) {
+                cameraHelper.stopCamera();
+                isCameraStarted = false;
+            }
+            cameraHelper.setPreviewSurface(null);
+        }
+        super.onDestroy();
+    }
+
+    private void createPipeline(Context context) {
+        cameraHelper = new CameraHelper(context,
+                ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay());
+
+        asyncDetector = new AsyncFrameDetector(context);
+        // let queued frames hold on to the camera's preview buffers instead of copying them
+        asyncDetector.setPreviewBufferPool(cameraHelper.getPreviewBufferPool());
+        asyncDetector.setLatencyTracer(latencyTracer);
+        asyncDetector.setFaceCroppingEnabled(context.getResources().getBoolean(R.bool.crop_frames_to_faces));
+        asyncDetector.setStaticFrameSkippingEnabled(context.getResources().getBoolean(R.bool.skip_static_frames));
+
+        frameAdmission = new FrameAdmissionController(context.getResources().getInteger(R.integer.target_processing_fps),
+                context.getResources().getInteger(R.integer.processing_burst));
+    }
+
+    /**
+     * Returns the detector's time per frame, averaged over the frames processed since the last call, or as last
+     * returned if none have been.
+     */
+    long getRecentDetectionNanos() {
+        long busyNanos = 0;
+        long frameCount = 0;
+        for (int i = 0; i < asyncDetector.getWorkerCount(); i++) {
+            busyNanos += asyncDetector.getWorkerBusyTimeNanos(i);
+            frameCount += asyncDetector.getWorkerFrameCount(i);
+        }
+        if (frameCount > lastDetectorFrameCount && busyNanos >= lastDetectorBusyNanos) {
+            lastDetectionNanos = (busyNanos - lastDetectorBusyNanos) / (frameCount - lastDetectorFrameCount);
+        }
+        lastDetectorBusyNanos = busyNanos;
+        lastDetectorFrameCount = frameCount;
+        return lastDetectionNanos;
+    }
+
+    /**
+     * Starts recording a new session, into a directory of its own under sessionsDirectory. The directory is never one
+     * used before, even when starting within the same millisecond, and the previous session is closed first, so that
+     * two recorders never map the same segment file. The oldest sessions are deleted, so that with the new one, at most
+     * RETAINED_SESSIONS are kept.
+     */
+    void startSessionRecorder(File sessionsDirectory) {
+        stopSessionRecorder();
+        if (stoppedSessionRecorder != null) {
+            if (!stoppedSessionRecorder.awaitStopped(SESSION_RECORDER_STOP_TIMEOUT)) {
+                Log.w(TAG, "The previous session is still being closed");
+            }
+            stoppedSessionRecorder = null;
+        }
+        deleteOldSessions(sessionsDirectory, RETAINED_SESSIONS - 1);
+        String sessionName = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.US).format(new Date());
+        File sessionDirectory = new File(sessionsDirectory, sessionName);
+        for (int suffix = 1; sessionDirectory.exists(); suffix++) {
+            sessionDirectory = new File(sessionsDirectory, sessionName + "-" + suffix);
+        }
+        sessionRecorder = new SessionRecorder(sessionDirectory, SessionRecorder.DEFAULT_RECORDS_PER_SEGMENT);
+        try {
+            sessionRecorder.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start recording the session", e);
+            sessionRecorder = null;
+        }
+    }
+
+    /*
+     * Deletes all but the newest keepCount session directories. Session directories are named after the time they were
+     * started, so the newest sort last.
+     */
+    private static void deleteOldSessions(File sessionsDirectory, int keepCount) {
+        File[] sessions = sessionsDirectory.listFiles();
+        if (sessions == null || sessions.length <= keepCount) {
+            return;
+        }
+        Arrays.sort(sessions);
+        for (int i = 0; i < sessions.length - keepCount; i++) {
+            File[] segments = sessions[i].listFiles();
+            if (segments != null) {
+                for (File segment : segments) {
+                    if (!segment.delete()) {
+                        Log.w(TAG, "Unable to delete " + segment);
+                    }
+                }
+            }
+            if (!sessions[i].delete()) {
+                Log.w(TAG, "Unable to delete " + sessions[i]);
+            }
+        }
+    }
+
+    void stopSessionRecorder() {
+        if (sessionRecorder != null) {
+            sessionRecorder.stop();
+            stoppedSessionRecorder = sessionRecorder;
+            sessionRecorder = null;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.affectiva.framedetectordemo;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.detector.FrameDetector;
+
+import java.util.ArrayDeque;
+
+/**
+ * An application-wide cache of started FrameDetectors, each on its own thread, so that creating and starting a
+ * detector, the slowest part of resuming, need not be repeated every time AsyncFrameDetector is started.
+ *
+ * AsyncFrameDetector.start() acquires a detector for each of its workers, and stop() releases them back into the cache,
+ * where each is kept started for the idle timeout, and then stopped and its thread quit. A detector acquired again
+ * before then only has to be reset. prewarm() creates and starts detectors ahead of time, e.g. as the process starts,
+ * on their own threads.
+ *
+ * Detectors are created with the application context, so that a cached detector doesn't keep an Activity alive.
+ *
+ * Must be used on the main thread.
+ */
+class DetectorCache {
+
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+    private static final String LOG_TAG = "DetectorCache";
+
+    private static DetectorCache instance;
+
+    private final Context context;
+    private final ExpiryHandler expiryHandler;
+    // most recently released first, so that the detectors which have been idle longest are left to expire
+    private final ArrayDeque<CachedDetector> idle = new ArrayDeque<>();
+    private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private int createdCount = 0;
+
+    static DetectorCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new DetectorCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private DetectorCache(Context context) {
+        this.context = context;
+        expiryHandler = new ExpiryHandler(this);
+    }
+
+    /**
+     * Sets how long a released detector is kept started before it is shut down. Applies to detectors released from
+     * now on.
+     */
+    void setIdleTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis must not be negative");
+        }
+        idleTimeoutMillis = millis;
+    }
+
+    /**
+     * Creates and starts detectors, in the background, until at least count are idle. They expire like released
+     * detectors if not acquired within the idle timeout.
+     */
+    void prewarm(int count) {
+        while (idle.size() < count) {
+            CachedDetector detector = create();
+            idle.addLast(detector);
+            scheduleExpiry(detector);
+        }
+    }
+
+    /**
+     * Hands out an idle detector, or creates one if there are none. The detector is started on its own thread, if it
+     * hasn't been already, before any message later sent to its Looper is handled.
+     */
+    CachedDetector acquire() {
+        CachedDetector detector = idle.pollFirst();
+        if (detector != null) {
+            expiryHandler.removeMessages(ExpiryHandler.EXPIRE, detector);
+            return detector;
+        }
+        return create();
+    }
+
+    /**
+     * Takes back a detector handed out by acquire(), once messages have been sent to detach its user from it.
+     */
+    void release(CachedDetector detector) {
+        idle.addFirst(detector);
+        scheduleExpiry(detector);
+    }
+
+    /**
+     * Shuts down every idle detector now, e.g. when memory is low.
+     */
+    void trim() {
+        CachedDetector detector;
+        while ((detector = idle.pollFirst()) != null) {
+            expiryHandler.removeMessages(ExpiryHandler.EXPIRE, detector);
+            detector.sendShutDownMessage();
+        }
+    }
+
+    private CachedDetector create() {
+        CachedDetector detector = new CachedDetector(context, createdCount++);
+        detector.sendWarmUpMessage();
+        return detector;
+    }
+
+    private void scheduleExpiry(CachedDetector detector) {
+        expiryHandler.sendMessageDelayed(expiryHandler.obtainMessage(ExpiryHandler.EXPIRE, detector),
+                idleTimeoutMillis);
+    }
+
+    private void expire(CachedDetector detector) {
+        if (idle.remove(detector)) {
+            Log.i(LOG_TAG, "Shutting down a detector idle for " + idleTimeoutMillis + " ms");
+            detector.sendShutDownMessage();
+        }
+    }
+
+    /*
+     * Shuts down detectors which have been idle for the idle timeout, on the main thread.
+     */
+    private static class ExpiryHandler extends Handler {
+        //Incoming message codes
+        private static final int EXPIRE = 0;
+
+        private final DetectorCache cache;
+
+        private ExpiryHandler(DetectorCache cache) {
+            super(Looper.getMainLooper());
+            this.cache = cache;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case EXPIRE:
+                    cache.expire((CachedDetector) msg.obj);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * A background thread for performing frame detection.  See Android HandlerThread class
+     * documentation for more information on how this class works.
+     */
+    private static class FrameDetectorThread extends HandlerThread {
+
+        private FrameDetectorThread(int index) {
+            super("FrameDetectorThread-" + index, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        }
+    }
+
+    /**
+     * A FrameDetector and the thread it runs on. Its user posts to the thread through a Handler of its own on
+     * getLooper(), and calls attach() and detach() on the thread.
+     */
+    static class CachedDetector extends Handler {
+        //Incoming message codes
+        private static final int WARM_UP = 0;
+        private static final int SHUT_DOWN = 1;
+
+        private final Context context;
+        // only touched on this detector's thread
+        private FrameDetector detector;
+        private boolean isAttached = false;
+        private boolean hasBeenUsed = false;
+        private volatile boolean isStarted = false; // whether detector.start() has returned; read on any thread
+
+        private CachedDetector(Context context, int index) {
+            super(startThread(index));
+            this.context = context;
+        }
+
+        private static Looper startThread(int index) {
+            HandlerThread thread = new FrameDetectorThread(index);
+            thread.start();
+            // note: getLooper will block until the the thread's looper has been prepared
+            return thread.getLooper();
+        }
+
+        /**
+         * Returns whether the detector has finished starting, so that attach() won't have to wait for it.
+         */
+        boolean isStarted() {
+            return isStarted;
+        }
+
+        private void sendWarmUpMessage() {
+            sendMessage(obtainMessage(WARM_UP));
+        }
+
+        private void sendShutDownMessage() {
+            sendMessage(obtainMessage(SHUT_DOWN));
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case WARM_UP:
+                    warmUp();
+                    break;
+                case SHUT_DOWN:
+                    shutDown();
+                    Log.d(LOG_TAG, "Quitting FrameDetectorThread");
+                    ((HandlerThread) getLooper().getThread()).quit();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Returns the started detector, reset if it has been used before. Must be called on this detector's thread.
+         */
+        FrameDetector attach() {
+            if (isAttached) {
+                throw new IllegalStateException("detector is already attached");
+            }
+            warmUp();
+            if (hasBeenUsed && detector.isRunning()) {
+                detector.reset(); // forget the faces, and the timestamps, of the last user's frames
+            }
+            isAttached = true;
+            hasBeenUsed = true;
+            return detector;
+        }
+
+        /**
+         * Stops delivering results to the last user. Must be called on this detector's thread.
+         */
+        void detach() {
+            if (detector != null) {
+                detector.setImageListener(null);
+            }
+            isAttached = false;
+        }
+
+        private void warmUp() {
+            if (detector != null) {
+                return;
+            }
+            long startTime = System.nanoTime();
+            detector = new FrameDetector(context);
+            detector.setDetectAllEmotions(true);
+            detector.setDetectAllExpressions(true);
+            detector.setDetectAllAppearances(true);
+            detector.setDetectAllEmojis(false);
+            detector.setDetectGender(true);
+            detector.start();
+            isStarted = true;
+            Log.i(LOG_TAG, String.format("Detector started in %.1f ms", (System.nanoTime() - startTime) / 1e6));
+        }
+
+        private void shutDown() {
+            if (detector == null) {
+                return;
+            }
+            isStarted = false;
+            detector.setImageListener(null);
+            try {
+                detector.stop();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, e.getMessage());
+            }
+            detector = null;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.affectiva.framedetectordemo;
+
+/**
+ * The recent history of every metric of the faces seen in a session, as a MetricWindow per metric per face.
+ *
+ * A fixed number of face slots is allocated up front. Each face is kept in its own slot, matched by the SDK's face id;
+ * when a face not seen before appears and every slot is taken, the slot updated least recently is reset and given to
+ * it. Once constructed, no further allocation takes place, so the history can be updated and queried at frame rate.
+ *
+ * Not thread-safe; intended to be used on the thread which receives the detector's results.
+ */
+class FaceMetricHistory {
+
+    private final MetricWindow[][] windows; // [slot][metric ordinal]
+    private final int[] faceIds;
+    private final boolean[] slotInUse;
+    private final float[] lastUpdateTimes;
+
+    /**
+     * @param maxFaces the number of faces to keep history for at once
+     * @param capacity the most samples to keep per metric, e.g. the window length times the expected frame rate
+     * @param windowSeconds the length of the window over which statistics are computed
+     * @param emaTimeConstantSeconds the time constant of the exponential moving average
+     */
+    FaceMetricHistory(int maxFaces, int capacity, float windowSeconds, float emaTimeConstantSeconds) {
+        if (maxFaces < 1) {
+            throw new IllegalArgumentException("maxFaces must be at least 1");
+        }
+        windows = new MetricWindow[maxFaces][FaceMetricsSnapshot.METRIC_COUNT];
+        for (int slot = 0; slot < maxFaces; slot++) {
+            for (int i = 0; i < FaceMetricsSnapshot.METRIC_COUNT; i++) {
+                windows[slot][i] = new MetricWindow(capacity, windowSeconds, emaTimeConstantSeconds);
+            }
+        }
+        faceIds = new int[maxFaces];
+        slotInUse = new boolean[maxFaces];
+        lastUpdateTimes = new float[maxFaces];
+    }
+
+    /**
+     * Adds the metrics of one face at the given timestamp. Snapshots without a face are ignored.
+     */
+    void add(float timestamp, FaceMetricsSnapshot snapshot) {
+        if (!snapshot.hasFace()) {
+            return;
+        }
+        int slot = slotFor(snapshot.getFaceId());
+        if (slot < 0) {
+            slot = claimSlot(snapshot.getFaceId());
+        }
+        MetricWindow[] faceWindows = windows[slot];
+        for (int i = 0; i < faceWindows.length; i++) {
+            faceWindows[i].add(timestamp, snapshot.get(i));
+        }
+        lastUpdateTimes[slot] = timestamp;
+    }
+
+    /**
+     * Returns the window of the given metric of the given face, or null if there is no history for that face.
+     */
+    MetricWindow get(int faceId, Metrics metric) {
+        int slot = slotFor(faceId);
+        return slot < 0 ? null : windows[slot][metric.ordinal()];
+    }
+
+    /**
+     * Forgets every face, e.g. when a new session starts.
+     */
+    void reset() {
+        for (int slot = 0; slot < windows.length; slot++) {
+            resetSlot(slot);
+        }
+    }
+
+    private int slotFor(int faceId) {
+        for (int slot = 0; slot < faceIds.length; slot++) {
+            if (slotInUse[slot] && faceIds[slot] == faceId) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int claimSlot(int faceId) {
+        int claimed = 0;
+        for (int slot = 0; slot < faceIds.length; slot++) {
+            if (!slotInUse[slot]) {
+                claimed = slot;
+                break;
+            }
+            if (lastUpdateTimes[slot] < lastUpdateTimes[claimed]) {
+                claimed = slot;
+            }
+        }
+        resetSlot(claimed);
+        faceIds[claimed] = faceId;
+        slotInUse[claimed] = true;
+        return claimed;
+    }
+
+    private void resetSlot(int slot) {
+        for (MetricWindow window : windows[slot]) {
+            window.reset();
+        }
+        slotInUse[slot] = false;
+    }
+}
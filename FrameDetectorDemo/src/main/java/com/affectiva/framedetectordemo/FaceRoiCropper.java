@@ -0,0 +1,357 @@
+package com.affectiva.framedetectordemo;
+
+import android.graphics.PointF;
+
+import com.affectiva.android.affdex.sdk.Frame;
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.util.List;
+
+/**
+ * Crops NV21 frames down to the region where the faces found in earlier frames are expected to be, so that the
+ * detector's cost follows the size of the faces rather than the size of the camera's frames.
+ *
+ * The region is the bounding box of every face's points in the last results, moved on by the box's velocity to where
+ * it should be by the time of the new frame, and widened by MARGIN on every side (and by the distance it is predicted
+ * to move, in case the prediction is off). The crop is aligned to even pixels, as NV21's chroma is subsampled by two.
+ * Its size is rounded up to CROP_SIZE_STEP, and then kept while the faces are tracked, for as long as the region still
+ * fits in it and fills more than half of it, so that the detector is handed frames of the same size from frame to frame
+ * while the face moves about, and the crop's buffer can be reused. When the size does change, the faces' positions in
+ * the detector's frames jump, so hasCropSizeChanged() tells the caller to reset the detector.
+ *
+ * The whole frame is processed instead when no face was found last time, when the crop would cover more than
+ * MAX_CROP_AREA_FRACTION of the frame anyway, and at least every fullScanIntervalSeconds, so that faces which come into
+ * view away from the tracked ones are still found.
+ *
+ * Face points are reported by the detector relative to the (rotated) frame it was given; since rotation and cropping
+ * commute, those of a cropped frame are mapped back to the full frame by a plain offset. update() applies it to copies
+ * of the points, as the detector's own points belong to it.
+ *
+ * Not thread-safe: crop() and update() must always be called on the same thread; the counts may be read on any thread.
+ */
+class FaceRoiCropper {
+
+    static final float DEFAULT_FULL_SCAN_INTERVAL_SECONDS = 1;
+    private static final float MARGIN = 0.5f; // of the face box's width or height, on each side
+    private static final int CROP_SIZE_STEP = 32;
+    private static final int MIN_CROP_SIZE = 96;
+    private static final float MAX_CROP_AREA_FRACTION = 0.5f;
+    private static final float VELOCITY_SMOOTHING = 0.5f;
+
+    private final float fullScanIntervalSeconds;
+
+    // the tracked box, in the coordinates of the full, rotated frame
+    private boolean hasBox = false;
+    private float boxCenterX;
+    private float boxCenterY;
+    private float boxWidth;
+    private float boxHeight;
+    private float velocityX; // pixels per second
+    private float velocityY;
+    private float boxTimestamp;
+    private float lastFullScanTimestamp;
+    private int frameWidth; // of the last frame, before rotation
+    private int frameHeight;
+
+    // the crop of the frame being processed, if it was cropped
+    private boolean isCropped = false;
+    private float offsetX; // of the crop within the full, rotated frame
+    private float offsetY;
+    private int cropWidth; // kept while the faces are tracked, or 0 to choose afresh
+    private int cropHeight;
+    private boolean hasCropSizeChanged = false;
+
+    private byte[] cropBuffer;
+    private Frame.ByteArrayFrame cropFrame;
+
+    private volatile long croppedCount = 0;
+    private volatile long fullCount = 0;
+    private volatile long processedPixels = 0;
+    private volatile long framePixels = 0;
+
+    /**
+     * @param fullScanIntervalSeconds the longest time, in frame timestamps, between frames processed whole
+     */
+    FaceRoiCropper(float fullScanIntervalSeconds) {
+        if (fullScanIntervalSeconds <= 0 || Float.isNaN(fullScanIntervalSeconds)) {
+            throw new IllegalArgumentException("fullScanIntervalSeconds must be positive");
+        }
+        this.fullScanIntervalSeconds = fullScanIntervalSeconds;
+    }
+
+    /**
+     * Forgets the tracked faces, e.g. when the detector is reset, so that the next frame is processed whole.
+     */
+    void reset() {
+        hasBox = false;
+        isCropped = false;
+        cropWidth = 0;
+        cropHeight = 0;
+    }
+
+    /**
+     * Returns the frame to hand to the detector in place of the given one: either a crop of it, or the frame itself.
+     * A crop is only valid until the next call.
+     */
+    Frame crop(Frame frame, float timestamp) {
+        isCropped = false;
+        hasCropSizeChanged = false;
+        if (!(frame instanceof Frame.ByteArrayFrame) || frame.getColorFormat() != Frame.COLOR_FORMAT.YUV_NV21) {
+            return frame;
+        }
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        if (width != frameWidth || height != frameHeight) {
+            frameWidth = width;
+            frameHeight = height;
+            hasBox = false;
+            cropWidth = 0;
+            cropHeight = 0;
+        }
+        Frame.ROTATE rotation = frame.getTargetRotation();
+        if (rotation == null) {
+            rotation = Frame.ROTATE.NO_ROTATION;
+        }
+        framePixels += width * height;
+
+        if (!hasBox || timestamp < boxTimestamp || timestamp - lastFullScanTimestamp >= fullScanIntervalSeconds) {
+            processWhole(width, height, timestamp);
+            return frame;
+        }
+
+        // predict where the box will be, in the rotated frame
+        float elapsed = timestamp - boxTimestamp;
+        float moveX = velocityX * elapsed;
+        float moveY = velocityY * elapsed;
+        float halfWidth = boxWidth * (0.5f + MARGIN) + Math.abs(moveX);
+        float halfHeight = boxHeight * (0.5f + MARGIN) + Math.abs(moveY);
+        float left = boxCenterX + moveX - halfWidth;
+        float top = boxCenterY + moveY - halfHeight;
+
+        // turn the region into one of the frame as the camera delivered it, before rotation
+        boolean isQuarterTurn = rotation == Frame.ROTATE.BY_90_CW || rotation == Frame.ROTATE.BY_90_CCW;
+        float rawWidth = 2 * (isQuarterTurn ? halfHeight : halfWidth);
+        float rawHeight = 2 * (isQuarterTurn ? halfWidth : halfHeight);
+        float rawLeft;
+        float rawTop;
+        switch (rotation) {
+            case BY_90_CW:
+                rawLeft = top;
+                rawTop = height - left - rawHeight;
+                break;
+            case BY_180:
+                rawLeft = width - left - rawWidth;
+                rawTop = height - top - rawHeight;
+                break;
+            case BY_90_CCW:
+                rawLeft = width - top - rawWidth;
+                rawTop = left;
+                break;
+            default:
+                rawLeft = left;
+                rawTop = top;
+                break;
+        }
+
+        int neededWidth = Math.min(roundUpToStep(rawWidth), width & ~1);
+        int neededHeight = Math.min(roundUpToStep(rawHeight), height & ~1);
+        if ((float) neededWidth * neededHeight > MAX_CROP_AREA_FRACTION * width * height) {
+            processWhole(width, height, timestamp);
+            return frame;
+        }
+        if (neededWidth > cropWidth || neededHeight > cropHeight
+                || 2 * neededWidth < cropWidth || 2 * neededHeight < cropHeight) {
+            hasCropSizeChanged = cropWidth != 0;
+            cropWidth = neededWidth;
+            cropHeight = neededHeight;
+        }
+        // centre the rounded crop on the region, keeping it within the frame and aligned with the chroma samples
+        int cropLeft = clamp(Math.round(rawLeft - (cropWidth - rawWidth) / 2), 0, width - cropWidth) & ~1;
+        int cropTop = clamp(Math.round(rawTop - (cropHeight - rawHeight) / 2), 0, height - cropHeight) & ~1;
+
+        byte[] data = ((Frame.ByteArrayFrame) frame).getByteArray();
+        Frame.ByteArrayFrame cropped = copyCrop(data, width, height, cropLeft, cropTop, cropWidth, cropHeight);
+        cropped.setTargetRotation(rotation);
+
+        // where the crop's top left corner ends up in the rotated frame
+        switch (rotation) {
+            case BY_90_CW:
+                offsetX = height - cropTop - cropHeight;
+                offsetY = cropLeft;
+                break;
+            case BY_180:
+                offsetX = width - cropLeft - cropWidth;
+                offsetY = height - cropTop - cropHeight;
+                break;
+            case BY_90_CCW:
+                offsetX = cropTop;
+                offsetY = width - cropLeft - cropWidth;
+                break;
+            default:
+                offsetX = cropLeft;
+                offsetY = cropTop;
+                break;
+        }
+        isCropped = true;
+        croppedCount += 1;
+        processedPixels += cropWidth * cropHeight;
+        return cropped;
+    }
+
+    /**
+     * Returns whether the size of the crop last returned by crop() differs from that of the crop before it, while the
+     * faces were being tracked, in which case the detector should be reset before the crop is processed.
+     */
+    boolean hasCropSizeChanged() {
+        return hasCropSizeChanged;
+    }
+
+    /**
+     * Takes the detector's results for the frame last returned by crop(): copies each face's points, in the full
+     * frame's coordinates, into facePoints, and tracks the faces' bounding box for the frames to come. The detector's
+     * own points are left as they are.
+     * @param facePoints arrays to copy the points into, which are reused where they fit; may be null
+     * @return facePoints, or a replacement if it had to grow, holding the points of faces.get(i) at index i
+     */
+    PointF[][] update(List<Face> faces, float timestamp, PointF[][] facePoints) {
+        float dx = isCropped ? offsetX : 0;
+        float dy = isCropped ? offsetY : 0;
+        isCropped = false;
+        float left = Float.MAX_VALUE;
+        float top = Float.MAX_VALUE;
+        float right = -Float.MAX_VALUE;
+        float bottom = -Float.MAX_VALUE;
+        boolean found = false;
+        if (faces != null) {
+            for (int i = 0; i < faces.size(); i++) {
+                facePoints = copyPoints(faces.get(i).getFacePoints(), dx, dy, facePoints, i);
+                for (PointF point : facePoints[i]) {
+                    left = Math.min(left, point.x);
+                    top = Math.min(top, point.y);
+                    right = Math.max(right, point.x);
+                    bottom = Math.max(bottom, point.y);
+                    found = true;
+                }
+            }
+        }
+
+        if (!found) {
+            // look over the whole of the next frame
+            hasBox = false;
+            cropWidth = 0;
+            cropHeight = 0;
+            return facePoints;
+        }
+        float centerX = (left + right) / 2;
+        float centerY = (top + bottom) / 2;
+        float elapsed = timestamp - boxTimestamp;
+        if (hasBox && elapsed > 0) {
+            velocityX += VELOCITY_SMOOTHING * ((centerX - boxCenterX) / elapsed - velocityX);
+            velocityY += VELOCITY_SMOOTHING * ((centerY - boxCenterY) / elapsed - velocityY);
+        } else {
+            velocityX = 0;
+            velocityY = 0;
+        }
+        boxCenterX = centerX;
+        boxCenterY = centerY;
+        boxWidth = right - left;
+        boxHeight = bottom - top;
+        boxTimestamp = timestamp;
+        hasBox = true;
+        return facePoints;
+    }
+
+    /**
+     * Copies points, moved by (dx, dy), into facePoints[index], reusing the array and its PointFs if it is the right
+     * length. Null points are copied as none.
+     * @return facePoints, or a replacement with room for index if it was null or too short
+     */
+    static PointF[][] copyPoints(PointF[] points, float dx, float dy, PointF[][] facePoints, int index) {
+        if (facePoints == null || facePoints.length <= index) {
+            PointF[][] grown = new PointF[index + 1][];
+            if (facePoints != null) {
+                System.arraycopy(facePoints, 0, grown, 0, facePoints.length);
+            }
+            facePoints = grown;
+        }
+        int count = points == null ? 0 : points.length;
+        PointF[] copy = facePoints[index];
+        if (copy == null || copy.length != count) {
+            copy = new PointF[count];
+            for (int i = 0; i < count; i++) {
+                copy[i] = new PointF();
+            }
+            facePoints[index] = copy;
+        }
+        for (int i = 0; i < count; i++) {
+            copy[i].set(points[i].x + dx, points[i].y + dy);
+        }
+        return facePoints;
+    }
+
+    /**
+     * Returns the number of frames handed to the detector cropped.
+     */
+    long getCroppedCount() {
+        return croppedCount;
+    }
+
+    /**
+     * Returns the number of frames handed to the detector whole.
+     */
+    long getFullCount() {
+        return fullCount;
+    }
+
+    /**
+     * Returns the number of pixels handed to the detector, cropped or whole.
+     */
+    long getProcessedPixels() {
+        return processedPixels;
+    }
+
+    /**
+     * Returns the number of pixels in the frames given to crop().
+     */
+    long getFramePixels() {
+        return framePixels;
+    }
+
+    private void processWhole(int width, int height, float timestamp) {
+        lastFullScanTimestamp = timestamp;
+        fullCount += 1;
+        processedPixels += width * height;
+    }
+
+    /*
+     * Copies a region of an NV21 frame into the crop buffer: its rows of luma, then its rows of interleaved chroma, which
+     * cover two rows and two columns of luma each. left, top, cropWidth and cropHeight must be even.
+     */
+    private Frame.ByteArrayFrame copyCrop(byte[] data, int width, int height, int left, int top,
+                                          int cropWidth, int cropHeight) {
+        int size = cropWidth * cropHeight * 3 / 2;
+        if (cropFrame == null || cropFrame.getWidth() != cropWidth || cropFrame.getHeight() != cropHeight) {
+            cropBuffer = new byte[size];
+            cropFrame = new Frame.ByteArrayFrame(cropBuffer, cropWidth, cropHeight, Frame.COLOR_FORMAT.YUV_NV21);
+        }
+        for (int row = 0; row < cropHeight; row++) {
+            System.arraycopy(data, (top + row) * width + left, cropBuffer, row * cropWidth, cropWidth);
+        }
+        int chromaStart = width * height;
+        int cropChromaStart = cropWidth * cropHeight;
+        for (int row = 0; row < cropHeight / 2; row++) {
+            System.arraycopy(data, chromaStart + (top / 2 + row) * width + left,
+                    cropBuffer, cropChromaStart + row * cropWidth, cropWidth);
+        }
+        return cropFrame;
+    }
+
+    private static int roundUpToStep(float size) {
+        int rounded = ((int) Math.ceil(size) + CROP_SIZE_STEP - 1) / CROP_SIZE_STEP * CROP_SIZE_STEP;
+        return Math.max(MIN_CROP_SIZE, rounded);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,111 @@
+package com.affectiva.framedetectordemo;
+
+/**
+ * Decides which camera frames go to the detector, so that frames are processed at no more than a target rate, evenly
+ * spaced, however fast the camera delivers them.
+ *
+ * Admission is governed by a token bucket: tokens accrue at targetFps per second, up to burst tokens, and each admitted
+ * frame spends one. The burst lets the rate be made up after a short gap in the camera's frames without letting a long
+ * idle spell turn into a flood. Since frames only arrive every so often, and with some jitter, a frame is admitted
+ * once the bucket is within half an arrival interval's worth of tokens of holding a whole one: if the frame arriving
+ * just before the ideal time were turned away, the next would come later still past it, and the admitted frames would
+ * come unevenly and too rarely. The bucket may briefly go that far below zero, so the long-run rate is still
+ * targetFps.
+ *
+ * Whatever the target rate, frames less than MIN_FRAME_INTERVAL_NANOS after the last admitted one are turned away, as
+ * the detector needs strictly increasing timestamps. A target of 0 applies only that check.
+ *
+ * admit() must always be called on the same thread; the counts may be read on any thread.
+ *
+ * ServiceFrameDetectorDemo's DetectorService admits camera frames through a copy of this class, configured from the
+ * same two config.xml integers, and differing only in its package.
+ */
+class FrameAdmissionController {
+
+    static final long MIN_FRAME_INTERVAL_NANOS = 10000000L; // 10 ms
+    private static final double ARRIVAL_INTERVAL_SMOOTHING = 0.1;
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final float targetFps;
+    private final int burst;
+    private final double tokensPerNano;
+
+    private double tokens;
+    private long lastArrivalNanos;
+    private long lastAdmittedNanos;
+    private double arrivalIntervalNanos; // smoothed, 0 until two frames have arrived
+    private volatile long admittedCount = 0;
+    private volatile long rejectedCount = 0;
+
+    /**
+     * @param targetFps the most frames per second to admit, or 0 for no limit
+     * @param burst the most frames that may be admitted in quick succession after a gap, at least 1
+     */
+    FrameAdmissionController(float targetFps, int burst) {
+        if (targetFps < 0 || Float.isNaN(targetFps)) {
+            throw new IllegalArgumentException("targetFps must not be negative");
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be at least 1");
+        }
+        this.targetFps = targetFps;
+        this.burst = burst;
+        tokensPerNano = targetFps / NANOS_PER_SECOND;
+        reset();
+    }
+
+    /**
+     * Forgets the timing of earlier frames, e.g. when the camera is restarted, so that the next frame is admitted.
+     * The counts are kept.
+     */
+    void reset() {
+        tokens = 1;
+        lastArrivalNanos = -1;
+        lastAdmittedNanos = -1;
+        arrivalIntervalNanos = 0;
+    }
+
+    /**
+     * Decides whether to process a frame which arrived at nowNanos.
+     * @param nowNanos the frame's arrival time, from a monotonic clock such as System.nanoTime()
+     */
+    boolean admit(long nowNanos) {
+        if (lastArrivalNanos >= 0) {
+            long interval = nowNanos - lastArrivalNanos;
+            if (interval > 0) {
+                arrivalIntervalNanos = arrivalIntervalNanos == 0 ? interval
+                        : arrivalIntervalNanos + ARRIVAL_INTERVAL_SMOOTHING * (interval - arrivalIntervalNanos);
+                tokens = Math.min(burst, tokens + interval * tokensPerNano);
+            }
+        }
+        lastArrivalNanos = nowNanos;
+
+        if (lastAdmittedNanos >= 0 && nowNanos - lastAdmittedNanos < MIN_FRAME_INTERVAL_NANOS) {
+            rejectedCount += 1;
+            return false;
+        }
+        if (targetFps > 0) {
+            double slack = Math.min(0.5, 0.5 * arrivalIntervalNanos * tokensPerNano);
+            if (tokens + slack < 1) {
+                rejectedCount += 1;
+                return false;
+            }
+            tokens -= 1;
+        }
+        lastAdmittedNanos = nowNanos;
+        admittedCount += 1;
+        return true;
+    }
+
+    float getTargetFps() {
+        return targetFps;
+    }
+
+    long getAdmittedCount() {
+        return admittedCount;
+    }
+
+    long getRejectedCount() {
+        return rejectedCount;
+    }
+}
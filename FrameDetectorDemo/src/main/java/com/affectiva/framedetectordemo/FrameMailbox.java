@@ -0,0 +1,59 @@
+package com.affectiva.framedetectordemo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free, single-slot, latest-wins mailbox for handing frames from any number of producer threads to a consumer.
+ *
+ * Posting an item atomically replaces the pending one (if any), which is handed back to the caller so it can be
+ * recycled. The consumer always takes the newest item, so it never works on a stale frame, and the backlog can never
+ * exceed one item. A single slot is all that is needed: since the consumer always takes the newest item, any further
+ * slots would only hold items destined to be superseded.
+ *
+ * ServiceFrameDetectorDemo's DetectorService hands preview frames from its camera thread to its detection thread
+ * through a copy of this class, which differs only in its package.
+ */
+class FrameMailbox<T> {
+
+    private final AtomicReference<T> slot = new AtomicReference<>();
+    private final AtomicLong postedCount = new AtomicLong();
+    private final AtomicLong supersededCount = new AtomicLong();
+
+    /**
+     * Places an item in the mailbox, replacing any pending item.
+     * @return the item which was replaced before the consumer took it, or null if the mailbox was empty
+     */
+    T post(T item) {
+        if (item == null) {
+            throw new NullPointerException("item must not be null");
+        }
+        postedCount.incrementAndGet();
+        T superseded = slot.getAndSet(item);
+        if (superseded != null) {
+            supersededCount.incrementAndGet();
+        }
+        return superseded;
+    }
+
+    /**
+     * Removes and returns the pending item, or null if the mailbox is empty.
+     */
+    T take() {
+        return slot.getAndSet(null);
+    }
+
+    /**
+     * Returns the number of items posted to this mailbox.
+     */
+    long getPostedCount() {
+        return postedCount.get();
+    }
+
+    /**
+     * Returns the number of items which were replaced by a newer item before the consumer took them.
+     */
+    long getSupersededCount() {
+        return supersededCount.get();
+    }
+}
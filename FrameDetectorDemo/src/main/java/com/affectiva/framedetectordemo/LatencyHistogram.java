@@ -0,0 +1,93 @@
+package com.affectiva.framedetectordemo;
+
+/**
+ * A fixed-memory histogram of latencies, from which percentiles can be read at any time.
+ *
+ * Values are recorded in microseconds into log-linear buckets: each power of two is split into SUB_BUCKETS equal
+ * buckets, so a reported percentile is within 1/SUB_BUCKETS (about 6%) of the true value. Values of more than about
+ * 67 seconds are clamped into the last bucket.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int POWERS_OF_TWO = 23; // covers values below 2^26 microseconds
+
+    private final long[] counts = new long[POWERS_OF_TWO * SUB_BUCKETS];
+    private long totalCount = 0;
+    private long maxMicros = 0;
+
+    synchronized void recordNanos(long nanos) {
+        long micros = nanos < 0 ? 0 : nanos / 1000;
+        counts[bucketIndex(micros)] += 1;
+        totalCount += 1;
+        if (micros > maxMicros) {
+            maxMicros = micros;
+        }
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        totalCount = 0;
+        maxMicros = 0;
+    }
+
+    synchronized long getCount() {
+        return totalCount;
+    }
+
+    synchronized long getMaxMicros() {
+        return maxMicros;
+    }
+
+    /**
+     * Returns the value (in microseconds) below which the given fraction of recorded values fall, e.g. 0.95 for the
+     * 95th percentile, or 0 if nothing has been recorded.
+     */
+    synchronized long getPercentileMicros(double fraction) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(fraction * totalCount);
+        if (target < 1) {
+            target = 1;
+        }
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= target) {
+                return Math.min(bucketUpperBound(i), maxMicros);
+            }
+        }
+        return maxMicros;
+    }
+
+    /*
+     * Values below SUB_BUCKETS get a bucket each. Above that, a value whose highest set bit is b is placed in one of
+     * the SUB_BUCKETS buckets for power b, according to the SUB_BUCKET_BITS bits below its highest set bit.
+     */
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(micros);
+        int power = highestBit - SUB_BUCKET_BITS + 1;
+        if (power >= POWERS_OF_TWO) {
+            return POWERS_OF_TWO * SUB_BUCKETS - 1;
+        }
+        int subBucket = (int) (micros >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return power * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketUpperBound(int index) {
+        int power = index / SUB_BUCKETS;
+        int subBucket = index % SUB_BUCKETS;
+        if (power == 0) {
+            return subBucket;
+        }
+        int shift = power - 1;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
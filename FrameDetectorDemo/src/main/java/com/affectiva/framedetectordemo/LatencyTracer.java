@@ -0,0 +1,141 @@
+package com.affectiva.framedetectordemo;
+
+import android.os.SystemClock;
+
+/**
+ * Collects per-frame latency traces, and summarizes them into a LatencyHistogram per pipeline stage.
+ *
+ * Each frame carries a Trace, which is stamped with SystemClock.elapsedRealtimeNanos() as the frame passes through
+ * each Stage. When a frame's results have been delivered, the time taken to reach each stage from the previous one,
+ * and the end-to-end time, are recorded into the histograms. Traces of frames which never make it to delivery are
+ * discarded. Traces are recycled, so tracing does not allocate in the steady state.
+ */
+class LatencyTracer {
+
+    enum Stage {
+        CAMERA_CALLBACK,    // CameraHelper.onPreviewFrame() received the frame
+        SUBMITTED,          // AsyncFrameDetector.process() accepted the frame
+        DETECTION_STARTED,  // the detector thread started processing the frame
+        DETECTION_FINISHED, // FrameDetector produced results for the frame
+        RESULT_RECEIVED,    // the results reached the main thread
+        DELIVERED           // the listener's onImageResults() returned
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final int MAX_SPARE_TRACES = 16;
+
+    /**
+     * The timestamps of a single frame's journey through the pipeline.
+     */
+    static class Trace {
+        private final LatencyTracer tracer;
+        private final long[] stamps = new long[STAGES.length];
+
+        private Trace(LatencyTracer tracer) {
+            this.tracer = tracer;
+        }
+
+        void stamp(Stage stage) {
+            stamps[stage.ordinal()] = SystemClock.elapsedRealtimeNanos();
+        }
+
+        void setStamp(Stage stage, long elapsedRealtimeNanos) {
+            stamps[stage.ordinal()] = elapsedRealtimeNanos;
+        }
+
+        /**
+         * Records this trace into the histograms, and recycles it. The trace must not be used afterwards.
+         */
+        void complete() {
+            tracer.record(this);
+            tracer.recycle(this);
+        }
+
+        /**
+         * Recycles this trace without recording it. The trace must not be used afterwards.
+         */
+        void discard() {
+            tracer.recycle(this);
+        }
+    }
+
+    // stageHistograms[i] holds the time taken to reach STAGES[i] from the previous stage; index 0 is unused
+    private final LatencyHistogram[] stageHistograms = new LatencyHistogram[STAGES.length];
+    private final LatencyHistogram endToEndHistogram = new LatencyHistogram();
+
+    private final RecyclingPool<Trace> spareTraces = new RecyclingPool<Trace>(MAX_SPARE_TRACES) {
+        @Override
+        protected Trace create() {
+            return new Trace(LatencyTracer.this);
+        }
+    };
+
+    LatencyTracer() {
+        for (int i = 1; i < STAGES.length; i++) {
+            stageHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Returns a trace with no stamps set.
+     */
+    Trace obtain() {
+        return spareTraces.obtain();
+    }
+
+    /**
+     * Returns the histogram of the time taken to reach the given stage from the previous one. There is no histogram
+     * for the first stage.
+     */
+    LatencyHistogram getStageHistogram(Stage stage) {
+        if (stage.ordinal() == 0) {
+            throw new IllegalArgumentException("There is no histogram for the first stage");
+        }
+        return stageHistograms[stage.ordinal()];
+    }
+
+    /**
+     * Returns the histogram of the time taken from the first stamped stage to the last one.
+     */
+    LatencyHistogram getEndToEndHistogram() {
+        return endToEndHistogram;
+    }
+
+    void reset() {
+        for (int i = 1; i < STAGES.length; i++) {
+            stageHistograms[i].reset();
+        }
+        endToEndHistogram.reset();
+    }
+
+    /*
+     * Stages which were not stamped (e.g. CAMERA_CALLBACK for frames which did not come from the camera) are skipped,
+     * and their time is attributed to the next stamped stage.
+     */
+    private void record(Trace trace) {
+        long first = 0;
+        long previous = 0;
+        for (int i = 0; i < STAGES.length; i++) {
+            long stamp = trace.stamps[i];
+            if (stamp == 0) {
+                continue;
+            }
+            if (previous == 0) {
+                first = stamp;
+            } else {
+                stageHistograms[i].recordNanos(stamp - previous);
+            }
+            previous = stamp;
+        }
+        if (previous != first) {
+            endToEndHistogram.recordNanos(previous - first);
+        }
+    }
+
+    private void recycle(Trace trace) {
+        for (int i = 0; i < trace.stamps.length; i++) {
+            trace.stamps[i] = 0;
+        }
+        spareTraces.recycle(trace);
+    }
+}
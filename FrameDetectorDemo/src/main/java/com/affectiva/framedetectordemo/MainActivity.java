@@ -2,10 +2,8 @@ package com.affectiva.framedetectordemo;
 
 import android.app.Activity;
 import android.media.MediaPlayer;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.SystemClock;
-import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.CompoundButton;
@@ -15,18 +13,17 @@ import android.widget.ToggleButton;
 import com.affectiva.android.affdex.sdk.Frame;
 import com.affectiva.android.affdex.sdk.detector.Face;
 
-import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
-import org.springframework.web.client.RestTemplate;
-
-import java.util.HashMap;
+import java.io.File;
 import java.util.List;
-import java.util.Map;
 
 /**
  * This is a sample app using the FrameDetector object, which is not multi-threaded, and running it on a background thread in a custom object called
  * AsyncFrameDetector.
  *
  * This app also contains sample code for using the camera.
+ *
+ * The camera and the detector are owned by a retained DetectionPipelineFragment, so that they keep running when this
+ * Activity is re-created for a configuration change.
  */
 public class MainActivity extends Activity implements CameraView.OnCameraViewEventListener, AsyncFrameDetector.OnDetectorEventListener {
 
@@ -39,48 +36,113 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
     Button cameraButton;
     TextView processorFPS;
     TextView cameraFPS;
+    View fpsContainer;
+    TextView latencyText;
     ToggleButton frontBackToggle;
 
     //state booleans
-    boolean isCameraStarted  = false;
     boolean isCameraFront = true;
     boolean isCameraRequestedByUser = true;
     boolean isSDKRunning = true;
+    boolean isLatencyOverlayShown = false;
 
     //variables used to determine the FPS rates of frames sent by the camera and processed by the SDK
     long numberCameraFramesReceived = 0;
     long lastCameraFPSResetTime = -1L;
     long numberSDKFramesReceived = 0;
     long lastSDKFPSResetTime = -1L;
+    //the FPS text is only refreshed periodically, rather than formatted anew for every frame
+    static final long FPS_TEXT_UPDATE_PERIOD = 500; //ms
+    long lastCameraFPSTextUpdateTime = 0;
+    long lastSDKFPSTextUpdateTime = 0;
+
+    //per-stage latency of frames through the detector, shown in place of the FPS text when the user taps it
+    static final long LATENCY_OVERLAY_UPDATE_PERIOD = 500; //ms
+    LatencyTracer latencyTracer;
+    long lastLatencyOverlayUpdateTime = 0;
+
+    //the metrics of each face in turn, refilled for every frame, and left holding those of the face being shown
+    final FaceMetricsSnapshot faceMetrics = new FaceMetricsSnapshot();
+
+    //the recent history of each face's metrics, from which the sadness alert is raised
+    static final int MAX_TRACKED_FACES = 4;
+    static final int METRIC_HISTORY_CAPACITY = 128; //frames; enough for the window at up to 60 fps
+    static final float METRIC_WINDOW = 2f; //seconds
+    static final float METRIC_EMA_TIME_CONSTANT = 0.5f; //seconds
+    static final float SADNESS_ALERT_THRESHOLD = 0.85f;
+    static final int SADNESS_ALERT_MIN_FRAMES = 5;
+    final FaceMetricHistory faceHistory = new FaceMetricHistory(MAX_TRACKED_FACES, METRIC_HISTORY_CAPACITY,
+            METRIC_WINDOW, METRIC_EMA_TIME_CONSTANT);
 
     int startTime = 0;
-    //floats to ensure the timestamps we send to FrameDetector are sequentially increasing
-    float lastTimestamp = -1f;
-    final float epsilon = .01f;
-    long firstFrameTime = -1;
+    //limits the rate at which camera frames are processed; see res/values/config.xml
+    FrameAdmissionController frameAdmission;
+    static final float CAMERA_FRAME_RATE = 30; //fps, the rate assumed when processing is not capped
     boolean isPlayingMusic = false;
     boolean hasSentText = false;
 
-    CameraView cameraView; // controls the camera
+    //user choices kept when the Activity is re-created
+    static final String STATE_CAMERA_FRONT = "isCameraFront";
+    static final String STATE_CAMERA_REQUESTED = "isCameraRequestedByUser";
+    static final String STATE_SDK_RUNNING = "isSDKRunning";
+
+    DetectionPipelineFragment pipeline; // owns the camera and the detector, across configuration changes
+    CameraView cameraView; // shows the camera preview
     AsyncFrameDetector asyncDetector; // runs FrameDetector on a background thread
     MediaPlayer mediaPlayer;
+    AlertOutbox alertOutbox; //sends alerts in the background, retrying until they get through
+
+    //if enabled in res/values/config.xml, every face's metrics and landmarks are recorded to disk, under
+    //files/sessions, by the pipeline's SessionRecorder
+    static final String SESSIONS_DIRECTORY_NAME = "sessions";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        //set up metrics view
-        metricsPanel = new MetricsPanel();
-        getFragmentManager().beginTransaction().add(R.id.fragment_container,metricsPanel).commit();
+        if (savedInstanceState != null) {
+            isCameraFront = savedInstanceState.getBoolean(STATE_CAMERA_FRONT, isCameraFront);
+            isCameraRequestedByUser = savedInstanceState.getBoolean(STATE_CAMERA_REQUESTED, isCameraRequestedByUser);
+            isSDKRunning = savedInstanceState.getBoolean(STATE_SDK_RUNNING, isSDKRunning);
+        }
+        pipeline = DetectionPipelineFragment.obtain(this);
+        asyncDetector = pipeline.asyncDetector;
+        latencyTracer = pipeline.latencyTracer;
+        frameAdmission = pipeline.frameAdmission;
+
+        //set up metrics view; when the Activity is re-created, the FragmentManager has already restored it
+        if (savedInstanceState == null) {
+            metricsPanel = new MetricsPanel();
+            getFragmentManager().beginTransaction().add(R.id.fragment_container,metricsPanel).commit();
+        } else {
+            metricsPanel = (MetricsPanel) getFragmentManager().findFragmentById(R.id.fragment_container);
+        }
 
         //Init TextViews
         cameraFPS = (TextView) findViewById(R.id.camera_fps_text);
         processorFPS = (TextView) findViewById(R.id.processor_fps_text);
+        fpsContainer = findViewById(R.id.fps_container);
+        latencyText = (TextView) findViewById(R.id.latency_text);
+        View.OnClickListener latencyOverlayToggler = new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                setLatencyOverlayShown(!isLatencyOverlayShown);
+            }
+        };
+        cameraFPS.setOnClickListener(latencyOverlayToggler);
+        processorFPS.setOnClickListener(latencyOverlayToggler);
+        latencyText.setOnClickListener(latencyOverlayToggler);
 
         //set up CameraView
         cameraView = (CameraView) findViewById(R.id.camera_view);
         cameraView.setOnCameraViewEventListener(this);
+        // if the camera is already running, the preview just moves to the new view
+        cameraView.setCameraHelper(pipeline.cameraHelper);
+        // and the governor it already has keeps what it learned; one is only needed if it was never created
+        if (pipeline.resolutionGovernor == null && cameraView.getSupportedPreviewHeights() != null) {
+            createResolutionGovernor();
+        }
 
         //set up CameraButton
         cameraButton = (Button) findViewById(R.id.camera_button);
@@ -106,13 +168,13 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 isCameraFront = !isChecked;
-                if (isCameraRequestedByUser) {
+                // this is also called when the toggle's state is restored, which must not restart the same camera
+                if (isCameraRequestedByUser && (!pipeline.isCameraStarted || pipeline.cameraType != getCameraType())) {
                     startCamera();
                 }
             }
         });
 
-        asyncDetector = new AsyncFrameDetector(this);
         asyncDetector.setOnDetectorEventListener(this);
 
         //Set up SDK Button
@@ -132,44 +194,132 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
                 resetFPS();
             }
         });
-        sdkButton.setText("Start SDK");
+        sdkButton.setText(isSDKRunning ? "Stop SDK" : "Start SDK");
+        cameraButton.setText(isCameraRequestedByUser ? "Stop Camera" : "Start Camera");
 
         mediaPlayer = MediaPlayer.create(this, R.raw.daisy);
 
+        alertOutbox = new AlertOutbox(getFilesDir(), new NexmoSmsSender(getString(R.string.alert_sms_url),
+                "XXX_REPLACE_ME_XXX", "XXX_REPLACE_ME_XXX", "XXX_REPLACE_ME_XXX", "XXX_REPLACE_ME_XXX"));
+        alertOutbox.start();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_CAMERA_FRONT, isCameraFront);
+        outState.putBoolean(STATE_CAMERA_REQUESTED, isCameraRequestedByUser);
+        outState.putBoolean(STATE_SDK_RUNNING, isSDKRunning);
+    }
+
+    @Override
+    protected void onDestroy() {
+        alertOutbox.stop();
+        // the pipeline may live on, so it must not hold on to this Activity
+        cameraView.setCameraHelper(null);
+        asyncDetector.setOnDetectorEventListener(null);
+        super.onDestroy();
     }
 
     void resetFPS() {
         lastCameraFPSResetTime = lastSDKFPSResetTime = SystemClock.elapsedRealtime();
         numberCameraFramesReceived = numberSDKFramesReceived = 0;
+        latencyTracer.reset();
+    }
+
+    void setLatencyOverlayShown(boolean shown) {
+        isLatencyOverlayShown = shown;
+        fpsContainer.setVisibility(shown ? View.GONE : View.VISIBLE);
+        latencyText.setVisibility(shown ? View.VISIBLE : View.GONE);
+        if (shown) {
+            updateLatencyOverlay();
+        }
+    }
+
+    void updateLatencyOverlay() {
+        lastLatencyOverlayUpdateTime = SystemClock.elapsedRealtime();
+        StringBuilder text = new StringBuilder(String.format("%-18s %7s %7s %7s", "STAGE (ms)", "p50", "p95", "p99"));
+        for (LatencyTracer.Stage stage : LatencyTracer.Stage.values()) {
+            if (stage.ordinal() > 0) {
+                appendLatencyRow(text, stage.name(), latencyTracer.getStageHistogram(stage));
+            }
+        }
+        appendLatencyRow(text, "END_TO_END", latencyTracer.getEndToEndHistogram());
+        appendLatencyRow(text, "FIRST_RESULT", asyncDetector.getFirstResultWaits());
+        long firstResultWait = asyncDetector.getLastFirstResultWaitNanos();
+        if (firstResultWait >= 0) {
+            text.append(String.format("\nLAST RESUME %.0f ms TO FIRST RESULTS (%s DETECTOR)", firstResultWait / 1e6,
+                    asyncDetector.wasLastStartWarm() ? "WARM" : "COLD"));
+        }
+        text.append(String.format("\nFRAMES ADMITTED %d REJECTED %d (TARGET %.0f FPS)", frameAdmission.getAdmittedCount(),
+                frameAdmission.getRejectedCount(), frameAdmission.getTargetFps()));
+        PreviewResolutionGovernor governor = pipeline.resolutionGovernor;
+        if (governor != null) {
+            text.append(String.format("\nPREVIEW HEIGHT %d (STEPPED UP %d, DOWN %d)", governor.getHeight(),
+                    governor.getStepUpCount(), governor.getStepDownCount()));
+        }
+        if (asyncDetector.isStaticFrameSkippingEnabled()) {
+            text.append(String.format("\nSTATIC FRAMES SKIPPED %.0f%% (GATE %.3f ms)",
+                    100 * asyncDetector.getStaticFrameSkipRatio(), asyncDetector.getStaticFrameGateCostNanos() / 1e6));
+        }
+        SessionRecorder recorder = pipeline.sessionRecorder;
+        if (recorder != null) {
+            text.append(String.format("\nSESSION RECORDS %d DROPPED %d%s", recorder.getRecordCount(),
+                    recorder.getDroppedCount(), recorder.isRecording() ? "" : " (NOT RECORDING)"));
+        }
+        if (asyncDetector.isFaceCroppingEnabled()) {
+            text.append(String.format("\nFRAMES CROPPED %d (%.0f%% OF PIXELS PROCESSED)", asyncDetector.getCroppedFrameCount(),
+                    100 * asyncDetector.getProcessedPixelFraction()));
+        }
+        latencyText.setText(text);
+    }
+
+    private void appendLatencyRow(StringBuilder text, String name, LatencyHistogram histogram) {
+        text.append(String.format("\n%-18s %7.2f %7.2f %7.2f", name,
+                histogram.getPercentileMicros(0.50) / 1000f,
+                histogram.getPercentileMicros(0.95) / 1000f,
+                histogram.getPercentileMicros(0.99) / 1000f));
+    }
+
+    CameraHelper.CameraType getCameraType() {
+        return isCameraFront ? CameraHelper.CameraType.CAMERA_FRONT : CameraHelper.CameraType.CAMERA_BACK;
     }
 
     void startCamera() {
-        if (isCameraStarted) {
+        if (pipeline.isCameraStarted) {
             cameraView.stopCamera();
         }
-        cameraView.startCamera(isCameraFront ? CameraHelper.CameraType.CAMERA_FRONT : CameraHelper.CameraType.CAMERA_BACK);
-        isCameraStarted = true;
+        pipeline.cameraType = getCameraType();
+        cameraView.startCamera(pipeline.cameraType);
+        pipeline.isCameraStarted = true;
         asyncDetector.reset();
+        frameAdmission.reset();
     }
 
     void stopCamera() {
-        if (!isCameraStarted)
+        if (!pipeline.isCameraStarted)
             return;
 
         cameraView.stopCamera();
-        isCameraStarted = false;
+        pipeline.isCameraStarted = false;
     }
 
 
+    /*
+        After a configuration change, the camera and the detector are still running, and are left alone.
+     */
     @Override
     public void onResume() {
         super.onResume();
-        if (isSDKRunning) {
+        if (isSDKRunning && !asyncDetector.isRunning()) {
             asyncDetector.start();
         }
-        if (isCameraRequestedByUser) {
+        if (isCameraRequestedByUser && !pipeline.isCameraStarted) {
             startCamera();
         }
+        if (pipeline.sessionRecorder == null && getResources().getBoolean(R.bool.record_sessions)) {
+            pipeline.startSessionRecorder(new File(getFilesDir(), SESSIONS_DIRECTORY_NAME));
+        }
 
         resetFPS();
     }
@@ -177,6 +327,11 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
     @Override
     public void onPause() {
         super.onPause();
+        if (isChangingConfigurations()) {
+            // the pipeline is retained, and carries on into the re-created Activity, still recording the same session
+            return;
+        }
+        pipeline.stopSessionRecorder();
         if (asyncDetector.isRunning()) {
             asyncDetector.stop();
         }
@@ -185,18 +340,10 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
 
     private void setMetricTextViewText(Face face) {
         // set the text for all the numeric metrics (scored or measured)
-        for (Metrics metric : Metrics.getEmotions()) {
-            metricsPanel.setMetricFloatValue(metric,getScore(metric,face));
-        }
-        for (Metrics metric : Metrics.getExpressions()) {
-            metricsPanel.setMetricFloatValue(metric,getScore(metric,face));
-        }
-        for (Metrics metric : Metrics.getMeasurements()) {
-            metricsPanel.setMetricFloatValue(metric,getScore(metric,face));
-        }
-        for (Metrics metric : Metrics.getQualities()) {
-            metricsPanel.setMetricFloatValue(metric,getScore(metric,face));
-        }
+        setMetricFloatValues(Metrics.Category.EMOTIONS);
+        setMetricFloatValues(Metrics.Category.EXPRESSIONS);
+        setMetricFloatValues(Metrics.Category.MEASUREMENTS);
+        setMetricFloatValues(Metrics.Category.QUALITIES);
 
         // set the text for the appearance metrics
         String textValue="";
@@ -275,149 +422,93 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
         metricsPanel.setMetricTextValue(Metrics.ETHNICITY, textValue);
     }
 
-    private float getScore(Metrics metric, Face face) {
-
-        float score;
+    /*
+        A single sad-looking frame is not enough to raise the alert; sadness must be above the threshold on average over
+        the whole window, with enough frames in it for the average to mean something.
+     */
+    private boolean isSadnessSustained(int faceId) {
+        MetricWindow sadness = faceHistory.get(faceId, Metrics.SADNESS);
+        return sadness != null && sadness.getCount() >= SADNESS_ALERT_MIN_FRAMES
+                && sadness.getMean() > SADNESS_ALERT_THRESHOLD;
+    }
 
-        switch (metric) {
-            case ANGER:
-                score = face.emotions.getAnger();
-                break;
-            case CONTEMPT:
-                score = face.emotions.getContempt();
-                break;
-            case DISGUST:
-                score = face.emotions.getDisgust();
-                break;
-            case FEAR:
-                score = face.emotions.getFear();
-                break;
-            case JOY:
-                score = face.emotions.getJoy();
-                break;
-            case SADNESS:
-                score = face.emotions.getSadness();
-                break;
-            case SURPRISE:
-                score = face.emotions.getSurprise();
-                break;
-            case ATTENTION:
-                score = face.expressions.getAttention();
-                break;
-            case BROW_FURROW:
-                score = face.expressions.getBrowFurrow();
-                break;
-            case BROW_RAISE:
-                score = face.expressions.getBrowRaise();
-                break;
-            case CHEEK_RAISE:
-                score = face.expressions.getCheekRaise();
-                break;
-            case CHIN_RAISE:
-                score = face.expressions.getChinRaise();
-                break;
-            case DIMPLER:
-                score = face.expressions.getDimpler();
-                break;
-            case ENGAGEMENT:
-                score = face.emotions.getEngagement();
-                break;
-            case EYE_CLOSURE:
-                score = face.expressions.getEyeClosure();
-                break;
-            case EYE_WIDEN:
-                score = face.expressions.getEyeWiden();
-                break;
-            case INNER_BROW_RAISE:
-                score = face.expressions.getInnerBrowRaise();
-                break;
-            case JAW_DROP:
-                score = face.expressions.getJawDrop();
-                break;
-            case LID_TIGHTEN:
-                score = face.expressions.getLidTighten();
-                break;
-            case LIP_DEPRESSOR:
-                score = face.expressions.getLipCornerDepressor();
-                break;
-            case LIP_PRESS:
-                score = face.expressions.getLipPress();
-                break;
-            case LIP_PUCKER:
-                score = face.expressions.getLipPucker();
-                break;
-            case LIP_STRETCH:
-                score = face.expressions.getLipStretch();
-                break;
-            case LIP_SUCK:
-                score = face.expressions.getLipSuck();
-                break;
-            case MOUTH_OPEN:
-                score = face.expressions.getMouthOpen();
-                break;
-            case NOSE_WRINKLE:
-                score = face.expressions.getNoseWrinkle();
-                break;
-            case SMILE:
-                score = face.expressions.getSmile();
-                break;
-            case SMIRK:
-                score = face.expressions.getSmirk();
-                break;
-            case UPPER_LIP_RAISER:
-                score = face.expressions.getUpperLipRaise();
-                break;
-            case VALENCE:
-                score = face.emotions.getValence();
-                break;
-            case YAW:
-                score = face.measurements.orientation.getYaw();
-                break;
-            case ROLL:
-                score = face.measurements.orientation.getRoll();
-                break;
-            case PITCH:
-                score = face.measurements.orientation.getPitch();
-                break;
-            case INTER_OCULAR_DISTANCE:
-                score = face.measurements.getInterocularDistance();
-                break;
-            case BRIGHTNESS:
-                score = face.qualities.getBrightness();
-                break;
-            default:
-                score = Float.NaN;
-                break;
+    private void setMetricFloatValues(Metrics.Category category) {
+        for (int i = category.start; i < category.end; i++) {
+            metricsPanel.setMetricFloatValue(Metrics.get(i), faceMetrics.get(i));
         }
-        return score;
     }
 
     @Override
-    public void onCameraFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation) {
+    public void onCameraFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation, long callbackTimeNanos) {
         numberCameraFramesReceived += 1;
-        cameraFPS.setText(String.format("CAM: %.3f", 1000f * (float) numberCameraFramesReceived / (SystemClock.elapsedRealtime() - lastCameraFPSResetTime)));
+        if (SystemClock.elapsedRealtime() - lastCameraFPSTextUpdateTime > FPS_TEXT_UPDATE_PERIOD) {
+            lastCameraFPSTextUpdateTime = SystemClock.elapsedRealtime();
+            cameraFPS.setText(String.format("CAM: %.3f", 1000f * (float) numberCameraFramesReceived / (SystemClock.elapsedRealtime() - lastCameraFPSResetTime)));
+        }
 
         float timestamp = 0;
         long currentTime = SystemClock.elapsedRealtime();
-        if (firstFrameTime == -1) {
-            firstFrameTime = currentTime;
+        if (pipeline.firstFrameTime == -1) {
+            pipeline.firstFrameTime = currentTime;
         } else {
-            timestamp = (currentTime - firstFrameTime) / 1000f;
+            timestamp = (currentTime - pipeline.firstFrameTime) / 1000f;
         }
 
-        if (timestamp > (lastTimestamp + epsilon)) {
-            lastTimestamp = timestamp;
-            asyncDetector.process(createFrameFromData(frame,width,height,rotation),timestamp);
+        if (frameAdmission.admit(callbackTimeNanos)) {
+            asyncDetector.process(createFrameFromData(frame,width,height,rotation),timestamp,callbackTimeNanos);
         }
     }
 
     @Override
     public void onCameraStarted(boolean success, Throwable error) {
         //TODO: change status here
+        pipeline.resolutionGovernor = null;
+        if (success) {
+            createResolutionGovernor();
+        }
     }
 
+    void createResolutionGovernor() {
+        if (getResources().getBoolean(R.bool.adapt_preview_resolution)) {
+            float fps = frameAdmission.getTargetFps() > 0 ? frameAdmission.getTargetFps() : CAMERA_FRAME_RATE;
+            long latencyBudgetNanos = (long) (asyncDetector.getWorkerCount() * 1e9 / fps);
+            pipeline.resolutionGovernor = new PreviewResolutionGovernor(cameraView.getSupportedPreviewHeights(),
+                    cameraView.getPreviewHeight(), latencyBudgetNanos);
+        }
+    }
+
+    /*
+        Reports a frame's results to the resolution governor, and restarts the preview if it asks for another height.
+     */
+    private void governPreviewResolution(List<Face> faces) {
+        PreviewResolutionGovernor governor = pipeline.resolutionGovernor;
+        if (governor == null) {
+            return;
+        }
+        long detectionNanos = pipeline.getRecentDetectionNanos();
+
+        float interocularDistance = Float.NaN;
+        for (Face face : faces) {
+            float distance = face.measurements.getInterocularDistance();
+            if (Float.isNaN(interocularDistance) || distance < interocularDistance) {
+                interocularDistance = distance;
+            }
+        }
+
+        long now = System.nanoTime();
+        int height = governor.onFrameProcessed(now, detectionNanos, interocularDistance);
+        if (height != 0) {
+            cameraView.setPreviewHeight(height);
+            governor.onPreviewRestarted(cameraView.getPreviewHeight(), now);
+        }
+    }
+
+    /*
+        The detector's face tracking is only thrown away when the frames it is given really change shape, and not when
+        the preview is merely laid out again, or moved to another view.
+     */
     @Override
-    public void onSurfaceViewSizeChanged() {
+    public void onFrameGeometryChanged() {
         asyncDetector.reset();
     }
 
@@ -429,29 +520,46 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
         if (timeStamp < lastReceivedTimestamp)
             throw new RuntimeException("Got a timestamp out of order!");
         lastReceivedTimestamp = timeStamp;
-        Log.e("MainActivity", String.valueOf(timeStamp));
 
         if (faces == null)
             return; //No Face Detected
+        governPreviewResolution(faces);
         if (faces.size() ==0) {
-            for (Metrics metric : Metrics.values()) {
-                metricsPanel.setMetricNA(metric);
+            faceMetrics.clear();
+            for (int i = 0; i < FaceMetricsSnapshot.METRIC_COUNT; i++) {
+                metricsPanel.setMetricNA(Metrics.get(i));
             }
         } else {
-            Face face = faces.get(0);
-            setMetricTextViewText(face);
-            if (face.emotions.getSadness()>0.85d) {
-                // do something morrison!!!
-                if(isPlayingMusic == false) {
-                    isPlayingMusic = true;
-                    mediaPlayer.start();
-                    new HttpRequestTask().execute();
+            if (pipeline.sessionRecorder != null) {
+                for (int i = 0; i < faces.size(); i++) {
+                    pipeline.sessionRecorder.record(timeStamp, faces.get(i), asyncDetector.getFacePoints(i));
+                }
+            }
+            // every face has its own history, by face id; backwards, so that the panel is left showing the first face
+            for (int i = faces.size() - 1; i >= 0; i--) {
+                faceMetrics.fill(faces.get(i));
+                faceHistory.add(timeStamp, faceMetrics);
+                if (isSadnessSustained(faceMetrics.getFaceId())) {
+                    // do something morrison!!!
+                    if(isPlayingMusic == false) {
+                        isPlayingMusic = true;
+                        mediaPlayer.start();
+                        alertOutbox.post("sadness", "The patient is SAD!");
+                    }
                 }
             }
+            setMetricTextViewText(faces.get(0));
         }
 
         numberSDKFramesReceived += 1;
-        processorFPS.setText(String.format("SDK: %.3f", 1000f * (float) numberSDKFramesReceived / (SystemClock.elapsedRealtime() - lastSDKFPSResetTime)));
+        if (SystemClock.elapsedRealtime() - lastSDKFPSTextUpdateTime > FPS_TEXT_UPDATE_PERIOD) {
+            lastSDKFPSTextUpdateTime = SystemClock.elapsedRealtime();
+            processorFPS.setText(String.format("SDK: %.3f", 1000f * (float) numberSDKFramesReceived / (SystemClock.elapsedRealtime() - lastSDKFPSResetTime)));
+        }
+
+        if (isLatencyOverlayShown && SystemClock.elapsedRealtime() - lastLatencyOverlayUpdateTime > LATENCY_OVERLAY_UPDATE_PERIOD) {
+            updateLatencyOverlay();
+        }
 
     }
 
@@ -460,33 +568,16 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
 
     }
 
-    static Frame createFrameFromData(byte[] frameData, int width, int height, Frame.ROTATE rotation) {
-        Frame.ByteArrayFrame frame = new Frame.ByteArrayFrame(frameData, width, height, Frame.COLOR_FORMAT.YUV_NV21);
+    /*
+        Preview buffers come with a reusable Frame from the pool; only frames from outside it (the one-shot first
+        preview frame) need a new one.
+     */
+    Frame createFrameFromData(byte[] frameData, int width, int height, Frame.ROTATE rotation) {
+        Frame.ByteArrayFrame frame = cameraView.getPreviewBufferPool().getFrame(frameData, width, height);
+        if (frame == null) {
+            frame = new Frame.ByteArrayFrame(frameData, width, height, Frame.COLOR_FORMAT.YUV_NV21);
+        }
         frame.setTargetRotation(rotation);
         return frame;
     }
-
-    private class HttpRequestTask extends AsyncTask<Void, Void, Object> {
-        @Override
-        protected Object doInBackground(Void... params) {
-            try {
-                final String url = "https://rest.nexmo.com/sms/json";
-                RestTemplate restTemplate = new RestTemplate();
-                restTemplate.getMessageConverters().add(new MappingJackson2HttpMessageConverter());
-                Map<String, String> request = new HashMap<>();
-                request.put("api_key", "XXX_REPLACE_ME_XXX");
-                request.put("api_secret", "XXX_REPLACE_ME_XXX");
-                request.put("to", "XXX_REPLACE_ME_XXX");
-                request.put("from", "XXX_REPLACE_ME_XXX");
-                request.put("text", "The patient is SAD!");
-                Map result = restTemplate.postForObject(url, request, Map.class);
-                Log.i("CATHY", result.toString());
-                return null;
-            } catch (Exception e) {
-                Log.e("MainActivity", e.getMessage(), e);
-            }
-
-            return null;
-        }
-    }
 }
@@ -0,0 +1,198 @@
+package com.affectiva.framedetectordemo;
+
+/**
+ * Rolling statistics of a single metric over a sliding time window.
+ *
+ * Samples are kept in a fixed-capacity ring buffer, allocated up front, along with their timestamps. Each add() pushes
+ * a sample and evicts those which have fallen out of the window (or out of the ring, if it is full), updating the
+ * running sums and the min/max queues as it goes, so every statistic is available in constant time. The exponential
+ * moving average is not limited to the window; it decays with its own time constant.
+ *
+ * NaN samples (e.g. a metric the SDK did not report) are not added, but still move the window along. Not thread-safe.
+ */
+class MetricWindow {
+
+    private final float[] times;
+    private final float[] values;
+    private final int capacity;
+    private final float windowSeconds;
+    private final float emaTimeConstantSeconds;
+
+    // samples are numbered consecutively; sample n lives at index n % capacity
+    private long first = 0; // the oldest sample in the window
+    private long next = 0;  // the number to give the next sample
+
+    private double sum;
+    private double sumOfSquares;
+
+    // numbers of the samples which are candidates for the min (max), oldest first; their values increase (decrease)
+    private final long[] minQueue;
+    private final long[] maxQueue;
+    private int minQueueHead, minQueueSize;
+    private int maxQueueHead, maxQueueSize;
+
+    private float ema = Float.NaN;
+    private float emaTime;
+
+    /**
+     * @param capacity the most samples to keep; once full, the oldest sample is evicted even if still in the window
+     * @param windowSeconds how far back from the latest timestamp the window reaches
+     * @param emaTimeConstantSeconds the time over which the moving average decays to 1/e of a sample's weight
+     */
+    MetricWindow(int capacity, float windowSeconds, float emaTimeConstantSeconds) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        if (windowSeconds <= 0 || emaTimeConstantSeconds <= 0) {
+            throw new IllegalArgumentException("windowSeconds and emaTimeConstantSeconds must be positive");
+        }
+        this.capacity = capacity;
+        this.windowSeconds = windowSeconds;
+        this.emaTimeConstantSeconds = emaTimeConstantSeconds;
+        times = new float[capacity];
+        values = new float[capacity];
+        minQueue = new long[capacity];
+        maxQueue = new long[capacity];
+    }
+
+    /**
+     * Adds a sample. Timestamps are expected to increase; a timestamp earlier than the latest sample's is taken as the
+     * start of a new session, and the window is reset first.
+     */
+    void add(float timestamp, float value) {
+        if (next > first && timestamp < times[index(next - 1)]) {
+            reset();
+        }
+        if (Float.isNaN(value)) {
+            evictBefore(timestamp - windowSeconds);
+            return;
+        }
+
+        if (next - first == capacity) {
+            evictOldest();
+        }
+        int index = index(next);
+        times[index] = timestamp;
+        values[index] = value;
+        sum += value;
+        sumOfSquares += (double) value * value;
+
+        while (minQueueSize > 0 && values[index(minQueue[(minQueueHead + minQueueSize - 1) % capacity])] >= value) {
+            minQueueSize -= 1;
+        }
+        minQueue[(minQueueHead + minQueueSize) % capacity] = next;
+        minQueueSize += 1;
+        while (maxQueueSize > 0 && values[index(maxQueue[(maxQueueHead + maxQueueSize - 1) % capacity])] <= value) {
+            maxQueueSize -= 1;
+        }
+        maxQueue[(maxQueueHead + maxQueueSize) % capacity] = next;
+        maxQueueSize += 1;
+        next += 1;
+
+        evictBefore(timestamp - windowSeconds);
+
+        if (Float.isNaN(ema)) {
+            ema = value;
+        } else {
+            float alpha = 1f - (float) Math.exp(-(timestamp - emaTime) / emaTimeConstantSeconds);
+            ema += alpha * (value - ema);
+        }
+        emaTime = timestamp;
+    }
+
+    void reset() {
+        first = next = 0;
+        sum = sumOfSquares = 0;
+        minQueueHead = minQueueSize = 0;
+        maxQueueHead = maxQueueSize = 0;
+        ema = Float.NaN;
+    }
+
+    /**
+     * Returns the number of samples in the window.
+     */
+    int getCount() {
+        return (int) (next - first);
+    }
+
+    /**
+     * Returns the latest sample, or NaN if the window is empty.
+     */
+    float getLatest() {
+        return next == first ? Float.NaN : values[index(next - 1)];
+    }
+
+    float getMean() {
+        return next == first ? Float.NaN : (float) (sum / (next - first));
+    }
+
+    /**
+     * Returns the (population) variance of the samples in the window, or NaN if it is empty.
+     */
+    float getVariance() {
+        if (next == first) {
+            return Float.NaN;
+        }
+        double mean = sum / (next - first);
+        double variance = sumOfSquares / (next - first) - mean * mean;
+        return variance < 0 ? 0 : (float) variance; // rounding can take a tiny variance below zero
+    }
+
+    float getStandardDeviation() {
+        return (float) Math.sqrt(getVariance());
+    }
+
+    float getMin() {
+        return minQueueSize == 0 ? Float.NaN : values[index(minQueue[minQueueHead])];
+    }
+
+    float getMax() {
+        return maxQueueSize == 0 ? Float.NaN : values[index(maxQueue[maxQueueHead])];
+    }
+
+    /**
+     * Returns the exponential moving average of every sample since the last reset, or NaN if there were none.
+     */
+    float getEma() {
+        return ema;
+    }
+
+    private void evictBefore(float time) {
+        while (next > first && times[index(first)] < time) {
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() {
+        float value = values[index(first)];
+        sum -= value;
+        sumOfSquares -= (double) value * value;
+        if (minQueueSize > 0 && minQueue[minQueueHead] == first) {
+            minQueueHead = (minQueueHead + 1) % capacity;
+            minQueueSize -= 1;
+        }
+        if (maxQueueSize > 0 && maxQueue[maxQueueHead] == first) {
+            maxQueueHead = (maxQueueHead + 1) % capacity;
+            maxQueueSize -= 1;
+        }
+        first += 1;
+
+        // adding and subtracting accumulates rounding error, so recompute the sums once per trip around the ring
+        if (index(first) == 0) {
+            recomputeSums();
+        }
+    }
+
+    private void recomputeSums() {
+        sum = sumOfSquares = 0;
+        for (long n = first; n < next; n++) {
+            float value = values[index(n)];
+            sum += value;
+            sumOfSquares += (double) value * value;
+        }
+    }
+
+    private int index(long sample) {
+        return (int) (sample % capacity);
+    }
+}
@@ -2,6 +2,9 @@ package com.affectiva.framedetectordemo;
 
 /**
  * An enum representing all metrics currently available in the Affectiva SDK
+ *
+ * ServiceFrameDetectorDemo has a copy of this enum, whose ordinals index its MetricsRingBuffer slots and the bits of
+ * its subscription mask; a metric added here should be added to that copy too.
  */
 public enum Metrics {
     //Emotions
@@ -54,80 +57,103 @@ public enum Metrics {
     BRIGHTNESS;
 
 
+    /**
+     * The categories of metrics. The metrics of each category are contiguous, occupying the ordinals [start, end).
+     */
+    enum Category {
+        EMOTIONS(ANGER, VALENCE),
+        EXPRESSIONS(ATTENTION, UPPER_LIP_RAISER),
+        MEASUREMENTS(YAW, INTER_OCULAR_DISTANCE),
+        APPEARANCES(AGE, GLASSES),
+        QUALITIES(BRIGHTNESS, BRIGHTNESS);
+
+        final int start;
+        final int end;
+
+        Category(Metrics first, Metrics last) {
+            start = first.ordinal();
+            end = last.ordinal() + 1;
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        /**
+         * Returns an array of the metrics in this category, for iteration when setting up views.
+         */
+        Metrics[] getMetrics() {
+            Metrics[] metrics = new Metrics[size()];
+            System.arraycopy(ALL_METRICS, start, metrics, 0, size());
+            return metrics;
+        }
+    }
+
+    private static final Metrics[] ALL_METRICS = values();
+
+    /**
+     * Returns the metric with the given ordinal, without copying values().
+     */
+    static Metrics get(int ordinal) {
+        return ALL_METRICS[ordinal];
+    }
+
     String getUpperCaseName() {
         return toString().replace("_", " ");
     }
 
     static int numberOfEmotions() {
-        return ATTENTION.ordinal();
+        return Category.EMOTIONS.size();
     }
 
     static int numberOfExpressions() {
-        return YAW.ordinal() - numberOfEmotions();
+        return Category.EXPRESSIONS.size();
     }
 
     static int numberOfMeasurements() {
-        return AGE.ordinal() - numberOfEmotions() - numberOfExpressions();
+        return Category.MEASUREMENTS.size();
     }
 
     static int numberOfAppearances() {
-        return BRIGHTNESS.ordinal() - numberOfEmotions() - numberOfExpressions() - numberOfMeasurements();
+        return Category.APPEARANCES.size();
     }
 
     static int numberOfQualities() {
-        return Metrics.values().length - numberOfEmotions() - numberOfExpressions() - numberOfMeasurements() - numberOfAppearances();
+        return Category.QUALITIES.size();
     }
 
     /**
      * Returns an array to allow for iteration through all Emotions
      */
     static Metrics[] getEmotions() {
-        Metrics[] emotions = new Metrics[numberOfEmotions()];
-        Metrics[] allMetrics = Metrics.values();
-        System.arraycopy(allMetrics, 0, emotions, 0, numberOfEmotions());
-        return emotions;
+        return Category.EMOTIONS.getMetrics();
     }
 
     /*
     * Returns an array to allow for iteration through all Expressions
     */
     static Metrics[] getExpressions() {
-        Metrics[] expressions = new Metrics[numberOfExpressions()];
-        Metrics[] allMetrics = Metrics.values();
-        System.arraycopy(allMetrics, numberOfEmotions(), expressions, 0, numberOfExpressions());
-        return expressions;
+        return Category.EXPRESSIONS.getMetrics();
     }
 
     /*
      * Returns an array to allow for iteration through all Measurements
      */
     static Metrics[] getMeasurements() {
-        Metrics[] measurements = new Metrics[numberOfMeasurements()];
-        Metrics[] allMetrics = Metrics.values();
-        System.arraycopy(allMetrics, numberOfEmotions() + numberOfExpressions(),
-                measurements, 0, numberOfMeasurements());
-        return measurements;
+        return Category.MEASUREMENTS.getMetrics();
     }
 
     /*
      * Returns an array to allow for iteration through all Appearances
      */
     static Metrics[] getAppearances() {
-        Metrics[] appearances = new Metrics[numberOfAppearances()];
-        Metrics[] allMetrics = Metrics.values();
-        System.arraycopy(allMetrics, numberOfEmotions() + numberOfExpressions() + numberOfMeasurements(),
-                appearances, 0, numberOfAppearances());
-        return appearances;
+        return Category.APPEARANCES.getMetrics();
     }
 
     /*
  * Returns an array to allow for iteration through all Qualities
  */
     static Metrics[] getQualities() {
-        Metrics[] qualities = new Metrics[numberOfQualities()];
-        Metrics[] allMetrics = Metrics.values();
-        System.arraycopy(allMetrics, numberOfEmotions() + numberOfExpressions() + numberOfMeasurements() + numberOfAppearances(),
-                qualities, 0, numberOfQualities());
-        return qualities;
+        return Category.QUALITIES.getMetrics();
     }
 }
\ No newline at end of file
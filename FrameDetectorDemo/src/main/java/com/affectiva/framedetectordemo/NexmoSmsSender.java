@@ -0,0 +1,113 @@
+package com.affectiva.framedetectordemo;
+
+import android.util.Log;
+
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Sends each batch of alerts from an AlertOutbox as a single text message through the Nexmo SMS API. The message
+ * joins the distinct texts of the batch's alerts, as many as fit in MAX_TEXT_LENGTH, followed by a count of any left
+ * out.
+ *
+ * One RestTemplate is built up front and reused for every request. The endpoint is a constructor parameter, so the
+ * sender can be pointed at a local stub server, as debug builds and AlertOutboxTest are; see the alert_sms_url
+ * resource. A batch only counts as sent once Nexmo has accepted every part of the message; anything else throws, so
+ * that the outbox retries it.
+ */
+class NexmoSmsSender implements AlertOutbox.Sender {
+
+    static final int MAX_TEXT_LENGTH = 160; // a single SMS in the GSM 7-bit alphabet
+    private static final String TEXT_SEPARATOR = "; ";
+
+    private static final String LOG_TAG = "NexmoSmsSender";
+    private static final int CONNECT_TIMEOUT = 10000; //ms
+    private static final int READ_TIMEOUT = 20000; //ms
+
+    private final String url;
+    private final Map<String, String> request = new HashMap<>();
+    private final RestTemplate restTemplate;
+
+    NexmoSmsSender(String url, String apiKey, String apiSecret, String to, String from) {
+        this.url = url;
+        request.put("api_key", apiKey);
+        request.put("api_secret", apiSecret);
+        request.put("to", to);
+        request.put("from", from);
+
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(CONNECT_TIMEOUT);
+        requestFactory.setReadTimeout(READ_TIMEOUT);
+        restTemplate = new RestTemplate(requestFactory);
+        restTemplate.getMessageConverters().add(new MappingJackson2HttpMessageConverter());
+    }
+
+    @Override
+    public void send(List<AlertOutbox.Alert> batch) throws Exception {
+        if (batch.isEmpty()) {
+            return;
+        }
+        request.put("text", joinTexts(batch));
+        Map<?, ?> result = restTemplate.postForObject(url, request, Map.class);
+        if (result == null) {
+            throw new IOException("No response from " + url);
+        }
+        checkDelivered(result);
+        Log.i(LOG_TAG, result.toString());
+    }
+
+    /**
+     * Throws unless the response reports every part of the message as accepted. Nexmo answers a rejected message
+     * (bad credentials, throttling, an unroutable number, ...) with HTTP 200 all the same, and a status other than "0"
+     * for the part it rejected.
+     */
+    static void checkDelivered(Map<?, ?> result) throws IOException {
+        Object messages = result.get("messages");
+        if (!(messages instanceof List) || ((List<?>) messages).isEmpty()) {
+            throw new IOException("Unexpected response: " + result);
+        }
+        for (Object message : (List<?>) messages) {
+            Map<?, ?> part = message instanceof Map ? (Map<?, ?>) message : null;
+            Object status = part == null ? null : part.get("status");
+            if (!"0".equals(status)) {
+                throw new IOException(String.format("Message rejected with status %s: %s", status,
+                        part == null ? message : part.get("error-text")));
+            }
+        }
+    }
+
+    /**
+     * Returns the distinct texts of the alerts, in the order they were posted, joined into a message of at most
+     * MAX_TEXT_LENGTH characters. Texts which don't fit are left out, and counted at the end.
+     */
+    static String joinTexts(List<AlertOutbox.Alert> batch) {
+        List<String> texts = new ArrayList<>();
+        for (AlertOutbox.Alert alert : batch) {
+            if (!texts.contains(alert.text)) {
+                texts.add(alert.text);
+            }
+        }
+        for (int count = texts.size(); count > 0; count--) {
+            StringBuilder text = new StringBuilder(texts.get(0));
+            for (int i = 1; i < count; i++) {
+                text.append(TEXT_SEPARATOR).append(texts.get(i));
+            }
+            if (count < texts.size()) {
+                text.append(String.format(Locale.US, " (+%d more)", texts.size() - count));
+            }
+            if (text.length() <= MAX_TEXT_LENGTH) {
+                return text.toString();
+            }
+        }
+        // even the first text is too long on its own
+        return texts.get(0).substring(0, MAX_TEXT_LENGTH);
+    }
+}
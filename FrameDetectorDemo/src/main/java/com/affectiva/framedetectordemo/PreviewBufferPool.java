@@ -0,0 +1,168 @@
+package com.affectiva.framedetectordemo;
+
+import android.hardware.Camera;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+/**
+ * A fixed set of camera preview callback buffers which are leased out to frame consumers.
+ *
+ * Camera.addCallbackBuffer() hands a buffer back to the camera, which will overwrite it with the next preview frame.
+ * If a consumer (such as AsyncFrameDetector) is still reading a buffer on another thread when it is handed back, the
+ * consumer sees a torn frame. To avoid copying every frame, each consumer which holds onto a buffer retains it, and
+ * releases it when finished. A buffer is only given back to the camera once every lease on it has been released.
+ *
+ * All methods are synchronized, since buffers are retained on the main thread (where preview callbacks are delivered)
+ * and released on whichever thread finished with them.
+ *
+ * Each buffer also has a ByteArrayFrame wrapping it, which is reused every time the buffer comes back from the camera,
+ * so that submitting a preview frame to the detector does not allocate one. This relies on the SDK not holding onto a
+ * Frame once it has finished processing it.
+ *
+ * ServiceFrameDetectorDemo's CameraHelper has a copy of this class, which attaches to its SafeCamera wrapper rather
+ * than to a Camera, and is otherwise the same.
+ */
+class PreviewBufferPool {
+
+    private int capacity;
+    private byte[][] buffers;
+    private int[] leaseCounts;
+    private Frame.ByteArrayFrame[] frames;
+    private int frameWidth;
+    private int frameHeight;
+    private Camera camera;
+
+    private int buffersInFlight = 0;
+    private long starvationCount = 0;
+
+    PreviewBufferPool(int capacity) {
+        setCapacity(capacity);
+    }
+
+    /**
+     * Sets the number of buffers in the pool. Takes effect the next time the pool is attached to a camera.
+     */
+    synchronized void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Hands every buffer which is not currently leased to the camera. Buffers are (re)allocated only when the
+     * requested size or the capacity differs from that of the existing buffers.
+     */
+    synchronized void attach(Camera camera, int bufferSize) {
+        if (buffers == null || buffers.length != capacity || buffers[0].length != bufferSize) {
+            // any buffers still leased from the previous allocation are simply forgotten; release() ignores them.
+            buffers = new byte[capacity][];
+            leaseCounts = new int[capacity];
+            frames = new Frame.ByteArrayFrame[capacity];
+            for (int i = 0; i < capacity; i++) {
+                buffers[i] = new byte[bufferSize];
+            }
+            buffersInFlight = 0;
+        }
+
+        this.camera = camera;
+        for (int i = 0; i < buffers.length; i++) {
+            if (leaseCounts[i] == 0) {
+                camera.addCallbackBuffer(buffers[i]);
+            }
+        }
+    }
+
+    /**
+     * Stops handing released buffers to the camera. Must be called before the camera is released.
+     */
+    synchronized void detach() {
+        camera = null;
+    }
+
+    /**
+     * Takes a lease on a buffer delivered by the camera.
+     * @return false if the buffer does not belong to this pool (e.g. the one-shot first preview frame)
+     */
+    synchronized boolean retain(byte[] buffer) {
+        int index = indexOf(buffer);
+        if (index < 0) {
+            return false;
+        }
+        if (leaseCounts[index]++ == 0) {
+            buffersInFlight += 1;
+            if (buffersInFlight == buffers.length) {
+                // the camera has no buffer left to fill, so it will drop preview frames until one is released
+                starvationCount += 1;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Releases a lease taken with retain(). Once a buffer has no leases left, it is returned to the camera.
+     */
+    synchronized void release(byte[] buffer) {
+        int index = indexOf(buffer);
+        if (index < 0 || leaseCounts[index] == 0) {
+            return;
+        }
+        if (--leaseCounts[index] == 0) {
+            buffersInFlight -= 1;
+            if (camera != null) {
+                camera.addCallbackBuffer(buffer);
+            }
+        }
+    }
+
+    /**
+     * Returns the NV21 frame wrapping a buffer, creating it on first use or when the preview size has changed.
+     * @return null if the buffer does not belong to this pool
+     */
+    synchronized Frame.ByteArrayFrame getFrame(byte[] buffer, int width, int height) {
+        int index = indexOf(buffer);
+        if (index < 0) {
+            return null;
+        }
+        if (width != frameWidth || height != frameHeight) {
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = null;
+            }
+            frameWidth = width;
+            frameHeight = height;
+        }
+        if (frames[index] == null) {
+            frames[index] = new Frame.ByteArrayFrame(buffer, width, height, Frame.COLOR_FORMAT.YUV_NV21);
+        }
+        return frames[index];
+    }
+
+    synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of buffers currently leased out, i.e. not available to the camera.
+     */
+    synchronized int getBuffersInFlight() {
+        return buffersInFlight;
+    }
+
+    /**
+     * Returns the number of times every buffer was leased out at once, leaving the camera without a buffer to fill.
+     */
+    synchronized long getStarvationCount() {
+        return starvationCount;
+    }
+
+    private int indexOf(byte[] buffer) {
+        if (buffers != null) {
+            for (int i = 0; i < buffers.length; i++) {
+                if (buffers[i] == buffer) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+}
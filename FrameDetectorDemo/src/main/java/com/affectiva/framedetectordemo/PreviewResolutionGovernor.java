@@ -0,0 +1,206 @@
+package com.affectiva.framedetectordemo;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the camera preview height from a ladder of supported heights, so that each device settles on the cheapest
+ * resolution at which the detector both keeps up with the frames and still finds faces reliably.
+ *
+ * Every processed frame is reported with the time the detector took on it and the interocular distance of the smallest
+ * face found. Once a window of WINDOW_NANOS (and at least MIN_WINDOW_FRAMES frames) has been collected, the governor
+ * decides, from the window's means:
+ * - to step down if the detector took longer than the latency budget, which is the time it has per frame. The level
+ *   it was too slow at then becomes out of bounds, so that small faces can't drive it straight back up;
+ * - to step down if faces were found in most frames, and were so large (over MAX_INTEROCULAR_DISTANCE) that they would
+ *   still be comfortably over MIN_INTEROCULAR_DISTANCE a step down;
+ * - to step up if faces were found in most frames but were smaller than MIN_INTEROCULAR_DISTANCE, as long as the
+ *   detector's time, scaled by the number of pixels, would still be well within budget a step up;
+ * - to go back to the starting level if below it and no face has been found for NO_FACE_RESET_NANOS, in case faces
+ *   are now too small to be found at all at the lower level.
+ * The caller then restarts the preview at the chosen height, and reports it with onPreviewRestarted(). Frames from the
+ * first SETTLE_NANOS after a restart are ignored, while the detector finds the faces again. Together with the gap
+ * between the two face size thresholds, and the predictions checked before each step, this keeps the governor from
+ * oscillating between levels.
+ *
+ * Not thread-safe: must always be called on the same thread.
+ *
+ * ServiceFrameDetectorDemo's camera thread runs a copy of this class, differing only in its package, which is fed the
+ * detection thread's timings through FRAME_PROCESSED messages rather than from the main thread.
+ */
+class PreviewResolutionGovernor {
+
+    static final long WINDOW_NANOS = 2000000000L; // 2 s
+    static final long SETTLE_NANOS = 1000000000L; // 1 s
+    static final long NO_FACE_RESET_NANOS = 10000000000L; // 10 s
+    static final int MIN_WINDOW_FRAMES = 10;
+    static final float MIN_INTEROCULAR_DISTANCE = 40; // pixels
+    static final float MAX_INTEROCULAR_DISTANCE = 100; // pixels
+    // a step down for large faces must leave them at least this much over MIN_INTEROCULAR_DISTANCE
+    private static final float STEP_DOWN_FACE_MARGIN = 1.25f;
+    // a step up for small faces must leave the detector's time within this fraction of the budget
+    private static final float STEP_UP_LATENCY_HEADROOM = 0.7f;
+    private static final float MIN_FACE_FRAME_SHARE = 0.5f;
+
+    private final int[] heights;
+    private final int startLevel;
+    private final long latencyBudgetNanos;
+    private int level;
+    private int ceiling; // the highest level the detector is not known to be too slow at
+
+    private boolean isSettling = false;
+    private long settledNanos; // frames before this are ignored while settling
+    private long windowStartNanos;
+    private long lastFaceNanos;
+    private int windowFrames;
+    private long windowDetectionNanos;
+    private int windowFaceFrames;
+    private double windowInterocularDistance;
+
+    private int stepUpCount = 0;
+    private int stepDownCount = 0;
+
+    /**
+     * @param heights the preview heights which may be chosen, in any order
+     * @param startHeight the height the preview starts at; the nearest of heights is taken
+     * @param latencyBudgetNanos the longest the detector may take over a frame, on average, and still keep up
+     */
+    PreviewResolutionGovernor(int[] heights, int startHeight, long latencyBudgetNanos) {
+        if (heights == null) {
+            throw new NullPointerException("heights must not be null");
+        }
+        if (heights.length == 0) {
+            throw new IllegalArgumentException("heights must not be empty");
+        }
+        if (latencyBudgetNanos <= 0) {
+            throw new IllegalArgumentException("latencyBudgetNanos must be positive");
+        }
+        this.heights = heights.clone();
+        Arrays.sort(this.heights);
+        this.latencyBudgetNanos = latencyBudgetNanos;
+        startLevel = getNearestLevel(startHeight);
+        level = startLevel;
+        ceiling = this.heights.length - 1;
+        startWindow(Long.MIN_VALUE);
+    }
+
+    /**
+     * Reports a frame the detector has processed at the current height.
+     * @param nowNanos the time the results came in, from System.nanoTime()
+     * @param detectionNanos the time the detector took over the frame
+     * @param interocularDistance that of the smallest face found, or NaN if none was
+     * @return the height to restart the preview at, or 0 to keep the current one
+     */
+    int onFrameProcessed(long nowNanos, long detectionNanos, float interocularDistance) {
+        if (isSettling) {
+            if (nowNanos - settledNanos < 0) {
+                return 0;
+            }
+            isSettling = false;
+        }
+        if (windowStartNanos == Long.MIN_VALUE) {
+            startWindow(nowNanos);
+            lastFaceNanos = nowNanos;
+        }
+        windowFrames += 1;
+        windowDetectionNanos += detectionNanos;
+        if (!Float.isNaN(interocularDistance)) {
+            windowFaceFrames += 1;
+            windowInterocularDistance += interocularDistance;
+            lastFaceNanos = nowNanos;
+        }
+        if (nowNanos - windowStartNanos < WINDOW_NANOS || windowFrames < MIN_WINDOW_FRAMES) {
+            return 0;
+        }
+
+        int next = decide(nowNanos);
+        startWindow(nowNanos);
+        if (next == level) {
+            return 0;
+        }
+        if (next > level) {
+            stepUpCount += 1;
+        } else {
+            stepDownCount += 1;
+        }
+        // ignore the frames still to come at the old height
+        onPreviewRestarted(heights[next], nowNanos);
+        return heights[next];
+    }
+
+    private int decide(long nowNanos) {
+        float latency = (float) windowDetectionNanos / windowFrames;
+        if (latency > latencyBudgetNanos) {
+            // the detector can't keep up here, so don't come back
+            ceiling = Math.max(0, level - 1);
+            return ceiling;
+        }
+        if (windowFaceFrames < MIN_FACE_FRAME_SHARE * windowFrames) {
+            if (level < startLevel && nowNanos - lastFaceNanos >= NO_FACE_RESET_NANOS) {
+                return Math.min(startLevel, ceiling);
+            }
+            return level;
+        }
+
+        float interocularDistance = (float) (windowInterocularDistance / windowFaceFrames);
+        if (interocularDistance < MIN_INTEROCULAR_DISTANCE && level < ceiling) {
+            float scale = (float) heights[level + 1] / heights[level];
+            if (latency * scale * scale <= STEP_UP_LATENCY_HEADROOM * latencyBudgetNanos) {
+                return level + 1;
+            }
+        } else if (interocularDistance > MAX_INTEROCULAR_DISTANCE && level > 0) {
+            float scale = (float) heights[level - 1] / heights[level];
+            if (interocularDistance * scale >= STEP_DOWN_FACE_MARGIN * MIN_INTEROCULAR_DISTANCE) {
+                return level - 1;
+            }
+        }
+        return level;
+    }
+
+    /**
+     * Reports that the preview has been restarted at the given height, whether or not at the governor's request.
+     */
+    void onPreviewRestarted(int height, long nowNanos) {
+        level = getNearestLevel(height);
+        isSettling = true;
+        settledNanos = nowNanos + SETTLE_NANOS;
+        startWindow(Long.MIN_VALUE);
+    }
+
+    /**
+     * Forgets which levels the detector was too slow at, e.g. when the detector's workload has changed.
+     */
+    void reset() {
+        ceiling = heights.length - 1;
+        startWindow(Long.MIN_VALUE);
+    }
+
+    int getHeight() {
+        return heights[level];
+    }
+
+    int getStepUpCount() {
+        return stepUpCount;
+    }
+
+    int getStepDownCount() {
+        return stepDownCount;
+    }
+
+    private void startWindow(long nowNanos) {
+        windowStartNanos = nowNanos;
+        windowFrames = 0;
+        windowDetectionNanos = 0;
+        windowFaceFrames = 0;
+        windowInterocularDistance = 0;
+    }
+
+    private int getNearestLevel(int height) {
+        int nearest = 0;
+        for (int i = 1; i < heights.length; i++) {
+            if (Math.abs(heights[i] - height) < Math.abs(heights[nearest] - height)) {
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,65 @@
+package com.affectiva.framedetectordemo;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded free-list of reusable objects, so that objects handed from thread to thread once per frame do not need
+ * to be allocated once per frame.
+ *
+ * obtain() returns a recycled object if one is available, and creates a new one otherwise. recycle() keeps up to
+ * capacity objects for reuse; any beyond that are left to the garbage collector. getCreatedCount() tells how many
+ * objects the pool has had to create, so that a steady state which doesn't allocate can be checked. Safe to use from
+ * any thread.
+ */
+abstract class RecyclingPool<T> {
+
+    private final Object[] free;
+    private int freeCount = 0;
+    private final AtomicLong createdCount = new AtomicLong();
+
+    RecyclingPool(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        free = new Object[capacity];
+    }
+
+    /**
+     * Creates a new object when none is available for reuse.
+     */
+    protected abstract T create();
+
+    @SuppressWarnings("unchecked")
+    T obtain() {
+        synchronized (free) {
+            if (freeCount > 0) {
+                freeCount -= 1;
+                T item = (T) free[freeCount];
+                free[freeCount] = null;
+                return item;
+            }
+        }
+        createdCount.incrementAndGet();
+        return create();
+    }
+
+    /**
+     * Returns the number of objects obtain() has had to create, rather than reuse.
+     */
+    long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * Offers an object for reuse. The caller must have cleared any references it no longer needs, and must not use
+     * the object afterwards.
+     */
+    void recycle(T item) {
+        synchronized (free) {
+            if (freeCount < free.length) {
+                free[freeCount] = item;
+                freeCount += 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.affectiva.framedetectordemo;
+
+/**
+ * A fixed-capacity buffer which accepts items tagged with consecutive sequence numbers in any order, and releases
+ * them in sequence order. A sequence number may also be completed without an item (e.g. a frame which produced no
+ * results), in which case it is skipped over rather than holding up the items behind it.
+ *
+ * Not thread-safe; intended to be used on a single thread.
+ */
+class ReorderBuffer<T> {
+
+    private final Object[] items;
+    private final boolean[] completed;
+    private long nextSequence = 0;
+
+    ReorderBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        items = new Object[capacity];
+        completed = new boolean[capacity];
+    }
+
+    /**
+     * Discards all buffered items. The next item to be released will be the one with the given sequence number.
+     */
+    void reset(long firstSequence) {
+        for (int i = 0; i < items.length; i++) {
+            items[i] = null;
+            completed[i] = false;
+        }
+        nextSequence = firstSequence;
+    }
+
+    /**
+     * Returns whether the given sequence number is within the window of sequence numbers which can be completed. Callers
+     * must not hand out sequence numbers beyond it, as complete() throws for them.
+     */
+    boolean isInWindow(long sequence) {
+        return sequence >= nextSequence && sequence < nextSequence + items.length;
+    }
+
+    /**
+     * Marks a sequence number as complete.
+     * @param item the item to release in order, or null if there is nothing to release for this sequence number
+     */
+    void complete(long sequence, T item) {
+        if (sequence < nextSequence || sequence >= nextSequence + items.length) {
+            throw new IllegalStateException(String.format("Sequence %d is outside the window [%d, %d)",
+                    sequence, nextSequence, nextSequence + items.length));
+        }
+        int index = (int) (sequence % items.length);
+        items[index] = item;
+        completed[index] = true;
+    }
+
+    /**
+     * Returns the next item in sequence order, or null if it has not been completed yet.
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        while (true) {
+            int index = (int) (nextSequence % items.length);
+            if (!completed[index]) {
+                return null;
+            }
+            T item = (T) items[index];
+            items[index] = null;
+            completed[index] = false;
+            nextSequence += 1;
+            if (item != null) {
+                return item;
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.affectiva.framedetectordemo;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads a segment written by SessionRecorder.
+ *
+ * The segment is memory-mapped read-only and each field is read in place, by record index, so scanning a session does
+ * not deserialize anything or allocate per record. The record layout is taken from the segment's header, so segments
+ * written with a different number of metrics or face points can still be read.
+ *
+ * Segment layout (little-endian):
+ * <pre>
+ * header:  int magic, int version, int record size, int metric count, int max face points, int record count,
+ *          long start time (ms since the epoch)
+ * records: float timestamp, int face id, float[metric count] metrics (by Metrics ordinal),
+ *          int face point count, float[max face points * 2] face points (x, y)
+ * </pre>
+ */
+class SessionReader {
+
+    private final MappedByteBuffer buffer;
+    private final int recordSize;
+    private final int metricCount;
+    private final int maxPoints;
+    private final int recordCount;
+    private final long startTimeMillis;
+
+    private final int pointCountOffset;
+    private final int pointsOffset;
+
+    SessionReader(File segment) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(segment, "r");
+        try {
+            long size = randomAccessFile.length();
+            if (size < SessionRecorder.HEADER_SIZE) {
+                throw new IOException(segment + " is too short to be a session segment");
+            }
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            randomAccessFile.close(); // the mapping stays valid
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.getInt(SessionRecorder.HEADER_MAGIC_OFFSET) != SessionRecorder.MAGIC) {
+            throw new IOException(segment + " is not a session segment");
+        }
+        if (buffer.getInt(SessionRecorder.HEADER_VERSION_OFFSET) != SessionRecorder.VERSION) {
+            throw new IOException(segment + " has an unsupported version");
+        }
+        recordSize = buffer.getInt(SessionRecorder.HEADER_RECORD_SIZE_OFFSET);
+        metricCount = buffer.getInt(SessionRecorder.HEADER_METRIC_COUNT_OFFSET);
+        maxPoints = buffer.getInt(SessionRecorder.HEADER_MAX_POINTS_OFFSET);
+        startTimeMillis = buffer.getLong(SessionRecorder.HEADER_START_TIME_OFFSET);
+        pointCountOffset = SessionRecorder.RECORD_METRICS_OFFSET + 4 * metricCount;
+        pointsOffset = pointCountOffset + 4;
+
+        // a segment which is still being written may hold more complete records by now, but never fewer
+        int count = buffer.getInt(SessionRecorder.HEADER_RECORD_COUNT_OFFSET);
+        int available = (buffer.capacity() - SessionRecorder.HEADER_SIZE) / recordSize;
+        recordCount = Math.min(count, available);
+    }
+
+    /**
+     * Returns the segment files of a session, in the order they were written.
+     */
+    static File[] listSegments(File sessionDirectory) {
+        File[] segments = sessionDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith("segment-") && file.getName().endsWith(".bin");
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments); // the names are zero-padded
+        return segments;
+    }
+
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    int getMetricCount() {
+        return metricCount;
+    }
+
+    float getTimestamp(int record) {
+        return buffer.getFloat(offsetOf(record) + SessionRecorder.RECORD_TIMESTAMP_OFFSET);
+    }
+
+    int getFaceId(int record) {
+        return buffer.getInt(offsetOf(record) + SessionRecorder.RECORD_FACE_ID_OFFSET);
+    }
+
+    float getMetric(int record, Metrics metric) {
+        return getMetric(record, metric.ordinal());
+    }
+
+    float getMetric(int record, int metricIndex) {
+        if (metricIndex < 0 || metricIndex >= metricCount) {
+            throw new IndexOutOfBoundsException("No metric " + metricIndex + " in this segment");
+        }
+        return buffer.getFloat(offsetOf(record) + SessionRecorder.RECORD_METRICS_OFFSET + 4 * metricIndex);
+    }
+
+    int getPointCount(int record) {
+        return buffer.getInt(offsetOf(record) + pointCountOffset);
+    }
+
+    float getPointX(int record, int point) {
+        return buffer.getFloat(offsetOf(record) + pointsOffset + 8 * checkPoint(point));
+    }
+
+    float getPointY(int record, int point) {
+        return buffer.getFloat(offsetOf(record) + pointsOffset + 8 * checkPoint(point) + 4);
+    }
+
+    private int offsetOf(int record) {
+        if (record < 0 || record >= recordCount) {
+            throw new IndexOutOfBoundsException("No record " + record + " in this segment");
+        }
+        return SessionRecorder.HEADER_SIZE + record * recordSize;
+    }
+
+    private int checkPoint(int point) {
+        if (point < 0 || point >= maxPoints) {
+            throw new IndexOutOfBoundsException("No face point " + point + " in this segment");
+        }
+        return point;
+    }
+}
@@ -0,0 +1,346 @@
+package com.affectiva.framedetectordemo;
+
+import android.graphics.PointF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Records the detector's results for every face in every frame to disk, as fixed-width binary records.
+ *
+ * Records are written straight into segment files which are memory-mapped with FileChannel.map(), so recording a face
+ * costs a few dozen absolute puts into memory and no system calls. The slow work is left to a background flusher
+ * thread: it creates and maps the next segment ahead of time, periodically forces the current segment to disk, and
+ * finishes each full segment (forcing it, and trimming off the unused space). If the flusher ever falls behind, so
+ * that no segment is ready when the current one fills up, records are dropped (and counted) rather than stalling the
+ * caller. If it fails to create the next segment, e.g. because the disk is full, it tries again every
+ * PREPARE_RETRY_DELAY, and records are dropped until it succeeds; isRecording() tells whether that is happening.
+ *
+ * Each segment starts with a header of HEADER_SIZE bytes, followed by the records; see SessionReader for the layout.
+ * The header's record count is updated after each record is complete, so a reader never sees a partial record.
+ *
+ * record() must always be called on the same thread.
+ */
+class SessionRecorder {
+
+    static final int MAGIC = 0x41465352; // "AFSR"
+    static final int VERSION = 1;
+    static final int MAX_FACE_POINTS = 34;
+
+    // header layout
+    static final int HEADER_MAGIC_OFFSET = 0;
+    static final int HEADER_VERSION_OFFSET = 4;
+    static final int HEADER_RECORD_SIZE_OFFSET = 8;
+    static final int HEADER_METRIC_COUNT_OFFSET = 12;
+    static final int HEADER_MAX_POINTS_OFFSET = 16;
+    static final int HEADER_RECORD_COUNT_OFFSET = 20;
+    static final int HEADER_START_TIME_OFFSET = 24;
+    static final int HEADER_SIZE = 32;
+
+    // record layout: timestamp, face id, every metric, number of face points, then x,y of each point
+    static final int RECORD_TIMESTAMP_OFFSET = 0;
+    static final int RECORD_FACE_ID_OFFSET = 4;
+    static final int RECORD_METRICS_OFFSET = 8;
+    static final int RECORD_POINT_COUNT_OFFSET = RECORD_METRICS_OFFSET + 4 * FaceMetricsSnapshot.METRIC_COUNT;
+    static final int RECORD_POINTS_OFFSET = RECORD_POINT_COUNT_OFFSET + 4;
+    static final int RECORD_SIZE = RECORD_POINTS_OFFSET + 8 * MAX_FACE_POINTS;
+
+    static final int DEFAULT_RECORDS_PER_SEGMENT = 8192;
+    static final long FLUSH_PERIOD = 1000; //ms
+    static final long PREPARE_RETRY_DELAY = 1000; //ms
+
+    private static final String LOG_TAG = "SessionRecorder";
+
+    private final File sessionDirectory;
+    private final int recordsPerSegment;
+    private final FaceMetricsSnapshot snapshot = new FaceMetricsSnapshot();
+
+    private FlusherHandler flusher;
+    private HandlerThread flusherThread;
+    private volatile Segment currentSegment;
+    private final AtomicReference<Segment> nextSegment = new AtomicReference<>();
+    private long recordCount = 0;
+    private long droppedCount = 0;
+    private boolean isDropping = false;
+
+    /**
+     * @param sessionDirectory the directory to write this session's segments into, which must not exist yet
+     */
+    SessionRecorder(File sessionDirectory, int recordsPerSegment) {
+        if (recordsPerSegment < 1) {
+            throw new IllegalArgumentException("recordsPerSegment must be at least 1");
+        }
+        this.sessionDirectory = sessionDirectory;
+        this.recordsPerSegment = recordsPerSegment;
+    }
+
+    /**
+     * Creates the session directory and the first segment, and starts the flusher thread.
+     * @throws IOException if the session directory already exists (another session's segments must never be mapped,
+     * as its flusher may still be trimming them), or could not be created, or the first segment could not be created
+     */
+    void start() throws IOException {
+        if (flusher != null) {
+            throw new IllegalStateException("SessionRecorder is already started");
+        }
+        if (sessionDirectory.exists()) {
+            throw new IOException(sessionDirectory + " already exists");
+        }
+        if (!sessionDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + sessionDirectory);
+        }
+        currentSegment = Segment.create(sessionDirectory, 0, recordsPerSegment);
+
+        flusherThread = new HandlerThread("SessionRecorderFlusher");
+        flusherThread.start();
+        flusher = new FlusherHandler(flusherThread, this);
+        flusher.sendPrepareMessage(1);
+        flusher.sendEmptyMessageDelayed(FlusherHandler.FLUSH, FLUSH_PERIOD);
+    }
+
+    /**
+     * Finishes the current segment and stops the flusher thread once it has done so.
+     */
+    void stop() {
+        if (flusher == null) {
+            return;
+        }
+        Segment segment = currentSegment;
+        currentSegment = null;
+        if (segment != null) {
+            flusher.sendFinishMessage(segment);
+        }
+        flusher.sendEmptyMessage(FlusherHandler.STOP);
+        flusher = null;
+    }
+
+    /**
+     * Waits for the flusher thread to finish the last segment and quit, after stop().
+     * @return whether it has quit within the timeout
+     */
+    boolean awaitStopped(long timeoutMillis) {
+        HandlerThread thread = flusherThread;
+        if (thread == null) {
+            return true;
+        }
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            return false;
+        }
+        flusherThread = null;
+        return true;
+    }
+
+    /**
+     * Appends a record for a face. Does nothing if the recorder is not started.
+     * @param points the face's points, in the coordinates of the whole frame; may be null
+     */
+    void record(float timestamp, Face face, PointF[] points) {
+        Segment segment = currentSegment;
+        if (segment == null) {
+            return;
+        }
+        if (segment.recordCount == recordsPerSegment) {
+            Segment next = nextSegment.getAndSet(null);
+            if (next == null) {
+                // the flusher hasn't caught up yet, or is retrying after failing to create the segment
+                droppedCount += 1;
+                isDropping = true;
+                return;
+            }
+            isDropping = false;
+            currentSegment = next;
+            flusher.sendFinishMessage(segment);
+            flusher.sendPrepareMessage(next.index + 1);
+            segment = next;
+        }
+
+        snapshot.fill(face);
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = HEADER_SIZE + segment.recordCount * RECORD_SIZE;
+        buffer.putFloat(offset + RECORD_TIMESTAMP_OFFSET, timestamp);
+        buffer.putInt(offset + RECORD_FACE_ID_OFFSET, snapshot.getFaceId());
+        for (int i = 0; i < FaceMetricsSnapshot.METRIC_COUNT; i++) {
+            buffer.putFloat(offset + RECORD_METRICS_OFFSET + 4 * i, snapshot.get(i));
+        }
+        int pointCount = points == null ? 0 : Math.min(points.length, MAX_FACE_POINTS);
+        buffer.putInt(offset + RECORD_POINT_COUNT_OFFSET, pointCount);
+        for (int i = 0; i < pointCount; i++) {
+            buffer.putFloat(offset + RECORD_POINTS_OFFSET + 8 * i, points[i].x);
+            buffer.putFloat(offset + RECORD_POINTS_OFFSET + 8 * i + 4, points[i].y);
+        }
+
+        // publish the record only once it is complete
+        segment.recordCount += 1;
+        buffer.putInt(HEADER_RECORD_COUNT_OFFSET, segment.recordCount);
+        recordCount += 1;
+    }
+
+    /**
+     * Returns whether the recorder is started and its records are being kept, rather than dropped while the next
+     * segment is not ready. Must be called on the thread which calls record().
+     */
+    boolean isRecording() {
+        return currentSegment != null && !isDropping;
+    }
+
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Returns the number of records dropped because the next segment was not ready in time.
+     */
+    long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Returns the name of the file holding the given segment of a session.
+     */
+    static String getSegmentFileName(int index) {
+        return String.format(Locale.US, "segment-%05d.bin", index);
+    }
+
+    /**
+     * A segment file, mapped in full.
+     */
+    private static class Segment {
+        final int index;
+        final File file;
+        final RandomAccessFile randomAccessFile;
+        final MappedByteBuffer buffer;
+        int recordCount = 0;
+
+        private Segment(int index, File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.randomAccessFile = randomAccessFile;
+            this.buffer = buffer;
+        }
+
+        static Segment create(File directory, int index, int recordsPerSegment) throws IOException {
+            File file = new File(directory, getSegmentFileName(index));
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                long size = HEADER_SIZE + (long) recordsPerSegment * RECORD_SIZE;
+                MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(HEADER_MAGIC_OFFSET, MAGIC);
+                buffer.putInt(HEADER_VERSION_OFFSET, VERSION);
+                buffer.putInt(HEADER_RECORD_SIZE_OFFSET, RECORD_SIZE);
+                buffer.putInt(HEADER_METRIC_COUNT_OFFSET, FaceMetricsSnapshot.METRIC_COUNT);
+                buffer.putInt(HEADER_MAX_POINTS_OFFSET, MAX_FACE_POINTS);
+                buffer.putInt(HEADER_RECORD_COUNT_OFFSET, 0);
+                buffer.putLong(HEADER_START_TIME_OFFSET, System.currentTimeMillis());
+                return new Segment(index, file, randomAccessFile, buffer);
+            } catch (IOException e) {
+                randomAccessFile.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Forces the records to disk, trims the file to the records written, and closes it. The segment must not be
+         * written to afterwards.
+         */
+        void finish() throws IOException {
+            buffer.force();
+            try {
+                randomAccessFile.getChannel().truncate(HEADER_SIZE + (long) recordCount * RECORD_SIZE);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+
+        void discard() {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                // deleting it anyway
+            }
+            if (!file.delete()) {
+                Log.w(LOG_TAG, "Unable to delete " + file);
+            }
+        }
+    }
+
+    private static class FlusherHandler extends Handler {
+        //Incoming message codes
+        private static final int PREPARE = 0;
+        private static final int FLUSH = 1;
+        private static final int FINISH = 2;
+        private static final int STOP = 3;
+
+        private final SessionRecorder recorder;
+
+        private FlusherHandler(HandlerThread thread, SessionRecorder recorder) {
+            super(thread.getLooper());
+            this.recorder = recorder;
+        }
+
+        private void sendPrepareMessage(int index) {
+            sendMessage(obtainMessage(PREPARE, index, 0));
+        }
+
+        private void sendFinishMessage(Segment segment) {
+            sendMessage(obtainMessage(FINISH, segment));
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case PREPARE:
+                    try {
+                        recorder.nextSegment.set(Segment.create(recorder.sessionDirectory, msg.arg1,
+                                recorder.recordsPerSegment));
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Unable to create segment " + msg.arg1 + ", retrying", e);
+                        sendMessageDelayed(obtainMessage(PREPARE, msg.arg1, 0), PREPARE_RETRY_DELAY);
+                    }
+                    break;
+                case FLUSH:
+                    Segment current = recorder.currentSegment;
+                    if (current != null) {
+                        current.buffer.force();
+                    }
+                    sendEmptyMessageDelayed(FLUSH, FLUSH_PERIOD);
+                    break;
+                case FINISH:
+                    try {
+                        ((Segment) msg.obj).finish();
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Unable to finish segment", e);
+                    }
+                    break;
+                case STOP:
+                    removeMessages(FLUSH);
+                    removeMessages(PREPARE);
+                    Segment unused = recorder.nextSegment.getAndSet(null);
+                    if (unused != null) {
+                        unused.discard();
+                    }
+                    ((HandlerThread) getLooper().getThread()).quitSafely();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.affectiva.framedetectordemo;
+
+/**
+ * Tells whether an NV21 frame differs enough from the last processed frame to be worth running the detector on, so
+ * that a static scene (such as a user sitting still) doesn't cost a full detection per frame.
+ *
+ * Each frame's signature is the mean luma of a GRID_COLUMNS x GRID_ROWS grid of small blocks, sampled from the Y plane,
+ * which is 12288 byte reads (768 blocks of 4 x 4), from 96 rows of the frame: well under a millisecond, against tens of
+ * milliseconds for a detection. A frame is static if fewer than MIN_CHANGED_CELLS cells
+ * have changed by more than the cell threshold since the last processed frame. Averaging each block keeps sensor noise
+ * below the threshold, while counting changed cells, rather than averaging the change over the whole frame, keeps
+ * small movements, such as a change of expression, from being diluted by the still background. Since frames are
+ * compared with the last processed one, rather than the one before, slow changes add up until they are noticed.
+ *
+ * However static the scene, a frame is processed at least every refreshIntervalSeconds, so that the detector keeps
+ * tracking the face and results don't go stale.
+ *
+ * Usage: for each frame, call isStatic(), then either onProcessed() if the frame is processed, or onSkipped() if the
+ * previous results are re-used for it.
+ *
+ * Not thread-safe: must always be called on the same thread; the counts may be read on any thread.
+ *
+ * ServiceFrameDetectorDemo's detection thread gates frames through a copy of this class, differing only in its
+ * package, so that both demos skip the same frames for the same thresholds.
+ */
+class StaticFrameGate {
+
+    static final int DEFAULT_CELL_THRESHOLD = 8; // luma levels
+    static final float DEFAULT_REFRESH_INTERVAL_SECONDS = 1;
+    static final int GRID_COLUMNS = 32;
+    static final int GRID_ROWS = 24;
+    static final int MIN_CHANGED_CELLS = 2;
+    private static final int BLOCK_SIZE = 4; // pixels averaged per cell, along each side
+
+    private final int cellThreshold;
+    private final float refreshIntervalSeconds;
+
+    private int[] signature = new int[GRID_COLUMNS * GRID_ROWS]; // of the frame last passed to isStatic()
+    private int[] reference = new int[GRID_COLUMNS * GRID_ROWS]; // of the frame last processed
+    private boolean hasReference = false;
+    private int referenceWidth;
+    private int referenceHeight;
+    private float referenceTimestamp;
+    private int signatureWidth;
+    private int signatureHeight;
+    private float signatureTimestamp;
+    private boolean hasSignature = false;
+
+    private volatile long processedCount = 0;
+    private volatile long skippedCount = 0;
+    private volatile long costNanos = 0;
+
+    /**
+     * @param cellThreshold the change in a cell's mean luma, in levels of 0 to 255, above which it counts as changed
+     * @param refreshIntervalSeconds the longest time, in frame timestamps, between processed frames
+     */
+    StaticFrameGate(int cellThreshold, float refreshIntervalSeconds) {
+        if (cellThreshold < 0) {
+            throw new IllegalArgumentException("cellThreshold must not be negative");
+        }
+        if (refreshIntervalSeconds < 0 || Float.isNaN(refreshIntervalSeconds)) {
+            throw new IllegalArgumentException("refreshIntervalSeconds must not be negative");
+        }
+        this.cellThreshold = cellThreshold;
+        this.refreshIntervalSeconds = refreshIntervalSeconds;
+    }
+
+    /**
+     * Forgets the last processed frame, so that the next frame is processed.
+     */
+    void reset() {
+        hasReference = false;
+        hasSignature = false;
+    }
+
+    /**
+     * Takes the signature of a frame, and decides whether it is close enough to the last processed frame to skip.
+     * @param nv21 the frame, whose first width * height bytes are its Y plane
+     */
+    boolean isStatic(byte[] nv21, int width, int height, float timestamp) {
+        hasSignature = false;
+        if (width < GRID_COLUMNS * BLOCK_SIZE || height < GRID_ROWS * BLOCK_SIZE || nv21.length < width * height) {
+            return false;
+        }
+        long startNanos = System.nanoTime();
+        takeSignature(nv21, width, height);
+        signatureWidth = width;
+        signatureHeight = height;
+        signatureTimestamp = timestamp;
+        hasSignature = true;
+
+        boolean isStatic = false;
+        if (hasReference && width == referenceWidth && height == referenceHeight
+                && timestamp >= referenceTimestamp && timestamp - referenceTimestamp < refreshIntervalSeconds) {
+            int threshold = cellThreshold * BLOCK_SIZE * BLOCK_SIZE; // the signature holds sums, not means
+            int changedCells = 0;
+            for (int i = 0; i < signature.length && changedCells < MIN_CHANGED_CELLS; i++) {
+                if (Math.abs(signature[i] - reference[i]) > threshold) {
+                    changedCells += 1;
+                }
+            }
+            isStatic = changedCells < MIN_CHANGED_CELLS;
+        }
+        costNanos += System.nanoTime() - startNanos;
+        return isStatic;
+    }
+
+    /**
+     * Records that the frame last passed to isStatic() was processed, making it the one later frames are compared with.
+     */
+    void onProcessed() {
+        processedCount += 1;
+        if (!hasSignature) {
+            hasReference = false;
+            return;
+        }
+        int[] swap = reference;
+        reference = signature;
+        signature = swap;
+        referenceWidth = signatureWidth;
+        referenceHeight = signatureHeight;
+        referenceTimestamp = signatureTimestamp;
+        hasReference = true;
+        hasSignature = false;
+    }
+
+    /**
+     * Records that the frame last passed to isStatic() was skipped.
+     */
+    void onSkipped() {
+        skippedCount += 1;
+        hasSignature = false;
+    }
+
+    long getProcessedCount() {
+        return processedCount;
+    }
+
+    long getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * Returns the fraction of frames which were skipped.
+     */
+    float getSkipRatio() {
+        long skipped = skippedCount;
+        long total = skipped + processedCount;
+        return total == 0 ? 0 : (float) skipped / total;
+    }
+
+    /**
+     * Returns the total time isStatic() has taken, in nanoseconds.
+     */
+    long getCostNanos() {
+        return costNanos;
+    }
+
+    /**
+     * Returns the mean time isStatic() took per frame, in nanoseconds.
+     */
+    long getMeanCostNanos() {
+        long total = processedCount + skippedCount;
+        return total == 0 ? 0 : costNanos / total;
+    }
+
+    /*
+     * Sums the luma of a BLOCK_SIZE x BLOCK_SIZE block at the centre of each cell of the grid.
+     */
+    private void takeSignature(byte[] nv21, int width, int height) {
+        int cellWidth = width / GRID_COLUMNS;
+        int cellHeight = height / GRID_ROWS;
+        int cell = 0;
+        for (int row = 0; row < GRID_ROWS; row++) {
+            int top = row * cellHeight + (cellHeight - BLOCK_SIZE) / 2;
+            for (int column = 0; column < GRID_COLUMNS; column++) {
+                int left = column * cellWidth + (cellWidth - BLOCK_SIZE) / 2;
+                int sum = 0;
+                for (int y = top; y < top + BLOCK_SIZE; y++) {
+                    int offset = y * width + left;
+                    for (int x = 0; x < BLOCK_SIZE; x++) {
+                        sum += nv21[offset + x] & 0xFF;
+                    }
+                }
+                signature[cell++] = sum;
+            }
+        }
+    }
+}
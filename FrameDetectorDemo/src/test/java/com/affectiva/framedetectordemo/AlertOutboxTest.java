@@ -0,0 +1,269 @@
+package com.affectiva.framedetectordemo;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.Scheduler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs an AlertOutbox, sending through a NexmoSmsSender, against a stub of the Nexmo SMS endpoint on a local port.
+ *
+ * Under Robolectric, the outbox's messages run on the test's thread as soon as they are due, and the delays between
+ * them (batching and retry backoff) only pass when the test advances the clock with advanceBy().
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class AlertOutboxTest {
+
+    private static final String ACCEPTED = "{\"message-count\":\"1\",\"messages\":[{\"to\":\"15550000000\","
+            + "\"message-id\":\"0A0000000123ABCD1\",\"status\":\"0\"}]}";
+    private static final String THROTTLED = "{\"message-count\":\"1\",\"messages\":[{\"status\":\"1\","
+            + "\"error-text\":\"Throughput Rate Exceeded - please wait [ 250 ] and retry\"}]}";
+    private static final String MISSING_MESSAGES = "{\"status\":\"2\",\"error-text\":\"Missing api_key\"}";
+
+    private StubSmsServer server;
+    private File directory;
+    private AlertOutbox outbox;
+    private Scheduler outboxScheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubSmsServer();
+        directory = Files.createTempDirectory("alert_outbox").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if (outbox != null) {
+            stopOutbox();
+        }
+        server.stop();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void sendsBatchOnceBatchDelayHasPassed() {
+        startOutbox();
+        outbox.post("sadness", "Sadness detected");
+        outbox.post("anger", "Anger detected");
+
+        advanceBy(AlertOutbox.BATCH_DELAY - 1);
+        assertEquals(0, server.getRequests().size());
+        advanceBy(1);
+
+        assertEquals(1, server.getRequests().size());
+        assertTrue(server.getRequests().get(0), server.getRequests().get(0).contains(
+                "\"text\":\"Sadness detected; Anger detected\""));
+        assertEquals(2, outbox.getSentCount());
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    @Test
+    public void coalescesAlertsOfTheSameType() {
+        startOutbox();
+        outbox.post("sadness", "Sadness detected");
+        outbox.post("sadness", "Sadness detected again");
+        outbox.post("sadness", "Sadness detected once more");
+        runDueMessages();
+        assertEquals(2, outbox.getCoalescedCount());
+
+        advanceBy(AlertOutbox.BATCH_DELAY);
+
+        assertEquals(1, server.getRequests().size());
+        assertTrue(server.getRequests().get(0).contains("\"text\":\"Sadness detected\""));
+        assertEquals(2, outbox.getCoalescedCount());
+        assertEquals(1, outbox.getSentCount());
+    }
+
+    @Test
+    public void retriesRejectedMessagesWithBackoff() {
+        server.respond(200, THROTTLED);
+        server.respond(200, MISSING_MESSAGES);
+        server.respond(500, "");
+        startOutbox();
+        outbox.post("sadness", "Sadness detected");
+
+        advanceBy(AlertOutbox.BATCH_DELAY);
+        assertEquals(1, server.getRequests().size());
+        assertEquals(1, outbox.getPendingCount());
+
+        long retryDelay = AlertOutbox.INITIAL_RETRY_DELAY;
+        for (int attempt = 2; attempt <= 4; attempt++) {
+            advanceBy(retryDelay - 1);
+            assertEquals("retried before the backoff", attempt - 1, server.getRequests().size());
+            advanceBy(1);
+            assertEquals(attempt, server.getRequests().size());
+            retryDelay *= 2;
+        }
+
+        assertEquals(1, outbox.getSentCount());
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    @Test
+    public void alertPostedWhileBackingOffIsSentWithTheRetry() {
+        server.respond(500, "");
+        startOutbox();
+        outbox.post("sadness", "Sadness detected");
+        advanceBy(AlertOutbox.BATCH_DELAY);
+        outbox.post("anger", "Anger detected");
+
+        advanceBy(AlertOutbox.INITIAL_RETRY_DELAY);
+
+        assertEquals(2, server.getRequests().size());
+        assertTrue(server.getRequests().get(1).contains("\"text\":\"Sadness detected; Anger detected\""));
+        assertEquals(2, outbox.getSentCount());
+    }
+
+    @Test
+    public void keepsRejectedAlertsAcrossARestart() {
+        server.respond(200, THROTTLED);
+        startOutbox();
+        outbox.post("sadness", "Sadness detected");
+        advanceBy(AlertOutbox.BATCH_DELAY);
+        assertEquals(0, outbox.getSentCount());
+        stopOutbox();
+
+        startOutbox(); // loading the journal sends what it holds straight away
+
+        assertEquals(2, server.getRequests().size());
+        assertTrue(server.getRequests().get(1).contains("\"text\":\"Sadness detected\""));
+        assertEquals(1, outbox.getSentCount());
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    @Test
+    public void doesNotResendAlertsAlreadyAccepted() {
+        startOutbox();
+        outbox.post("sadness", "Sadness detected");
+        advanceBy(AlertOutbox.BATCH_DELAY);
+        stopOutbox();
+
+        startOutbox();
+
+        assertEquals(1, server.getRequests().size());
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    private void startOutbox() {
+        outbox = new AlertOutbox(directory, new NexmoSmsSender(server.getUrl(), "key", "secret", "15550000000",
+                "15551111111"));
+        outbox.start();
+        outboxScheduler = Shadows.shadowOf(outbox.getLooper()).getScheduler();
+        // a new thread's clock starts from scratch, while messages are timed by the main thread's
+        outboxScheduler.advanceTo(Robolectric.getForegroundThreadScheduler().getCurrentTime());
+        runDueMessages();
+    }
+
+    private void stopOutbox() {
+        outbox.stop();
+        runDueMessages();
+        outbox = null;
+    }
+
+    /*
+     * Handles the messages already due on the outbox's thread, e.g. the alerts just posted.
+     */
+    private void runDueMessages() {
+        outboxScheduler.advanceBy(0);
+    }
+
+    /*
+     * SystemClock follows the main Looper's scheduler rather than the outbox's, so the two are advanced together, for
+     * the delays the outbox schedules to be measured from the time its own scheduler has reached. Each step should end
+     * on the next message due.
+     */
+    private void advanceBy(long millis) {
+        runDueMessages();
+        Robolectric.getForegroundThreadScheduler().advanceBy(millis);
+        outboxScheduler.advanceBy(millis);
+    }
+
+    /**
+     * Answers each request with the next queued response, or with ACCEPTED once there are none, and records the
+     * request bodies.
+     */
+    private static class StubSmsServer implements HttpHandler {
+        private final HttpServer httpServer;
+        private final Deque<Object[]> responses = new ArrayDeque<>();
+        private final List<String> requests = new ArrayList<>();
+
+        StubSmsServer() throws IOException {
+            httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            httpServer.createContext("/sms/json", this);
+            httpServer.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + httpServer.getAddress().getPort() + "/sms/json";
+        }
+
+        synchronized void respond(int code, String body) {
+            responses.add(new Object[]{code, body});
+        }
+
+        synchronized List<String> getRequests() {
+            return new ArrayList<>(requests);
+        }
+
+        void stop() {
+            httpServer.stop(0);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Object[] response;
+            synchronized (this) {
+                requests.add(readFully(exchange.getRequestBody()));
+                response = responses.isEmpty() ? new Object[]{200, ACCEPTED} : responses.remove();
+            }
+            byte[] body = ((String) response[1]).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders((Integer) response[0], body.length == 0 ? -1 : body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+
+        private static String readFully(InputStream in) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, count);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.affectiva.framedetectordemo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that frame carriers passed through a RecyclingPool the way AsyncFrameDetector passes its InputData and
+ * OutputData stop being allocated once the pipeline has warmed up, in each submission mode.
+ */
+public class RecyclingPoolTest {
+
+    private static final int POOL_CAPACITY = 16;
+    private static final int WARM_UP_FRAMES = 100;
+    private static final int FRAMES = 10000;
+
+    private static class Carrier {
+        long sequence;
+    }
+
+    private static class CarrierPool extends RecyclingPool<Carrier> {
+        CarrierPool() {
+            super(POOL_CAPACITY);
+        }
+
+        @Override
+        protected Carrier create() {
+            return new Carrier();
+        }
+    }
+
+    @Test
+    public void oneFrameInFlightCreatesOneCarrier() {
+        CarrierPool pool = new CarrierPool();
+        for (int i = 0; i < FRAMES; i++) {
+            Carrier carrier = pool.obtain();
+            carrier.sequence = i;
+            pool.recycle(carrier);
+        }
+        assertEquals(1, pool.getCreatedCount());
+    }
+
+    /*
+     * QUEUED mode: several workers each have a frame waiting and one in progress, and complete them out of order; a
+     * ReorderBuffer hands the results back in sequence, after which their carriers are recycled.
+     */
+    @Test
+    public void queuedFramesStopCreatingCarriersOnceWarm() {
+        int inFlight = 4 * 2; // four workers, each with one frame waiting and one in progress
+        CarrierPool pool = new CarrierPool();
+        ReorderBuffer<Carrier> reorderBuffer = new ReorderBuffer<>(inFlight);
+        reorderBuffer.reset(0);
+        Carrier[] submitted = new Carrier[inFlight];
+        long warmCreatedCount = 0;
+        long sequence = 0;
+        for (int frame = 0; frame < FRAMES; frame += inFlight) {
+            for (int i = 0; i < inFlight; i++) {
+                submitted[i] = pool.obtain();
+                submitted[i].sequence = sequence++;
+            }
+            // complete them in reverse, the worst order for the reorder buffer
+            for (int i = inFlight - 1; i >= 0; i--) {
+                reorderBuffer.complete(submitted[i].sequence, submitted[i]);
+            }
+            Carrier released;
+            long expectedSequence = submitted[0].sequence;
+            while ((released = reorderBuffer.poll()) != null) {
+                assertEquals(expectedSequence++, released.sequence);
+                pool.recycle(released);
+            }
+            if (frame < WARM_UP_FRAMES) {
+                warmCreatedCount = pool.getCreatedCount();
+            }
+        }
+        assertEquals(inFlight, warmCreatedCount);
+        assertEquals("carriers created after warm-up", warmCreatedCount, pool.getCreatedCount());
+    }
+
+    /*
+     * LATEST_WINS mode: a camera thread posts each frame to a FrameMailbox, recycling whichever frame it supersedes,
+     * while a worker takes the newest and recycles it once processed.
+     */
+    @Test
+    public void latestWinsFramesStopCreatingCarriersOnceWarm() throws InterruptedException {
+        final CarrierPool pool = new CarrierPool();
+        final FrameMailbox<Carrier> mailbox = new FrameMailbox<>();
+        long createdAtWarmUp = 0;
+
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Carrier carrier = mailbox.take();
+                    if (carrier != null) {
+                        pool.recycle(carrier);
+                    }
+                }
+            }
+        });
+        worker.start();
+        try {
+            for (int i = 0; i < FRAMES; i++) {
+                Carrier carrier = pool.obtain();
+                carrier.sequence = i;
+                Carrier superseded = mailbox.post(carrier);
+                if (superseded != null) {
+                    pool.recycle(superseded);
+                }
+                if (i == WARM_UP_FRAMES) {
+                    createdAtWarmUp = pool.getCreatedCount();
+                }
+            }
+        } finally {
+            worker.interrupt();
+            worker.join();
+        }
+
+        // at most one frame being posted, one in the mailbox and one being processed
+        assertTrue("created " + pool.getCreatedCount() + " carriers", pool.getCreatedCount() <= 3);
+        assertEquals("carriers created after warm-up", createdAtWarmUp, pool.getCreatedCount());
+    }
+
+    /*
+     * The pool only keeps POOL_CAPACITY carriers, so a backlog larger than that (e.g. results piling up while the main
+     * thread stalls) allocates once it is worked off; the pipeline then settles again.
+     */
+    @Test
+    public void backlogBeyondCapacityCreatesCarriersOnlyWhileItLasts() {
+        CarrierPool pool = new CarrierPool();
+        int backlog = POOL_CAPACITY * 2;
+        Carrier[] stalled = new Carrier[backlog];
+        for (int i = 0; i < backlog; i++) {
+            stalled[i] = pool.obtain();
+        }
+        for (Carrier carrier : stalled) {
+            pool.recycle(carrier); // the second half is left to the garbage collector
+        }
+        assertEquals(backlog, pool.getCreatedCount());
+
+        for (int i = 0; i < FRAMES; i++) {
+            pool.recycle(pool.obtain());
+        }
+        assertEquals(backlog, pool.getCreatedCount());
+
+        for (int i = 0; i < backlog; i++) {
+            stalled[i] = pool.obtain();
+        }
+        assertEquals(backlog + POOL_CAPACITY, pool.getCreatedCount());
+    }
+}
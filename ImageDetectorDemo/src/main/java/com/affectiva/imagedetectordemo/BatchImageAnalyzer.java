@@ -0,0 +1,364 @@
+package com.affectiva.imagedetectordemo;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.Frame;
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Scores a batch of images with a PhotoDetectorPool, writing one CSV row per image.
+ *
+ * Three stages run at once: a decoder thread decodes images in order and submits them to the pool, which blocks it once
+ * the pool's queue is full, so decoding stays just ahead of detection without holding the whole batch in memory; the
+ * pool's detectors score them; and a writer thread appends each result to the CSV file as it arrives. Rows are written
+ * in the order images finish, so each starts with the image's index in the batch.
+ *
+ * All Listener methods are called on the main thread.
+ */
+class BatchImageAnalyzer {
+
+    interface Listener {
+        void onBatchProgress(int completed, int total);
+
+        /**
+         * @param failed the number of images which could not be decoded, or which the detector threw on, or were not
+         *               scored as no detector could be started
+         * @param cancelled true if cancel() was called, in which case only the images submitted by then were scored
+         */
+        void onBatchFinished(File output, int completed, int failed, boolean cancelled);
+
+        /**
+         * Called instead of onBatchFinished() if the output could not be written.
+         */
+        void onBatchFailed(IOException error);
+    }
+
+    private static final String LOG_TAG = "BatchImageAnalyzer";
+    private static final String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".webp", ".bmp"};
+
+    private final ContentResolver contentResolver;
+    private final BitmapDecoder bitmapDecoder = new BitmapDecoder(BitmapDecoder.DEFAULT_TARGET_LONG_EDGE,
+            BitmapDecoder.DEFAULT_BYTE_BUDGET);
+    private final PhotoDetectorPool pool;
+    private final Listener listener;
+    private final MainThreadHandler mainThreadHandler;
+
+    private HandlerThread writerThread;
+    private WriterHandler writer;
+    private volatile boolean cancelled = false;
+
+    BatchImageAnalyzer(Context context, PhotoDetectorPool pool, Listener listener) {
+        contentResolver = context.getContentResolver();
+        this.pool = pool;
+        this.listener = listener;
+        mainThreadHandler = new MainThreadHandler(this);
+    }
+
+    /**
+     * Returns the images in a directory, by name, as file Uris.
+     */
+    static List<Uri> listImages(File directory) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                if (!file.isFile()) {
+                    return false;
+                }
+                String name = file.getName().toLowerCase(Locale.US);
+                for (String extension : IMAGE_EXTENSIONS) {
+                    if (name.endsWith(extension)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+        List<Uri> images = new ArrayList<>();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                images.add(Uri.fromFile(file));
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Starts scoring the images in a directory.
+     */
+    void start(File directory, File output) throws IOException {
+        start(listImages(directory), output);
+    }
+
+    /**
+     * Starts scoring a list of images. The pool must be started. Must be called on the main thread.
+     * @throws IOException if the output file could not be created
+     */
+    void start(final List<Uri> images, File output) throws IOException {
+        if (writerThread != null) {
+            throw new IllegalStateException("Batch is already running");
+        }
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output),
+                StandardCharsets.UTF_8));
+        writeHeader(out);
+
+        writerThread = new HandlerThread("BatchWriter");
+        writerThread.start();
+        writer = new WriterHandler(writerThread, this, out, output, images.size());
+
+        final WriterHandler batchWriter = writer;
+        new Thread("BatchDecoder") {
+            @Override
+            public void run() {
+                decodeAndSubmit(images, batchWriter);
+            }
+        }.start();
+    }
+
+    /**
+     * Stops submitting images. Those already submitted are still scored and written, then onBatchFinished() is called.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isRunning() {
+        return writerThread != null;
+    }
+
+    /*
+     * Runs on the decoder thread.
+     */
+    private void decodeAndSubmit(List<Uri> images, final WriterHandler writer) {
+        int submitted = 0;
+        for (int i = 0; i < images.size() && !cancelled; i++) {
+            final int index = i;
+            final Uri uri = images.get(i);
+            Bitmap bitmap = decode(uri);
+            if (bitmap == null) {
+                writer.sendRowMessage(formatFailedRow(index, uri), false);
+                submitted += 1;
+                continue;
+            }
+            try {
+                pool.submit(new Frame.BitmapFrame(bitmap, Frame.COLOR_FORMAT.UNKNOWN_TYPE),
+                        new PhotoDetectorPool.Callback() {
+                            @Override
+                            public void onDetected(Frame frame, List<Face> faces) {
+                                String row = formatRow(index, uri, faces);
+                                bitmapDecoder.recycle(((Frame.BitmapFrame) frame).getBitmap());
+                                writer.sendRowMessage(row, true);
+                            }
+
+                            @Override
+                            public void onFailed(Frame frame) {
+                                bitmapDecoder.recycle(((Frame.BitmapFrame) frame).getBitmap());
+                                writer.sendRowMessage(formatFailedRow(index, uri), false);
+                            }
+                        });
+                submitted += 1;
+            } catch (InterruptedException | IllegalStateException e) {
+                // interrupted, or the pool has been shut down, or has failed
+                Log.w(LOG_TAG, "Stopped submitting images", e);
+                bitmapDecoder.recycle(bitmap);
+                break;
+            }
+        }
+        // tell the writer how many rows to wait for, now that no more are coming
+        writer.sendExpectMessage(submitted);
+    }
+
+    private Bitmap decode(Uri uri) {
+        try {
+            return bitmapDecoder.decode(contentResolver, uri);
+        } catch (IOException | RuntimeException e) {
+            Log.w(LOG_TAG, "Unable to decode " + uri, e);
+            return null;
+        }
+    }
+
+    private static void writeHeader(BufferedWriter out) throws IOException {
+        out.write("index,uri,faces");
+        for (int n = 0; n < FaceMetricsSnapshot.METRIC_COUNT; n++) {
+            out.write(',');
+            out.write(MetricsManager.getMetricLowerCaseName(n));
+        }
+        out.newLine();
+    }
+
+    /*
+     * Runs on a detector thread. Writes the first face's metrics, with appearances by name.
+     */
+    private static String formatRow(int index, Uri uri, List<Face> faces) {
+        StringBuilder row = new StringBuilder();
+        row.append(index).append(',').append(quote(uri.toString())).append(',');
+        int faceCount = faces == null ? 0 : faces.size();
+        row.append(faceCount);
+        if (faceCount == 0) {
+            for (int n = 0; n < FaceMetricsSnapshot.METRIC_COUNT; n++) {
+                row.append(',');
+            }
+            return row.toString();
+        }
+        Face face = faces.get(0);
+        FaceMetricsSnapshot snapshot = new FaceMetricsSnapshot();
+        snapshot.fill(face);
+        for (int n = 0; n < MetricsManager.getTotalNumNumericMetrics(); n++) {
+            row.append(',').append(String.format(Locale.US, "%.4f", snapshot.get(n)));
+        }
+        row.append(',').append(face.appearance.getGender().name());
+        row.append(',').append(face.appearance.getAge().name());
+        row.append(',').append(face.appearance.getEthnicity().name());
+        return row.toString();
+    }
+
+    private static String formatFailedRow(int index, Uri uri) {
+        StringBuilder row = new StringBuilder();
+        row.append(index).append(',').append(quote(uri.toString())).append(",-1");
+        for (int n = 0; n < FaceMetricsSnapshot.METRIC_COUNT; n++) {
+            row.append(',');
+        }
+        return row.toString();
+    }
+
+    private static String quote(String value) {
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private void onWriterFinished(File output, int completed, int failed, IOException error) {
+        writerThread = null;
+        writer = null;
+        if (error != null) {
+            listener.onBatchFailed(error);
+        } else {
+            listener.onBatchFinished(output, completed, failed, cancelled);
+        }
+    }
+
+    private static class MainThreadHandler extends Handler {
+        //Incoming message codes
+        private static final int PROGRESS = 0;
+        private static final int FINISHED = 1;
+
+        private final BatchImageAnalyzer analyzer;
+
+        private MainThreadHandler(BatchImageAnalyzer analyzer) {
+            super(Looper.getMainLooper());
+            this.analyzer = analyzer;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case PROGRESS:
+                    analyzer.listener.onBatchProgress(msg.arg1, msg.arg2);
+                    break;
+                case FINISHED:
+                    WriterHandler writer = (WriterHandler) msg.obj;
+                    analyzer.onWriterFinished(writer.output, writer.completed, writer.failed, writer.error);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static class WriterHandler extends Handler {
+        //Incoming message codes
+        private static final int ROW = 0;
+        private static final int EXPECT = 1;
+
+        private final BatchImageAnalyzer analyzer;
+        private final BufferedWriter out;
+        private final File output;
+        private final int total;
+
+        // only touched on the writer thread, then read on the main thread once FINISHED is sent
+        private int completed = 0;
+        private int failed = 0;
+        private int expected = -1; // unknown until the decoder is done
+        private IOException error;
+
+        private WriterHandler(HandlerThread thread, BatchImageAnalyzer analyzer, BufferedWriter out, File output,
+                              int total) {
+            super(thread.getLooper());
+            this.analyzer = analyzer;
+            this.out = out;
+            this.output = output;
+            this.total = total;
+        }
+
+        private void sendRowMessage(String row, boolean decoded) {
+            sendMessage(obtainMessage(ROW, decoded ? 1 : 0, 0, row));
+        }
+
+        private void sendExpectMessage(int count) {
+            sendMessage(obtainMessage(EXPECT, count, 0));
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case ROW:
+                    if (error == null) {
+                        try {
+                            out.write((String) msg.obj);
+                            out.newLine();
+                        } catch (IOException e) {
+                            Log.e(LOG_TAG, "Unable to write " + output, e);
+                            error = e;
+                            analyzer.cancel();
+                        }
+                    }
+                    completed += 1;
+                    if (msg.arg1 == 0) {
+                        failed += 1;
+                    }
+                    analyzer.mainThreadHandler.sendMessage(
+                            analyzer.mainThreadHandler.obtainMessage(MainThreadHandler.PROGRESS, completed, total));
+                    break;
+                case EXPECT:
+                    expected = msg.arg1;
+                    break;
+                default:
+                    break;
+            }
+            if (expected >= 0 && completed >= expected) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+            analyzer.mainThreadHandler.sendMessage(analyzer.mainThreadHandler.obtainMessage(MainThreadHandler.FINISHED,
+                    this));
+            ((HandlerThread) getLooper().getThread()).quitSafely();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.affectiva.imagedetectordemo;
+
+import android.content.ContentResolver;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes images at about the resolution the face detector needs, rather than at full resolution.
+ *
+ * Each image is read twice: once for its bounds only, to choose the power-of-two inSampleSize which brings its long edge
+ * down towards targetLongEdge (never below it), and which keeps the decoded bitmap within byteBudget; and once to decode
+ * it at that size. A 12 MP photo decoded for a 1280 pixel target is therefore a 1 MP bitmap instead of a 12 MP one.
+ *
+ * Bitmaps which are no longer needed can be handed back through recycle(), and are reused for later decodes (through
+ * BitmapFactory.Options.inBitmap) and rotations, up to byteBudget bytes of them in all.
+ *
+ * The methods may be called from any thread.
+ */
+class BitmapDecoder {
+
+    interface StreamOpener {
+        /**
+         * Opens a new stream over the image. Called twice per decode.
+         */
+        InputStream open() throws IOException;
+    }
+
+    static final int DEFAULT_TARGET_LONG_EDGE = 1280; // pixels
+    static final long DEFAULT_BYTE_BUDGET = 32L * 1024 * 1024;
+
+    private static final String LOG_TAG = "BitmapDecoder";
+    private static final int BYTES_PER_PIXEL = 4; // ARGB_8888
+
+    private final int targetLongEdge;
+    private final long byteBudget;
+
+    // guarded by this
+    private final List<Bitmap> reusable = new ArrayList<>();
+    private long reusableBytes = 0;
+
+    /**
+     * @param targetLongEdge the smallest long edge, in pixels, to decode images down to
+     * @param byteBudget the most memory a decoded bitmap may take, and the most that reusable bitmaps may take in all
+     */
+    BitmapDecoder(int targetLongEdge, long byteBudget) {
+        if (targetLongEdge < 1) {
+            throw new IllegalArgumentException("targetLongEdge must be at least 1");
+        }
+        if (byteBudget < BYTES_PER_PIXEL) {
+            throw new IllegalArgumentException("byteBudget is too small");
+        }
+        this.targetLongEdge = targetLongEdge;
+        this.byteBudget = byteBudget;
+    }
+
+    Bitmap decode(final ContentResolver contentResolver, final Uri uri) throws IOException {
+        return decode(new StreamOpener() {
+            @Override
+            public InputStream open() throws IOException {
+                InputStream in = contentResolver.openInputStream(uri);
+                if (in == null) {
+                    throw new IOException("Unable to open " + uri);
+                }
+                return in;
+            }
+        });
+    }
+
+    Bitmap decode(final AssetManager assetManager, final String path) throws IOException {
+        return decode(new StreamOpener() {
+            @Override
+            public InputStream open() throws IOException {
+                return assetManager.open(path);
+            }
+        });
+    }
+
+    /**
+     * @throws IOException if the image could not be read or decoded
+     */
+    Bitmap decode(StreamOpener opener) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(opener, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Unable to read the size of the image");
+        }
+
+        int sampleSize = getSampleSize(options.outWidth, options.outHeight);
+        // the decoder rounds each dimension up
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        options.inBitmap = takeReusable((long) width * height * BYTES_PER_PIXEL);
+        Bitmap bitmap;
+        try {
+            bitmap = decodeStream(opener, options);
+        } catch (IllegalArgumentException e) {
+            // the bitmap offered for reuse did not suit this image after all
+            Log.w(LOG_TAG, "Unable to reuse a bitmap", e);
+            recycle(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = decodeStream(opener, options);
+        }
+        if (bitmap == null) {
+            throw new IOException("Unable to decode the image");
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns the source rotated by a multiple of 90 degrees, drawn into a reusable bitmap where there is one, and
+     * recycles the source.
+     */
+    Bitmap rotate(Bitmap source, int degrees) {
+        degrees = ((degrees % 360) + 360) % 360;
+        if (degrees == 0) {
+            return source;
+        }
+        if (degrees % 90 != 0) {
+            throw new IllegalArgumentException("degrees must be a multiple of 90");
+        }
+        boolean quarterTurn = degrees == 90 || degrees == 270;
+        int width = quarterTurn ? source.getHeight() : source.getWidth();
+        int height = quarterTurn ? source.getWidth() : source.getHeight();
+
+        Bitmap rotated = takeReusable((long) width * height * BYTES_PER_PIXEL);
+        if (rotated != null) {
+            rotated.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        } else {
+            rotated = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        Matrix matrix = new Matrix();
+        setRotation(matrix, degrees, source.getWidth(), source.getHeight());
+        new Canvas(rotated).drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        recycle(source);
+        return rotated;
+    }
+
+    /**
+     * Sets matrix to the transform which rotates a width x height image by a multiple of 90 degrees (clockwise for
+     * positive degrees), mapping it back onto the origin: the transform used by rotate(), for mapping coordinates in the
+     * source onto the rotated bitmap.
+     */
+    static void setRotation(Matrix matrix, int degrees, int width, int height) {
+        degrees = ((degrees % 360) + 360) % 360;
+        // rotate about the origin, then move the result back into view
+        matrix.setRotate(degrees);
+        switch (degrees) {
+            case 0:
+                break;
+            case 90:
+                matrix.postTranslate(height, 0);
+                break;
+            case 180:
+                matrix.postTranslate(width, height);
+                break;
+            case 270:
+                matrix.postTranslate(0, width);
+                break;
+            default:
+                throw new IllegalArgumentException("degrees must be a multiple of 90");
+        }
+    }
+
+    /**
+     * Hands back a bitmap which is no longer used, for reuse if there is room within the budget. The caller must not
+     * use the bitmap afterwards.
+     */
+    void recycle(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        long size = bitmap.getAllocationByteCount();
+        synchronized (this) {
+            if (bitmap.isMutable() && bitmap.getConfig() == Bitmap.Config.ARGB_8888
+                    && reusableBytes + size <= byteBudget && !reusable.contains(bitmap)) {
+                reusable.add(bitmap);
+                reusableBytes += size;
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    /**
+     * Recycles every reusable bitmap.
+     */
+    synchronized void clear() {
+        for (Bitmap bitmap : reusable) {
+            bitmap.recycle();
+        }
+        reusable.clear();
+        reusableBytes = 0;
+    }
+
+    /*
+     * The largest power of two which keeps the long edge at or above targetLongEdge, raised if need be to fit the
+     * budget.
+     */
+    int getSampleSize(int width, int height) {
+        int longEdge = Math.max(width, height);
+        int sampleSize = 1;
+        while (longEdge / (sampleSize * 2) >= targetLongEdge) {
+            sampleSize *= 2;
+        }
+        while ((long) ((width + sampleSize - 1) / sampleSize) * ((height + sampleSize - 1) / sampleSize)
+                * BYTES_PER_PIXEL > byteBudget) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /*
+     * Takes the smallest reusable bitmap with room for the given number of bytes, if any.
+     */
+    private synchronized Bitmap takeReusable(long bytes) {
+        Bitmap best = null;
+        for (Bitmap bitmap : reusable) {
+            if (bitmap.getAllocationByteCount() >= bytes
+                    && (best == null || bitmap.getAllocationByteCount() < best.getAllocationByteCount())) {
+                best = bitmap;
+            }
+        }
+        if (best != null) {
+            reusable.remove(best);
+            reusableBytes -= best.getAllocationByteCount();
+        }
+        return best;
+    }
+
+    private static Bitmap decodeStream(StreamOpener opener, BitmapFactory.Options options) throws IOException {
+        InputStream in = opener.open();
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -37,6 +37,10 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback{
         private final long drawPeriod = 33; //draw at 30 fps
         Paint circlePaint;
         Frame initialFrame;
+        private final YuvConverter yuvConverter = new YuvConverter(1); // converts on this thread
+        // NV21 frames are converted into these, which are kept while the frames keep being drawn at the same size
+        private int[] nv21Argb;
+        private Bitmap nv21Bitmap;
 
         public DrawingThread(SurfaceHolder surfaceHolder, Frame initialFrame) {
             mSurfaceHolder = surfaceHolder;
@@ -123,9 +127,12 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback{
 
 
 
+            boolean isNv21 = frame instanceof Frame.ByteArrayFrame && frame.getColorFormat() == Frame.COLOR_FORMAT.YUV_NV21;
             if (frame instanceof Frame.BitmapFrame) {
                 bitmap = ((Frame.BitmapFrame)frame).getBitmap();
-            } else { //frame is ByteArrayFrame
+            } else if (isNv21) {
+                bitmap = null; // converted, rotated and scaled in one pass below
+            } else { //frame is an RGBA ByteArrayFrame
                 byte[] pixels = ((Frame.ByteArrayFrame)frame).getByteArray();
                 ByteBuffer buffer = ByteBuffer.wrap(pixels);
                 bitmap = Bitmap.createBitmap(frameWidth, frameHeight, Bitmap.Config.ARGB_8888);
@@ -152,10 +159,22 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback{
 
             float scaling = (float)scaledWidth/(float)frameWidth;
 
-            Matrix matrix = new Matrix();
-            matrix.postRotate((float)frameRot.toDouble());
-            Bitmap rotatedBitmap = Bitmap.createBitmap(bitmap,0,0,frameWidth,frameHeight,matrix,false);
-            c.drawBitmap(rotatedBitmap,null,new Rect(leftOffset,topOffset,leftOffset+scaledWidth,topOffset+scaledHeight),null);
+            if (isNv21) {
+                if (nv21Bitmap == null || nv21Bitmap.getWidth() != scaledWidth
+                        || nv21Bitmap.getHeight() != scaledHeight) {
+                    nv21Argb = new int[scaledWidth * scaledHeight];
+                    nv21Bitmap = Bitmap.createBitmap(scaledWidth, scaledHeight, Bitmap.Config.ARGB_8888);
+                }
+                yuvConverter.nv21ToArgbRotatedScaled(((Frame.ByteArrayFrame)frame).getByteArray(), frame.getWidth(),
+                        frame.getHeight(), frameRot, scaledWidth, scaledHeight, nv21Argb);
+                nv21Bitmap.setPixels(nv21Argb, 0, scaledWidth, 0, 0, scaledWidth, scaledHeight);
+                c.drawBitmap(nv21Bitmap, leftOffset, topOffset, null);
+            } else {
+                Matrix matrix = new Matrix();
+                matrix.postRotate((float)frameRot.toDouble());
+                Bitmap rotatedBitmap = Bitmap.createBitmap(bitmap,0,0,frameWidth,frameHeight,matrix,false);
+                c.drawBitmap(rotatedBitmap,null,new Rect(leftOffset,topOffset,leftOffset+scaledWidth,topOffset+scaledHeight),null);
+            }
 
 
             if (nextPointsToDraw != null) {
@@ -0,0 +1,309 @@
+package com.affectiva.imagedetectordemo;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+/**
+ * The value of every metric for a single face, held in a float[] indexed by the MetricsManager metric codes.
+ *
+ * fill() reads every metric out of a Face in one pass, through a table of accessors built once, rather than switching
+ * on each metric code. Scores and measurements are stored as they are; appearances are stored as the ordinal of the
+ * SDK's value (e.g. Face.GENDER.FEMALE.ordinal()), or NaN if the SDK did not report one.
+ *
+ * A snapshot is intended to be reused from image to image, and is not thread-safe.
+ *
+ * FrameDetectorDemo and VideoDetectorDemo have their own copies of this class, keyed by their Metrics enums rather than
+ * by the MetricsManager codes. A metric added to the SDK needs an accessor in each copy.
+ */
+class FaceMetricsSnapshot {
+
+    private static abstract class Accessor {
+        abstract float read(Face face);
+    }
+
+    static final int METRIC_COUNT = MetricsManager.getTotalNumMetrics();
+
+    private static final Accessor[] ACCESSORS = new Accessor[METRIC_COUNT];
+
+    static {
+        ACCESSORS[MetricsManager.ANGER] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getAnger();
+            }
+        };
+        ACCESSORS[MetricsManager.DISGUST] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getDisgust();
+            }
+        };
+        ACCESSORS[MetricsManager.FEAR] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getFear();
+            }
+        };
+        ACCESSORS[MetricsManager.JOY] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getJoy();
+            }
+        };
+        ACCESSORS[MetricsManager.SADNESS] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getSadness();
+            }
+        };
+        ACCESSORS[MetricsManager.SURPRISE] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getSurprise();
+            }
+        };
+        ACCESSORS[MetricsManager.CONTEMPT] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getContempt();
+            }
+        };
+        ACCESSORS[MetricsManager.ENGAGEMENT] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getEngagement();
+            }
+        };
+        ACCESSORS[MetricsManager.VALENCE] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getValence();
+            }
+        };
+        ACCESSORS[MetricsManager.ATTENTION] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getAttention();
+            }
+        };
+        ACCESSORS[MetricsManager.BROW_FURROW] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getBrowFurrow();
+            }
+        };
+        ACCESSORS[MetricsManager.BROW_RAISE] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getBrowRaise();
+            }
+        };
+        ACCESSORS[MetricsManager.CHEEK_RAISE] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getCheekRaise();
+            }
+        };
+        ACCESSORS[MetricsManager.CHIN_RAISE] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getChinRaise();
+            }
+        };
+        ACCESSORS[MetricsManager.DIMPLER] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getDimpler();
+            }
+        };
+        ACCESSORS[MetricsManager.EYE_CLOSURE] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getEyeClosure();
+            }
+        };
+        ACCESSORS[MetricsManager.EYE_WIDEN] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getEyeWiden();
+            }
+        };
+        ACCESSORS[MetricsManager.INNER_BROW_RAISE] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getInnerBrowRaise();
+            }
+        };
+        ACCESSORS[MetricsManager.JAW_DROP] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getJawDrop();
+            }
+        };
+        ACCESSORS[MetricsManager.LID_TIGHTEN] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getLidTighten();
+            }
+        };
+        ACCESSORS[MetricsManager.LIP_DEPRESSOR] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getLipCornerDepressor();
+            }
+        };
+        ACCESSORS[MetricsManager.LIP_PRESS] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getLipPress();
+            }
+        };
+        ACCESSORS[MetricsManager.LIP_PUCKER] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getLipPucker();
+            }
+        };
+        ACCESSORS[MetricsManager.LIP_STRETCH] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getLipStretch();
+            }
+        };
+        ACCESSORS[MetricsManager.LIP_SUCK] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getLipSuck();
+            }
+        };
+        ACCESSORS[MetricsManager.MOUTH_OPEN] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getMouthOpen();
+            }
+        };
+        ACCESSORS[MetricsManager.NOSE_WRINKLE] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getNoseWrinkle();
+            }
+        };
+        ACCESSORS[MetricsManager.SMILE] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getSmile();
+            }
+        };
+        ACCESSORS[MetricsManager.SMIRK] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getSmirk();
+            }
+        };
+        ACCESSORS[MetricsManager.UPPER_LIP_RAISE] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getUpperLipRaise();
+            }
+        };
+        ACCESSORS[MetricsManager.YAW] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.measurements.orientation.getYaw();
+            }
+        };
+        ACCESSORS[MetricsManager.PITCH] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.measurements.orientation.getPitch();
+            }
+        };
+        ACCESSORS[MetricsManager.ROLL] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.measurements.orientation.getRoll();
+            }
+        };
+        ACCESSORS[MetricsManager.INTER_OCULAR_DISTANCE] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.measurements.getInterocularDistance();
+            }
+        };
+        ACCESSORS[MetricsManager.BRIGHTNESS] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.qualities.getBrightness();
+            }
+        };
+        ACCESSORS[MetricsManager.GENDER] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return ordinalOf(face.appearance.getGender());
+            }
+        };
+        ACCESSORS[MetricsManager.AGE] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return ordinalOf(face.appearance.getAge());
+            }
+        };
+        ACCESSORS[MetricsManager.ETHNICITY] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return ordinalOf(face.appearance.getEthnicity());
+            }
+        };
+    }
+
+    private final float[] values = new float[METRIC_COUNT];
+    private boolean hasFace;
+    private int faceId;
+
+    FaceMetricsSnapshot() {
+        clear();
+    }
+
+    /**
+     * Copies the value of every metric out of the given face.
+     */
+    void fill(Face face) {
+        for (int i = 0; i < METRIC_COUNT; i++) {
+            values[i] = ACCESSORS[i] == null ? Float.NaN : ACCESSORS[i].read(face);
+        }
+        faceId = face.getId();
+        hasFace = true;
+    }
+
+    /**
+     * Sets every metric to NaN, e.g. when no face was found.
+     */
+    void clear() {
+        for (int i = 0; i < METRIC_COUNT; i++) {
+            values[i] = Float.NaN;
+        }
+        faceId = -1;
+        hasFace = false;
+    }
+
+    boolean hasFace() {
+        return hasFace;
+    }
+
+    /**
+     * Returns the SDK's id of the face this snapshot was filled from, if hasFace().
+     */
+    int getFaceId() {
+        return faceId;
+    }
+
+    /**
+     * Returns the value of a metric, given its MetricsManager code.
+     */
+    float get(int metricCode) {
+        return values[metricCode];
+    }
+
+    private static float ordinalOf(Enum<?> value) {
+        return value == null ? Float.NaN : value.ordinal();
+    }
+}
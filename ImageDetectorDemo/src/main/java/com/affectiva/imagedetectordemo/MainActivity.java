@@ -1,11 +1,11 @@
 package com.affectiva.imagedetectordemo;
 
 import android.app.Activity;
+import android.content.ClipData;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
@@ -14,7 +14,6 @@ import android.graphics.PointF;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
-import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
@@ -27,37 +26,65 @@ import com.affectiva.android.affdex.sdk.detector.Detector;
 import com.affectiva.android.affdex.sdk.detector.Face;
 import com.affectiva.android.affdex.sdk.detector.PhotoDetector;
 
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 /**
  * A sample app showing how to use ImageDetector.
  *
- * This app is not a production release and is known to have bugs. Specifically, the UI thread is blocked while the image is being processed,
- * and the app will crash if the user tries loading a very large image.
+ * This app is not a production release and is known to have bugs. Specifically, the UI thread is blocked while the image is being processed.
+ * Images are decoded at about the resolution the detector needs (see BitmapDecoder), so that very large images fit in memory.
  *
  * For some images, facial tracking dots will not appear in the correct location.
  *
  * Also, the UI element that displays metrics is not aesthetic.
  *
+ * "BATCH..." scores a set of images with BatchImageAnalyzer, writing the results to a CSV file in the app's external
+ * files directory.
+ *
  */
-public class MainActivity extends Activity implements Detector.ImageListener {
+public class MainActivity extends Activity implements Detector.ImageListener, BatchImageAnalyzer.Listener {
 
     public static final String LOG_TAG = "Affectiva";
     public static final int PICK_IMAGE = 100;
+    public static final int PICK_BATCH = 101;
 
     ImageView imageView;
     TextView[] metricScoreTextViews;
+    final FaceMetricsSnapshot faceMetrics = new FaceMetricsSnapshot();
+    final YuvConverter yuvConverter = new YuvConverter(1); // converts on the calling thread
+    // NV21 frames are converted into these, which are kept while the frames keep being drawn at the same size
+    int[] nv21Argb;
+    Bitmap nv21Bitmap;
 
     LinearLayout metricsContainer;
 
 
     PhotoDetector detector;
+    final BitmapDecoder bitmapDecoder = new BitmapDecoder(BitmapDecoder.DEFAULT_TARGET_LONG_EDGE,
+            BitmapDecoder.DEFAULT_BYTE_BUDGET);
     Bitmap bitmap = null;
     Frame.BitmapFrame frame;
 
+    // the last detection's face points, in the coordinates of the current bitmap. Rotating the image does not change
+    // its faces, so rotation transforms these (and the bitmap) rather than detecting again.
+    boolean hasDetectionResult = false;
+    float[] landmarks = new float[0]; // x, y of each point
+    PointF[] landmarkPoints = new PointF[0];
+    int landmarkCount = 0;
+    final Matrix landmarkTransform = new Matrix();
+    final Paint circlePaint = new Paint();
+
+    // kept for the life of the activity, so that every batch reuses the same started detectors
+    PhotoDetectorPool detectorPool;
+    BatchImageAnalyzer batchAnalyzer;
+    TextView batchStatus;
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -99,6 +126,14 @@ public class MainActivity extends Activity implements Detector.ImageListener {
     protected void onDestroy() {
         super.onDestroy();
         Log.e(LOG_TAG, "onDestroy");
+        if (batchAnalyzer != null) {
+            batchAnalyzer.cancel();
+        }
+        if (detectorPool != null) {
+            detectorPool.shutdown();
+            detectorPool = null;
+        }
+        bitmapDecoder.clear();
     }
 
     @Override
@@ -120,28 +155,18 @@ public class MainActivity extends Activity implements Detector.ImageListener {
         MetricsPanelCreator.populateMetricsContainer(metricsContainer,metricScoreTextViews,this);
 
         imageView = (ImageView) findViewById(R.id.image_view);
+        batchStatus = (TextView) findViewById(R.id.batch_status);
     }
 
 
 
     public Bitmap getBitmapFromAsset(Context context, String filePath) throws IOException {
         AssetManager assetManager = context.getAssets();
-
-        InputStream istr;
-        Bitmap bitmap;
-        istr = assetManager.open(filePath);
-        bitmap = BitmapFactory.decodeStream(istr);
-
-        return bitmap;
+        return bitmapDecoder.decode(assetManager, filePath);
     }
 
-    public Bitmap getBitmapFromUri(Uri uri) throws FileNotFoundException {
-        InputStream istr;
-        Bitmap bitmap;
-        istr = getContentResolver().openInputStream(uri);
-        bitmap = BitmapFactory.decodeStream(istr);
-
-        return bitmap;
+    public Bitmap getBitmapFromUri(Uri uri) throws IOException {
+        return bitmapDecoder.decode(getContentResolver(), uri);
     }
 
     public void select_new_image(View view) {
@@ -151,20 +176,70 @@ public class MainActivity extends Activity implements Detector.ImageListener {
         startActivityForResult(gallery, PICK_IMAGE);
     }
 
+    public void select_batch(View view) {
+        if (batchAnalyzer != null && batchAnalyzer.isRunning()) {
+            batchAnalyzer.cancel();
+            return;
+        }
+        Intent gallery = new Intent(Intent.ACTION_GET_CONTENT);
+        gallery.setType("image/*");
+        gallery.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+        startActivityForResult(gallery, PICK_BATCH);
+    }
+
+    void startBatch(List<Uri> images) {
+        if (detectorPool == null) {
+            int size = PhotoDetectorPool.getDefaultSize();
+            detectorPool = new PhotoDetectorPool(this, size, 1, size);
+            detectorPool.start();
+        }
+        if (batchAnalyzer == null) {
+            batchAnalyzer = new BatchImageAnalyzer(this, detectorPool, this);
+        }
+        File output = new File(getExternalFilesDir(null), "batch-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".csv");
+        try {
+            batchAnalyzer.start(images, output);
+            batchStatus.setText(String.format(Locale.US, "0/%d", images.size()));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to create " + output, e);
+            Toast.makeText(this, "Unable to create results file.", Toast.LENGTH_LONG).show();
+        }
+    }
+
+    @Override
+    public void onBatchProgress(int completed, int total) {
+        batchStatus.setText(String.format(Locale.US, "%d/%d", completed, total));
+    }
+
+    @Override
+    public void onBatchFinished(File output, int completed, int failed, boolean cancelled) {
+        batchStatus.setText(String.format(Locale.US, "%s: %d scored, %d unreadable", cancelled ? "Cancelled" : "Done",
+                completed - failed, failed));
+        Toast.makeText(this, "Results written to " + output, Toast.LENGTH_LONG).show();
+    }
+
+    @Override
+    public void onBatchFailed(IOException error) {
+        batchStatus.setText("Failed");
+        Toast.makeText(this, "Unable to write results: " + error.getMessage(), Toast.LENGTH_LONG).show();
+    }
+
     void setAndProcessBitmap(Frame.ROTATE rotation, boolean isExpectingFaceDetection) {
         if (bitmap == null) {
             return;
         }
+        hasDetectionResult = false;
 
         switch (rotation) {
             case BY_90_CCW:
-                bitmap = Frame.rotateImage(bitmap,-90);
+                bitmap = bitmapDecoder.rotate(bitmap,-90);
                 break;
             case BY_90_CW:
-                bitmap = Frame.rotateImage(bitmap,90);
+                bitmap = bitmapDecoder.rotate(bitmap,90);
                 break;
             case BY_180:
-                bitmap = Frame.rotateImage(bitmap,180);
+                bitmap = bitmapDecoder.rotate(bitmap,180);
                 break;
             default:
                 //keep bitmap as it is
@@ -207,9 +282,12 @@ public class MainActivity extends Activity implements Detector.ImageListener {
         int leftOffset= 0;
         float radius = (float)canvasWidth/100f;
 
+        boolean isNv21 = frame instanceof Frame.ByteArrayFrame && frame.getColorFormat() == Frame.COLOR_FORMAT.YUV_NV21;
         if (frame instanceof Frame.BitmapFrame) {
             bitmap = ((Frame.BitmapFrame)frame).getBitmap();
-        } else { //frame is ByteArrayFrame
+        } else if (isNv21) {
+            bitmap = null; // converted, rotated and scaled in one pass below
+        } else { //frame is an RGBA ByteArrayFrame
             byte[] pixels = ((Frame.ByteArrayFrame)frame).getByteArray();
             ByteBuffer buffer = ByteBuffer.wrap(pixels);
             bitmap = Bitmap.createBitmap(frameWidth, frameHeight, Bitmap.Config.ARGB_8888);
@@ -234,12 +312,24 @@ public class MainActivity extends Activity implements Detector.ImageListener {
             leftOffset = (canvasWidth - scaledWidth)/2;
         }
 
-        float scaling = (float)scaledWidth/(float)frame.getOriginalBitmapFrame().getWidth();
+        float scaling = (float)scaledWidth/(float)frameWidth;
 
-        Matrix matrix = new Matrix();
-        matrix.postRotate((float)frameRot.toDouble());
-        Bitmap rotatedBitmap = Bitmap.createBitmap(bitmap,0,0,frameWidth,frameHeight,matrix,false);
-        c.drawBitmap(rotatedBitmap,null,new Rect(leftOffset,topOffset,leftOffset+scaledWidth,topOffset+scaledHeight),null);
+        if (isNv21) {
+            if (nv21Bitmap == null || nv21Bitmap.getWidth() != scaledWidth
+                    || nv21Bitmap.getHeight() != scaledHeight) {
+                nv21Argb = new int[scaledWidth * scaledHeight];
+                nv21Bitmap = Bitmap.createBitmap(scaledWidth, scaledHeight, Bitmap.Config.ARGB_8888);
+            }
+            yuvConverter.nv21ToArgbRotatedScaled(((Frame.ByteArrayFrame)frame).getByteArray(), frame.getWidth(),
+                    frame.getHeight(), frameRot, scaledWidth, scaledHeight, nv21Argb);
+            nv21Bitmap.setPixels(nv21Argb, 0, scaledWidth, 0, 0, scaledWidth, scaledHeight);
+            c.drawBitmap(nv21Bitmap, leftOffset, topOffset, null);
+        } else {
+            Matrix matrix = new Matrix();
+            matrix.postRotate((float)frameRot.toDouble());
+            Bitmap rotatedBitmap = Bitmap.createBitmap(bitmap,0,0,frameWidth,frameHeight,matrix,false);
+            c.drawBitmap(rotatedBitmap,null,new Rect(leftOffset,topOffset,leftOffset+scaledWidth,topOffset+scaledHeight),null);
+        }
 
 
         if (points != null) {
@@ -267,7 +357,10 @@ public class MainActivity extends Activity implements Detector.ImageListener {
 
             Uri imageUri = data.getData();
             try {
-                bitmap = MediaStore.Images.Media.getBitmap(getContentResolver(),imageUri);
+                Bitmap decoded = getBitmapFromUri(imageUri);
+                // the previous image is only referenced by the previous frame, which is done with
+                bitmapDecoder.recycle(bitmap);
+                bitmap = decoded;
 
             } catch (IOException e) {
                 Toast.makeText(this,"Unable to open image.",Toast.LENGTH_LONG).show();
@@ -275,17 +368,54 @@ public class MainActivity extends Activity implements Detector.ImageListener {
 
             setAndProcessBitmap(Frame.ROTATE.NO_ROTATION, true);
 
+        } else if (resultCode == RESULT_OK && requestCode == PICK_BATCH) {
+
+            List<Uri> images = new ArrayList<>();
+            ClipData clipData = data.getClipData();
+            if (clipData != null) {
+                for (int i = 0; i < clipData.getItemCount(); i++) {
+                    images.add(clipData.getItemAt(i).getUri());
+                }
+            } else if (data.getData() != null) {
+                images.add(data.getData());
+            }
+            startBatch(images);
+
         } else {
             Toast.makeText(this,"No image selected.",Toast.LENGTH_LONG).show();
         }
     }
 
     public void rotate_left(View view) {
-        setAndProcessBitmap(Frame.ROTATE.BY_90_CCW, true);
+        rotateImage(-90);
     }
 
     public void rotate_right(View view) {
-        setAndProcessBitmap(Frame.ROTATE.BY_90_CW,true);
+        rotateImage(90);
+    }
+
+    /**
+     * Rotates the image and the face points found in it, and redraws it. Only detects again if there is no result for
+     * the image yet.
+     */
+    void rotateImage(int degrees) {
+        if (bitmap == null) {
+            return;
+        }
+        if (!hasDetectionResult) {
+            setAndProcessBitmap(degrees < 0 ? Frame.ROTATE.BY_90_CCW : Frame.ROTATE.BY_90_CW, true);
+            return;
+        }
+
+        BitmapDecoder.setRotation(landmarkTransform, degrees, bitmap.getWidth(), bitmap.getHeight());
+        landmarkTransform.mapPoints(landmarks, 0, landmarks, 0, landmarkCount);
+        for (int i = 0; i < landmarkCount; i++) {
+            landmarkPoints[i].set(landmarks[2 * i], landmarks[2 * i + 1]);
+        }
+
+        bitmap = bitmapDecoder.rotate(bitmap, degrees);
+        frame = new Frame.BitmapFrame(bitmap, Frame.COLOR_FORMAT.UNKNOWN_TYPE);
+        drawResult(frame, landmarkCount > 0 ? landmarkPoints : null);
     }
 
     @Override
@@ -302,8 +432,31 @@ public class MainActivity extends Activity implements Detector.ImageListener {
                 metricScoreTextViews[n].setText("---");
             }
         }
+        cacheLandmarks(points);
+
+        drawResult(image, points);
+    }
+
+    private void cacheLandmarks(PointF[] points) {
+        landmarkCount = points == null ? 0 : points.length;
+        if (landmarks.length < landmarkCount * 2) {
+            landmarks = new float[landmarkCount * 2];
+        }
+        if (landmarkPoints.length != landmarkCount) {
+            landmarkPoints = new PointF[landmarkCount];
+            for (int i = 0; i < landmarkCount; i++) {
+                landmarkPoints[i] = new PointF();
+            }
+        }
+        for (int i = 0; i < landmarkCount; i++) {
+            landmarks[2 * i] = points[i].x;
+            landmarks[2 * i + 1] = points[i].y;
+            landmarkPoints[i].set(points[i].x, points[i].y);
+        }
+        hasDetectionResult = true;
+    }
 
-        Paint circlePaint = new Paint();
+    private void drawResult(Frame image, PointF[] points) {
         circlePaint.setColor(Color.RED);
         Bitmap imageBitmap = drawCanvas(imageView.getWidth(),imageView.getHeight(),points,image,circlePaint);
         if (imageBitmap != null)
@@ -312,8 +465,9 @@ public class MainActivity extends Activity implements Detector.ImageListener {
 
     private void setMetricTextViewText(Face face) {
         // set the text for all the numeric metrics (scored or measured)
+        faceMetrics.fill(face);
         for (int n = 0; n < MetricsManager.getTotalNumNumericMetrics(); n++) {
-            metricScoreTextViews[n].setText(String.format("%.3f", getScore(n, face)));
+            metricScoreTextViews[n].setText(String.format("%.3f", faceMetrics.get(n)));
         }
 
         // set the text for the appearance metrics
@@ -381,121 +535,4 @@ public class MainActivity extends Activity implements Detector.ImageListener {
         }
         metricScoreTextViews[MetricsManager.ETHNICITY].setText(textValue);
     }
-
-    float getScore(int metricCode, Face face) {
-
-        float score;
-
-        switch (metricCode) {
-            case MetricsManager.ANGER:
-                score = face.emotions.getAnger();
-                break;
-            case MetricsManager.CONTEMPT:
-                score = face.emotions.getContempt();
-                break;
-            case MetricsManager.DISGUST:
-                score = face.emotions.getDisgust();
-                break;
-            case MetricsManager.FEAR:
-                score = face.emotions.getFear();
-                break;
-            case MetricsManager.JOY:
-                score = face.emotions.getJoy();
-                break;
-            case MetricsManager.SADNESS:
-                score = face.emotions.getSadness();
-                break;
-            case MetricsManager.SURPRISE:
-                score = face.emotions.getSurprise();
-                break;
-            case MetricsManager.ATTENTION:
-                score = face.expressions.getAttention();
-                break;
-            case MetricsManager.BROW_FURROW:
-                score = face.expressions.getBrowFurrow();
-                break;
-            case MetricsManager.BROW_RAISE:
-                score = face.expressions.getBrowRaise();
-                break;
-            case MetricsManager.CHEEK_RAISE:
-                score = face.expressions.getCheekRaise();
-                break;
-            case MetricsManager.CHIN_RAISE:
-                score = face.expressions.getChinRaise();
-                break;
-            case MetricsManager.DIMPLER:
-                score = face.expressions.getDimpler();
-                break;
-            case MetricsManager.ENGAGEMENT:
-                score = face.emotions.getEngagement();
-                break;
-            case MetricsManager.EYE_CLOSURE:
-                score = face.expressions.getEyeClosure();
-                break;
-            case MetricsManager.EYE_WIDEN:
-                score = face.expressions.getEyeWiden();
-                break;
-            case MetricsManager.INNER_BROW_RAISE:
-                score = face.expressions.getInnerBrowRaise();
-                break;
-            case MetricsManager.JAW_DROP:
-                score = face.expressions.getJawDrop();
-                break;
-            case MetricsManager.LID_TIGHTEN:
-                score = face.expressions.getLidTighten();
-                break;
-            case MetricsManager.LIP_DEPRESSOR:
-                score = face.expressions.getLipCornerDepressor();
-                break;
-            case MetricsManager.LIP_PRESS:
-                score = face.expressions.getLipPress();
-                break;
-            case MetricsManager.LIP_PUCKER:
-                score = face.expressions.getLipPucker();
-                break;
-            case MetricsManager.LIP_STRETCH:
-                score = face.expressions.getLipStretch();
-                break;
-            case MetricsManager.LIP_SUCK:
-                score = face.expressions.getLipSuck();
-                break;
-            case MetricsManager.MOUTH_OPEN:
-                score = face.expressions.getMouthOpen();
-                break;
-            case MetricsManager.NOSE_WRINKLE:
-                score = face.expressions.getNoseWrinkle();
-                break;
-            case MetricsManager.SMILE:
-                score = face.expressions.getSmile();
-                break;
-            case MetricsManager.SMIRK:
-                score = face.expressions.getSmirk();
-                break;
-            case MetricsManager.UPPER_LIP_RAISE:
-                score = face.expressions.getUpperLipRaise();
-                break;
-            case MetricsManager.VALENCE:
-                score = face.emotions.getValence();
-                break;
-            case MetricsManager.YAW:
-                score = face.measurements.orientation.getYaw();
-                break;
-            case MetricsManager.ROLL:
-                score = face.measurements.orientation.getRoll();
-                break;
-            case MetricsManager.PITCH:
-                score = face.measurements.orientation.getPitch();
-                break;
-            case MetricsManager.INTER_OCULAR_DISTANCE:
-                score = face.measurements.getInterocularDistance();
-                break;
-            case MetricsManager.BRIGHTNESS:
-                score = face.qualities.getBrightness();
-                break;
-            default:
-                score = Float.NaN;
-                break;
-        }
-        return score;
-    }
 }
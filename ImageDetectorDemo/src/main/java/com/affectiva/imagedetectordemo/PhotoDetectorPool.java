@@ -0,0 +1,222 @@
+package com.affectiva.imagedetectordemo;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.Frame;
+import com.affectiva.android.affdex.sdk.detector.Detector;
+import com.affectiva.android.affdex.sdk.detector.Face;
+import com.affectiva.android.affdex.sdk.detector.PhotoDetector;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of worker threads, each owning a PhotoDetector which it creates and starts once and then keeps running,
+ * so that processing an image costs only detection, not detector initialization.
+ *
+ * Each detector is confined to its worker thread. Workers take frames from a shared bounded queue, so submit() blocks
+ * when the workers are that far behind, which bounds how many decoded images can be waiting at once.
+ *
+ * A worker whose detector fails to start logs the failure and quits, leaving the frames to the others. If every one of
+ * them fails, the pool has failed: frames already queued are handed back through Callback.onFailed(), and submit()
+ * throws from then on, so that it can never block on a queue which nothing will take from. Likewise, once the last
+ * worker has stopped after shutdown(), a frame which a racing submit() still queued is handed back, not left waiting.
+ * A frame which the detector throws on is handed back too, rather than reported as having no faces.
+ */
+class PhotoDetectorPool {
+
+    interface Callback {
+        /**
+         * Called on a worker thread once the frame has been processed.
+         * @param faces the faces found, or null if the detector reported no results
+         */
+        void onDetected(Frame frame, List<Face> faces);
+
+        /**
+         * Called instead of onDetected() if the frame could not be processed, because the detector threw on it or the
+         * pool has failed or been shut down, on a worker thread or the thread which submitted it.
+         */
+        void onFailed(Frame frame);
+    }
+
+    private static final String LOG_TAG = "PhotoDetectorPool";
+    private static final int MAX_DEFAULT_SIZE = 2;
+
+    private final Context context;
+    private final int size;
+    private final int maxFaces;
+    private final BlockingQueue<Job> jobs;
+    private volatile Worker[] workers; // null once shutdown() has been called, which may be on another thread
+    private final AtomicInteger liveWorkers = new AtomicInteger(); // workers which started a detector and still run
+    private volatile RuntimeException failure; // why the last detector failed to start, once they all have
+
+    /**
+     * @param size the number of detectors
+     * @param queueCapacity the number of frames which may wait for a detector before submit() blocks
+     */
+    PhotoDetectorPool(Context context, int size, int maxFaces, int queueCapacity) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1");
+        }
+        this.context = context.getApplicationContext();
+        this.size = size;
+        this.maxFaces = maxFaces;
+        jobs = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Returns a detector per core, leaving one core for decoding, up to a small limit since each detector holds its
+     * own models in memory.
+     */
+    static int getDefaultSize() {
+        return Math.max(1, Math.min(MAX_DEFAULT_SIZE, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Starts the worker threads, each of which creates and starts its detector.
+     */
+    void start() {
+        if (workers != null) {
+            throw new IllegalStateException("PhotoDetectorPool is already started");
+        }
+        workers = new Worker[size];
+        liveWorkers.set(size);
+        for (int i = 0; i < size; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues a frame for the next free detector, blocking while the queue is full. If the pool fails, or is shut down
+     * and stops before a detector takes the frame, it is handed back through callback.onFailed().
+     * @throws IllegalStateException if the pool is not started, has been shut down, or has failed, in which case the
+     *                               frame was not queued
+     */
+    void submit(Frame frame, Callback callback) throws InterruptedException {
+        if (workers == null) {
+            throw new IllegalStateException("PhotoDetectorPool is not started");
+        }
+        if (failure != null) {
+            throw new IllegalStateException("No detector could be started", failure);
+        }
+        jobs.put(new Job(frame, callback));
+        if (liveWorkers.get() == 0) {
+            // the last worker may have failed, or stopped after a shutdown(), since the checks above, and emptied the
+            // queue before the frame went in
+            failQueuedJobs();
+        }
+    }
+
+
+    /**
+     * Stops each worker, and its detector, once the frames already queued have been processed.
+     */
+    void shutdown() {
+        if (workers == null) {
+            return;
+        }
+        for (Worker worker : workers) {
+            worker.stopRequested = true;
+            worker.interrupt(); // wakes it if it is waiting for a job; a job in progress is not interrupted
+        }
+        workers = null;
+    }
+
+    private void failQueuedJobs() {
+        Job job;
+        while ((job = jobs.poll()) != null) {
+            job.callback.onFailed(job.frame);
+        }
+    }
+
+    private static class Job {
+        final Frame frame;
+        final Callback callback;
+
+        Job(Frame frame, Callback callback) {
+            this.frame = frame;
+            this.callback = callback;
+        }
+    }
+
+    private class Worker extends Thread implements Detector.ImageListener {
+        volatile boolean stopRequested = false;
+        private List<Face> lastFaces;
+
+        Worker(int index) {
+            super("PhotoDetector-" + index);
+        }
+
+        @Override
+        public void run() {
+            PhotoDetector detector = new PhotoDetector(context, maxFaces, Detector.FaceDetectorMode.LARGE_FACES);
+            detector.setDetectAllEmotions(true);
+            detector.setDetectAllExpressions(true);
+            detector.setDetectAllAppearances(true);
+            detector.setImageListener(this);
+            try {
+                detector.start();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Unable to start " + getName(), e);
+                if (liveWorkers.decrementAndGet() == 0) {
+                    failure = e;
+                    failQueuedJobs();
+                }
+                return;
+            }
+            try {
+                while (true) {
+                    Job job = stopRequested ? jobs.poll() : takeJob();
+                    if (job == null) {
+                        break;
+                    }
+                    lastFaces = null;
+                    try {
+                        detector.process(job.frame);
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, "Unable to process frame", e);
+                        job.callback.onFailed(job.frame);
+                        continue;
+                    }
+                    // called after process() has returned, so the callback is free to recycle the frame's bitmap
+                    job.callback.onDetected(job.frame, lastFaces);
+                }
+            } finally {
+                if (detector.isRunning()) {
+                    detector.stop();
+                }
+                if (liveWorkers.decrementAndGet() == 0) {
+                    // frames submitted after the others stopped taking them
+                    failQueuedJobs();
+                }
+            }
+        }
+
+        private Job takeJob() {
+            try {
+                return jobs.take();
+            } catch (InterruptedException e) {
+                return jobs.poll(); // asked to stop; finish off whatever is still queued
+            }
+        }
+
+        /*
+         * Called on this thread, from within process().
+         */
+        @Override
+        public void onImageResults(List<Face> faces, Frame image, float timestamp) {
+            lastFaces = faces;
+        }
+    }
+}
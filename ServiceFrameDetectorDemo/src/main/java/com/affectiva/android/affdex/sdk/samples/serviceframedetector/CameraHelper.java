@@ -18,17 +18,27 @@ import android.view.Surface;
 import com.affectiva.android.affdex.sdk.Frame;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * The CameraHelper class encapsulates interaction with the Camera, including configuring and
  * coordinating previewing in a way that is optimized for use with FrameDetector.  Preview
- * frames are delivered through the Listener callback interface.
+ * frames are delivered through the Listener callback interface, on the thread which called
+ * acquire() (which must have a Looper).
  */
 @SuppressWarnings("deprecation")
 class CameraHelper {
     private static final String LOG_TAG = "CameraHelper";
     private static final float TARGET_FRAME_RATE = 30;
+    // one buffer being filled by the camera, one in the preview callback, one waiting for the detector and one
+    // being processed by it
+    private static final int DEFAULT_PREVIEW_BUFFER_COUNT = 4;
+    private static final int DEFAULT_PREVIEW_HEIGHT = 480;
+    // the range of preview heights offered to setPreviewHeight()
+    private static final int MIN_PREVIEW_HEIGHT = 240;
+    private static final int MAX_PREVIEW_HEIGHT = 1080;
+    private static final float ASPECT_RATIO_TOLERANCE = 0.02f;
     private SafeCamera safeCamera;
     private int displayRotation;
     private Listener listener = null;
@@ -37,8 +47,11 @@ class CameraHelper {
     private Frame.ROTATE frameRotation;
     private int previewWidth;
     private int previewHeight;
+    private List<Size> previewSizes; // of the preview's aspect ratio, in ascending order of height
+    private SurfaceTexture previewTexture;
     private OrientationHelper orientationHelper;
     private CameraPreviewer cameraPreviewer;
+    private final PreviewBufferPool previewBufferPool = new PreviewBufferPool(DEFAULT_PREVIEW_BUFFER_COUNT);
 
     public CameraHelper(@NonNull Context context, @NonNull Display display, @NonNull Listener listener) {
         if (!checkPermission(context)) {
@@ -58,6 +71,15 @@ class CameraHelper {
                 == PackageManager.PERMISSION_GRANTED;
     }
 
+    /**
+     * Returns the pool of preview callback buffers.  Listeners which keep a frame's byte[] beyond
+     * the end of onFrameAvailable() must retain() it from this pool, and release() it once they
+     * are done reading it.
+     */
+    public PreviewBufferPool getPreviewBufferPool() {
+        return previewBufferPool;
+    }
+
     /**
      * attempts to open the specified camera
      *
@@ -81,11 +103,69 @@ class CameraHelper {
             Camera.Parameters params = safeCamera.getParameters();
             previewWidth = params.getPreviewSize().width;
             previewHeight = params.getPreviewSize().height;
+            previewSizes = getPreviewSizesLike(params, previewWidth, previewHeight);
+            previewTexture = texture;
             setCameraDisplayOrientation();
             startPreviewing(texture);
         }
     }
 
+    /**
+     * Returns the preview heights which setPreviewHeight() can switch between, in ascending order, or null if the
+     * camera has not been started.
+     */
+    public int[] getSupportedPreviewHeights() {
+        if (previewSizes == null) {
+            return null;
+        }
+        int[] heights = new int[previewSizes.size()];
+        for (int i = 0; i < heights.length; i++) {
+            heights[i] = previewSizes.get(i).height;
+        }
+        return heights;
+    }
+
+    /**
+     * Returns the height of the camera's frames, before rotation.
+     */
+    public int getPreviewHeight() {
+        return previewHeight;
+    }
+
+    /**
+     * Switches the preview to the size of the given height (one of getSupportedPreviewHeights())
+     * and the current aspect ratio.  The preview is stopped, reconfigured and started again;
+     * frames which listeners still hold on to keep their buffers, which are not given back to the
+     * camera.  Does nothing unless previewing.
+     */
+    public void setPreviewHeight(int height) {
+        if (!isPreviewing || height == previewHeight) {
+            return;
+        }
+        Size size = null;
+        for (Size candidate : previewSizes) {
+            if (candidate.height == height) {
+                size = candidate;
+                break;
+            }
+        }
+        if (size == null) {
+            throw new IllegalArgumentException("unsupported preview height " + height);
+        }
+        Log.d(LOG_TAG, "restarting preview at " + size.width + "x" + size.height);
+
+        stopPreviewing();
+        // buffers of the old size must not go back to the camera
+        previewBufferPool.detach();
+        Camera.Parameters params = safeCamera.getParameters();
+        params.setPreviewSize(size.width, size.height);
+        safeCamera.setParameters(params);
+        previewWidth = size.width;
+        previewHeight = size.height;
+        setCameraDisplayOrientation(); // tells the listener of the new size
+        startPreviewing(previewTexture);
+    }
+
     /**
      * Stops and releases the camera.
      */
@@ -101,6 +181,7 @@ class CameraHelper {
      */
     public void release() {
         if (safeCamera != null) {
+            previewBufferPool.detach();
             safeCamera.release();
             safeCamera = null;
         }
@@ -116,11 +197,10 @@ class CameraHelper {
 
         int bufSize = size.width * size.height * bitsPerPixel / 8;
 
-        // add two buffers to the queue, so the camera can be working with one, while the callback is working with the
-        // other. The callback will put each buffer it receives back into the buffer queue when it's done, so the
-        // camera can use it again.
-        safeCamera.addCallbackBuffer(new byte[bufSize]);
-        safeCamera.addCallbackBuffer(new byte[bufSize]);
+        // add the pool's buffers to the queue, so the camera can be working with one, while the callback and the
+        // detector are working with others. Each buffer goes back into the buffer queue once its last lease has been
+        // released, so the camera can use it again.
+        previewBufferPool.attach(safeCamera, bufSize);
 
         safeCamera.setPreviewCallbackWithBuffer(cameraPreviewer);
     }
@@ -245,6 +325,10 @@ class CameraHelper {
     }
 
     public interface Listener {
+        /**
+         * @param frame the NV21 preview frame, which is handed back to the camera when this returns,
+         *              unless the listener has retained it from getPreviewBufferPool()
+         */
         void onFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation);
 
         void onFrameSizeSelected(int width, int height, Frame.ROTATE rotation);
@@ -264,7 +348,7 @@ class CameraHelper {
             */
 
         setOptimalPreviewFrameRate(cameraParams);
-        setOptimalPreviewSize(cameraParams, 480);
+        setOptimalPreviewSize(cameraParams, DEFAULT_PREVIEW_HEIGHT);
         safeCamera.setParameters(cameraParams);
     }
 
@@ -326,6 +410,34 @@ class CameraHelper {
         cameraParams.setPreviewSize(optimalSize.width, optimalSize.height);
     }
 
+    // Finds the supported preview sizes with the same aspect ratio as the given one, of a height the detector can make
+    // use of, one per height.
+    private static List<Size> getPreviewSizesLike(@NonNull Camera.Parameters cameraParams, int width, int height) {
+        List<Size> sizes = new ArrayList<>();
+        List<Size> supportedPreviewSizes = cameraParams.getSupportedPreviewSizes();
+        float aspectRatio = (float) width / height;
+        if (supportedPreviewSizes != null) {
+            for (Size size : supportedPreviewSizes) {
+                if (size.height < MIN_PREVIEW_HEIGHT || size.height > MAX_PREVIEW_HEIGHT
+                        || Math.abs((float) size.width / size.height - aspectRatio) > ASPECT_RATIO_TOLERANCE * aspectRatio) {
+                    continue;
+                }
+                int index = 0;
+                while (index < sizes.size() && sizes.get(index).height < size.height) {
+                    index++;
+                }
+                if (index == sizes.size() || sizes.get(index).height != size.height) {
+                    sizes.add(index, size);
+                }
+            }
+        }
+        if (sizes.isEmpty()) {
+            // the current size is always an option
+            sizes.add(cameraParams.getPreviewSize());
+        }
+        return sizes;
+    }
+
     private class OrientationHelper extends OrientationEventListener {
 
         private OrientationHelper(Context context) {
@@ -348,11 +460,13 @@ class CameraHelper {
     private class CameraPreviewer implements Camera.PreviewCallback {
         @Override
         public void onPreviewFrame(@NonNull byte[] data, @NonNull Camera camera) {
+            // hold a lease for the duration of the callback; listeners which keep the buffer take their own lease
+            previewBufferPool.retain(data);
             if (listener != null) {
                 listener.onFrameAvailable(data, previewWidth, previewHeight, frameRotation);
             }
-            // put the buffer back in the queue, so that it can be used again
-            camera.addCallbackBuffer(data);
+            // put the buffer back in the queue once nobody is reading it, so that it can be used again
+            previewBufferPool.release(data);
         }
     }
 }
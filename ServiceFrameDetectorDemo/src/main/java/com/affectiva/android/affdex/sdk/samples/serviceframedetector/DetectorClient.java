@@ -0,0 +1,203 @@
+package com.affectiva.android.affdex.sdk.samples.serviceframedetector;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Binds to DetectorService, subscribes to a set of metrics, and delivers them to a listener on
+ * the main thread.  The results are read from the service's MetricsRingBuffer once per display
+ * frame, so a client costs the service nothing per frame, however many clients there are.
+ *
+ * The client doesn't start the service; DemoApplication keeps it running while any Activity is
+ * started, and the client connects whenever it is running.
+ *
+ * Must be used on the main thread.
+ */
+class DetectorClient implements ServiceConnection, Choreographer.FrameCallback {
+
+    private final Context context;
+    private final long metrics;
+    private final MetricsRingReader.Listener listener;
+    private final Messenger replyMessenger;
+    private final Choreographer choreographer;
+
+    private boolean connected = false;
+    private Messenger service;
+    private MetricsRingReader reader;
+    private int clientIndex = -1;
+
+    /**
+     * @param metrics a mask of the metrics to subscribe to, as made by getMask()
+     */
+    DetectorClient(Context context, long metrics, MetricsRingReader.Listener listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener must not be null");
+        }
+        this.context = context.getApplicationContext();
+        this.metrics = metrics;
+        this.listener = listener;
+        replyMessenger = new Messenger(new ReplyHandler(this));
+        choreographer = Choreographer.getInstance();
+    }
+
+    static long getMask(Metrics... metrics) {
+        long mask = 0;
+        for (Metrics metric : metrics) {
+            mask |= 1L << metric.ordinal();
+        }
+        return mask;
+    }
+
+    /**
+     * Binds to the service, and subscribes once it is connected.
+     */
+    void connect() {
+        if (connected) {
+            return;
+        }
+        connected = true;
+        context.bindService(new Intent(context, DetectorService.class), this, 0);
+    }
+
+    /**
+     * Unsubscribes and unbinds.  No more results are delivered.
+     */
+    void disconnect() {
+        if (!connected) {
+            return;
+        }
+        connected = false;
+        if (clientIndex >= 0) {
+            unsubscribe();
+        }
+        // otherwise a subscription in flight is undone when its reply arrives
+        context.unbindService(this);
+    }
+
+    /**
+     * Returns the number of published results this client has yet to read.
+     */
+    long getLag() {
+        return reader == null ? 0 : reader.getLag();
+    }
+
+    /**
+     * Returns the number of results overwritten before this client could read them.
+     */
+    long getDroppedCount() {
+        return reader == null ? 0 : reader.getDroppedCount();
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder binder) {
+        service = new Messenger(binder);
+        Message msg = Message.obtain(null, DetectorService.MSG_SUBSCRIBE);
+        msg.replyTo = replyMessenger;
+        Bundle data = new Bundle();
+        data.putLong(DetectorService.KEY_METRICS, metrics);
+        msg.setData(data);
+        send(msg);
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        // the service's process died; it will reconnect if the service is restarted
+        service = null;
+        stopReading();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (reader == null) {
+            return;
+        }
+        reader.poll(listener);
+        choreographer.postFrameCallback(this);
+    }
+
+    private void onSubscribed(int index, String ringPath) {
+        if (clientIndex >= 0) {
+            unsubscribe(); // a subscription overtaken by a reconnection
+        }
+        clientIndex = index;
+        if (!connected) {
+            unsubscribe();
+            return;
+        }
+        try {
+            reader = new MetricsRingReader(new File(ringPath), index, metrics);
+        } catch (IOException e) {
+            Log.e(DemoApplication.LOG_TAG, "couldn't map the metrics ring", e);
+            unsubscribe();
+            return;
+        }
+        choreographer.postFrameCallback(this);
+    }
+
+    private void unsubscribe() {
+        int index = clientIndex;
+        stopReading();
+        send(Message.obtain(null, DetectorService.MSG_UNSUBSCRIBE, index, 0));
+    }
+
+    private void stopReading() {
+        choreographer.removeFrameCallback(this);
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        clientIndex = -1;
+    }
+
+    private void send(Message msg) {
+        if (service == null) {
+            return;
+        }
+        msg.replyTo = replyMessenger;
+        try {
+            service.send(msg);
+        } catch (RemoteException e) {
+            Log.w(DemoApplication.LOG_TAG, "couldn't reach DetectorService", e);
+        }
+    }
+
+    /**
+     * A handler for replies from the service, on the main thread.
+     */
+    private static class ReplyHandler extends Handler {
+        private final DetectorClient client;
+
+        private ReplyHandler(DetectorClient client) {
+            super(Looper.getMainLooper());
+            this.client = client;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case DetectorService.MSG_SUBSCRIBED:
+                    client.onSubscribed(msg.arg1, msg.getData().getString(DetectorService.KEY_RING_PATH));
+                    break;
+                case DetectorService.MSG_SUBSCRIBE_FAILED:
+                    Log.w(DemoApplication.LOG_TAG, "DetectorService refused the subscription");
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
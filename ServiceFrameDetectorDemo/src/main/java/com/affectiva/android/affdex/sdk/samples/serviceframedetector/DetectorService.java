@@ -5,11 +5,14 @@ import android.content.Context;
 import android.content.Intent;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
-import android.os.SystemClock;
+import android.os.Messenger;
+import android.os.RemoteException;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.view.Display;
@@ -20,21 +23,121 @@ import com.affectiva.android.affdex.sdk.Frame;
 import com.affectiva.android.affdex.sdk.detector.Face;
 import com.affectiva.android.affdex.sdk.detector.FrameDetector;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 
 /**
- * Manages a background thread that connects to the front-facing camera and sends preview
- * frames to an Affdex FrameDetector.
+ * Manages two background threads: a camera thread, which connects to the front-facing camera
+ * and receives its preview frames, and a detection thread, which runs an Affdex FrameDetector
+ * on them.  Frames are handed from one to the other through a single-slot, latest-wins
+ * FrameMailbox, so the camera's callbacks never wait for the detector: a frame that arrives
+ * while the detector is busy replaces the one waiting, whose buffer goes straight back to the
+ * camera, and is counted as dropped.  The time each stage is busy is tracked by a StageTimer.
+ * Frames are first admitted by a FrameAdmissionController, which caps the processing rate at
+ * R.integer.target_processing_fps when that is set (by default it is 0, and every frame is
+ * admitted).  Unless R.bool.adapt_preview_resolution is false, the camera
+ * thread also runs a PreviewResolutionGovernor, to which the detection thread reports the time
+ * it took over each frame and the size of the faces in it, and which restarts the preview at a
+ * lower resolution when the detector can't keep up or faces are large, or at a higher one when
+ * faces are small.  Unless R.bool.skip_static_frames is false, the detection thread skips frames
+ * which a StaticFrameGate finds barely changed since the last frame processed, and publishes
+ * that frame's results again instead.  Unless R.bool.prefilter_face_presence is false, frames
+ * which change are then put to a FacePresenceFilter, and while no face is being tracked, only
+ * those in which it finds a face, or one every R.integer.presence_safety_net_seconds, go to
+ * the full detector; for the rest, no face is published.  When the preview size changes, the
+ * detector is reset, and any frame still waiting at the old size is dropped.
+ *
+ * Clients can bind to the service to receive the detector's results (see DetectorClient).
+ * Binding hands back a Messenger, through which a client subscribes to the metrics it wants;
+ * the service detects the union of every client's metrics, and writes each frame's results
+ * into a MetricsRingBuffer, a shared memory-mapped file, which clients read at their own pace
+ * without a binder call per frame.  The lag and drop count of each client can be requested
+ * with MSG_GET_STATS.
  */
 public class DetectorService extends Service {
 
+    // Message codes of the bound interface, sent to the service
+    /** subscribes msg.replyTo to the metrics in the KEY_METRICS mask; answered with MSG_SUBSCRIBED or MSG_SUBSCRIBE_FAILED */
+    static final int MSG_SUBSCRIBE = 0;
+    /** unsubscribes msg.replyTo, whose index is msg.arg1 */
+    static final int MSG_UNSUBSCRIBE = 1;
+    /** answered with MSG_STATS */
+    static final int MSG_GET_STATS = 2;
+
+    // Message codes of the bound interface, sent to clients
+    /** msg.arg1 is the client's index; the data holds KEY_RING_PATH */
+    static final int MSG_SUBSCRIBED = 100;
+    static final int MSG_SUBSCRIBE_FAILED = 101;
+    /**
+     * the data holds KEY_CLIENTS, KEY_LAGS and KEY_DROPPED, with an entry per subscribed client,
+     * and KEY_STAGE_FRAMES, KEY_STAGE_BUSY_NANOS, KEY_HANDOFF_DROPPED, KEY_CAMERA_STARVED,
+     * KEY_FRAMES_ADMITTED, KEY_FRAMES_REJECTED, KEY_FRAMES_SKIPPED_STATIC, KEY_PRESENCE_SKIPPED,
+     * KEY_PRESENCE_AUDITED, KEY_PRESENCE_MISSES and KEY_PREVIEW_HEIGHT
+     */
+    static final int MSG_STATS = 102;
+
+    static final String KEY_METRICS = "metrics";
+    static final String KEY_RING_PATH = "ring_path";
+    static final String KEY_CLIENTS = "clients";
+    static final String KEY_LAGS = "lags";
+    static final String KEY_DROPPED = "dropped";
+    static final String KEY_STAGE_FRAMES = "stage_frames";
+    static final String KEY_STAGE_BUSY_NANOS = "stage_busy_nanos";
+    static final String KEY_HANDOFF_DROPPED = "handoff_dropped";
+    static final String KEY_CAMERA_STARVED = "camera_starved";
+    static final String KEY_FRAMES_ADMITTED = "frames_admitted";
+    static final String KEY_FRAMES_REJECTED = "frames_rejected";
+    static final String KEY_PREVIEW_HEIGHT = "preview_height";
+    static final String KEY_FRAMES_SKIPPED_STATIC = "frames_skipped_static";
+    /** frames kept from the full detector by the presence check */
+    static final String KEY_PRESENCE_SKIPPED = "presence_skipped";
+    /** frames the full detector found a face in after the presence check had run; the misses are among them */
+    static final String KEY_PRESENCE_AUDITED = "presence_audited";
+    static final String KEY_PRESENCE_MISSES = "presence_misses";
+
+    // Indices of the stages in KEY_STAGE_FRAMES and KEY_STAGE_BUSY_NANOS.  The hand-off stage is
+    // "busy" while a frame waits in it for the detection thread.
+    static final int STAGE_CAMERA = 0;
+    static final int STAGE_HANDOFF = 1;
+    static final int STAGE_DETECTION = 2;
+
+    private static final String RING_FILE_NAME = "detector_metrics.ring";
+
+    private HandlerThread cameraThread;
+    private CameraHandler cameraHandler;
     private HandlerThread detectionThread;
     private DetectionHandler detectionHandler;
+    private final FrameMailbox<PendingFrame> mailbox = new FrameMailbox<>();
+    private FrameAdmissionController frameAdmission;
+    private final StageTimer[] stageTimers = {
+            new StageTimer("camera"), new StageTimer("hand-off"), new StageTimer("detection")};
+    private IncomingHandler incomingHandler;
+    private Messenger messenger;
+    private MetricsRingBuffer ringBuffer;
+    private final Subscription[] subscriptions = new Subscription[MetricsRingBuffer.MAX_CLIENTS];
+    private long detectedMetrics = 0; // the union of the subscribed metrics
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        incomingHandler = new IncomingHandler(this);
+        messenger = new Messenger(incomingHandler);
+        frameAdmission = new FrameAdmissionController(getResources().getInteger(R.integer.target_processing_fps),
+                getResources().getInteger(R.integer.processing_burst));
+        try {
+            ringBuffer = MetricsRingBuffer.create(new File(getCacheDir(), RING_FILE_NAME));
+        } catch (IOException e) {
+            Log.e(DemoApplication.LOG_TAG, "couldn't create the metrics ring, clients can't subscribe", e);
+        }
+    }
 
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        return null; // binding support not implemented
+        return messenger.getBinder();
     }
 
     @Override
@@ -45,11 +148,21 @@ public class DetectorService extends Service {
             Log.w(DemoApplication.LOG_TAG, "app does not have camera permission, stopping service");
             stopSelf();
         } else if (detectionThread == null) {
-            // fire up the background thread
+            // fire up the background threads
+            for (StageTimer timer : stageTimers) {
+                timer.reset();
+            }
             detectionThread = new DetectionThread();
             detectionThread.start();
-            detectionHandler = new DetectionHandler(getApplicationContext(), detectionThread);
+            detectionHandler = new DetectionHandler(getApplicationContext(), detectionThread, mailbox,
+                    stageTimers[STAGE_HANDOFF], stageTimers[STAGE_DETECTION], ringBuffer, detectedMetrics);
             detectionHandler.sendStartMessage();
+
+            cameraThread = new CameraThread();
+            cameraThread.start();
+            cameraHandler = new CameraHandler(getApplicationContext(), cameraThread, frameAdmission, mailbox,
+                    detectionHandler, stageTimers[STAGE_CAMERA]);
+            cameraHandler.sendStartMessage();
         }
 
         return START_NOT_STICKY;
@@ -57,7 +170,18 @@ public class DetectorService extends Service {
 
     @Override
     public void onDestroy() {
-        // clean up
+        StaticFrameGate staticFrameGate = detectionHandler == null ? null : detectionHandler.staticFrameGate;
+        FacePresenceFilter presenceFilter = detectionHandler == null ? null : detectionHandler.presenceFilter;
+        // clean up, stopping the camera first so that no more frames are handed to the detector
+        if (cameraHandler != null) {
+            cameraHandler.sendStopMessage();
+            try {
+                cameraThread.join();
+                cameraThread = null;
+                cameraHandler = null; // facilitate GC
+            } catch (InterruptedException ignored) {
+            }
+        }
         if (detectionHandler != null) {
             detectionHandler.sendStopMessage();
             try {
@@ -66,10 +190,237 @@ public class DetectorService extends Service {
                 detectionHandler = null; // facilitate GC
             } catch (InterruptedException ignored) {
             }
+            Log.d(DemoApplication.LOG_TAG, String.format(Locale.US,
+                    "frames admitted: %d, rejected: %d; %s; %s; %s; frames dropped at hand-off: %d",
+                    frameAdmission.getAdmittedCount(), frameAdmission.getRejectedCount(),
+                    stageTimers[STAGE_CAMERA], stageTimers[STAGE_HANDOFF], stageTimers[STAGE_DETECTION],
+                    mailbox.getSupersededCount()));
+            if (staticFrameGate != null) {
+                Log.d(DemoApplication.LOG_TAG, String.format(Locale.US,
+                        "static frames skipped: %d of %d, %.3f ms per frame to check",
+                        staticFrameGate.getSkippedCount(),
+                        staticFrameGate.getSkippedCount() + staticFrameGate.getProcessedCount(),
+                        staticFrameGate.getMeanCostNanos() / 1e6));
+            }
+            if (presenceFilter != null) {
+                Log.d(DemoApplication.LOG_TAG, String.format(Locale.US,
+                        "presence checks: %d, %.2f ms each; frames kept from the detector: %d; misses: %d of %d (%.1f%%)",
+                        presenceFilter.getCheckCount(), presenceFilter.getMeanCheckNanos() / 1e6,
+                        presenceFilter.getSkippedCount(), presenceFilter.getMissCount(),
+                        presenceFilter.getAuditedCount(), 100 * presenceFilter.getMissRate()));
+            }
+        }
+        for (Subscription subscription : subscriptions) {
+            if (subscription != null) {
+                unsubscribe(subscription);
+            }
+        }
+        if (ringBuffer != null) {
+            ringBuffer.close();
+            ringBuffer = null;
         }
         super.onDestroy();
     }
 
+    private void subscribe(Messenger client, long metrics) {
+        if (client == null) {
+            Log.w(DemoApplication.LOG_TAG, "subscription without a replyTo Messenger, ignoring");
+            return;
+        }
+        int index = -1;
+        for (int i = 0; i < subscriptions.length && ringBuffer != null; i++) {
+            if (subscriptions[i] == null) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            Log.w(DemoApplication.LOG_TAG, "no room for another client");
+            send(client, Message.obtain(null, MSG_SUBSCRIBE_FAILED));
+            return;
+        }
+
+        Subscription subscription = new Subscription(incomingHandler, index, client, metrics);
+        try {
+            client.getBinder().linkToDeath(subscription, 0);
+        } catch (RemoteException e) {
+            return; // the client has already gone
+        }
+        ringBuffer.resetClient(index);
+        subscriptions[index] = subscription;
+        updateDetectedMetrics();
+
+        Message reply = Message.obtain(null, MSG_SUBSCRIBED, index, 0);
+        Bundle data = new Bundle();
+        data.putString(KEY_RING_PATH, ringBuffer.getFile().getAbsolutePath());
+        reply.setData(data);
+        send(client, reply);
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        if (subscriptions[subscription.index] != subscription) {
+            return; // already unsubscribed
+        }
+        Log.d(DemoApplication.LOG_TAG, String.format(Locale.US, "client %d unsubscribed, lag %d, dropped %d",
+                subscription.index, ringBuffer.getClientLag(subscription.index),
+                ringBuffer.getClientDroppedCount(subscription.index)));
+        subscription.client.getBinder().unlinkToDeath(subscription, 0);
+        subscriptions[subscription.index] = null;
+        updateDetectedMetrics();
+    }
+
+    private void sendStats(Messenger client) {
+        if (client == null) {
+            return;
+        }
+        int count = 0;
+        for (Subscription subscription : subscriptions) {
+            if (subscription != null) {
+                count += 1;
+            }
+        }
+        int[] clients = new int[count];
+        long[] lags = new long[count];
+        long[] dropped = new long[count];
+        count = 0;
+        for (Subscription subscription : subscriptions) {
+            if (subscription != null) {
+                clients[count] = subscription.index;
+                lags[count] = ringBuffer.getClientLag(subscription.index);
+                dropped[count] = ringBuffer.getClientDroppedCount(subscription.index);
+                count += 1;
+            }
+        }
+        long[] stageFrames = new long[stageTimers.length];
+        long[] stageBusyNanos = new long[stageTimers.length];
+        for (int i = 0; i < stageTimers.length; i++) {
+            stageFrames[i] = stageTimers[i].getCount();
+            stageBusyNanos[i] = stageTimers[i].getBusyNanos();
+        }
+
+        Message reply = Message.obtain(null, MSG_STATS);
+        Bundle data = new Bundle();
+        data.putIntArray(KEY_CLIENTS, clients);
+        data.putLongArray(KEY_LAGS, lags);
+        data.putLongArray(KEY_DROPPED, dropped);
+        data.putLongArray(KEY_STAGE_FRAMES, stageFrames);
+        data.putLongArray(KEY_STAGE_BUSY_NANOS, stageBusyNanos);
+        data.putLong(KEY_HANDOFF_DROPPED, mailbox.getSupersededCount());
+        data.putLong(KEY_CAMERA_STARVED, cameraHandler == null ? 0
+                : cameraHandler.cameraHelper.getPreviewBufferPool().getStarvationCount());
+        data.putLong(KEY_FRAMES_ADMITTED, frameAdmission.getAdmittedCount());
+        data.putLong(KEY_FRAMES_REJECTED, frameAdmission.getRejectedCount());
+        data.putLong(KEY_FRAMES_SKIPPED_STATIC, detectionHandler == null || detectionHandler.staticFrameGate == null ? 0
+                : detectionHandler.staticFrameGate.getSkippedCount());
+        FacePresenceFilter presenceFilter = detectionHandler == null ? null : detectionHandler.presenceFilter;
+        if (presenceFilter != null) {
+            data.putLong(KEY_PRESENCE_SKIPPED, presenceFilter.getSkippedCount());
+            data.putLong(KEY_PRESENCE_AUDITED, presenceFilter.getAuditedCount());
+            data.putLong(KEY_PRESENCE_MISSES, presenceFilter.getMissCount());
+        }
+        data.putInt(KEY_PREVIEW_HEIGHT, cameraHandler == null ? 0 : cameraHandler.cameraHelper.getPreviewHeight());
+        reply.setData(data);
+        send(client, reply);
+    }
+
+    /**
+     * Has the detector detect every subscribed metric, and no more.
+     */
+    private void updateDetectedMetrics() {
+        long metrics = 0;
+        for (Subscription subscription : subscriptions) {
+            if (subscription != null) {
+                metrics |= subscription.metrics;
+            }
+        }
+        if (metrics != detectedMetrics) {
+            detectedMetrics = metrics;
+            if (detectionHandler != null) {
+                detectionHandler.sendConfigureMessage(metrics);
+            }
+        }
+    }
+
+    private static void send(Messenger client, Message msg) {
+        try {
+            client.send(msg);
+        } catch (RemoteException e) {
+            Log.w(DemoApplication.LOG_TAG, "couldn't reach client", e);
+        }
+    }
+
+    /**
+     * A subscribed client, which is unsubscribed if its process dies.
+     */
+    private static class Subscription implements IBinder.DeathRecipient {
+        private final IncomingHandler handler;
+        private final int index;
+        private final Messenger client;
+        private final long metrics;
+
+        private Subscription(IncomingHandler handler, int index, Messenger client, long metrics) {
+            this.handler = handler;
+            this.index = index;
+            this.client = client;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Called on a binder thread.
+         */
+        @Override
+        public void binderDied() {
+            handler.sendMessage(handler.obtainMessage(IncomingHandler.CLIENT_DIED, this));
+        }
+    }
+
+    /**
+     * A handler for messages from clients, on the main thread.
+     */
+    private static class IncomingHandler extends Handler {
+        //Internal message codes, alongside the MSG_ codes of the bound interface
+        private static final int CLIENT_DIED = 1000;
+
+        private final DetectorService service;
+
+        private IncomingHandler(DetectorService service) {
+            super(Looper.getMainLooper());
+            this.service = service;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_SUBSCRIBE:
+                    service.subscribe(msg.replyTo, msg.getData().getLong(KEY_METRICS));
+                    break;
+                case MSG_UNSUBSCRIBE:
+                    if (msg.arg1 >= 0 && msg.arg1 < service.subscriptions.length) {
+                        Subscription subscription = service.subscriptions[msg.arg1];
+                        // the index may have been reused since, if this client was already unsubscribed
+                        if (subscription != null && subscription.client.equals(msg.replyTo)) {
+                            service.unsubscribe(subscription);
+                        }
+                    }
+                    break;
+                case MSG_GET_STATS:
+                    service.sendStats(msg.replyTo);
+                    break;
+                case CLIENT_DIED:
+                    service.unsubscribe((Subscription) msg.obj);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static class CameraThread extends HandlerThread {
+        private CameraThread() {
+            super("CameraThread");
+        }
+    }
+
     private static class DetectionThread extends HandlerThread {
         private DetectionThread() {
             super("DetectionThread");
@@ -77,61 +428,100 @@ public class DetectorService extends Service {
     }
 
     /**
-     * A handler for the DetectionThread.
+     * A preview frame handed from the camera thread to the detection thread.  It holds a lease on
+     * its buffer, which whichever thread ends up with it must release.
      */
-    private static class DetectionHandler extends Handler {
+    private static class PendingFrame {
+        private final CameraHandler source; // to report back to once the frame has been processed
+        private final Frame frame;
+        private final byte[] buffer;
+        private final PreviewBufferPool pool;
+        private final float timestamp;
+        private final long handedOffNanos;
+
+        private PendingFrame(CameraHandler source, Frame frame, byte[] buffer, PreviewBufferPool pool,
+                             float timestamp) {
+            this.source = source;
+            this.frame = frame;
+            this.buffer = buffer;
+            this.pool = pool;
+            this.timestamp = timestamp;
+            handedOffNanos = System.nanoTime();
+        }
+
+        private void release() {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * A handler for the CameraThread.  The camera is opened on this thread, so its preview
+     * callbacks are delivered here.
+     */
+    private static class CameraHandler extends Handler {
         //Incoming message codes
         private static final int START = 0;
         private static final int STOP = 1;
+        private static final int FRAME_PROCESSED = 2;
 
-        private CameraHelper cameraHelper;
-        private FrameDetector frameDetector;
-        private SurfaceTexture surfaceTexture;
-        private DetectorListener listener;
+        // the rate the camera delivers frames at, which the detector must keep up with when processing isn't capped
+        private static final float CAMERA_FRAME_RATE = 30;
 
-        private DetectionHandler(Context context, HandlerThread detectionThread) {
+        private final CameraHelper cameraHelper;
+        private final boolean isResolutionAdaptive;
+        private PreviewResolutionGovernor resolutionGovernor; // null unless previewing adaptively
+        private final SurfaceTexture surfaceTexture;
+        private final FrameAdmissionController frameAdmission;
+        private final FrameMailbox<PendingFrame> mailbox;
+        private final DetectionHandler detectionHandler;
+        private final StageTimer cameraTimer;
+
+        private CameraHandler(Context context, HandlerThread cameraThread, FrameAdmissionController frameAdmission,
+                              FrameMailbox<PendingFrame> mailbox, DetectionHandler detectionHandler,
+                              StageTimer cameraTimer) {
             // note: getLooper will block until the the thread's looper has been prepared
-            super(detectionThread.getLooper());
+            super(cameraThread.getLooper());
+            this.frameAdmission = frameAdmission;
+            this.mailbox = mailbox;
+            this.detectionHandler = detectionHandler;
+            this.cameraTimer = cameraTimer;
 
             Display display = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
             cameraHelper = new CameraHelper(context, display, new CameraHelperListener());
             surfaceTexture = new SurfaceTexture(0); // a dummy texture
-
-            // Set up the FrameDetector.  For the purposes of this sample app, we'll just request
-            // listen for face events and request valence scores.
-            frameDetector = new FrameDetector(context);
-            frameDetector.setDetectValence(true);
-            listener = new DetectorListener(context);
-            frameDetector.setImageListener(listener);
-            frameDetector.setFaceListener(listener);
+            isResolutionAdaptive = context.getResources().getBoolean(R.bool.adapt_preview_resolution);
         }
 
         /**
-         * asynchronously start processing on the background thread
+         * asynchronously open the camera and start previewing on the camera thread
          */
         private void sendStartMessage() {
             sendMessage(obtainMessage(START));
         }
 
         /**
-         * asynchronously stop processing on the background thread
+         * asynchronously release the camera and quit the camera thread
          */
         private void sendStopMessage() {
             sendMessage(obtainMessage(STOP));
         }
 
         /**
-         * Process incoming messages
-         *
-         * @param msg message to handle
+         * asynchronously report to the resolution governor how long the detector took over a frame
+         * which came from this thread, and the interocular distance of its smallest face, or NaN
          */
+        private void sendFrameProcessedMessage(long detectionNanos, float interocularDistance) {
+            int detectionMicros = (int) Math.min(Integer.MAX_VALUE, detectionNanos / 1000);
+            sendMessage(obtainMessage(FRAME_PROCESSED, detectionMicros, Float.floatToIntBits(interocularDistance)));
+        }
+
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case START:
-                    Log.d(DemoApplication.LOG_TAG, "starting background processing of frames");
+                    Log.d(DemoApplication.LOG_TAG, "starting camera");
+                    frameAdmission.reset();
                     try {
-                        frameDetector.start();
                         //noinspection deprecation
                         cameraHelper.acquire(Camera.CameraInfo.CAMERA_FACING_FRONT);
                         cameraHelper.start(surfaceTexture); // initiates previewing
@@ -139,16 +529,40 @@ public class DetectorService extends Service {
                         Log.d(DemoApplication.LOG_TAG, "couldn't open camera: " + e.getMessage());
                         return;
                     }
+                    if (isResolutionAdaptive) {
+                        float fps = frameAdmission.getTargetFps() > 0 ? frameAdmission.getTargetFps()
+                                : CAMERA_FRAME_RATE;
+                        resolutionGovernor = new PreviewResolutionGovernor(cameraHelper.getSupportedPreviewHeights(),
+                                cameraHelper.getPreviewHeight(), (long) (1e9 / fps));
+                    }
                     break;
                 case STOP:
-                    Log.d(DemoApplication.LOG_TAG, "stopping background processing of frames");
+                    Log.d(DemoApplication.LOG_TAG, "stopping camera");
                     cameraHelper.stop(); // stops previewing
                     cameraHelper.release();
-                    frameDetector.stop();
 
-                    Log.d(DemoApplication.LOG_TAG, "quitting detection thread");
+                    if (resolutionGovernor != null) {
+                        Log.d(DemoApplication.LOG_TAG, String.format(Locale.US,
+                                "preview height: %d, stepped up %d times, down %d times", resolutionGovernor.getHeight(),
+                                resolutionGovernor.getStepUpCount(), resolutionGovernor.getStepDownCount()));
+                        resolutionGovernor = null;
+                    }
+
+                    Log.d(DemoApplication.LOG_TAG, "quitting camera thread");
                     ((HandlerThread) getLooper().getThread()).quit();
                     break;
+                case FRAME_PROCESSED:
+                    if (resolutionGovernor == null) {
+                        break;
+                    }
+                    long now = System.nanoTime();
+                    int height = resolutionGovernor.onFrameProcessed(now, msg.arg1 * 1000L,
+                            Float.intBitsToFloat(msg.arg2));
+                    if (height != 0) {
+                        cameraHelper.setPreviewHeight(height);
+                        resolutionGovernor.onPreviewRestarted(cameraHelper.getPreviewHeight(), now);
+                    }
+                    break;
 
                 default:
                     break;
@@ -159,28 +573,300 @@ public class DetectorService extends Service {
          * A listener for CameraHelper callbacks
          */
         private class CameraHelperListener implements CameraHelper.Listener {
-            private static final float TIMESTAMP_DELTA = .01f;
-            private float lastTimestamp = -1f;
+            private long firstFrameNanos = -1;
 
             @Override
             public void onFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation) {
                 Log.d(DemoApplication.LOG_TAG, "received frame");
-                float timeStamp = (float) SystemClock.elapsedRealtime() / 1000f;
-                if (timeStamp > (lastTimestamp + TIMESTAMP_DELTA)) {
-                    lastTimestamp = timeStamp;
-                    frameDetector.process(createFrameFromData(frame, width, height, rotation), timeStamp);
+                long startNanos = System.nanoTime();
+                PreviewBufferPool pool = cameraHelper.getPreviewBufferPool();
+                if (!pool.retain(frame)) {
+                    return; // the one-shot first preview frame, which isn't one of the pool's buffers
                 }
+                if (!frameAdmission.admit(startNanos)) {
+                    pool.release(frame);
+                    return;
+                }
+                // seconds since the first frame, small enough for a float to keep millisecond precision
+                if (firstFrameNanos < 0) {
+                    firstFrameNanos = startNanos;
+                }
+                float timeStamp = (startNanos - firstFrameNanos) / 1e9f;
+
+                Frame.ByteArrayFrame byteArrayFrame = pool.getFrame(frame, width, height);
+                byteArrayFrame.setTargetRotation(rotation);
+                PendingFrame superseded = mailbox.post(
+                        new PendingFrame(CameraHandler.this, byteArrayFrame, frame, pool, timeStamp));
+                if (superseded == null) {
+                    // the detection thread has taken every earlier frame, so tell it about this one
+                    detectionHandler.sendProcessMessage();
+                } else {
+                    // the detector is still busy; the frame it didn't get to goes back to the camera
+                    superseded.release();
+                }
+                cameraTimer.record(startNanos);
             }
 
             @Override
             public void onFrameSizeSelected(int width, int height, Frame.ROTATE rotation) {
+                detectionHandler.sendResizeMessage(width, height);
             }
+        }
+    }
+
+    /**
+     * A handler for the DetectionThread.
+     */
+    private static class DetectionHandler extends Handler {
+        //Incoming message codes
+        private static final int START = 0;
+        private static final int STOP = 1;
+        private static final int CONFIGURE = 2;
+        private static final int PROCESS = 3;
+        private static final int RESIZE = 4;
+
+        private FrameDetector frameDetector;
+        private DetectorListener listener;
+        private final FrameMailbox<PendingFrame> mailbox;
+        private final StageTimer handoffTimer;
+        private final StageTimer detectionTimer;
+        private final StaticFrameGate staticFrameGate; // null unless static frames are skipped
+        private final FacePresenceFilter presenceFilter; // null unless presence is checked first
+        // the current preview size, or 0 until the camera has chosen one
+        private int frameWidth;
+        private int frameHeight;
+
+        /**
+         * @param ringBuffer the ring to publish results into, or null
+         * @param metrics a mask of the metrics to detect, besides valence
+         */
+        private DetectionHandler(Context context, HandlerThread detectionThread, FrameMailbox<PendingFrame> mailbox,
+                                 StageTimer handoffTimer, StageTimer detectionTimer, MetricsRingBuffer ringBuffer,
+                                 long metrics) {
+            // note: getLooper will block until the the thread's looper has been prepared
+            super(detectionThread.getLooper());
+            this.mailbox = mailbox;
+            this.handoffTimer = handoffTimer;
+            this.detectionTimer = detectionTimer;
+            staticFrameGate = context.getResources().getBoolean(R.bool.skip_static_frames)
+                    ? new StaticFrameGate(StaticFrameGate.DEFAULT_CELL_THRESHOLD,
+                    StaticFrameGate.DEFAULT_REFRESH_INTERVAL_SECONDS)
+                    : null;
+            presenceFilter = context.getResources().getBoolean(R.bool.prefilter_face_presence)
+                    ? new FacePresenceFilter(context.getResources().getInteger(R.integer.presence_safety_net_seconds),
+                    FacePresenceFilter.DEFAULT_HOLD_SECONDS)
+                    : null;
+
+            // Set up the FrameDetector.  For the purposes of this sample app, we'll
+            // listen for face events and request valence scores, along with whatever
+            // metrics the bound clients have subscribed to.
+            frameDetector = new FrameDetector(context);
+            configureDetector(frameDetector, metrics);
+            listener = new DetectorListener(context, ringBuffer);
+            frameDetector.setImageListener(listener);
+            frameDetector.setFaceListener(listener);
+        }
+
+        /**
+         * asynchronously start processing on the background thread
+         */
+        private void sendStartMessage() {
+            sendMessage(obtainMessage(START));
+        }
+
+        /**
+         * asynchronously stop processing on the background thread
+         */
+        private void sendStopMessage() {
+            sendMessage(obtainMessage(STOP));
+        }
+
+        /**
+         * asynchronously change the metrics detected, restarting the detector if it is running
+         */
+        private void sendConfigureMessage(long metrics) {
+            sendMessage(obtainMessage(CONFIGURE, metrics));
+        }
 
-            private Frame createFrameFromData(byte[] frameData, int width, int height, Frame.ROTATE rotation) {
-                Frame.ByteArrayFrame frame = new Frame.ByteArrayFrame(frameData, width, height, Frame.COLOR_FORMAT.YUV_NV21);
-                frame.setTargetRotation(rotation);
-                return frame;
+        /**
+         * asynchronously process the frame in the mailbox
+         */
+        private void sendProcessMessage() {
+            sendMessage(obtainMessage(PROCESS));
+        }
+
+        /**
+         * asynchronously tell the detection thread the size of the frames the camera now delivers.
+         * Since it is sent from the camera thread before any frame of the new size, it is handled
+         * before any of them.
+         */
+        private void sendResizeMessage(int width, int height) {
+            sendMessage(obtainMessage(RESIZE, width, height));
+        }
+
+        /**
+         * Enables each category of metrics that has a metric in the mask, and valence, which
+         * DetectorListener logs.  The SDK computes measurements and qualities regardless.
+         */
+        private static void configureDetector(FrameDetector detector, long metrics) {
+            metrics &= ~(1L << Metrics.VALENCE.ordinal()); // valence alone is cheaper than every emotion
+            detector.setDetectAllEmotions(hasMetricIn(metrics, Metrics.Category.EMOTIONS));
+            detector.setDetectAllExpressions(hasMetricIn(metrics, Metrics.Category.EXPRESSIONS));
+            detector.setDetectAllAppearances(hasMetricIn(metrics, Metrics.Category.APPEARANCES));
+            detector.setDetectValence(true);
+        }
+
+        private static boolean hasMetricIn(long metrics, Metrics.Category category) {
+            for (int i = category.start; i < category.end; i++) {
+                if ((metrics & (1L << i)) != 0) {
+                    return true;
+                }
             }
+            return false;
+        }
+
+        /**
+         * Process incoming messages
+         *
+         * @param msg message to handle
+         */
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case START:
+                    Log.d(DemoApplication.LOG_TAG, "starting background processing of frames");
+                    try {
+                        frameDetector.start();
+                    } catch (IllegalStateException e) {
+                        Log.d(DemoApplication.LOG_TAG, "couldn't start detector: " + e.getMessage());
+                        return;
+                    }
+                    break;
+                case STOP:
+                    Log.d(DemoApplication.LOG_TAG, "stopping background processing of frames");
+                    PendingFrame orphan = mailbox.take();
+                    if (orphan != null) {
+                        orphan.release();
+                    }
+                    if (frameDetector.isRunning()) {
+                        frameDetector.stop();
+                    }
+
+                    Log.d(DemoApplication.LOG_TAG, "quitting detection thread");
+                    ((HandlerThread) getLooper().getThread()).quit();
+                    break;
+                case CONFIGURE:
+                    // the detector can only be configured while stopped
+                    boolean running = frameDetector.isRunning();
+                    if (running) {
+                        frameDetector.stop();
+                    }
+                    configureDetector(frameDetector, (Long) msg.obj);
+                    if (running) {
+                        frameDetector.start();
+                    }
+                    // the last results may lack metrics which are now wanted
+                    forgetLastFrame();
+                    break;
+                case PROCESS:
+                    PendingFrame pending = mailbox.take();
+                    if (pending == null) {
+                        break;
+                    }
+                    if (pending.frame.getWidth() != frameWidth || pending.frame.getHeight() != frameHeight) {
+                        // taken before the preview was restarted at another size
+                        Log.d(DemoApplication.LOG_TAG, "dropping frame of the previous preview size");
+                        pending.release();
+                        break;
+                    }
+                    handoffTimer.record(pending.handedOffNanos);
+                    long startNanos = System.nanoTime();
+                    boolean processed;
+                    try {
+                        processed = detect(pending);
+                    } finally {
+                        pending.release();
+                    }
+                    detectionTimer.record(startNanos);
+                    if (processed) {
+                        pending.source.sendFrameProcessedMessage(System.nanoTime() - startNanos,
+                                listener.smallestInterocularDistance);
+                    }
+                    break;
+                case RESIZE:
+                    if (msg.arg1 == frameWidth && msg.arg2 == frameHeight) {
+                        break; // only the orientation changed
+                    }
+                    if (frameWidth != 0) {
+                        // the detector's tracking, and the gates' last frame, are in the old size's coordinates
+                        Log.d(DemoApplication.LOG_TAG, "preview size changed, resetting detector");
+                        if (frameDetector.isRunning()) {
+                            frameDetector.reset();
+                        }
+                        forgetLastFrame();
+                    }
+                    frameWidth = msg.arg1;
+                    frameHeight = msg.arg2;
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Discards everything kept from the last frame processed, so that the next frame is
+         * neither skipped as static, nor judged against the presence filter's history.
+         */
+        private void forgetLastFrame() {
+            if (staticFrameGate != null) {
+                staticFrameGate.reset();
+            }
+            listener.lastFaces = null;
+            if (presenceFilter != null) {
+                presenceFilter.reset();
+            }
+        }
+
+        /**
+         * Puts a frame through the static frame gate and the presence check, and if it gets past
+         * them, through the detector.  Results are published either way.
+         *
+         * @return whether the detector processed the frame
+         */
+        private boolean detect(PendingFrame pending) {
+            listener.smallestInterocularDistance = Float.NaN;
+            if (!frameDetector.isRunning()) {
+                return false;
+            }
+            if (isStatic(pending)) {
+                // publish the last frame's results again, with this frame's timestamp
+                staticFrameGate.onSkipped();
+                listener.onImageResults(listener.lastFaces, pending.frame, pending.timestamp);
+                return false;
+            }
+            if (staticFrameGate != null) {
+                staticFrameGate.onProcessed();
+            }
+            if (presenceFilter != null && !presenceFilter.shouldDetect(pending.buffer, pending.frame.getWidth(),
+                    pending.frame.getHeight(), pending.frame.getTargetRotation(), pending.timestamp)) {
+                // nobody there, as far as the presence check can tell
+                listener.onImageResults(Collections.<Face>emptyList(), pending.frame, pending.timestamp);
+                return false;
+            }
+            frameDetector.process(pending.frame, pending.timestamp);
+            if (presenceFilter != null) {
+                presenceFilter.onDetected(pending.timestamp, !Float.isNaN(listener.smallestInterocularDistance));
+            }
+            return true;
+        }
+
+        private boolean isStatic(PendingFrame pending) {
+            if (staticFrameGate == null || listener.lastFaces == null) {
+                return false;
+            }
+            return staticFrameGate.isStatic(pending.buffer, pending.frame.getWidth(), pending.frame.getHeight(),
+                    pending.timestamp);
         }
 
         /**
@@ -188,9 +874,15 @@ public class DetectorService extends Service {
          */
         private static class DetectorListener implements FrameDetector.ImageListener, FrameDetector.FaceListener {
             private Context context;
+            private MetricsRingBuffer ringBuffer;
+            // of the smallest face in the last results, or NaN if there were none
+            private float smallestInterocularDistance = Float.NaN;
+            // the last results, published again for frames skipped as static
+            private List<Face> lastFaces;
 
-            private DetectorListener(Context context) {
+            private DetectorListener(Context context, MetricsRingBuffer ringBuffer) {
                 this.context = context;
+                this.ringBuffer = ringBuffer;
             }
 
             @Override
@@ -205,6 +897,16 @@ public class DetectorService extends Service {
 
             @Override
             public void onImageResults(List<Face> faces, Frame frame, float v) {
+                lastFaces = faces;
+                if (ringBuffer != null) {
+                    ringBuffer.publish(v, faces);
+                }
+                for (Face face : faces) {
+                    float distance = face.measurements.getInterocularDistance();
+                    if (Float.isNaN(smallestInterocularDistance) || distance < smallestInterocularDistance) {
+                        smallestInterocularDistance = distance;
+                    }
+                }
                 if (faces.size() > 0) {
                     Face face = faces.get(0);
                     Log.d(DemoApplication.LOG_TAG, "valence score = " + Float.toString(face.emotions.getValence()));
@@ -0,0 +1,212 @@
+package com.affectiva.android.affdex.sdk.samples.serviceframedetector;
+
+import android.graphics.Bitmap;
+import android.media.FaceDetector;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+/**
+ * A cheap first tier in front of FrameDetector, which decides whether a frame is worth the full detector's time, so
+ * that the service costs little while nobody is in front of the camera.
+ *
+ * While the full detector has found a face within the last holdSeconds, every frame goes to it, as it is tracking the
+ * face. Otherwise each frame's luma is point-sampled down to at most MAX_CHECK_SIZE pixels along its longer side,
+ * turned upright, and searched with android.media.FaceDetector, and only frames in which it finds a face go to the full
+ * detector. Whatever the presence check says, a frame goes to the full detector at least every safetyNetSeconds, in case
+ * the check misses a face.
+ *
+ * Those safety net frames also measure the check: each one the full detector finds a face in, although the check
+ * found none, counts as a miss. The miss rate is the share of misses among the frames in which the full detector found
+ * a face while the check had a say.
+ *
+ * Not thread-safe: must always be called on the same thread; the counts may be read on any thread.
+ */
+class FacePresenceFilter {
+
+    static final float DEFAULT_HOLD_SECONDS = 2;
+    static final int MAX_CHECK_SIZE = 160;
+
+    private enum Verdict {
+        NONE, // the check didn't run
+        PRESENT,
+        ABSENT
+    }
+
+    private final float safetyNetSeconds;
+    private final float holdSeconds;
+
+    private boolean hasDetected = false;
+    private float lastDetectedTimestamp; // when the full detector last ran
+    private boolean hasFace = false;
+    private float lastFaceTimestamp; // when the full detector last found a face
+    private Verdict verdict = Verdict.NONE; // the check's verdict on the frame last passed to shouldDetect()
+
+    // reused from frame to frame
+    private int[] pixels;
+    private Bitmap bitmap;
+    private FaceDetector faceDetector;
+    private final FaceDetector.Face[] faces = new FaceDetector.Face[1];
+
+    private volatile long checkCount = 0;
+    private volatile long checkNanos = 0;
+    private volatile long skippedCount = 0;
+    private volatile long auditedCount = 0;
+    private volatile long missCount = 0;
+
+    /**
+     * @param safetyNetSeconds the longest time, in frame timestamps, between runs of the full detector
+     * @param holdSeconds how long after the full detector last found a face to keep running it on every frame
+     */
+    FacePresenceFilter(float safetyNetSeconds, float holdSeconds) {
+        if (safetyNetSeconds <= 0 || Float.isNaN(safetyNetSeconds)) {
+            throw new IllegalArgumentException("safetyNetSeconds must be positive");
+        }
+        if (holdSeconds < 0 || Float.isNaN(holdSeconds)) {
+            throw new IllegalArgumentException("holdSeconds must not be negative");
+        }
+        this.safetyNetSeconds = safetyNetSeconds;
+        this.holdSeconds = holdSeconds;
+    }
+
+    /**
+     * Forgets when the full detector last ran, so that the next frame goes to it.
+     */
+    void reset() {
+        hasDetected = false;
+        hasFace = false;
+        verdict = Verdict.NONE;
+    }
+
+    /**
+     * Decides whether a frame should go to the full detector. If so, onDetected() must be called once it has been
+     * processed.
+     * @param nv21 the frame, whose first width * height bytes are its Y plane
+     */
+    boolean shouldDetect(byte[] nv21, int width, int height, Frame.ROTATE rotation, float timestamp) {
+        verdict = Verdict.NONE;
+        if (!hasDetected || timestamp < lastDetectedTimestamp) {
+            return true;
+        }
+        if (hasFace && timestamp - lastFaceTimestamp < holdSeconds) {
+            return true;
+        }
+
+        long startNanos = System.nanoTime();
+        verdict = isFacePresent(nv21, width, height, rotation) ? Verdict.PRESENT : Verdict.ABSENT;
+        checkNanos += System.nanoTime() - startNanos;
+        checkCount += 1;
+
+        if (verdict == Verdict.PRESENT || timestamp - lastDetectedTimestamp >= safetyNetSeconds) {
+            return true;
+        }
+        skippedCount += 1;
+        return false;
+    }
+
+    /**
+     * Records the full detector's results for the frame last passed to shouldDetect().
+     */
+    void onDetected(float timestamp, boolean faceFound) {
+        hasDetected = true;
+        lastDetectedTimestamp = timestamp;
+        if (faceFound) {
+            hasFace = true;
+            lastFaceTimestamp = timestamp;
+            if (verdict != Verdict.NONE) {
+                auditedCount += 1;
+                if (verdict == Verdict.ABSENT) {
+                    missCount += 1;
+                }
+            }
+        }
+        verdict = Verdict.NONE;
+    }
+
+    /**
+     * Returns the number of frames kept from the full detector.
+     */
+    long getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * Returns the number of frames the presence check ran on.
+     */
+    long getCheckCount() {
+        return checkCount;
+    }
+
+    /**
+     * Returns the mean time the presence check took, in nanoseconds.
+     */
+    long getMeanCheckNanos() {
+        long count = checkCount;
+        return count == 0 ? 0 : checkNanos / count;
+    }
+
+    /**
+     * Returns the number of frames in which the full detector found a face which the presence check had missed.
+     */
+    long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of frames in which the full detector found a face after the presence check had run.
+     */
+    long getAuditedCount() {
+        return auditedCount;
+    }
+
+    /**
+     * Returns the fraction of the audited frames which the presence check missed.
+     */
+    float getMissRate() {
+        long audited = auditedCount;
+        return audited == 0 ? 0 : (float) missCount / audited;
+    }
+
+    private boolean isFacePresent(byte[] nv21, int width, int height, Frame.ROTATE rotation) {
+        int step = Math.max(1, (Math.max(width, height) + MAX_CHECK_SIZE - 1) / MAX_CHECK_SIZE);
+        int sampledWidth = width / step;
+        int sampledHeight = height / step;
+        boolean isQuarterTurn = rotation == Frame.ROTATE.BY_90_CW || rotation == Frame.ROTATE.BY_90_CCW;
+        // FaceDetector needs upright faces, and an even width
+        int uprightWidth = (isQuarterTurn ? sampledHeight : sampledWidth) & ~1;
+        int uprightHeight = isQuarterTurn ? sampledWidth : sampledHeight;
+        if (uprightWidth < 2 || uprightHeight < 1) {
+            return false;
+        }
+        if (bitmap == null || bitmap.getWidth() != uprightWidth || bitmap.getHeight() != uprightHeight) {
+            pixels = new int[uprightWidth * uprightHeight];
+            bitmap = Bitmap.createBitmap(uprightWidth, uprightHeight, Bitmap.Config.RGB_565);
+            faceDetector = new FaceDetector(uprightWidth, uprightHeight, faces.length);
+        }
+
+        int index = 0;
+        for (int v = 0; v < uprightHeight; v++) {
+            for (int u = 0; u < uprightWidth; u++) {
+                // the sample of the frame, as the camera delivered it, which ends up at (u, v) once rotated
+                int x;
+                int y;
+                if (rotation == Frame.ROTATE.BY_90_CW) {
+                    x = v;
+                    y = sampledHeight - 1 - u;
+                } else if (rotation == Frame.ROTATE.BY_180) {
+                    x = sampledWidth - 1 - u;
+                    y = sampledHeight - 1 - v;
+                } else if (rotation == Frame.ROTATE.BY_90_CCW) {
+                    x = sampledWidth - 1 - v;
+                    y = u;
+                } else {
+                    x = u;
+                    y = v;
+                }
+                int luma = nv21[y * step * width + x * step] & 0xFF;
+                pixels[index++] = 0xFF000000 | (luma << 16) | (luma << 8) | luma;
+            }
+        }
+        bitmap.setPixels(pixels, 0, uprightWidth, 0, 0, uprightWidth, uprightHeight);
+        return faceDetector.findFaces(bitmap, faces) > 0;
+    }
+}
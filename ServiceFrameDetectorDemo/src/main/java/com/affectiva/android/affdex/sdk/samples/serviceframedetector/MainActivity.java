@@ -9,8 +9,9 @@ import android.view.View;
 import android.widget.TextView;
 
 /**
- * The launch Activity for the app.  Handles camera permission request on Marshmallow+ and
- * provides a button to launch the second Activity.
+ * The launch Activity for the app.  Handles camera permission request on Marshmallow+,
+ * provides a button to launch the second Activity, and shows a few metrics live, as a client
+ * of DetectorService.
  *
  * See the README.md file at the root of the ServiceFrameDetectorDemo module for more info on this
  * sample app.
@@ -19,6 +20,8 @@ public class MainActivity extends BaseActivity {
     private final static int CAMERA_PERMISSIONS_REQUEST_CODE = 0;
     private final static String[] CAMERA_PERMISSIONS_REQUEST = new String[]{Manifest.permission.CAMERA};
     private boolean handleCameraPermissionGrant;
+    private DetectorClient detectorClient;
+    private TextView metricsView;
 
     @SuppressWarnings("ConstantConditions")
     @Override
@@ -38,6 +41,37 @@ public class MainActivity extends BaseActivity {
                 startActivity(new Intent(MainActivity.this, SecondActivity.class));
             }
         });
+
+        metricsView = (TextView) findViewById(R.id.metrics);
+        detectorClient = new DetectorClient(this, DetectorClient.getMask(Metrics.VALENCE, Metrics.JOY, Metrics.SMILE),
+                new MetricsRingReader.Listener() {
+                    @Override
+                    public void onMetrics(float timestamp, int faceCount, float[] values) {
+                        showMetrics(faceCount, values);
+                    }
+                });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart(); // starts DetectorService, if it isn't running
+        detectorClient.connect();
+    }
+
+    @Override
+    protected void onStop() {
+        detectorClient.disconnect();
+        super.onStop();
+    }
+
+    private void showMetrics(int faceCount, float[] values) {
+        if (faceCount == 0) {
+            metricsView.setText(R.string.no_face);
+            return;
+        }
+        metricsView.setText(getString(R.string.live_metrics,
+                values[Metrics.VALENCE.ordinal()], values[Metrics.JOY.ordinal()], values[Metrics.SMILE.ordinal()],
+                detectorClient.getLag(), detectorClient.getDroppedCount()));
     }
 
     @SuppressWarnings("ConstantConditions")
@@ -0,0 +1,159 @@
+package com.affectiva.android.affdex.sdk.samples.serviceframedetector;
+
+/**
+ * An enum representing all metrics currently available in the Affectiva SDK
+ *
+ * A copy of FrameDetectorDemo's Metrics, with only the package changed. Here the ordinals are also the bits of the
+ * subscription mask clients send (see DetectorClient.getMask()), so there must be no more than 64 metrics.
+ */
+public enum Metrics {
+    //Emotions
+    ANGER,
+    DISGUST,
+    FEAR,
+    JOY,
+    SADNESS,
+    SURPRISE,
+    CONTEMPT,
+    ENGAGEMENT,
+    VALENCE,
+
+    //Expressions
+    ATTENTION,
+    BROW_FURROW,
+    BROW_RAISE,
+    CHEEK_RAISE,
+    CHIN_RAISE,
+    DIMPLER,
+    EYE_CLOSURE,
+    EYE_WIDEN,
+    INNER_BROW_RAISE,
+    JAW_DROP,
+    LID_TIGHTEN,
+    LIP_DEPRESSOR,
+    LIP_PRESS,
+    LIP_PUCKER,
+    LIP_STRETCH,
+    LIP_SUCK,
+    MOUTH_OPEN,
+    NOSE_WRINKLE,
+    SMILE,
+    SMIRK,
+    UPPER_LIP_RAISER,
+
+    //Measurements
+    YAW,
+    PITCH,
+    ROLL,
+    INTER_OCULAR_DISTANCE,
+
+    // Appearances
+    AGE,
+    ETHNICITY,
+    GENDER,
+    GLASSES,
+
+    // Qualities
+    BRIGHTNESS;
+
+
+    /**
+     * The categories of metrics. The metrics of each category are contiguous, occupying the ordinals [start, end).
+     */
+    enum Category {
+        EMOTIONS(ANGER, VALENCE),
+        EXPRESSIONS(ATTENTION, UPPER_LIP_RAISER),
+        MEASUREMENTS(YAW, INTER_OCULAR_DISTANCE),
+        APPEARANCES(AGE, GLASSES),
+        QUALITIES(BRIGHTNESS, BRIGHTNESS);
+
+        final int start;
+        final int end;
+
+        Category(Metrics first, Metrics last) {
+            start = first.ordinal();
+            end = last.ordinal() + 1;
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        /**
+         * Returns an array of the metrics in this category, for iteration when setting up views.
+         */
+        Metrics[] getMetrics() {
+            Metrics[] metrics = new Metrics[size()];
+            System.arraycopy(ALL_METRICS, start, metrics, 0, size());
+            return metrics;
+        }
+    }
+
+    private static final Metrics[] ALL_METRICS = values();
+
+    /**
+     * Returns the metric with the given ordinal, without copying values().
+     */
+    static Metrics get(int ordinal) {
+        return ALL_METRICS[ordinal];
+    }
+
+    String getUpperCaseName() {
+        return toString().replace("_", " ");
+    }
+
+    static int numberOfEmotions() {
+        return Category.EMOTIONS.size();
+    }
+
+    static int numberOfExpressions() {
+        return Category.EXPRESSIONS.size();
+    }
+
+    static int numberOfMeasurements() {
+        return Category.MEASUREMENTS.size();
+    }
+
+    static int numberOfAppearances() {
+        return Category.APPEARANCES.size();
+    }
+
+    static int numberOfQualities() {
+        return Category.QUALITIES.size();
+    }
+
+    /**
+     * Returns an array to allow for iteration through all Emotions
+     */
+    static Metrics[] getEmotions() {
+        return Category.EMOTIONS.getMetrics();
+    }
+
+    /*
+    * Returns an array to allow for iteration through all Expressions
+    */
+    static Metrics[] getExpressions() {
+        return Category.EXPRESSIONS.getMetrics();
+    }
+
+    /*
+     * Returns an array to allow for iteration through all Measurements
+     */
+    static Metrics[] getMeasurements() {
+        return Category.MEASUREMENTS.getMetrics();
+    }
+
+    /*
+     * Returns an array to allow for iteration through all Appearances
+     */
+    static Metrics[] getAppearances() {
+        return Category.APPEARANCES.getMetrics();
+    }
+
+    /*
+ * Returns an array to allow for iteration through all Qualities
+ */
+    static Metrics[] getQualities() {
+        return Category.QUALITIES.getMetrics();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,193 @@
+package com.affectiva.android.affdex.sdk.samples.serviceframedetector;
+
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A ring of the detector's most recent results, in a memory-mapped file which the service writes and its clients read,
+ * so that results reach any number of clients without a binder call per frame.
+ *
+ * The file starts with a header, then a table with an entry per client, then SLOT_COUNT fixed-width slots. Every
+ * processed frame is written as one record, into slot (sequence % SLOT_COUNT), holding the first face's metrics (NaN
+ * where there is no face), and then published by advancing the header's write sequence. Each slot starts with the
+ * sequence of the record in it, set to -1 while the record is being written, so a reader which checks it before and
+ * after copying a record can tell when the writer has lapped it and overwritten the slot meanwhile; see
+ * MetricsRingReader.
+ *
+ * Each client owns an entry of the client table, in which it keeps the sequence of the next record it will read and the
+ * number of records it missed, so the service can see how far behind each client is without asking it.
+ *
+ * All values are little-endian. publish() must always be called on the same thread.
+ */
+class MetricsRingBuffer {
+
+    static final int MAGIC = 0x4146524D; // "AFRM"
+    static final int VERSION = 1;
+    static final int SLOT_COUNT = 64; // about two seconds of frames
+    static final int MAX_CLIENTS = 8;
+
+    // header layout
+    static final int HEADER_MAGIC_OFFSET = 0;
+    static final int HEADER_VERSION_OFFSET = 4;
+    static final int HEADER_SLOT_COUNT_OFFSET = 8;
+    static final int HEADER_SLOT_SIZE_OFFSET = 12;
+    static final int HEADER_METRIC_COUNT_OFFSET = 16;
+    static final int HEADER_MAX_CLIENTS_OFFSET = 20;
+    static final int HEADER_WRITE_SEQUENCE_OFFSET = 24;
+    static final int HEADER_SIZE = 32;
+
+    // client table entry layout: the next sequence the client will read, and the number of records it missed
+    static final int CLIENT_READ_SEQUENCE_OFFSET = 0;
+    static final int CLIENT_DROPPED_OFFSET = 8;
+    static final int CLIENT_ENTRY_SIZE = 16;
+    static final int CLIENT_TABLE_OFFSET = HEADER_SIZE;
+
+    // slot layout: sequence, timestamp, number of faces, id of the first face, then every metric of the first face
+    static final int SLOT_SEQUENCE_OFFSET = 0;
+    static final int SLOT_TIMESTAMP_OFFSET = 8;
+    static final int SLOT_FACE_COUNT_OFFSET = 12;
+    static final int SLOT_FACE_ID_OFFSET = 16;
+    static final int SLOT_METRICS_OFFSET = 20;
+    static final int SLOT_SIZE = SLOT_METRICS_OFFSET + 4 * FaceMetricsSnapshot.METRIC_COUNT;
+    static final int SLOTS_OFFSET = CLIENT_TABLE_OFFSET + MAX_CLIENTS * CLIENT_ENTRY_SIZE;
+
+    static final int FILE_SIZE = SLOTS_OFFSET + SLOT_COUNT * SLOT_SIZE;
+
+    private static final String LOG_TAG = "MetricsRingBuffer";
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private final FaceMetricsSnapshot snapshot = new FaceMetricsSnapshot();
+    private long writeSequence = 0;
+
+    private MetricsRingBuffer(File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer) {
+        this.file = file;
+        this.randomAccessFile = randomAccessFile;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates the file, replacing any left over from an earlier run, and maps it.
+     */
+    static MetricsRingBuffer create(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete " + file);
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(HEADER_MAGIC_OFFSET, MAGIC);
+            buffer.putInt(HEADER_VERSION_OFFSET, VERSION);
+            buffer.putInt(HEADER_SLOT_COUNT_OFFSET, SLOT_COUNT);
+            buffer.putInt(HEADER_SLOT_SIZE_OFFSET, SLOT_SIZE);
+            buffer.putInt(HEADER_METRIC_COUNT_OFFSET, FaceMetricsSnapshot.METRIC_COUNT);
+            buffer.putInt(HEADER_MAX_CLIENTS_OFFSET, MAX_CLIENTS);
+            buffer.putLong(HEADER_WRITE_SEQUENCE_OFFSET, 0);
+            for (int i = 0; i < SLOT_COUNT; i++) {
+                buffer.putLong(SLOTS_OFFSET + i * SLOT_SIZE + SLOT_SEQUENCE_OFFSET, -1);
+            }
+            return new MetricsRingBuffer(file, randomAccessFile, buffer);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes a record of a processed frame, overwriting the oldest, and publishes it.
+     */
+    void publish(float timestamp, List<Face> faces) {
+        int faceCount = faces == null ? 0 : faces.size();
+        if (faceCount > 0) {
+            snapshot.fill(faces.get(0));
+        } else {
+            snapshot.clear();
+        }
+
+        long sequence = writeSequence;
+        int offset = getSlotOffset(sequence);
+        buffer.putLong(offset + SLOT_SEQUENCE_OFFSET, -1); // mark the slot as being written
+        buffer.putFloat(offset + SLOT_TIMESTAMP_OFFSET, timestamp);
+        buffer.putInt(offset + SLOT_FACE_COUNT_OFFSET, faceCount);
+        buffer.putInt(offset + SLOT_FACE_ID_OFFSET, snapshot.getFaceId());
+        for (int i = 0; i < FaceMetricsSnapshot.METRIC_COUNT; i++) {
+            buffer.putFloat(offset + SLOT_METRICS_OFFSET + 4 * i, snapshot.get(i));
+        }
+        buffer.putLong(offset + SLOT_SEQUENCE_OFFSET, sequence);
+
+        // publish the record only once it is complete
+        writeSequence = sequence + 1;
+        buffer.putLong(HEADER_WRITE_SEQUENCE_OFFSET, writeSequence);
+    }
+
+    /**
+     * Returns the number of records published.
+     */
+    long getWriteSequence() {
+        return buffer.getLong(HEADER_WRITE_SEQUENCE_OFFSET);
+    }
+
+    /**
+     * Hands a client table entry to a new client, starting it at the next record to be published.
+     */
+    void resetClient(int client) {
+        int offset = getClientOffset(client);
+        buffer.putLong(offset + CLIENT_READ_SEQUENCE_OFFSET, getWriteSequence());
+        buffer.putLong(offset + CLIENT_DROPPED_OFFSET, 0);
+    }
+
+    /**
+     * Returns the number of published records the client has yet to read.
+     */
+    long getClientLag(int client) {
+        return Math.max(0, getWriteSequence() - buffer.getLong(getClientOffset(client) + CLIENT_READ_SEQUENCE_OFFSET));
+    }
+
+    /**
+     * Returns the number of records overwritten before the client read them.
+     */
+    long getClientDroppedCount(int client) {
+        return buffer.getLong(getClientOffset(client) + CLIENT_DROPPED_OFFSET);
+    }
+
+    /**
+     * Closes and deletes the file; the mapping itself is released once the buffer is collected. Clients which still
+     * have the file mapped see no further records.
+     */
+    void close() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to close " + file, e);
+        }
+        if (!file.delete()) {
+            Log.w(LOG_TAG, "Unable to delete " + file);
+        }
+    }
+
+    static int getClientOffset(int client) {
+        if (client < 0 || client >= MAX_CLIENTS) {
+            throw new IllegalArgumentException("client must be in [0, " + MAX_CLIENTS + ")");
+        }
+        return CLIENT_TABLE_OFFSET + client * CLIENT_ENTRY_SIZE;
+    }
+
+    static int getSlotOffset(long sequence) {
+        return SLOTS_OFFSET + (int) (sequence % SLOT_COUNT) * SLOT_SIZE;
+    }
+}
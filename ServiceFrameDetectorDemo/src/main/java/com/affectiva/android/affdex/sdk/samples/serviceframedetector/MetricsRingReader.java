@@ -0,0 +1,151 @@
+package com.affectiva.android.affdex.sdk.samples.serviceframedetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A client's view of a MetricsRingBuffer: maps the service's file and reads the records published since it last looked,
+ * copying out only the metrics the client subscribed to.
+ *
+ * Reading costs no binder calls and never blocks the service. A reader which falls more than SLOT_COUNT records behind
+ * skips ahead to the oldest record still in the ring; records it skips, or finds overwritten while copying them, are
+ * counted as dropped. After each poll() the reader stores its read sequence and dropped count in its entry of the
+ * client table, for the service to report.
+ *
+ * A record is only delivered if its slot held the expected sequence both before and after it was copied. Plain puts
+ * and gets on a mapped buffer come with no ordering guarantees, so this is a best-effort check against records being
+ * overwritten mid-copy, not a guarantee that every value belongs to the same frame; that is acceptable for metrics
+ * shown to the user, which are replaced a frame later anyway.
+ *
+ * Not thread-safe: poll() must always be called on the same thread.
+ */
+class MetricsRingReader {
+
+    interface Listener {
+        /**
+         * Called from within poll() for each record read, oldest first.
+         * @param values indexed by Metrics.ordinal(); NaN for metrics not subscribed to, or when there is no face. Reused
+         *               for the next record.
+         */
+        void onMetrics(float timestamp, int faceCount, float[] values);
+    }
+
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private final int client;
+    private final int[] subscribed; // ordinals of the metrics to copy out
+    private final float[] values = new float[FaceMetricsSnapshot.METRIC_COUNT];
+    private long readSequence;
+    private long droppedCount = 0;
+
+    /**
+     * @param client the entry of the client table the service gave this client
+     * @param metrics a mask of the metrics to read, as made by DetectorClient.getMask()
+     * @throws IOException if the file could not be mapped, or is not laid out as this reader expects
+     */
+    MetricsRingReader(File file, int client, long metrics) throws IOException {
+        MetricsRingBuffer.getClientOffset(client); // checks the index
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() < MetricsRingBuffer.FILE_SIZE) {
+                throw new IOException(file + " is too short");
+            }
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, MetricsRingBuffer.FILE_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(MetricsRingBuffer.HEADER_MAGIC_OFFSET) != MetricsRingBuffer.MAGIC
+                    || buffer.getInt(MetricsRingBuffer.HEADER_VERSION_OFFSET) != MetricsRingBuffer.VERSION
+                    || buffer.getInt(MetricsRingBuffer.HEADER_SLOT_SIZE_OFFSET) != MetricsRingBuffer.SLOT_SIZE
+                    || buffer.getInt(MetricsRingBuffer.HEADER_METRIC_COUNT_OFFSET) != FaceMetricsSnapshot.METRIC_COUNT) {
+                throw new IOException(file + " does not hold a metrics ring this reader understands");
+            }
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+        this.client = client;
+
+        int count = 0;
+        for (int i = 0; i < FaceMetricsSnapshot.METRIC_COUNT; i++) {
+            if ((metrics & (1L << i)) != 0) {
+                count += 1;
+            }
+        }
+        subscribed = new int[count];
+        count = 0;
+        for (int i = 0; i < FaceMetricsSnapshot.METRIC_COUNT; i++) {
+            values[i] = Float.NaN;
+            if ((metrics & (1L << i)) != 0) {
+                subscribed[count++] = i;
+            }
+        }
+
+        // start where the service reset this client's entry
+        readSequence = buffer.getLong(MetricsRingBuffer.getClientOffset(client)
+                + MetricsRingBuffer.CLIENT_READ_SEQUENCE_OFFSET);
+    }
+
+    /**
+     * Delivers every record published since the last poll which is still in the ring.
+     * @return the number of records delivered
+     */
+    int poll(Listener listener) {
+        long writeSequence = buffer.getLong(MetricsRingBuffer.HEADER_WRITE_SEQUENCE_OFFSET);
+        if (writeSequence - readSequence > MetricsRingBuffer.SLOT_COUNT) {
+            // the oldest unread records have been overwritten
+            droppedCount += writeSequence - MetricsRingBuffer.SLOT_COUNT - readSequence;
+            readSequence = writeSequence - MetricsRingBuffer.SLOT_COUNT;
+        }
+
+        int delivered = 0;
+        for (; readSequence < writeSequence; readSequence++) {
+            int offset = MetricsRingBuffer.getSlotOffset(readSequence);
+            if (buffer.getLong(offset + MetricsRingBuffer.SLOT_SEQUENCE_OFFSET) != readSequence) {
+                droppedCount += 1;
+                continue;
+            }
+            float timestamp = buffer.getFloat(offset + MetricsRingBuffer.SLOT_TIMESTAMP_OFFSET);
+            int faceCount = buffer.getInt(offset + MetricsRingBuffer.SLOT_FACE_COUNT_OFFSET);
+            for (int index : subscribed) {
+                values[index] = buffer.getFloat(offset + MetricsRingBuffer.SLOT_METRICS_OFFSET + 4 * index);
+            }
+            if (buffer.getLong(offset + MetricsRingBuffer.SLOT_SEQUENCE_OFFSET) != readSequence) {
+                // overwritten while being copied
+                droppedCount += 1;
+                continue;
+            }
+            listener.onMetrics(timestamp, faceCount, values);
+            delivered += 1;
+        }
+
+        int clientOffset = MetricsRingBuffer.getClientOffset(client);
+        buffer.putLong(clientOffset + MetricsRingBuffer.CLIENT_READ_SEQUENCE_OFFSET, readSequence);
+        buffer.putLong(clientOffset + MetricsRingBuffer.CLIENT_DROPPED_OFFSET, droppedCount);
+        return delivered;
+    }
+
+    /**
+     * Returns the number of records published which this reader has yet to read.
+     */
+    long getLag() {
+        return Math.max(0, buffer.getLong(MetricsRingBuffer.HEADER_WRITE_SEQUENCE_OFFSET) - readSequence);
+    }
+
+    /**
+     * Returns the number of records overwritten before this reader could read them.
+     */
+    long getDroppedCount() {
+        return droppedCount;
+    }
+
+    void close() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            // nothing was written through the file itself
+        }
+    }
+}
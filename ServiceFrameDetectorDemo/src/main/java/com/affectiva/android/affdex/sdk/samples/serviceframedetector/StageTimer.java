@@ -0,0 +1,63 @@
+package com.affectiva.android.affdex.sdk.samples.serviceframedetector;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accumulates how many frames a stage of the service's pipeline handled, and how long it was busy
+ * with them, so that each stage's share of the wall time can be compared: a stage that is busy
+ * nearly all the time is the one limiting the frame rate.
+ *
+ * record() is called on the stage's own thread; the getters may be called on any thread.
+ */
+class StageTimer {
+
+    private final String name;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private volatile long startedNanos = System.nanoTime();
+
+    StageTimer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Clears the totals, and starts measuring wall time afresh.
+     */
+    void reset() {
+        count.set(0);
+        busyNanos.set(0);
+        startedNanos = System.nanoTime();
+    }
+
+    /**
+     * Counts a frame which the stage started on at startNanos (from System.nanoTime()) and has just finished.
+     */
+    void record(long startNanos) {
+        busyNanos.addAndGet(System.nanoTime() - startNanos);
+        count.incrementAndGet();
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getBusyNanos() {
+        return busyNanos.get();
+    }
+
+    /**
+     * Returns the fraction of the wall time since the last reset that the stage was busy.
+     */
+    float getUtilization() {
+        long elapsed = System.nanoTime() - startedNanos;
+        return elapsed <= 0 ? 0 : (float) busyNanos.get() / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        long frames = count.get();
+        return String.format(Locale.US, "%s: %d frames, %.2f ms/frame, %.0f%% busy", name, frames,
+                frames == 0 ? 0 : busyNanos.get() / 1e6 / frames, 100 * getUtilization());
+    }
+}
@@ -0,0 +1,139 @@
+package com.affectiva.videodetectordemo;
+
+import android.view.Choreographer;
+
+import com.affectiva.android.affdex.sdk.Frame;
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.util.List;
+
+/**
+ * Hands detector results to the main thread at most once per display frame.
+ *
+ * post() may be called from any thread, as often as results arrive. Only the most recent result is kept; a Choreographer
+ * frame callback is posted when a result arrives and none is pending, and delivers whatever result is latest when the
+ * next vsync comes. Results which are replaced before then are dropped and counted, so the main thread does one update
+ * per vsync at most, however fast the detector runs, and never works through a backlog of stale results.
+ *
+ * cancel() drops the pending result, and starts a new generation: a post() made for an earlier generation, e.g. by a
+ * detector thread which got its result in just as it was being aborted, is dropped rather than delivered late.
+ *
+ * Must be created on the main thread, so that it uses the main thread's Choreographer.
+ */
+class CoalescingResultDelivery implements Choreographer.FrameCallback {
+
+    interface Receiver {
+        /**
+         * Called on the main thread with the latest result.
+         */
+        void onResult(List<Face> faces, Frame frame, float timestamp);
+    }
+
+    private final Choreographer choreographer;
+    private final Receiver receiver;
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private List<Face> pendingFaces;
+    private Frame pendingFrame;
+    private float pendingTimestamp;
+    private boolean hasPending = false;
+    private boolean callbackPosted = false;
+    private int generation = 0;
+    private long postedCount = 0;
+    private long coalescedCount = 0;
+
+    CoalescingResultDelivery(Receiver receiver) {
+        if (receiver == null) {
+            throw new NullPointerException("receiver must not be null");
+        }
+        choreographer = Choreographer.getInstance();
+        this.receiver = receiver;
+    }
+
+    /**
+     * Returns the current generation, for the poster to pass back to post().
+     */
+    int getGeneration() {
+        synchronized (lock) {
+            return generation;
+        }
+    }
+
+    /**
+     * Replaces any result not yet delivered with this one, unless the given generation has since been cancelled.
+     */
+    void post(List<Face> faces, Frame frame, float timestamp, int generation) {
+        synchronized (lock) {
+            if (generation != this.generation) {
+                return;
+            }
+            postedCount += 1;
+            if (hasPending) {
+                coalescedCount += 1;
+            }
+            pendingFaces = faces;
+            pendingFrame = frame;
+            pendingTimestamp = timestamp;
+            hasPending = true;
+            if (!callbackPosted) {
+                callbackPosted = true;
+                choreographer.postFrameCallback(this);
+            }
+        }
+    }
+
+    /**
+     * Drops any result not yet delivered, and any posted later for the current generation.
+     */
+    void cancel() {
+        synchronized (lock) {
+            generation += 1;
+            if (callbackPosted) {
+                choreographer.removeFrameCallback(this);
+                callbackPosted = false;
+            }
+            hasPending = false;
+            pendingFaces = null;
+            pendingFrame = null;
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        List<Face> faces;
+        Frame frame;
+        float timestamp;
+        synchronized (lock) {
+            callbackPosted = false;
+            if (!hasPending) {
+                return;
+            }
+            faces = pendingFaces;
+            frame = pendingFrame;
+            timestamp = pendingTimestamp;
+            hasPending = false;
+            pendingFaces = null;
+            pendingFrame = null;
+        }
+        receiver.onResult(faces, frame, timestamp);
+    }
+
+    /**
+     * Returns the number of results posted.
+     */
+    long getPostedCount() {
+        synchronized (lock) {
+            return postedCount;
+        }
+    }
+
+    /**
+     * Returns the number of results dropped because a newer one arrived before the next display frame.
+     */
+    long getCoalescedCount() {
+        synchronized (lock) {
+            return coalescedCount;
+        }
+    }
+}
@@ -8,7 +8,7 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.PorterDuff;
-import android.graphics.Rect;
+import android.graphics.RectF;
 import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -21,17 +21,114 @@ import java.nio.ByteBuffer;
 
 /**
  * This is a sample app showing how to use VideoDetector
+ *
+ * Frames are triple-buffered between drawFrame() and the drawing thread: drawFrame() copies each frame's pixels and
+ * face points into the back RenderBuffer and swaps it with the ready one, and the drawing thread swaps the ready buffer
+ * with the front one whenever a newer frame is ready, and draws the front one. drawFrame() is called on the UI thread,
+ * so it only copies: NV21 frames are copied as they are, and converted to ARGB by the drawing thread. Each buffer keeps
+ * its bitmap, and the drawing thread keeps the transform from frame to canvas, so nothing is allocated while the frame
+ * size, rotation and canvas size stay the same.
  */
 public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
 
+    /**
+     * A copy of a frame and its face points, owned by either drawFrame(), the drawing thread or neither (when ready).
+     */
+    private static class RenderBuffer {
+        Bitmap bitmap;
+        Canvas bitmapCanvas; // for copying BitmapFrames into bitmap
+        ByteBuffer wrappedPixels; // wraps the last RGBA ByteArrayFrame's pixels, which the SDK may reuse
+        byte[] nv21; // a copy of the last NV21 ByteArrayFrame, which the SDK may reuse
+        boolean isNv21Pending = false; // whether nv21 is yet to be converted into bitmap
+        int[] argb; // the last NV21 ByteArrayFrame, converted by the drawing thread
+        Frame.ROTATE rotation;
+        float[] points = new float[0]; // x, y of each point
+        int pointCount;
+        boolean hasFrame = false;
+
+        void set(Frame frame, PointF[] facePoints) {
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+                if (bitmap != null) {
+                    bitmap.recycle();
+                }
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                bitmapCanvas = null;
+            }
+
+            isNv21Pending = false;
+            if (frame instanceof Frame.BitmapFrame) {
+                if (bitmapCanvas == null) {
+                    bitmapCanvas = new Canvas(bitmap);
+                }
+                bitmapCanvas.drawBitmap(((Frame.BitmapFrame) frame).getBitmap(), 0, 0, null);
+            } else if (frame.getColorFormat() == Frame.COLOR_FORMAT.YUV_NV21) {
+                byte[] pixels = ((Frame.ByteArrayFrame) frame).getByteArray();
+                int size = width * height * 3 / 2;
+                if (nv21 == null || nv21.length != size) {
+                    nv21 = new byte[size];
+                }
+                System.arraycopy(pixels, 0, nv21, 0, size);
+                isNv21Pending = true;
+            } else { //frame is an RGBA ByteArrayFrame
+                byte[] pixels = ((Frame.ByteArrayFrame) frame).getByteArray();
+                if (wrappedPixels == null || wrappedPixels.array() != pixels) {
+                    wrappedPixels = ByteBuffer.wrap(pixels);
+                }
+                wrappedPixels.rewind();
+                bitmap.copyPixelsFromBuffer(wrappedPixels);
+            }
+            rotation = frame.getTargetRotation();
+
+            pointCount = facePoints == null ? 0 : facePoints.length;
+            if (points.length < pointCount * 2) {
+                points = new float[pointCount * 2];
+            }
+            for (int i = 0; i < pointCount; i++) {
+                points[2 * i] = facePoints[i].x;
+                points[2 * i + 1] = facePoints[i].y;
+            }
+            hasFrame = true;
+        }
+
+        /**
+         * Converts a copied NV21 frame into bitmap, on the drawing thread, once the buffer is the front one.
+         */
+        void convert(YuvConverter yuvConverter) {
+            if (!isNv21Pending) {
+                return;
+            }
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            if (argb == null || argb.length != width * height) {
+                argb = new int[width * height];
+            }
+            yuvConverter.nv21ToArgb(nv21, width, height, argb);
+            bitmap.setPixels(argb, 0, width, 0, 0, width, height);
+            isNv21Pending = false;
+        }
+    }
+
     //Inner Thread class
     class DrawingThread extends Thread{
         private SurfaceHolder mSurfaceHolder;
         private boolean stopFlag = false; //boolean to indicate when thread has been told to stop
-        private Frame nextFrameToDraw = null;
-        private PointF[] nextPointsToDraw = null;
         private final long drawPeriod = 33; //draw at 30 fps
         Paint circlePaint;
+        private YuvConverter yuvConverter; // created on the first NV21 frame, released when the thread stops
+
+        // the transform from the front buffer's frame to the canvas, rebuilt when any of the inputs change
+        private final Matrix frameToCanvas = new Matrix();
+        private final RectF rotatedBounds = new RectF();
+        private int transformFrameWidth = -1;
+        private int transformFrameHeight = -1;
+        private Frame.ROTATE transformRotation;
+        private int transformCanvasWidth = -1;
+        private int transformCanvasHeight = -1;
+        private float scaling;
+        private int leftOffset;
+        private int topOffset;
 
         public DrawingThread(SurfaceHolder surfaceHolder) {
             mSurfaceHolder = surfaceHolder;
@@ -48,16 +145,21 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
             return stopFlag;
         }
 
-        //Updates thread with latest points returned by the onImageResults() event.
-        public void updateFrameAndPoints(Frame frame, PointF[] points) {
-            nextFrameToDraw = frame;
-            nextPointsToDraw = points;
-        }
-
         @Override
         public void run() {
             android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
 
+            try {
+                drawLoop();
+            } finally {
+                if (yuvConverter != null) {
+                    yuvConverter.release();
+                    yuvConverter = null;
+                }
+            }
+        }
+
+        private void drawLoop() {
             while(!stopFlag) {
                 long startTime = SystemClock.elapsedRealtime(); //get time at the start of thread loop
 
@@ -72,8 +174,13 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
                     if (c!= null) {
                         synchronized (mSurfaceHolder) {
                             c.drawColor(Color.BLACK, PorterDuff.Mode.CLEAR); //clear previous dots
-                            if (nextFrameToDraw != null) {
-                                draw(c);
+                            RenderBuffer buffer = acquireFrontBuffer();
+                            if (buffer.hasFrame) {
+                                if (buffer.isNv21Pending && yuvConverter == null) {
+                                    yuvConverter = new YuvConverter(YuvConverter.getDefaultThreadCount());
+                                }
+                                buffer.convert(yuvConverter);
+                                draw(c, buffer);
                             }
 
 
@@ -99,38 +206,55 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
 
         }
 
-        void draw(Canvas c) {
-            //get reference to frame on this thread
-            Frame frame = nextFrameToDraw;
-            Frame.ROTATE frameRot = frame.getTargetRotation();
-            Bitmap bitmap;
-
-            int frameWidth = frame.getWidth();
-            int frameHeight = frame.getHeight();
+        void draw(Canvas c, RenderBuffer buffer) {
             int canvasWidth = c.getWidth();
             int canvasHeight = c.getHeight();
-            int scaledWidth;
-            int scaledHeight;
-            int topOffset = 0;
-            int leftOffset= 0;
+            updateTransform(buffer.bitmap.getWidth(), buffer.bitmap.getHeight(), buffer.rotation, canvasWidth,
+                    canvasHeight);
             float radius = (float)canvasWidth/100f;
 
-            if (frameRot == Frame.ROTATE.BY_90_CCW || frameRot == Frame.ROTATE.BY_90_CW) {
-                int temp = frameWidth;
-                frameWidth = frameHeight;
-                frameHeight = temp;
+            c.drawBitmap(buffer.bitmap, frameToCanvas, null);
+
+            float[] points = buffer.points;
+            for (int i = 0; i < buffer.pointCount; i++) {
+
+                //transform from the frame coordinates to our screen coordinates
+                float x = (points[2 * i] * scaling) + leftOffset;
+                float y = (points[2 * i + 1] * scaling) + topOffset;
+
+                c.drawCircle(x, y, radius, circlePaint);
             }
 
-            if (frame instanceof Frame.BitmapFrame) {
-                bitmap = ((Frame.BitmapFrame)frame).getBitmap();
-            } else { //frame is ByteArrayFrame
-                byte[] pixels = ((Frame.ByteArrayFrame)frame).getByteArray();
-                ByteBuffer buffer = ByteBuffer.wrap(pixels);
-                bitmap = Bitmap.createBitmap(frameWidth, frameHeight, Bitmap.Config.ARGB_8888);
-                bitmap.copyPixelsFromBuffer(buffer);
+        }
+
+        /**
+         * Fits the rotated frame into the canvas, centered, preserving its aspect ratio.
+         */
+        private void updateTransform(int frameWidth, int frameHeight, Frame.ROTATE frameRot, int canvasWidth,
+                                     int canvasHeight) {
+            if (frameWidth == transformFrameWidth && frameHeight == transformFrameHeight
+                    && frameRot == transformRotation && canvasWidth == transformCanvasWidth
+                    && canvasHeight == transformCanvasHeight) {
+                return;
+            }
+            transformFrameWidth = frameWidth;
+            transformFrameHeight = frameHeight;
+            transformRotation = frameRot;
+            transformCanvasWidth = canvasWidth;
+            transformCanvasHeight = canvasHeight;
+
+            int rotatedWidth = frameWidth;
+            int rotatedHeight = frameHeight;
+            if (frameRot == Frame.ROTATE.BY_90_CCW || frameRot == Frame.ROTATE.BY_90_CW) {
+                rotatedWidth = frameHeight;
+                rotatedHeight = frameWidth;
             }
 
-            float frameAspectRatio = (float)frameWidth/(float)frameHeight;
+            int scaledWidth;
+            int scaledHeight;
+            topOffset = 0;
+            leftOffset = 0;
+            float frameAspectRatio = (float)rotatedWidth/(float)rotatedHeight;
             float canvasAspectRatio = (float) canvasWidth/(float) canvasHeight;
             if (frameAspectRatio > canvasAspectRatio) { //width should be the same
                 scaledWidth = canvasWidth;
@@ -141,31 +265,15 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
                 scaledWidth = (int) ((float)canvasHeight*frameAspectRatio);
                 leftOffset = (canvasWidth - scaledWidth)/2;
             }
-
-            float scaling = (float)scaledWidth/(float)frameWidth;
-
-            Matrix matrix = new Matrix();
-            matrix.postRotate((float)frameRot.toDouble());
-            Bitmap rotatedBitmap = Bitmap.createBitmap(bitmap,0,0,frameWidth,frameHeight,matrix,false);
-            c.drawBitmap(rotatedBitmap,null,new Rect(leftOffset,topOffset,leftOffset+scaledWidth,topOffset+scaledHeight),null);
-
-
-            if (nextPointsToDraw != null) {
-                //Save our own reference to the list of points, in case the previous reference is overwritten by the main thread.
-                PointF[] points = nextPointsToDraw;
-
-
-                for (int i = 0; i < points.length; i++) {
-
-                    //transform from the camera coordinates to our screen coordinates
-                    //The camera preview is displayed as a mirror, so X pts have to be mirrored back.
-                    float x = (points[i].x * scaling) + leftOffset;
-                    float y = (points[i].y * scaling) + topOffset;
-
-                    c.drawCircle(x, y, radius, circlePaint);
-                }
-            }
-
+            scaling = (float)scaledWidth/(float)rotatedWidth;
+
+            // rotate, move the rotated frame back to the origin, then scale and center it
+            frameToCanvas.setRotate((float)frameRot.toDouble());
+            rotatedBounds.set(0, 0, frameWidth, frameHeight);
+            frameToCanvas.mapRect(rotatedBounds);
+            frameToCanvas.postTranslate(-rotatedBounds.left, -rotatedBounds.top);
+            frameToCanvas.postScale(scaling, scaling);
+            frameToCanvas.postTranslate(leftOffset, topOffset);
         }
     }
 
@@ -174,6 +282,13 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
     private DrawingThread drawingThread; //DrawingThread object
     private static String LOG_TAG = "AffdexMe";
 
+    // triple buffering: back is written by drawFrame(), front is drawn by the drawing thread
+    private final Object bufferLock = new Object();
+    private RenderBuffer backBuffer = new RenderBuffer();
+    private RenderBuffer readyBuffer = new RenderBuffer(); // guarded by bufferLock
+    private RenderBuffer frontBuffer = new RenderBuffer();
+    private boolean readyBufferIsNew = false; // guarded by bufferLock
+
     //three constructors required of any custom view
     public DrawingView(Context context) {
         super(context);
@@ -222,7 +337,31 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
         }
     }
 
+    /**
+     * Copies the frame and points to be drawn. Must always be called on the same thread.
+     */
     public void drawFrame(Frame frame, PointF[] points) {
-        drawingThread.updateFrameAndPoints(frame,points);
+        backBuffer.set(frame, points);
+        synchronized (bufferLock) {
+            RenderBuffer ready = readyBuffer;
+            readyBuffer = backBuffer;
+            backBuffer = ready;
+            readyBufferIsNew = true;
+        }
+    }
+
+    /*
+     * Called by the drawing thread. Returns the newest frame, which stays the drawing thread's until the next call.
+     */
+    private RenderBuffer acquireFrontBuffer() {
+        synchronized (bufferLock) {
+            if (readyBufferIsNew) {
+                RenderBuffer ready = readyBuffer;
+                readyBuffer = frontBuffer;
+                frontBuffer = ready;
+                readyBufferIsNew = false;
+            }
+        }
+        return frontBuffer;
     }
 }
@@ -0,0 +1,313 @@
+package com.affectiva.videodetectordemo;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+/**
+ * The value of every metric for a single face, held in a float[] indexed by Metrics.ordinal().
+ *
+ * fill() reads every metric out of a Face in one pass, through a table of accessors built once, so consumers of the
+ * per-frame results read primitives rather than switching on each metric. Scores and measurements are stored as they
+ * are; appearances are stored as the ordinal of the SDK's value (e.g. Face.GENDER.FEMALE.ordinal()), or NaN if the SDK
+ * did not report one. Metrics.Category gives the range of indices of each category.
+ *
+ * A snapshot is intended to be reused from frame to frame, and is not thread-safe.
+ *
+ * FrameDetectorDemo and ImageDetectorDemo have their own copies of this class: FrameDetectorDemo's Metrics also has
+ * GLASSES, and names three action units without the trailing R (CHIN_RAISE, INNER_BROW_RAISE, NOSE_WRINKLE), while
+ * ImageDetectorDemo's copy is keyed by the MetricsManager codes. A metric added to the SDK needs an accessor in each
+ * copy.
+ */
+class FaceMetricsSnapshot {
+
+    private static abstract class Accessor {
+        abstract float read(Face face);
+    }
+
+    static final int METRIC_COUNT = Metrics.values().length;
+
+    private static final Accessor[] ACCESSORS = new Accessor[METRIC_COUNT];
+
+    static {
+        ACCESSORS[Metrics.ANGER.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getAnger();
+            }
+        };
+        ACCESSORS[Metrics.DISGUST.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getDisgust();
+            }
+        };
+        ACCESSORS[Metrics.FEAR.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getFear();
+            }
+        };
+        ACCESSORS[Metrics.JOY.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getJoy();
+            }
+        };
+        ACCESSORS[Metrics.SADNESS.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getSadness();
+            }
+        };
+        ACCESSORS[Metrics.SURPRISE.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getSurprise();
+            }
+        };
+        ACCESSORS[Metrics.CONTEMPT.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getContempt();
+            }
+        };
+        ACCESSORS[Metrics.ENGAGEMENT.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getEngagement();
+            }
+        };
+        ACCESSORS[Metrics.VALENCE.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.emotions.getValence();
+            }
+        };
+        ACCESSORS[Metrics.ATTENTION.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getAttention();
+            }
+        };
+        ACCESSORS[Metrics.BROW_FURROW.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getBrowFurrow();
+            }
+        };
+        ACCESSORS[Metrics.BROW_RAISE.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getBrowRaise();
+            }
+        };
+        ACCESSORS[Metrics.CHEEK_RAISE.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getCheekRaise();
+            }
+        };
+        ACCESSORS[Metrics.CHIN_RAISER.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getChinRaise();
+            }
+        };
+        ACCESSORS[Metrics.DIMPLER.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getDimpler();
+            }
+        };
+        ACCESSORS[Metrics.EYE_CLOSURE.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getEyeClosure();
+            }
+        };
+        ACCESSORS[Metrics.EYE_WIDEN.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getEyeWiden();
+            }
+        };
+        ACCESSORS[Metrics.INNER_BROW_RAISER.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getInnerBrowRaise();
+            }
+        };
+        ACCESSORS[Metrics.JAW_DROP.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getJawDrop();
+            }
+        };
+        ACCESSORS[Metrics.LID_TIGHTEN.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getLidTighten();
+            }
+        };
+        ACCESSORS[Metrics.LIP_DEPRESSOR.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getLipCornerDepressor();
+            }
+        };
+        ACCESSORS[Metrics.LIP_PRESS.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getLipPress();
+            }
+        };
+        ACCESSORS[Metrics.LIP_PUCKER.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getLipPucker();
+            }
+        };
+        ACCESSORS[Metrics.LIP_STRETCH.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getLipStretch();
+            }
+        };
+        ACCESSORS[Metrics.LIP_SUCK.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getLipSuck();
+            }
+        };
+        ACCESSORS[Metrics.MOUTH_OPEN.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getMouthOpen();
+            }
+        };
+        ACCESSORS[Metrics.NOSE_WRINKLER.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getNoseWrinkle();
+            }
+        };
+        ACCESSORS[Metrics.SMILE.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getSmile();
+            }
+        };
+        ACCESSORS[Metrics.SMIRK.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getSmirk();
+            }
+        };
+        ACCESSORS[Metrics.UPPER_LIP_RAISER.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.expressions.getUpperLipRaise();
+            }
+        };
+        ACCESSORS[Metrics.YAW.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.measurements.orientation.getYaw();
+            }
+        };
+        ACCESSORS[Metrics.PITCH.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.measurements.orientation.getPitch();
+            }
+        };
+        ACCESSORS[Metrics.ROLL.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.measurements.orientation.getRoll();
+            }
+        };
+        ACCESSORS[Metrics.INTER_OCULAR_DISTANCE.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.measurements.getInterocularDistance();
+            }
+        };
+        ACCESSORS[Metrics.BRIGHTNESS.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return face.qualities.getBrightness();
+            }
+        };
+        ACCESSORS[Metrics.GENDER.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return ordinalOf(face.appearance.getGender());
+            }
+        };
+        ACCESSORS[Metrics.AGE.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return ordinalOf(face.appearance.getAge());
+            }
+        };
+        ACCESSORS[Metrics.ETHNICITY.ordinal()] = new Accessor() {
+            @Override
+            float read(Face face) {
+                return ordinalOf(face.appearance.getEthnicity());
+            }
+        };
+    }
+
+    private final float[] values = new float[METRIC_COUNT];
+    private boolean hasFace;
+    private int faceId;
+
+    FaceMetricsSnapshot() {
+        clear();
+    }
+
+    /**
+     * Copies the value of every metric out of the given face.
+     */
+    void fill(Face face) {
+        for (int i = 0; i < METRIC_COUNT; i++) {
+            values[i] = ACCESSORS[i] == null ? Float.NaN : ACCESSORS[i].read(face);
+        }
+        faceId = face.getId();
+        hasFace = true;
+    }
+
+    /**
+     * Sets every metric to NaN, e.g. when no face was found.
+     */
+    void clear() {
+        for (int i = 0; i < METRIC_COUNT; i++) {
+            values[i] = Float.NaN;
+        }
+        faceId = -1;
+        hasFace = false;
+    }
+
+    boolean hasFace() {
+        return hasFace;
+    }
+
+    /**
+     * Returns the SDK's id of the face this snapshot was filled from, if hasFace().
+     */
+    int getFaceId() {
+        return faceId;
+    }
+
+    float get(Metrics metric) {
+        return values[metric.ordinal()];
+    }
+
+    float get(int index) {
+        return values[index];
+    }
+
+    private static float ordinalOf(Enum<?> value) {
+        return value == null ? Float.NaN : value.ordinal();
+    }
+}
@@ -14,19 +14,28 @@ import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.IOException;
+import java.util.Locale;
+
 /*
 A sample app showing how to use VideoFileDetector. This detector must be run on a non-Looper thread.
+"Analyze Video" instead analyzes the whole video as fast as possible, using OfflineVideoAnalyzer.
 */
 
-public class MainActivity extends Activity {
+public class MainActivity extends Activity implements OfflineVideoAnalyzer.Listener {
 
     private static String LOG_TAG = "Affectiva";
     private static final int PICK_VIDEO = 100;
+    private static final int PICK_VIDEO_TO_ANALYZE = 101;
 
     VideoDetectorThread videoThread;
+    OfflineVideoAnalyzer analyzer;
     MetricsPanel metricsPanel;
+    TextView analysisStatus;
+    int lastShownSample = -1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -35,6 +44,15 @@ public class MainActivity extends Activity {
 
         metricsPanel = new MetricsPanel();
         getFragmentManager().beginTransaction().add(R.id.fragment_container,metricsPanel).commit();
+        analysisStatus = (TextView) findViewById(R.id.analysis_status);
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (analyzer != null) {
+            analyzer.cancel();
+        }
+        super.onDestroy();
     }
 
     void processVideo(String filename) {
@@ -42,14 +60,94 @@ public class MainActivity extends Activity {
         videoThread.start();
     }
 
+    void analyzeVideo(String filename) {
+        analyzer = new OfflineVideoAnalyzer(this, filename, OfflineVideoAnalyzer.getDefaultWorkerCount(),
+                OfflineVideoAnalyzer.DEFAULT_SAMPLE_RATE, this);
+        lastShownSample = -1;
+        try {
+            analyzer.start();
+            analysisStatus.setText("Analyzing...");
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to analyze " + filename, e);
+            analyzer = null;
+            analysisStatus.setText("Unable to read video");
+        }
+    }
+
     public void chooseVideo(View view) {
+        stopDetection();
+        Intent mediaChooser = new Intent(Intent.ACTION_GET_CONTENT);
+        mediaChooser.setType("video/*");
+        startActivityForResult(mediaChooser, PICK_VIDEO);
+    }
+
+    public void analyzeVideo(View view) {
+        stopDetection();
+        Intent mediaChooser = new Intent(Intent.ACTION_GET_CONTENT);
+        mediaChooser.setType("video/*");
+        startActivityForResult(mediaChooser, PICK_VIDEO_TO_ANALYZE);
+    }
+
+    private void stopDetection() {
         // abort current video detection in progress, if any
         if (videoThread != null) {
             videoThread.abort();
         }
-        Intent mediaChooser = new Intent(Intent.ACTION_GET_CONTENT);
-        mediaChooser.setType("video/*");
-        startActivityForResult(mediaChooser, PICK_VIDEO);
+        if (analyzer != null) {
+            analyzer.cancel();
+            analyzer = null;
+        }
+    }
+
+    @Override
+    public void onAnalysisProgress(VideoTimeline timeline, int completedUpTo, float fractionDone,
+                                   float realtimeFactor) {
+        if (analyzer == null || timeline != analyzer.getTimeline()) {
+            return; // from an analysis which has since been cancelled
+        }
+        analysisStatus.setText(String.format(Locale.US, "%d%% (%.1fx real time)", (int) (fractionDone * 100),
+                realtimeFactor));
+        // show the latest sample of the part of the timeline which is complete, i.e. the timeline as it plays back
+        int sample = completedUpTo - 1;
+        if (sample > lastShownSample) {
+            lastShownSample = sample;
+            for (int n = 0; n < Metrics.Category.APPEARANCES.start; n++) {
+                Metrics metric = Metrics.get(n);
+                if (timeline.hasFace(sample)) {
+                    metricsPanel.setMetricValue(metric, timeline.getMetric(sample, metric));
+                } else {
+                    metricsPanel.setMetricNA(metric);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onAnalysisFinished(VideoTimeline timeline, boolean cancelled, float realtimeFactor) {
+        if (analyzer == null || timeline != analyzer.getTimeline()) {
+            return; // from an analysis which has since been cancelled
+        }
+        if (cancelled) {
+            analysisStatus.setText("Cancelled");
+        } else {
+            int faceCount = 0;
+            for (int i = 0; i < timeline.getSampleCount(); i++) {
+                if (timeline.hasFace(i)) {
+                    faceCount += 1;
+                }
+            }
+            analysisStatus.setText(String.format(Locale.US, "Done: face in %d of %d samples (%.1fx real time)",
+                    faceCount, timeline.getSampleCount(), realtimeFactor));
+        }
+    }
+
+    @Override
+    public void onAnalysisFailed(VideoTimeline timeline, Throwable error) {
+        if (analyzer == null || timeline != analyzer.getTimeline()) {
+            return; // from an analysis which has since been cancelled
+        }
+        analysisStatus.setText("Analysis failed");
+        Toast.makeText(this, "Analysis failed: " + error.getMessage(), Toast.LENGTH_LONG).show();
     }
 
     @Override
@@ -60,6 +158,10 @@ public class MainActivity extends Activity {
             Uri videoUri = data.getData();
             String path = getPath(this,videoUri);
             processVideo(path);
+        } else if (resultCode == RESULT_OK && requestCode == PICK_VIDEO_TO_ANALYZE) {
+            Uri videoUri = data.getData();
+            String path = getPath(this,videoUri);
+            analyzeVideo(path);
         } else {
             Toast.makeText(this,"No image selected.",Toast.LENGTH_LONG).show();
         }
@@ -52,6 +52,47 @@ public enum Metrics {
     AGE,
     ETHNICITY;
 
+    /**
+     * The categories of metrics. The metrics of each category are contiguous, occupying the ordinals [start, end).
+     */
+    enum Category {
+        EMOTIONS(ANGER, VALENCE),
+        EXPRESSIONS(ATTENTION, UPPER_LIP_RAISER),
+        MEASUREMENTS(YAW, INTER_OCULAR_DISTANCE),
+        QUALITIES(BRIGHTNESS, BRIGHTNESS),
+        APPEARANCES(GENDER, ETHNICITY);
+
+        final int start;
+        final int end;
+
+        Category(Metrics first, Metrics last) {
+            start = first.ordinal();
+            end = last.ordinal() + 1;
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        /**
+         * Returns an array of the metrics in this category, for iteration when setting up views.
+         */
+        Metrics[] getMetrics() {
+            Metrics[] metrics = new Metrics[size()];
+            System.arraycopy(ALL_METRICS, start, metrics, 0, size());
+            return metrics;
+        }
+    }
+
+    private static final Metrics[] ALL_METRICS = values();
+
+    /**
+     * Returns the metric with the given ordinal, without copying values().
+     */
+    static Metrics get(int ordinal) {
+        return ALL_METRICS[ordinal];
+    }
+
     String getUpperCaseName() {
         return toString().replace("_", " ");
     }
@@ -61,74 +102,53 @@ public enum Metrics {
     }
 
     static int numberOfEmotions() {
-        return VALENCE.ordinal() + 1;
+        return Category.EMOTIONS.size();
     }
 
     static int numberOfExpressions() {
-        return UPPER_LIP_RAISER.ordinal() - numberOfEmotions() + 1;
+        return Category.EXPRESSIONS.size();
     }
 
     static int numberOfMeasurements() {
-        return INTER_OCULAR_DISTANCE.ordinal() - numberOfEmotions() - numberOfExpressions() + 1;
+        return Category.MEASUREMENTS.size();
     }
 
     static int numberOfQualities() {
-        return BRIGHTNESS.ordinal() - numberOfEmotions() - numberOfExpressions()
-                - numberOfMeasurements() + 1;
+        return Category.QUALITIES.size();
     }
 
     static int numberOfAppearances() {
-        return ETHNICITY.ordinal() - numberOfQualities() - numberOfMeasurements()
-                - numberOfExpressions() - numberOfEmotions() + 1;
+        return Category.APPEARANCES.size();
     }
 
 
     static int numberOfMetrics() {
-        return Metrics.values().length;
+        return ALL_METRICS.length;
     }
 
     /**
      * Returns an array to allow for iteration through all Emotions
      */
     static Metrics[] getEmotions() {
-        Metrics[] emotions = new Metrics[numberOfEmotions()];
-        Metrics[] allMetrics = Metrics.values();
-        System.arraycopy(allMetrics, 0, emotions, 0, numberOfEmotions());
-        return emotions;
+        return Category.EMOTIONS.getMetrics();
     }
 
     /**
      * Returns an array to allow for iteration through all Expressions
      */
     static Metrics[] getExpressions() {
-        Metrics[] expressions = new Metrics[numberOfExpressions()];
-        Metrics[] allMetrics = Metrics.values();
-        System.arraycopy(allMetrics, numberOfEmotions(), expressions, 0, numberOfExpressions());
-        return expressions;
+        return Category.EXPRESSIONS.getMetrics();
     }
 
     static Metrics[] getMeasurements() {
-        Metrics[] measurements = new Metrics[numberOfMeasurements()];
-        Metrics[] allMetrics = Metrics.values();
-        System.arraycopy(allMetrics, numberOfEmotions()+ numberOfExpressions(),
-                measurements, 0, numberOfMeasurements());
-        return measurements;
+        return Category.MEASUREMENTS.getMetrics();
     }
 
     static Metrics[] getQualities() {
-        Metrics[] qualities = new Metrics[numberOfQualities()];
-        Metrics[] allMetrics = Metrics.values();
-        System.arraycopy(allMetrics, numberOfEmotions()+ numberOfExpressions()
-                + numberOfMeasurements(), qualities, 0, numberOfQualities());
-        return qualities;
+        return Category.QUALITIES.getMetrics();
     }
 
     static Metrics[] getAppearances() {
-        Metrics[] appearances = new Metrics[numberOfAppearances()];
-        Metrics[] allMetrics = Metrics.values();
-        System.arraycopy(allMetrics, numberOfEmotions()+ numberOfExpressions()
-                + numberOfMeasurements() + numberOfQualities(),
-                appearances, 0, numberOfAppearances());
-        return appearances;
+        return Category.APPEARANCES.getMetrics();
     }
 }
\ No newline at end of file
@@ -0,0 +1,505 @@
+package com.affectiva.videodetectordemo;
+
+import android.content.Context;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.Frame;
+import com.affectiva.android.affdex.sdk.detector.Detector;
+import com.affectiva.android.affdex.sdk.detector.Face;
+import com.affectiva.android.affdex.sdk.detector.FrameDetector;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Analyzes a whole video file as fast as the device allows, rather than in real time as VideoFileDetector does.
+ *
+ * The video is split into time ranges of RANGE_DURATION seconds. Each of several worker threads has its own
+ * MediaExtractor, MediaCodec decoder and FrameDetector, and repeatedly takes the next range not yet taken, seeks to it,
+ * decodes it and feeds the frames which fall on the sample grid to its detector. Since each worker takes ranges in
+ * increasing order, the timestamps each detector sees always increase. Results are written into a VideoTimeline, which
+ * is ordered by construction, and the main thread is told as samples complete, so that it can report progress, how
+ * many times faster than real time the analysis is running, and how far the timeline is complete without gaps.
+ *
+ * All Listener methods are called on the main thread.
+ */
+class OfflineVideoAnalyzer {
+
+    interface Listener {
+        /**
+         * @param completedUpTo every sample before this one is complete
+         * @param fractionDone the fraction of all samples which are complete
+         * @param realtimeFactor seconds of video analyzed per second of analysis so far
+         */
+        void onAnalysisProgress(VideoTimeline timeline, int completedUpTo, float fractionDone, float realtimeFactor);
+
+        /**
+         * @param cancelled true if cancel() was called, in which case the timeline is incomplete
+         */
+        void onAnalysisFinished(VideoTimeline timeline, boolean cancelled, float realtimeFactor);
+
+        /**
+         * Called instead of onAnalysisFinished() if a worker failed; the timeline is incomplete.
+         */
+        void onAnalysisFailed(VideoTimeline timeline, Throwable error);
+    }
+
+    static final float DEFAULT_SAMPLE_RATE = 10f; // samples per second of video
+    static final float RANGE_DURATION = 10f; // seconds
+    private static final int MAX_WORKERS = 4;
+    private static final String LOG_TAG = "OfflineVideoAnalyzer";
+
+    private final Context context;
+    private final String filename;
+    private final int workerCount;
+    private final float sampleRate;
+    private final Listener listener;
+    private final MainThreadHandler mainThreadHandler;
+
+    private VideoTimeline timeline;
+    private Frame.ROTATE rotation;
+    private int rangeCount;
+    private final AtomicInteger nextRange = new AtomicInteger();
+    private volatile boolean cancelled = false;
+    private boolean isRunning = false;
+
+    // only touched on the main thread
+    private boolean[] sampleCompleted;
+    private int completedCount;
+    private int completedUpTo;
+    private int workersRunning;
+    private Throwable failure;
+    private long startTime;
+
+    /**
+     * @param workerCount the number of ranges to analyze at once; see getDefaultWorkerCount()
+     */
+    OfflineVideoAnalyzer(Context context, String filename, int workerCount, float sampleRate, Listener listener) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be at least 1");
+        }
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("sampleRate must be positive");
+        }
+        this.context = context.getApplicationContext();
+        this.filename = filename;
+        this.workerCount = workerCount;
+        this.sampleRate = sampleRate;
+        this.listener = listener;
+        mainThreadHandler = new MainThreadHandler(this);
+    }
+
+    /**
+     * Returns a worker per core, leaving one core for the UI, up to a limit to bound the memory used by detectors.
+     */
+    static int getDefaultWorkerCount() {
+        return Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * Starts analyzing. Must be called on the main thread.
+     * @throws IOException if the video's duration could not be read
+     */
+    void start() throws IOException {
+        if (isRunning) {
+            throw new IllegalStateException("Analysis is already running");
+        }
+        float durationSeconds;
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(filename);
+            String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            if (duration == null) {
+                throw new IOException("Unable to read the duration of " + filename);
+            }
+            durationSeconds = Long.parseLong(duration) / 1000f;
+            rotation = toRotation(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unable to open " + filename, e);
+        } finally {
+            retriever.release();
+        }
+
+        timeline = new VideoTimeline(durationSeconds, sampleRate);
+        rangeCount = Math.max(1, (int) Math.ceil(durationSeconds / RANGE_DURATION));
+        nextRange.set(0);
+        cancelled = false;
+        sampleCompleted = new boolean[timeline.getSampleCount()];
+        completedCount = 0;
+        completedUpTo = 0;
+        failure = null;
+        startTime = SystemClock.elapsedRealtime();
+        isRunning = true;
+
+        int count = Math.min(workerCount, rangeCount);
+        workersRunning = count;
+        for (int i = 0; i < count; i++) {
+            new AnalysisWorker(this, i).start();
+        }
+    }
+
+    /**
+     * Asks the workers to stop. onAnalysisFinished() is called once they have.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * Returns the timeline being filled in, or null if the analysis has not started.
+     */
+    VideoTimeline getTimeline() {
+        return timeline;
+    }
+
+    private void onSamplesCompleted(int first, int end) {
+        if (!isRunning) {
+            return;
+        }
+        for (int i = first; i < end; i++) {
+            if (!sampleCompleted[i]) {
+                sampleCompleted[i] = true;
+                completedCount += 1;
+            }
+        }
+        while (completedUpTo < sampleCompleted.length && sampleCompleted[completedUpTo]) {
+            completedUpTo += 1;
+        }
+        listener.onAnalysisProgress(timeline, completedUpTo, (float) completedCount / sampleCompleted.length,
+                getRealtimeFactor());
+    }
+
+    private void onWorkerFinished(Throwable error) {
+        if (error != null && failure == null) {
+            failure = error;
+            cancelled = true; // the failed worker's range will never complete, so there is no point going on
+        }
+        workersRunning -= 1;
+        if (workersRunning > 0) {
+            return;
+        }
+        isRunning = false;
+        if (failure != null) {
+            listener.onAnalysisFailed(timeline, failure);
+        } else {
+            listener.onAnalysisFinished(timeline, cancelled, getRealtimeFactor());
+        }
+    }
+
+    private float getRealtimeFactor() {
+        long elapsed = SystemClock.elapsedRealtime() - startTime;
+        return elapsed <= 0 ? 0 : (completedCount / sampleRate) / (elapsed / 1000f);
+    }
+
+    private static Frame.ROTATE toRotation(String degrees) {
+        if (degrees == null) {
+            return Frame.ROTATE.NO_ROTATION;
+        }
+        switch (degrees) {
+            case "90":
+                return Frame.ROTATE.BY_90_CW;
+            case "180":
+                return Frame.ROTATE.BY_180;
+            case "270":
+                return Frame.ROTATE.BY_90_CCW;
+            default:
+                return Frame.ROTATE.NO_ROTATION;
+        }
+    }
+
+    private static class MainThreadHandler extends Handler {
+        //Incoming message codes
+        private static final int SAMPLES_COMPLETED = 0;
+        private static final int WORKER_FINISHED = 1;
+
+        private final OfflineVideoAnalyzer analyzer;
+
+        private MainThreadHandler(OfflineVideoAnalyzer analyzer) {
+            super(Looper.getMainLooper());
+            this.analyzer = analyzer;
+        }
+
+        private void sendSamplesCompletedMessage(int first, int end) {
+            sendMessage(obtainMessage(SAMPLES_COMPLETED, first, end));
+        }
+
+        private void sendWorkerFinishedMessage(Throwable error) {
+            sendMessage(obtainMessage(WORKER_FINISHED, error));
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case SAMPLES_COMPLETED:
+                    analyzer.onSamplesCompleted(msg.arg1, msg.arg2);
+                    break;
+                case WORKER_FINISHED:
+                    analyzer.onWorkerFinished((Throwable) msg.obj);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Decodes and analyzes ranges of the video until there are none left.
+     */
+    private static class AnalysisWorker extends Thread implements Detector.ImageListener {
+        private static final long CODEC_TIMEOUT_US = 10000;
+
+        private final OfflineVideoAnalyzer analyzer;
+        private final VideoTimeline timeline;
+        private final FaceMetricsSnapshot snapshot = new FaceMetricsSnapshot();
+
+        private MediaExtractor extractor;
+        private MediaCodec decoder;
+        private FrameDetector detector;
+
+        // the frame handed to the detector, reused while the video's dimensions stay the same
+        private byte[] frameData;
+        private Frame.ByteArrayFrame frame;
+        private int frameWidth;
+        private int frameHeight;
+
+        private int currentSample;
+
+        private AnalysisWorker(OfflineVideoAnalyzer analyzer, int index) {
+            super("AnalysisWorker-" + index);
+            this.analyzer = analyzer;
+            timeline = analyzer.timeline;
+        }
+
+        @Override
+        public void run() {
+            Throwable error = null;
+            try {
+                detector = new FrameDetector(analyzer.context, 1, Detector.FaceDetectorMode.LARGE_FACES);
+                detector.setDetectAllEmotions(true);
+                detector.setDetectAllExpressions(true);
+                detector.setDetectAllAppearances(true);
+                detector.setImageListener(this);
+                detector.start();
+                openDecoder();
+
+                int range;
+                while (!analyzer.cancelled && (range = analyzer.nextRange.getAndIncrement()) < analyzer.rangeCount) {
+                    analyzeRange(range);
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Analysis failed", e);
+                error = e;
+            } finally {
+                if (detector != null && detector.isRunning()) {
+                    detector.stop();
+                }
+                if (decoder != null) {
+                    decoder.stop();
+                    decoder.release();
+                }
+                if (extractor != null) {
+                    extractor.release();
+                }
+                analyzer.mainThreadHandler.sendWorkerFinishedMessage(error);
+            }
+        }
+
+        private void openDecoder() throws IOException {
+            extractor = new MediaExtractor();
+            extractor.setDataSource(analyzer.filename);
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat trackFormat = extractor.getTrackFormat(i);
+                String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("video/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                    break;
+                }
+            }
+            if (format == null) {
+                throw new IOException("No video track in " + analyzer.filename);
+            }
+            // ask for YUV output which can be read through Image, whatever the decoder's native layout
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            decoder.configure(format, null, null, 0);
+            decoder.start();
+        }
+
+        /*
+         * Decodes the frames of one range, from the sync frame before it up to the first frame past it. The first
+         * frame at or after each sample's time is analyzed for that sample; samples which no frame falls on are
+         * completed as NO_FRAME.
+         */
+        private void analyzeRange(int range) {
+            int firstSample = timeline.getSampleAt(range * RANGE_DURATION);
+            int endSample = range == analyzer.rangeCount - 1 ? timeline.getSampleCount()
+                    : timeline.getSampleAt((range + 1) * RANGE_DURATION);
+            if (firstSample >= endSample) {
+                return;
+            }
+            long endUs = toMicros(timeline.getTimestamp(endSample));
+            int nextSample = firstSample;
+
+            // forget the faces tracked in the previous range, which is not contiguous with this one
+            detector.reset();
+            decoder.flush();
+            extractor.seekTo(toMicros(timeline.getTimestamp(firstSample)), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+            boolean outputDone = false;
+            while (!outputDone && !analyzer.cancelled) {
+                if (!inputDone) {
+                    int inputIndex = decoder.dequeueInputBuffer(CODEC_TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        ByteBuffer inputBuffer = decoder.getInputBuffer(inputIndex);
+                        int size = extractor.readSampleData(inputBuffer, 0);
+                        long sampleTime = extractor.getSampleTime();
+                        // stop at the first sync frame past the range; every frame shown before it is decoded by then
+                        boolean pastRange = sampleTime >= endUs
+                                && (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+                        if (size < 0 || pastRange) {
+                            decoder.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            decoder.queueInputBuffer(inputIndex, 0, size, sampleTime, 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outputIndex = decoder.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+                if (outputIndex < 0) {
+                    continue; // try again later, or a format change which getOutputImage() takes care of
+                }
+                long presentationTimeUs = info.presentationTimeUs;
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 || presentationTimeUs >= endUs) {
+                    outputDone = true;
+                }
+                if (info.size > 0 && nextSample < endSample
+                        && presentationTimeUs >= toMicros(timeline.getTimestamp(nextSample))
+                        && presentationTimeUs < endUs) {
+                    Image image = decoder.getOutputImage(outputIndex);
+                    if (image != null) {
+                        try {
+                            analyzeImage(image, nextSample, presentationTimeUs / 1000000f);
+                        } finally {
+                            image.close();
+                        }
+                    } else {
+                        timeline.setState(nextSample, VideoTimeline.NO_FRAME);
+                    }
+                    int first = nextSample;
+                    nextSample += 1;
+                    while (nextSample < endSample && toMicros(timeline.getTimestamp(nextSample)) <= presentationTimeUs) {
+                        timeline.setState(nextSample, VideoTimeline.NO_FRAME);
+                        nextSample += 1;
+                    }
+                    analyzer.mainThreadHandler.sendSamplesCompletedMessage(first, nextSample);
+                }
+                decoder.releaseOutputBuffer(outputIndex, false);
+            }
+
+            if (!analyzer.cancelled && nextSample < endSample) {
+                // past the last frame of the video
+                for (int i = nextSample; i < endSample; i++) {
+                    timeline.setState(i, VideoTimeline.NO_FRAME);
+                }
+                analyzer.mainThreadHandler.sendSamplesCompletedMessage(nextSample, endSample);
+            }
+        }
+
+        private void analyzeImage(Image image, int sample, float timestamp) {
+            Rect crop = image.getCropRect();
+            int width = crop.width() & ~1;
+            int height = crop.height() & ~1;
+            if (frame == null || width != frameWidth || height != frameHeight) {
+                frameData = new byte[width * height * 3 / 2];
+                frame = new Frame.ByteArrayFrame(frameData, width, height, Frame.COLOR_FORMAT.YUV_NV21);
+                frame.setTargetRotation(analyzer.rotation);
+                frameWidth = width;
+                frameHeight = height;
+            }
+            copyToNv21(image, crop, width, height, frameData);
+
+            currentSample = sample;
+            detector.process(frame, timestamp);
+            if (timeline.getState(sample) == VideoTimeline.PENDING) {
+                timeline.setState(sample, VideoTimeline.NO_FACE);
+            }
+        }
+
+        /*
+         * Called by the detector, on this thread, from within process().
+         */
+        @Override
+        public void onImageResults(List<Face> faces, Frame image, float timestamp) {
+            if (faces != null && faces.size() > 0) {
+                snapshot.fill(faces.get(0));
+                timeline.setFace(currentSample, snapshot);
+            } else {
+                timeline.setState(currentSample, VideoTimeline.NO_FACE);
+            }
+        }
+
+        /*
+         * Copies the cropped area of a YUV_420_888 image into NV21 layout: the Y plane, then interleaved V and U.
+         */
+        private static void copyToNv21(Image image, Rect crop, int width, int height, byte[] out) {
+            Image.Plane[] planes = image.getPlanes();
+
+            ByteBuffer y = planes[0].getBuffer();
+            int yRowStride = planes[0].getRowStride();
+            int yPixelStride = planes[0].getPixelStride();
+            int outIndex = 0;
+            for (int row = 0; row < height; row++) {
+                int rowStart = (crop.top + row) * yRowStride + crop.left * yPixelStride;
+                if (yPixelStride == 1) {
+                    y.position(rowStart);
+                    y.get(out, outIndex, width);
+                    outIndex += width;
+                } else {
+                    for (int col = 0; col < width; col++) {
+                        out[outIndex++] = y.get(rowStart + col * yPixelStride);
+                    }
+                }
+            }
+
+            ByteBuffer u = planes[1].getBuffer();
+            ByteBuffer v = planes[2].getBuffer();
+            int chromaRowStride = planes[1].getRowStride();
+            int chromaPixelStride = planes[1].getPixelStride();
+            for (int row = 0; row < height / 2; row++) {
+                int rowStart = (crop.top / 2 + row) * chromaRowStride + (crop.left / 2) * chromaPixelStride;
+                for (int col = 0; col < width / 2; col++) {
+                    int index = rowStart + col * chromaPixelStride;
+                    out[outIndex++] = v.get(index);
+                    out[outIndex++] = u.get(index);
+                }
+            }
+        }
+
+        private static long toMicros(float seconds) {
+            return (long) (seconds * 1000000.0);
+        }
+    }
+}
@@ -15,8 +15,12 @@ import java.util.List;
  * A thread to manage the VideoDetector.
  * <p>
  * Note: This is required since running the VideoDetector in the main thread will crash the application.
+ * <p>
+ * Results are handed to the UI through a CoalescingResultDelivery, so that when the detector runs faster than the display
+ * only the latest result is shown, once per display frame. Must be created on the main thread.
  */
-public class VideoDetectorThread extends Thread implements Detector.ImageListener {
+public class VideoDetectorThread extends Thread implements Detector.ImageListener,
+        CoalescingResultDelivery.Receiver {
 
     private static String LOG_TAG = "Affectiva";
     private String filename;
@@ -26,12 +30,18 @@ public class VideoDetectorThread extends Thread implements Detector.ImageListene
     private MetricsPanel metricsPanel;
     private volatile boolean abortRequested;
     private Object completeSignal = new Object();
+    private final CoalescingResultDelivery resultDelivery;
+    private final int deliveryGeneration; // which abort() cancels, so that results which race with it are dropped
+    // only touched on the UI thread
+    private final FaceMetricsSnapshot faceMetrics = new FaceMetricsSnapshot();
 
     public VideoDetectorThread(String file, Activity context, MetricsPanel metricsPanel, DrawingView drawingView) {
         filename = file;
         activity = context;
         this.drawingView = drawingView;
         this.metricsPanel = metricsPanel;
+        resultDelivery = new CoalescingResultDelivery(this);
+        deliveryGeneration = resultDelivery.getGeneration();
     }
 
     @Override
@@ -49,6 +59,8 @@ public class VideoDetectorThread extends Thread implements Detector.ImageListene
             if (detector.isRunning()) {
                 detector.stop();
             }
+            Log.d(LOG_TAG, String.format("Delivered results: %d posted, %d coalesced",
+                    resultDelivery.getPostedCount(), resultDelivery.getCoalescedCount()));
             // notify waiting threads that we're done
             synchronized (completeSignal) {
                 completeSignal.notify();
@@ -59,116 +71,105 @@ public class VideoDetectorThread extends Thread implements Detector.ImageListene
     @Override
     public void onImageResults(List<Face> list, Frame image, final float timestamp) {
 
-        final Frame frame = image;
-        final List<Face> faces = list;
-
         if (abortRequested) {
             detector.stop();
             abortRequested = false;
             return;
         }
 
-        activity.runOnUiThread(new Runnable() {
-            @SuppressWarnings("SuspiciousNameCombination")
-            @Override
-            public void run() {
-                //update metrics
-                if (faces != null && faces.size() > 0) {
-                    Face face = faces.get(0);
-                    // process the numeric metrics (scored or measured)
-                    Metrics[] allMetrics = Metrics.values();
-                    for (int n = 0; n < Metrics.numberOfEmotions() + Metrics.numberOfExpressions()
-                            + Metrics.numberOfMeasurements() + Metrics.numberOfQualities(); n++) {
-                        Metrics metric = allMetrics[n];
-                        metricsPanel.setMetricValue(metric, getScore(metric, face));
-                    }
-
-                    // set the text for the appearance metrics
-                    int resId = 0;
-                    switch (face.appearance.getGender()) {
-                        case UNKNOWN:
-                            resId = R.string.unknown;
-                            break;
-                        case FEMALE:
-                            resId = R.string.gender_female;
-                            break;
-                        case MALE:
-                            resId = R.string.gender_male;
-                            break;
-                    }
-                    metricsPanel.setMetricText(Metrics.GENDER, resId);
-
-                    switch (face.appearance.getAge()) {
-                        case AGE_UNKNOWN:
-                            resId = R.string.unknown;
-                            break;
-                        case AGE_UNDER_18:
-                            resId = R.string.age_under_18;
-                            break;
-                        case AGE_18_24:
-                            resId = R.string.age_18_24;
-                            break;
-                        case AGE_25_34:
-                            resId = R.string.age_25_34;
-                            break;
-                        case AGE_35_44:
-                            resId = R.string.age_35_44;
-                            break;
-                        case AGE_45_54:
-                            resId = R.string.age_45_54;
-                            break;
-                        case AGE_55_64:
-                            resId = R.string.age_55_64;
-                            break;
-                        case AGE_65_PLUS:
-                            resId = R.string.age_65_plus;
-                            break;
-                    }
-                    metricsPanel.setMetricText(Metrics.AGE, resId);
-
-                    switch (face.appearance.getEthnicity()) {
-                        case UNKNOWN:
-                            resId = R.string.unknown;
-                            break;
-                        case CAUCASIAN:
-                            resId = R.string.ethnicity_caucasian;
-                            break;
-                        case BLACK_AFRICAN:
-                            resId = R.string.ethnicity_black_african;
-                            break;
-                        case EAST_ASIAN:
-                            resId = R.string.ethnicity_east_asian;
-                            break;
-                        case SOUTH_ASIAN:
-                            resId = R.string.ethnicity_south_asian;
-                            break;
-                        case HISPANIC:
-                            resId = R.string.ethnicity_hispanic;
-                            break;
-                    }
-                    metricsPanel.setMetricText(Metrics.ETHNICITY, resId);
+        resultDelivery.post(list, image, timestamp, deliveryGeneration);
+    }
 
+    /*
+     * Called on the UI thread with the latest result, at most once per display frame.
+     */
+    @SuppressWarnings("SuspiciousNameCombination")
+    @Override
+    public void onResult(List<Face> faces, Frame frame, float timestamp) {
+        //update metrics
+        if (faces != null && faces.size() > 0) {
+            Face face = faces.get(0);
+            // process the numeric metrics (scored or measured), which precede the appearances
+            faceMetrics.fill(face);
+            for (int n = 0; n < Metrics.Category.APPEARANCES.start; n++) {
+                metricsPanel.setMetricValue(Metrics.get(n), faceMetrics.get(n));
+            }
 
-                    PointF[] facePoints = face.getFacePoints();
-                    int frameWidth = frame.getWidth();
-                    int frameHeight = frame.getHeight();
-                    Frame.ROTATE rotate = frame.getTargetRotation();
+            // set the text for the appearance metrics
+            int resId = 0;
+            switch (face.appearance.getGender()) {
+                case UNKNOWN:
+                    resId = R.string.unknown;
+                    break;
+                case FEMALE:
+                    resId = R.string.gender_female;
+                    break;
+                case MALE:
+                    resId = R.string.gender_male;
+                    break;
+            }
+            metricsPanel.setMetricText(Metrics.GENDER, resId);
+
+            switch (face.appearance.getAge()) {
+                case AGE_UNKNOWN:
+                    resId = R.string.unknown;
+                    break;
+                case AGE_UNDER_18:
+                    resId = R.string.age_under_18;
+                    break;
+                case AGE_18_24:
+                    resId = R.string.age_18_24;
+                    break;
+                case AGE_25_34:
+                    resId = R.string.age_25_34;
+                    break;
+                case AGE_35_44:
+                    resId = R.string.age_35_44;
+                    break;
+                case AGE_45_54:
+                    resId = R.string.age_45_54;
+                    break;
+                case AGE_55_64:
+                    resId = R.string.age_55_64;
+                    break;
+                case AGE_65_PLUS:
+                    resId = R.string.age_65_plus;
+                    break;
+            }
+            metricsPanel.setMetricText(Metrics.AGE, resId);
+
+            switch (face.appearance.getEthnicity()) {
+                case UNKNOWN:
+                    resId = R.string.unknown;
+                    break;
+                case CAUCASIAN:
+                    resId = R.string.ethnicity_caucasian;
+                    break;
+                case BLACK_AFRICAN:
+                    resId = R.string.ethnicity_black_african;
+                    break;
+                case EAST_ASIAN:
+                    resId = R.string.ethnicity_east_asian;
+                    break;
+                case SOUTH_ASIAN:
+                    resId = R.string.ethnicity_south_asian;
+                    break;
+                case HISPANIC:
+                    resId = R.string.ethnicity_hispanic;
+                    break;
+            }
+            metricsPanel.setMetricText(Metrics.ETHNICITY, resId);
 
-                    if (rotate == Frame.ROTATE.BY_90_CCW || rotate == Frame.ROTATE.BY_90_CW) {
-                        int temp = frameWidth;
-                        frameWidth = frameHeight;
-                        frameHeight = temp;
-                    }
-                    drawingView.drawFrame(frame, facePoints);
-                } else {
-                    for (Metrics metric : Metrics.values()) {
-                        metricsPanel.setMetricNA(metric);
-                    }
-                    drawingView.drawFrame(frame, null);
-                }
 
+            PointF[] facePoints = face.getFacePoints();
+            drawingView.drawFrame(frame, facePoints);
+        } else {
+            faceMetrics.clear();
+            for (int n = 0; n < FaceMetricsSnapshot.METRIC_COUNT; n++) {
+                metricsPanel.setMetricNA(Metrics.get(n));
             }
-        });
+            drawingView.drawFrame(frame, null);
+        }
     }
 
     /**
@@ -179,6 +180,7 @@ public class VideoDetectorThread extends Thread implements Detector.ImageListene
         if (isAlive()) {
             // set a flag which will be monitored in onImageResults
             abortRequested = true;
+            resultDelivery.cancel();
 
             // wait for background thread to finish before returning
             synchronized (completeSignal) {
@@ -189,121 +191,4 @@ public class VideoDetectorThread extends Thread implements Detector.ImageListene
             }
         }
     }
-
-    private float getScore(Metrics metric, Face face) {
-
-        float score;
-
-        switch (metric) {
-            case ANGER:
-                score = face.emotions.getAnger();
-                break;
-            case CONTEMPT:
-                score = face.emotions.getContempt();
-                break;
-            case DISGUST:
-                score = face.emotions.getDisgust();
-                break;
-            case FEAR:
-                score = face.emotions.getFear();
-                break;
-            case JOY:
-                score = face.emotions.getJoy();
-                break;
-            case SADNESS:
-                score = face.emotions.getSadness();
-                break;
-            case SURPRISE:
-                score = face.emotions.getSurprise();
-                break;
-            case ATTENTION:
-                score = face.expressions.getAttention();
-                break;
-            case BROW_FURROW:
-                score = face.expressions.getBrowFurrow();
-                break;
-            case BROW_RAISE:
-                score = face.expressions.getBrowRaise();
-                break;
-            case CHEEK_RAISE:
-                score = face.expressions.getCheekRaise();
-                break;
-            case CHIN_RAISER:
-                score = face.expressions.getChinRaise();
-                break;
-            case DIMPLER:
-                score = face.expressions.getDimpler();
-                break;
-            case ENGAGEMENT:
-                score = face.emotions.getEngagement();
-                break;
-            case EYE_CLOSURE:
-                score = face.expressions.getEyeClosure();
-                break;
-            case EYE_WIDEN:
-                score = face.expressions.getEyeWiden();
-                break;
-            case INNER_BROW_RAISER:
-                score = face.expressions.getInnerBrowRaise();
-                break;
-            case JAW_DROP:
-                score = face.expressions.getJawDrop();
-                break;
-            case LID_TIGHTEN:
-                score = face.expressions.getLidTighten();
-                break;
-            case LIP_DEPRESSOR:
-                score = face.expressions.getLipCornerDepressor();
-                break;
-            case LIP_PRESS:
-                score = face.expressions.getLipPress();
-                break;
-            case LIP_PUCKER:
-                score = face.expressions.getLipPucker();
-                break;
-            case LIP_STRETCH:
-                score = face.expressions.getLipStretch();
-                break;
-            case LIP_SUCK:
-                score = face.expressions.getLipSuck();
-                break;
-            case MOUTH_OPEN:
-                score = face.expressions.getMouthOpen();
-                break;
-            case NOSE_WRINKLER:
-                score = face.expressions.getNoseWrinkle();
-                break;
-            case SMILE:
-                score = face.expressions.getSmile();
-                break;
-            case SMIRK:
-                score = face.expressions.getSmirk();
-                break;
-            case UPPER_LIP_RAISER:
-                score = face.expressions.getUpperLipRaise();
-                break;
-            case VALENCE:
-                score = face.emotions.getValence();
-                break;
-            case YAW:
-                score = face.measurements.orientation.getYaw();
-                break;
-            case ROLL:
-                score = face.measurements.orientation.getRoll();
-                break;
-            case PITCH:
-                score = face.measurements.orientation.getPitch();
-                break;
-            case INTER_OCULAR_DISTANCE:
-                score = face.measurements.getInterocularDistance();
-                break;
-            case BRIGHTNESS:
-                score = face.qualities.getBrightness();
-                break;
-            default:
-                score = Float.NaN;
-                break;
-        }
-        return score;
-    }
 }
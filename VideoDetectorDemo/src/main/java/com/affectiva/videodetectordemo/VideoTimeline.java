@@ -0,0 +1,81 @@
+package com.affectiva.videodetectordemo;
+
+/**
+ * The results of analyzing a video at a fixed sample rate: for each sample, whether a face was found and the value of
+ * every metric of the first face.
+ *
+ * Sample i is taken at i / sampleRate seconds into the video, so the timeline is in time order by construction, however
+ * out of order its samples are filled in. Metrics are held in one flat float[], sampleCount * METRIC_COUNT long,
+ * indexed by sample and then Metrics ordinal.
+ *
+ * Each sample must be written by only one thread, and read by another only after a happens-before edge (e.g. a
+ * Handler message) from its writer.
+ */
+class VideoTimeline {
+
+    static final byte PENDING = 0;   // not analyzed yet
+    static final byte NO_FRAME = 1;  // no decoded frame fell on this sample (e.g. the sample rate exceeds the frame rate)
+    static final byte NO_FACE = 2;
+    static final byte FACE = 3;
+
+    private final float sampleRate;
+    private final int sampleCount;
+    private final byte[] states;
+    private final float[] metrics;
+
+    VideoTimeline(float durationSeconds, float sampleRate) {
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("sampleRate must be positive");
+        }
+        this.sampleRate = sampleRate;
+        sampleCount = Math.max(1, (int) Math.ceil(durationSeconds * sampleRate));
+        states = new byte[sampleCount];
+        metrics = new float[sampleCount * FaceMetricsSnapshot.METRIC_COUNT];
+    }
+
+    int getSampleCount() {
+        return sampleCount;
+    }
+
+    float getSampleRate() {
+        return sampleRate;
+    }
+
+    float getTimestamp(int sample) {
+        return sample / sampleRate;
+    }
+
+    /**
+     * Returns the first sample taken at or after the given time.
+     */
+    int getSampleAt(float seconds) {
+        return Math.min(sampleCount, Math.max(0, (int) Math.ceil(seconds * sampleRate)));
+    }
+
+    byte getState(int sample) {
+        return states[sample];
+    }
+
+    boolean hasFace(int sample) {
+        return states[sample] == FACE;
+    }
+
+    /**
+     * Returns the value of a metric of the first face at the given sample, or NaN if there was no face.
+     */
+    float getMetric(int sample, Metrics metric) {
+        return states[sample] == FACE ? metrics[sample * FaceMetricsSnapshot.METRIC_COUNT + metric.ordinal()] : Float.NaN;
+    }
+
+    void setFace(int sample, FaceMetricsSnapshot snapshot) {
+        int offset = sample * FaceMetricsSnapshot.METRIC_COUNT;
+        for (int i = 0; i < FaceMetricsSnapshot.METRIC_COUNT; i++) {
+            metrics[offset + i] = snapshot.get(i);
+        }
+        states[sample] = FACE;
+    }
+
+    void setState(int sample, byte state) {
+        states[sample] = state;
+    }
+}
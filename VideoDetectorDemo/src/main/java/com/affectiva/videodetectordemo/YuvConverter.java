@@ -0,0 +1,396 @@
+package com.affectiva.videodetectordemo;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+import java.nio.IntBuffer;
+
+/**
+ * Converts NV21 (YUV 4:2:0, a full-resolution Y plane followed by interleaved V,U at half resolution) to ARGB_8888
+ * ints, as used by Bitmap.setPixels().
+ *
+ * The conversion is BT.601 video range, in fixed point: the coefficients are scaled by 1024 so that each channel is
+ * computed with integer multiplies and shifts. Output goes into a caller-supplied int[] or IntBuffer. Rows are split
+ * across threadCount threads (the caller's thread among them) when there are enough of them to be worth it. The
+ * worker threads are started up front, and are handed their rows, and report back, through reused monitors rather
+ * than an executor's queue or a new latch, so that once an IntBuffer without an array has been converted into once,
+ * converting does not allocate.
+ *
+ * A YuvConverter may be used by one thread at a time. Call release() once it is no longer needed, to stop its threads.
+ * An exception thrown converting any slice is thrown to the caller, once every slice has finished.
+ *
+ * ImageDetectorDemo converts NV21 images for display with a copy of this class, which differs only in its package.
+ */
+class YuvConverter {
+
+    private static final int MIN_ROWS_PER_TASK = 64;
+    private static final int MAX_DEFAULT_THREADS = 4;
+    private static final int MAX_CHANNEL = 262143; // 255 << 10 | 1023, the largest fixed-point channel value
+
+    private final int threadCount;
+    private final RowWorker[] workers; // null if threadCount is 1
+    private final Completion completion = new Completion();
+    private int[] scratch; // for IntBuffers which are not backed by an array
+
+    /**
+     * @param threadCount the number of threads to convert with, including the caller's; 1 converts on the caller's
+     *                    thread only
+     */
+    YuvConverter(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be at least 1");
+        }
+        this.threadCount = threadCount;
+        if (threadCount > 1) {
+            workers = new RowWorker[threadCount - 1];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new RowWorker(i, completion);
+                workers[i].start();
+            }
+        } else {
+            workers = null;
+        }
+    }
+
+    /**
+     * Returns a thread per core, up to a small limit.
+     */
+    static int getDefaultThreadCount() {
+        return Math.max(1, Math.min(MAX_DEFAULT_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Converts a whole frame. argb receives width * height pixels, row by row.
+     */
+    void nv21ToArgb(byte[] nv21, int width, int height, int[] argb) {
+        checkFrame(nv21, width, height);
+        if (argb.length < width * height) {
+            throw new IllegalArgumentException("argb is too small for a " + width + "x" + height + " frame");
+        }
+        run(nv21, width, height, null, 0, 0, argb, 0, height);
+    }
+
+    /**
+     * Converts a whole frame into the buffer at its position, and advances its position past the frame.
+     */
+    void nv21ToArgb(byte[] nv21, int width, int height, IntBuffer argb) {
+        checkFrame(nv21, width, height);
+        int pixelCount = width * height;
+        if (argb.remaining() < pixelCount) {
+            throw new IllegalArgumentException("argb has too little space for a " + width + "x" + height + " frame");
+        }
+        if (argb.hasArray()) {
+            run(nv21, width, height, null, 0, 0, argb.array(), argb.arrayOffset() + argb.position(), height);
+        } else {
+            if (scratch == null || scratch.length < pixelCount) {
+                scratch = new int[pixelCount];
+            }
+            run(nv21, width, height, null, 0, 0, scratch, 0, height);
+            argb.put(scratch, 0, pixelCount);
+            return;
+        }
+        argb.position(argb.position() + pixelCount);
+    }
+
+    /**
+     * Converts a frame, rotating it and scaling it (nearest neighbour) to outWidth x outHeight in the same pass.
+     * outWidth and outHeight are the dimensions after rotation.
+     */
+    void nv21ToArgbRotatedScaled(byte[] nv21, int width, int height, Frame.ROTATE rotation, int outWidth,
+                                 int outHeight, int[] argb) {
+        checkFrame(nv21, width, height);
+        if (outWidth <= 0 || outHeight <= 0) {
+            throw new IllegalArgumentException("Output dimensions must be positive");
+        }
+        if (argb.length < outWidth * outHeight) {
+            throw new IllegalArgumentException("argb is too small for " + outWidth + "x" + outHeight + " pixels");
+        }
+        run(nv21, width, height, rotation == null ? Frame.ROTATE.NO_ROTATION : rotation, outWidth, outHeight, argb, 0,
+                outHeight);
+    }
+
+    /**
+     * Stops the converter's threads. The converter must not be used afterwards.
+     */
+    void release() {
+        if (workers != null) {
+            for (RowWorker worker : workers) {
+                worker.quit();
+            }
+        }
+    }
+
+    /*
+     * Splits the output rows between the worker threads and this one, and waits for all of them.
+     */
+    private void run(byte[] nv21, int width, int height, Frame.ROTATE rotation, int outWidth, int outHeight,
+                     int[] argb, int argbOffset, int rowCount) {
+        int taskCount = Math.max(1, Math.min(threadCount, rowCount / MIN_ROWS_PER_TASK));
+        int rowsPerTask = (rowCount + taskCount - 1) / taskCount;
+        if (taskCount == 1) {
+            convert(nv21, width, height, rotation, outWidth, outHeight, argb, argbOffset, 0, rowCount);
+            return;
+        }
+
+        completion.reset(taskCount - 1);
+        for (int i = 0; i < taskCount - 1; i++) {
+            workers[i].convert(nv21, width, height, rotation, outWidth, outHeight, argb, argbOffset, i * rowsPerTask,
+                    Math.min(rowCount, (i + 1) * rowsPerTask));
+        }
+        // the last slice is converted on this thread
+        RuntimeException failure;
+        try {
+            convert(nv21, width, height, rotation, outWidth, outHeight, argb, argbOffset,
+                    (taskCount - 1) * rowsPerTask, rowCount);
+        } finally {
+            failure = completion.await();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void convert(byte[] nv21, int width, int height, Frame.ROTATE rotation, int outWidth,
+                                int outHeight, int[] argb, int argbOffset, int firstRow, int endRow) {
+        if (rotation == null) {
+            convertRows(nv21, width, height, argb, argbOffset, firstRow, endRow);
+        } else {
+            convertRotatedScaledRows(nv21, width, height, rotation, outWidth, outHeight, argb, firstRow, endRow);
+        }
+    }
+
+    /**
+     * Converts rows [firstRow, endRow) of a frame, writing pixel (x, y) to argb[argbOffset + y * width + x].
+     */
+    static void convertRows(byte[] nv21, int width, int height, int[] argb, int argbOffset, int firstRow,
+                            int endRow) {
+        int frameSize = width * height;
+        for (int row = firstRow; row < endRow; row++) {
+            int yIndex = row * width;
+            int uvIndex = frameSize + (row >> 1) * width;
+            int out = argbOffset + yIndex;
+            int u = 0;
+            int v = 0;
+            for (int col = 0; col < width; col++) {
+                if ((col & 1) == 0) {
+                    v = (0xff & nv21[uvIndex++]) - 128;
+                    u = (0xff & nv21[uvIndex++]) - 128;
+                }
+                argb[out++] = toArgb(0xff & nv21[yIndex++], u, v);
+            }
+        }
+    }
+
+    /**
+     * Converts output rows [firstRow, endRow) of a frame rotated by rotation and scaled to outWidth x outHeight,
+     * writing output pixel (x, y) to argb[y * outWidth + x].
+     */
+    static void convertRotatedScaledRows(byte[] nv21, int width, int height, Frame.ROTATE rotation, int outWidth,
+                                         int outHeight, int[] argb, int firstRow, int endRow) {
+        boolean quarterTurn = rotation == Frame.ROTATE.BY_90_CW || rotation == Frame.ROTATE.BY_90_CCW;
+        int rotatedWidth = quarterTurn ? height : width;
+        int rotatedHeight = quarterTurn ? width : height;
+        // steps through the rotated frame per output pixel, in 16.16 fixed point
+        long xStep = ((long) rotatedWidth << 16) / outWidth;
+        long yStep = ((long) rotatedHeight << 16) / outHeight;
+        int frameSize = width * height;
+
+        for (int row = firstRow; row < endRow; row++) {
+            int rotatedY = (int) ((row * yStep) >> 16);
+            // source = base + perX * rotatedX, for the rotated frame's column rotatedX on this row
+            int sourceXBase;
+            int sourceXPerX;
+            int sourceYBase;
+            int sourceYPerX;
+            switch (rotation) {
+                case BY_90_CW:
+                    sourceXBase = rotatedY;
+                    sourceXPerX = 0;
+                    sourceYBase = height - 1;
+                    sourceYPerX = -1;
+                    break;
+                case BY_180:
+                    sourceXBase = width - 1;
+                    sourceXPerX = -1;
+                    sourceYBase = height - 1 - rotatedY;
+                    sourceYPerX = 0;
+                    break;
+                case BY_90_CCW:
+                    sourceXBase = width - 1 - rotatedY;
+                    sourceXPerX = 0;
+                    sourceYBase = 0;
+                    sourceYPerX = 1;
+                    break;
+                default:
+                    sourceXBase = 0;
+                    sourceXPerX = 1;
+                    sourceYBase = rotatedY;
+                    sourceYPerX = 0;
+                    break;
+            }
+
+            int out = row * outWidth;
+            long rotatedXFixed = 0;
+            for (int col = 0; col < outWidth; col++, rotatedXFixed += xStep) {
+                int rotatedX = (int) (rotatedXFixed >> 16);
+                int sourceX = sourceXBase + sourceXPerX * rotatedX;
+                int sourceY = sourceYBase + sourceYPerX * rotatedX;
+                int uvIndex = frameSize + (sourceY >> 1) * width + (sourceX & ~1);
+                argb[out++] = toArgb(0xff & nv21[sourceY * width + sourceX], (0xff & nv21[uvIndex + 1]) - 128,
+                        (0xff & nv21[uvIndex]) - 128);
+            }
+        }
+    }
+
+    /*
+     * y is 0..255, u and v are -128..127.
+     */
+    private static int toArgb(int y, int u, int v) {
+        y = Math.max(0, y - 16) * 1192;
+        int r = y + 1634 * v;
+        int g = y - 833 * v - 400 * u;
+        int b = y + 2066 * u;
+        r = r < 0 ? 0 : (r > MAX_CHANNEL ? MAX_CHANNEL : r);
+        g = g < 0 ? 0 : (g > MAX_CHANNEL ? MAX_CHANNEL : g);
+        b = b < 0 ? 0 : (b > MAX_CHANNEL ? MAX_CHANNEL : b);
+        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+
+    private static void checkFrame(byte[] nv21, int width, int height) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("NV21 dimensions must be positive and even, not " + width + "x"
+                    + height);
+        }
+        if (nv21.length < width * height * 3 / 2) {
+            throw new IllegalArgumentException("nv21 is too small for a " + width + "x" + height + " frame");
+        }
+    }
+
+    /**
+     * Counts down the slices handed to the worker threads, for the caller to wait on, and keeps the first exception a
+     * worker threw, for the caller to rethrow. Reused for every conversion.
+     */
+    private static class Completion {
+        private int remaining; // guarded by this
+        private RuntimeException failure; // guarded by this
+
+        synchronized void reset(int count) {
+            remaining = count;
+            failure = null;
+        }
+
+        /**
+         * @param failure what the slice's conversion threw, or null if it succeeded
+         */
+        synchronized void countDown(RuntimeException failure) {
+            if (this.failure == null) {
+                this.failure = failure;
+            }
+            remaining -= 1;
+            if (remaining == 0) {
+                notifyAll();
+            }
+        }
+
+        /*
+         * Waits for every slice, even if interrupted, as the workers are still writing into the caller's output.
+         * Returns the first exception a worker threw, or null.
+         */
+        synchronized RuntimeException await() {
+            boolean interrupted = false;
+            while (remaining > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return failure;
+        }
+    }
+
+    /**
+     * A worker thread, which converts one slice of rows of each conversion it is handed. A slice which fails is
+     * reported to the Completion, and the thread carries on with the next one.
+     */
+    private static class RowWorker extends Thread {
+        private final Completion completion;
+
+        // the slice to convert, guarded by this
+        private boolean hasSlice = false;
+        private boolean quitRequested = false;
+        private byte[] nv21;
+        private int width;
+        private int height;
+        private Frame.ROTATE rotation;
+        private int outWidth;
+        private int outHeight;
+        private int[] argb;
+        private int argbOffset;
+        private int firstRow;
+        private int endRow;
+
+        RowWorker(int index, Completion completion) {
+            super("YuvConverter-" + index);
+            setDaemon(true);
+            this.completion = completion;
+        }
+
+        synchronized void convert(byte[] nv21, int width, int height, Frame.ROTATE rotation, int outWidth,
+                                  int outHeight, int[] argb, int argbOffset, int firstRow, int endRow) {
+            this.nv21 = nv21;
+            this.width = width;
+            this.height = height;
+            this.rotation = rotation;
+            this.outWidth = outWidth;
+            this.outHeight = outHeight;
+            this.argb = argb;
+            this.argbOffset = argbOffset;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+            hasSlice = true;
+            notifyAll();
+        }
+
+        synchronized void quit() {
+            quitRequested = true;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            while (awaitSlice()) {
+                RuntimeException failure = null;
+                try {
+                    YuvConverter.convert(nv21, width, height, rotation, outWidth, outHeight, argb, argbOffset,
+                            firstRow, endRow);
+                } catch (RuntimeException e) {
+                    failure = e;
+                } finally {
+                    synchronized (this) {
+                        hasSlice = false;
+                        nv21 = null;
+                        argb = null;
+                    }
+                    completion.countDown(failure);
+                }
+            }
+        }
+
+        /*
+         * Waits for a slice to convert, and returns true, or returns false once asked to quit.
+         */
+        private synchronized boolean awaitSlice() {
+            while (!hasSlice && !quitRequested) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return hasSlice;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.affectiva.videodetectordemo;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+import java.util.Locale;
+
+/**
+ * Times YuvConverter's conversions on the JVM, at 640x480 and 1280x720, on one thread and on the default number of
+ * threads. Not a unit test: run main() from the IDE, or with the unit test classpath, and compare its output before
+ * and after a change to the converter. JVM timings do not carry over to a device's ART, but relative changes do.
+ *
+ * Each case is warmed up, so that the JIT has compiled the conversion loops, and then timed over enough frames to
+ * take about a second. Throughput is in pixels of the source frame, whatever the output size.
+ */
+public class YuvConverterBenchmark {
+
+    private static final int[][] SIZES = {{640, 480}, {1280, 720}};
+    private static final long WARM_UP_NANOS = 2000000000L;
+    private static final long MEASURE_NANOS = 1000000000L;
+
+    private interface Conversion {
+        void run(YuvConverter converter);
+    }
+
+    public static void main(String[] args) {
+        int[] threadCounts = {1, YuvConverter.getDefaultThreadCount()};
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            final byte[] nv21 = YuvConverterTest.randomNv21(width, height, 1);
+            final int[] argb = new int[width * height];
+            for (int threadCount : threadCounts) {
+                YuvConverter converter = new YuvConverter(threadCount);
+                try {
+                    report("nv21ToArgb", width, height, threadCount, measure(converter, new Conversion() {
+                        @Override
+                        public void run(YuvConverter converter) {
+                            converter.nv21ToArgb(nv21, width, height, argb);
+                        }
+                    }));
+                    // a portrait display of a landscape camera frame, at half size
+                    report("nv21ToArgbRotatedScaled", width, height, threadCount, measure(converter,
+                            new Conversion() {
+                                @Override
+                                public void run(YuvConverter converter) {
+                                    converter.nv21ToArgbRotatedScaled(nv21, width, height, Frame.ROTATE.BY_90_CW,
+                                            height / 2, width / 2, argb);
+                                }
+                            }));
+                } finally {
+                    converter.release();
+                }
+                if (threadCounts[0] == threadCounts[1]) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /*
+     * Returns the mean time per conversion, in nanoseconds.
+     */
+    private static double measure(YuvConverter converter, Conversion conversion) {
+        long end = System.nanoTime() + WARM_UP_NANOS;
+        while (System.nanoTime() < end) {
+            conversion.run(converter);
+        }
+        int count = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            conversion.run(converter);
+            count += 1;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MEASURE_NANOS);
+        return (double) elapsed / count;
+    }
+
+    private static void report(String name, int width, int height, int threadCount, double nanos) {
+        System.out.println(String.format(Locale.US, "%-24s %4dx%-4d %d thread(s): %7.3f ms/frame, %6.1f Mpixel/s",
+                name, width, height, threadCount, nanos / 1e6, width * height * 1e3 / nanos));
+    }
+}
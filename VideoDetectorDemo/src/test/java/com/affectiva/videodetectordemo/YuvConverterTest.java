@@ -0,0 +1,194 @@
+package com.affectiva.videodetectordemo;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks YuvConverter's fixed-point output against a floating-point BT.601 reference, at the frame sizes the demos
+ * convert (640x480 and 1280x720), with and without worker threads.
+ */
+public class YuvConverterTest {
+
+    // the fixed-point coefficients are truncated to 1/1024, so a channel may be a step or two off the reference
+    private static final int CHANNEL_TOLERANCE = 2;
+
+    private YuvConverter converter;
+
+    @After
+    public void releaseConverter() {
+        if (converter != null) {
+            converter.release();
+        }
+    }
+
+    @Test
+    public void convertsVgaFrame() {
+        checkWholeFrame(640, 480, 4);
+    }
+
+    @Test
+    public void converts720pFrame() {
+        checkWholeFrame(1280, 720, 4);
+    }
+
+    @Test
+    public void workerThreadsProduceTheSameOutputAsOne() {
+        byte[] nv21 = randomNv21(1280, 720, 3);
+        int[] single = new int[1280 * 720];
+        int[] threaded = new int[1280 * 720];
+        YuvConverter singleThreaded = new YuvConverter(1);
+        converter = new YuvConverter(4);
+        singleThreaded.nv21ToArgb(nv21, 1280, 720, single);
+        converter.nv21ToArgb(nv21, 1280, 720, threaded);
+        singleThreaded.release();
+        assertArrayEquals(single, threaded);
+    }
+
+    @Test
+    public void convertsIntoBuffersWithAndWithoutArrays() {
+        byte[] nv21 = randomNv21(640, 480, 4);
+        int[] expected = new int[640 * 480];
+        converter = new YuvConverter(4);
+        converter.nv21ToArgb(nv21, 640, 480, expected);
+
+        IntBuffer offsetArray = IntBuffer.allocate(expected.length + 1);
+        offsetArray.position(1);
+        IntBuffer slice = offsetArray.slice();
+        converter.nv21ToArgb(nv21, 640, 480, slice);
+        assertEquals(expected.length, slice.position());
+
+        IntBuffer direct = ByteBuffer.allocateDirect(expected.length * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        converter.nv21ToArgb(nv21, 640, 480, direct);
+        assertEquals(expected.length, direct.position());
+
+        for (int i = 0; i < expected.length; i++) {
+            if (offsetArray.get(1 + i) != expected[i] || direct.get(i) != expected[i]) {
+                fail("pixel " + i + " differs from the int[] conversion");
+            }
+        }
+    }
+
+    @Test
+    public void rotatesAndHalvesVgaFrame() {
+        checkRotatedScaled(640, 480);
+    }
+
+    @Test
+    public void rotatesAndHalves720pFrame() {
+        checkRotatedScaled(1280, 720);
+    }
+
+    @Test
+    public void rejectsOddDimensions() {
+        converter = new YuvConverter(1);
+        try {
+            converter.nv21ToArgb(new byte[641 * 480 * 2], 641, 480, new int[641 * 480]);
+            fail("converted a frame of odd width");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    private void checkWholeFrame(int width, int height, int threadCount) {
+        byte[] nv21 = randomNv21(width, height, width);
+        int[] argb = new int[width * height];
+        if (converter == null) {
+            converter = new YuvConverter(threadCount);
+        }
+        converter.nv21ToArgb(nv21, width, height, argb);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertPixel(null, x, y, referenceArgb(nv21, width, height, x, y), argb[y * width + x]);
+            }
+        }
+    }
+
+    private void checkRotatedScaled(int width, int height) {
+        byte[] nv21 = randomNv21(width, height, height);
+        converter = new YuvConverter(4);
+        for (Frame.ROTATE rotation : Frame.ROTATE.values()) {
+            boolean quarterTurn = rotation == Frame.ROTATE.BY_90_CW || rotation == Frame.ROTATE.BY_90_CCW;
+            int rotatedWidth = quarterTurn ? height : width;
+            int rotatedHeight = quarterTurn ? width : height;
+            // halving keeps the fixed-point scaling exact, so each output pixel has exactly one source pixel
+            int outWidth = rotatedWidth / 2;
+            int outHeight = rotatedHeight / 2;
+            int[] argb = new int[outWidth * outHeight];
+            converter.nv21ToArgbRotatedScaled(nv21, width, height, rotation, outWidth, outHeight, argb);
+            for (int y = 0; y < outHeight; y++) {
+                for (int x = 0; x < outWidth; x++) {
+                    int rotatedX = x * 2;
+                    int rotatedY = y * 2;
+                    int sourceX;
+                    int sourceY;
+                    switch (rotation) {
+                        case BY_90_CW:
+                            sourceX = rotatedY;
+                            sourceY = height - 1 - rotatedX;
+                            break;
+                        case BY_180:
+                            sourceX = width - 1 - rotatedX;
+                            sourceY = height - 1 - rotatedY;
+                            break;
+                        case BY_90_CCW:
+                            sourceX = width - 1 - rotatedY;
+                            sourceY = rotatedX;
+                            break;
+                        default:
+                            sourceX = rotatedX;
+                            sourceY = rotatedY;
+                            break;
+                    }
+                    assertPixel(rotation, x, y, referenceArgb(nv21, width, height, sourceX, sourceY),
+                            argb[y * outWidth + x]);
+                }
+            }
+        }
+    }
+
+    static byte[] randomNv21(int width, int height, long seed) {
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        new Random(seed).nextBytes(nv21);
+        return nv21;
+    }
+
+    /*
+     * BT.601 video range, in floating point.
+     */
+    private static int referenceArgb(byte[] nv21, int width, int height, int x, int y) {
+        int uvIndex = width * height + (y / 2) * width + (x / 2) * 2;
+        double luma = 1.164 * Math.max(0, (0xff & nv21[y * width + x]) - 16);
+        int v = (0xff & nv21[uvIndex]) - 128;
+        int u = (0xff & nv21[uvIndex + 1]) - 128;
+        int r = clamp(luma + 1.596 * v);
+        int g = clamp(luma - 0.813 * v - 0.391 * u);
+        int b = clamp(luma + 2.018 * u);
+        return 0xff000000 | r << 16 | g << 8 | b;
+    }
+
+    private static int clamp(double channel) {
+        return (int) Math.max(0, Math.min(255, channel));
+    }
+
+    private static void assertPixel(Frame.ROTATE rotation, int x, int y, int expected, int actual) {
+        boolean matches = actual >>> 24 == 0xff;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            matches &= Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff)) <= CHANNEL_TOLERANCE;
+        }
+        if (!matches) {
+            fail(String.format("pixel %d,%d%s: expected %08x, was %08x", x, y,
+                    rotation == null ? "" : " rotated " + rotation, expected, actual));
+        }
+    }
+}